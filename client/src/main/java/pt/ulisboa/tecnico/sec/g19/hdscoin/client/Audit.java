@@ -65,6 +65,10 @@ public class Audit {
             IClient client = new Client(new URL(SERVER_URL), numberOfServers, path.toString ());
             Serialization.AuditResponse auditResponse= client.audit(clientPublicKey);
             List<Serialization.Transaction> transactions = auditResponse.ledger.transactions;
+            if (auditResponse.ledger.checkpoint != null) {
+                System.out.printf("Checkpoint: %d transactions, balance %d\n", auditResponse.ledger.checkpoint.length,
+                        auditResponse.ledger.checkpoint.balance);
+            }
             System.out.println("Transactions:");
             for (Serialization.Transaction tx : transactions) {
                 System.out.println("  Signature: " + tx.signature);
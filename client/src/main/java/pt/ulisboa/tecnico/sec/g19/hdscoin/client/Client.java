@@ -18,6 +18,11 @@ import java.security.cert.CertificateException;
 import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import static pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization.SERVER_PREFIX;
 import static pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization.StatusMessage.ERROR_NO_SIGNATURE_MATCH;
@@ -30,14 +35,198 @@ public class Client implements IClient {
         Security.addProvider (new BouncyCastleProvider ());
     }
 
+    private static final String ACCEPT_ENCODING = Compression.DEFLATE + ", " + Compression.GZIP;
+
     private List<ServerInfo> servers;
     private List<ServerInfo> ackList;
     private int numberOfMaxFaults;
+    // wire format used to talk with the replicas, JSON unless told otherwise
+    private String contentType = Serialization.JSON_CONTENT_TYPE;
+    // request bodies at least this large are sent gzip compressed
+    private int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    // writes are sent once and the replicas exchange the echoes among themselves
+    private boolean serverBroadcast = false;
+    private ReadMode readMode = ReadMode.HEDGED;
+    // the accounts that authenticate their requests on sessions, by private key, see openSessions
+    private final Map<ECPrivateKey, String> sessionAccounts = new ConcurrentHashMap<> ();
+    // the sessions open with the replicas, by replica key and account key, see getSessionSlot
+    private final Map<String, SessionKey> sessions = new ConcurrentHashMap<> ();
+    // the replicas that can't be reached are skipped, see getReachableServers
+    private final ReplicaHealth replicaHealth;
 
     public Client (URL url, int numberOfServers, String keyStoreFilepath) {
         this.servers = getServersInfoFromKeyStore (url, numberOfServers, keyStoreFilepath);
         this.numberOfMaxFaults = Utils.numberOfFaultsSupported (numberOfServers);
         this.ackList = new ArrayList<> ();
+        this.replicaHealth = new ReplicaHealth (this.servers, getQuorumSize ());
+    }
+
+    // the replicas this client suspects and how many requests it spared them
+    public Map<String, Object> getReplicaHealth () {
+        return replicaHealth.toMap ();
+    }
+
+    /**
+     * Selects the wire format used on requests and asked for on responses.
+     * Replicas that don't understand it answer in JSON, which is always accepted.
+     *
+     * @param contentType Serialization.JSON_CONTENT_TYPE or Serialization.CBOR_CONTENT_TYPE
+     */
+    public void setContentType (String contentType) {
+        this.contentType = contentType;
+    }
+
+    /**
+     * Selects the size, in bytes, from which request bodies are compressed before being sent to the replicas.
+     *
+     * @param compressionThreshold the minimum body size to compress, Integer.MAX_VALUE disables compression
+     */
+    public void setCompressionThreshold (int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Selects who gathers the signed echoes of the replicas on writes. By default the client collects them and
+     * relays them on a second round; with server broadcast the write is sent once and the replicas exchange the
+     * echoes among themselves, which saves the client a round-trip.
+     * Pipelined writes and write-backs always use the two rounds.
+     *
+     * @param serverBroadcast true to let the replicas broadcast the echoes
+     */
+    public void setServerBroadcast (boolean serverBroadcast) {
+        this.serverBroadcast = serverBroadcast;
+    }
+
+    // how many replicas the reads of a single account ask, see quorumRead
+    public enum ReadMode {
+        // every replica, and the value is chosen from all their responses
+        ALL,
+        // a quorum, and more replicas only when one fails or they disagree
+        QUORUM,
+        // a quorum, and the others too when it is slower than usual, the default
+        HEDGED
+    }
+
+    /**
+     * Selects how many replicas the reads of a single account ask. Batch reads always ask every replica.
+     *
+     * @param readMode ReadMode.HEDGED unless told otherwise
+     */
+    public void setReadMode (ReadMode readMode) {
+        this.readMode = readMode;
+    }
+
+    /**
+     * Opens a session of an account with each replica. Its key is agreed on a handshake signed with ECDSA, and then
+     * authenticates the requests of the account, and the responses to them, with HMAC-SHA256 instead of ECDSA
+     * signatures. The transactions are still signed with ECDSA. Reads are authenticated by any session open with the
+     * replica. A session the replica dropped is opened again on the next request of the account.
+     *
+     * @param publicKey  Public key of the account.
+     * @param privateKey Private key of the account, the requests signed with it go on its sessions.
+     * @return the number of replicas a session was opened with
+     */
+    public int openSessions (ECPublicKey publicKey, ECPrivateKey privateKey) throws KeyException {
+        String b64PublicKey = Serialization.publicKeyToBase64 (publicKey);
+        sessionAccounts.put (privateKey, b64PublicKey);
+        int opened = 0;
+        for (ServerInfo server : getReachableServers ()) {
+            if (openSession (server, b64PublicKey, privateKey) != null) {
+                opened++;
+            }
+        }
+        return opened;
+    }
+
+    // the requests signed with this key go back to ECDSA signatures
+    public void closeSessions (ECPrivateKey privateKey) {
+        String b64PublicKey = sessionAccounts.remove (privateKey);
+        if (b64PublicKey != null) {
+            sessions.keySet ().removeIf (slot -> slot.endsWith ("#" + b64PublicKey));
+        }
+    }
+
+    private SessionKey openSession (ServerInfo server, String b64PublicKey, ECPrivateKey privateKey) {
+        try {
+            KeyPair ephemeralKeyPair = Utils.generateKeyPair ();
+            Serialization.SessionRequest request = new Serialization.SessionRequest ();
+            request.publicKey = b64PublicKey;
+            request.ephemeralKey = Serialization.publicKeyToBase64 ((ECPublicKey) ephemeralKeyPair.getPublic ());
+            request.nonce = Utils.randomNonce ();
+            // the handshake is signed and checked with ECDSA on both sides
+            ECPublicKey serverPublicKey = Serialization.base64toPublicKey (server.publicKeyBase64);
+            Serialization.SessionResponse response = sendPostRequest (serverPublicKey,
+                    server.serverUrl.toString () + "/session", privateKey, request,
+                    Serialization.SessionResponse.class, null, false, null);
+            if (response.statusCode != 200) {
+                System.out.println ("The replica refused the session: " + response.status);
+                return null;
+            }
+            SessionKey session = SessionKey.agree (response.sessionId, ephemeralKeyPair.getPrivate (),
+                    Serialization.base64toPublicKey (response.ephemeralKey));
+            sessions.put (getSessionSlot (server.publicKeyBase64, b64PublicKey), session);
+            return session;
+        } catch (Exception e) {
+            System.out.println ("Failed to open a session with a replica... " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @param privateKey the key the request is signed with, null for the requests that aren't signed
+     * @return the session the request goes on, null to sign it and check the response with ECDSA
+     */
+    private SessionKey getSession (ECPublicKey serverPublicKey, ECPrivateKey privateKey) {
+        if (sessions.isEmpty () && sessionAccounts.isEmpty ()) {
+            return null;
+        }
+        String b64ServerKey;
+        try {
+            b64ServerKey = Serialization.publicKeyToBase64 (serverPublicKey);
+        } catch (KeyException e) {
+            return null;
+        }
+        if (privateKey == null) {
+            for (Map.Entry<String, SessionKey> session : sessions.entrySet ()) {
+                if (session.getKey ().startsWith (b64ServerKey + "#")) {
+                    return session.getValue ();
+                }
+            }
+            return null;
+        }
+        String b64PublicKey = sessionAccounts.get (privateKey);
+        if (b64PublicKey == null) {
+            return null;
+        }
+        SessionKey session = sessions.get (getSessionSlot (b64ServerKey, b64PublicKey));
+        if (session == null) {
+            for (ServerInfo server : this.servers) {
+                if (server.publicKeyBase64.equals (b64ServerKey)) {
+                    session = openSession (server, b64PublicKey, privateKey);
+                }
+            }
+        }
+        return session;
+    }
+
+    private static String getSessionSlot (String b64ServerKey, String b64PublicKey) {
+        return b64ServerKey + "#" + b64PublicKey;
+    }
+
+    /**
+     * Checks the response to a request sent on a session with its key, or with the key of the replica if it was
+     * signed instead. A replica signs the responses on a session it no longer has, which is then forgotten.
+     */
+    private boolean checkResponseSignature (HttpRequest request, String signable, ECPublicKey serverPublicKey,
+                                            SessionKey session) throws SignatureException {
+        String responseSignature = request.header (Serialization.SIGNATURE_HEADER_NAME);
+        if (session != null) {
+            if (session.getSessionId ().equals (request.header (Serialization.SESSION_HEADER_NAME))) {
+                return session.checkMac (responseSignature, signable);
+            }
+            sessions.values ().remove (session);
+        }
+        return Utils.checkSignature (responseSignature, signable, serverPublicKey);
     }
 
     private List<ServerInfo> getServersInfoFromKeyStore (URL url, int numberOfServers, String keyStoreFilepath) {
@@ -50,6 +239,7 @@ public class Client implements IClient {
                         new URL (url.getProtocol () + "://" + url.getHost () + ":" + (url.getPort () + i));
                 serverInfo.publicKeyBase64 = Serialization.publicKeyToBase64 (
                         Utils.loadPublicKeyFromKeyStore (keyStore, SERVER_PREFIX + (i + 1)));
+                serverInfo.serverName = SERVER_PREFIX + (i + 1);
                 serverInfos.add (serverInfo);
             }
             return serverInfos;
@@ -78,7 +268,7 @@ public class Client implements IClient {
         request.initialTransaction.signature =
                 Utils.generateSignature (request.initialTransaction.getSignable (), privateKey);
 
-        for (ServerInfo server : this.servers) {
+        for (ServerInfo server : getReachableServers ()) {
             try {
                 register (server, request, privateKey);
             } catch (Exception e) {
@@ -99,8 +289,67 @@ public class Client implements IClient {
     }
 
     // write operation
-    @Override public void sendAmount (ECPublicKey sourcePublicKey, ECPublicKey targetPublicKey, int amount,
-                                      ECPrivateKey sourcePrivateKey, String previousSignature)
+    @Override public List<Boolean> registerBatch (List<ECPublicKey> publicKeys, List<ECPrivateKey> privateKeys,
+                                                  List<Integer> amounts)
+            throws RegisterException, KeyException, SignatureException {
+        if (publicKeys.size () != privateKeys.size () || publicKeys.size () != amounts.size () || publicKeys.isEmpty ()) {
+            throw new RegisterException ("Each account must have exactly one key pair and one amount.");
+        }
+        Serialization.RegisterBatchRequest request = new Serialization.RegisterBatchRequest ();
+        request.nonce = Utils.randomNonce ();
+        for (int i = 0; i < publicKeys.size (); i++) {
+            String b64PublicKey = Serialization.publicKeyToBase64 (publicKeys.get (i));
+            Serialization.Transaction initialTransaction = new Serialization.Transaction ();
+            initialTransaction.source = b64PublicKey;
+            initialTransaction.target = b64PublicKey;
+            initialTransaction.amount = amounts.get (i);
+            initialTransaction.isSend = false;
+            initialTransaction.previousSignature = "";
+            initialTransaction.nonce = Utils.randomNonce ();
+            initialTransaction.signature = Utils.generateSignature (initialTransaction.getSignable (), privateKeys.get (i));
+            request.initialTransactions.add (initialTransaction);
+        }
+
+        // for each account, the replicas that created its ledger
+        List<List<ServerInfo>> successes = new ArrayList<> ();
+        for (int i = 0; i < publicKeys.size (); i++) {
+            successes.add (new ArrayList<> ());
+        }
+        for (ServerInfo server : getReachableServers ()) {
+            try {
+                List<Serialization.StatusMessage> statuses = registerBatch (server, request);
+                for (int i = 0; i < statuses.size (); i++) {
+                    if (statuses.get (i) == Serialization.StatusMessage.SUCCESS) {
+                        successes.get (i).add (server);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println ("Received a bad response from a replica...");
+            }
+        }
+        if (!receivedMajorityAcknowledge ()) {
+            this.ackList.clear ();
+            throw new RegisterException ("Failed to register - not enough success responses!");
+        }
+        this.ackList.clear ();
+
+        List<Boolean> registered = new ArrayList<> ();
+        for (List<ServerInfo> accountSuccesses : successes) {
+            registered.add (hasMajority (accountSuccesses));
+        }
+        System.out.println ();
+        System.out.println ("---------------------------------");
+        System.out.println ("---Registered " + Collections.frequency (registered, true) + " of " + registered.size () +
+                " accounts---");
+        System.out.println ("---------------------------------");
+        System.out.println ();
+        return registered;
+    }
+
+    // write operation
+    @Override public Serialization.TransferReceipt sendAmount (ECPublicKey sourcePublicKey, ECPublicKey targetPublicKey,
+                                                               int amount, ECPrivateKey sourcePrivateKey,
+                                                               String previousSignature)
             throws SendAmountException, AuditException, KeyException, SignatureException {
 
         // GET A LEDGER FIRST
@@ -121,28 +370,37 @@ public class Client implements IClient {
         request.transaction.previousSignature = previousSignature;
         request.transaction.signature = Utils.generateSignature (request.transaction.getSignable (), sourcePrivateKey);
 
+        // each replica that commits the transfer signs its receipt
+        Serialization.TransferReceipt receipt = new Serialization.TransferReceipt ();
+        receipt.transaction = request.transaction;
+
         this.ackList.clear ();
 
-        List<String> signedEchos = new ArrayList<>();
-        for (ServerInfo server : this.servers) {
-            try {
-                signedEchos.add(sendAmountGetEcho(server, request, sourcePrivateKey));
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.out.println ("Received a bad signed echo response from a replica...");
+        if (serverBroadcast) {
+            broadcastWrite ("/sendAmount", request, sourcePrivateKey, Serialization.SendAmountResponse.class)
+                    .forEach ((server, response) -> addReceiptSignature (receipt, server, response));
+        } else {
+            List<String> signedEchos = new ArrayList<>();
+            for (ServerInfo server : getReachableServers ()) {
+                try {
+                    signedEchos.add(sendAmountGetEcho(server, "/sendAmount", request, sourcePrivateKey));
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    System.out.println ("Received a bad signed echo response from a replica...");
+                }
             }
-        }
 
-        if (!receivedMajorityAcknowledge ()) {
-            throw new SendAmountException ("Failed to send amount - not enough success responses to signed echo!");
-        }
+            if (!receivedMajorityAcknowledge ()) {
+                throw new SendAmountException ("Failed to send amount - not enough success responses to signed echo!");
+            }
 
-        this.ackList.clear();
-        for (ServerInfo server : this.servers) {
-            try {
-                sendAmount (server, request, sourcePrivateKey, signedEchos);
-            } catch (Exception e) {
-                System.out.println ("Received a bad response from a replica...");
+            this.ackList.clear();
+            for (ServerInfo server : getReachableServers ()) {
+                try {
+                    addReceiptSignature (receipt, server, sendAmount (server, request, sourcePrivateKey, signedEchos));
+                } catch (Exception e) {
+                    System.out.println ("Received a bad response from a replica...");
+                }
             }
         }
 
@@ -154,12 +412,165 @@ public class Client implements IClient {
             System.out.println ("--Waiting for target to accept--");
             System.out.println ("--------------------------------");
             System.out.println ();
+            return receipt;
         } else {
             this.ackList.clear();
             throw new SendAmountException ("Failed to send amount - not enough success responses!");
         }
     }
 
+    // write operation
+    @Override public void sendAmountBatch (ECPublicKey sourcePublicKey, List<ECPublicKey> targetPublicKeys,
+                                           List<Integer> amounts, ECPrivateKey sourcePrivateKey, String previousSignature)
+            throws SendAmountException, AuditException, KeyException, SignatureException {
+        if (targetPublicKeys.size () != amounts.size () || targetPublicKeys.isEmpty ()) {
+            throw new SendAmountException ("Each target must have exactly one amount.");
+        }
+
+        // GET A LEDGER FIRST
+        Serialization.AuditResponse auditResponse = audit (sourcePublicKey);
+        Serialization.Ledger ledger = auditResponse.ledger;
+
+        String b64SourcePublicKey = Serialization.publicKeyToBase64 (sourcePublicKey);
+
+        Serialization.SendAmountBatchRequest request = new Serialization.SendAmountBatchRequest ();
+        request.ledger = ledger;
+        request.ledger.timestamp++;
+        request.nonce = Utils.randomNonce ();
+        // the transfers are chained as if they were sent one by one
+        for (int i = 0; i < targetPublicKeys.size (); i++) {
+            Serialization.Transaction transaction = new Serialization.Transaction ();
+            transaction.isSend = true;
+            transaction.source = b64SourcePublicKey;
+            transaction.target = Serialization.publicKeyToBase64 (targetPublicKeys.get (i));
+            transaction.amount = amounts.get (i);
+            transaction.nonce = Utils.randomNonce ();
+            transaction.previousSignature = previousSignature;
+            transaction.signature = Utils.generateSignature (transaction.getSignable (), sourcePrivateKey);
+            previousSignature = transaction.signature;
+            request.transactions.add (transaction);
+        }
+
+        this.ackList.clear ();
+
+        if (serverBroadcast) {
+            broadcastWrite ("/sendAmountBatch", request, sourcePrivateKey);
+        } else {
+            List<String> signedEchos = new ArrayList<>();
+            for (ServerInfo server : getReachableServers ()) {
+                try {
+                    signedEchos.add(sendAmountGetEcho(server, "/sendAmountBatch", request, sourcePrivateKey));
+                } catch (Exception e) {
+                    System.out.println ("Received a bad signed echo response from a replica...");
+                }
+            }
+
+            if (!receivedMajorityAcknowledge ()) {
+                throw new SendAmountException ("Failed to send amounts - not enough success responses to signed echo!");
+            }
+
+            this.ackList.clear();
+            for (ServerInfo server : getReachableServers ()) {
+                try {
+                    sendAmount (server, "/sendAmountBatch", request, sourcePrivateKey, signedEchos);
+                } catch (Exception e) {
+                    System.out.println ("Received a bad response from a replica...");
+                }
+            }
+        }
+
+        if (receivedMajorityAcknowledge ()) {
+            this.ackList.clear ();
+            System.out.println ();
+            System.out.println ("--------------------------------");
+            System.out.println ("---" + targetPublicKeys.size () + " transactions were successful---");
+            System.out.println ("--Waiting for targets to accept--");
+            System.out.println ("--------------------------------");
+            System.out.println ();
+        } else {
+            this.ackList.clear();
+            throw new SendAmountException ("Failed to send amounts - not enough success responses!");
+        }
+    }
+
+    // write operation
+    @Override public void sendAmountPipelined (ECPublicKey sourcePublicKey, List<ECPublicKey> targetPublicKeys,
+                                               List<Integer> amounts, ECPrivateKey sourcePrivateKey,
+                                               String previousSignature)
+            throws SendAmountException, AuditException, KeyException, SignatureException {
+        if (targetPublicKeys.size () != amounts.size () || targetPublicKeys.isEmpty ()) {
+            throw new SendAmountException ("Each target must have exactly one amount.");
+        }
+
+        // GET A LEDGER FIRST, once for all the transfers
+        Serialization.Ledger ledger = audit (sourcePublicKey).ledger;
+        String b64SourcePublicKey = Serialization.publicKeyToBase64 (sourcePublicKey);
+
+        // each transfer gets the next timestamp and carries the ledger with the transfers before it, so a replica
+        // that misses one of them can still catch up when the next one is committed. The ledgers are views of a
+        // single list, complete before the first view is taken
+        List<Serialization.Transaction> transactions = new ArrayList<> (ledger.transactions);
+        for (int i = 0; i < targetPublicKeys.size (); i++) {
+            Serialization.Transaction transaction = new Serialization.Transaction ();
+            transaction.source = b64SourcePublicKey;
+            transaction.target = Serialization.publicKeyToBase64 (targetPublicKeys.get (i));
+            transaction.isSend = true;
+            transaction.amount = amounts.get (i);
+            transaction.nonce = Utils.randomNonce ();
+            transaction.previousSignature = previousSignature;
+            transaction.signature = Utils.generateSignature (transaction.getSignable (), sourcePrivateKey);
+            previousSignature = transaction.signature;
+            transactions.add (transaction);
+        }
+        List<Serialization.SendAmountRequest> requests = new ArrayList<> ();
+        for (int i = 0; i < targetPublicKeys.size (); i++) {
+            Serialization.SendAmountRequest request = new Serialization.SendAmountRequest ();
+            request.ledger = new Serialization.Ledger ();
+            request.ledger.timestamp = ledger.timestamp + i + 1;
+            request.ledger.checkpoint = ledger.checkpoint;
+            request.ledger.transactions = transactions.subList (0, ledger.transactions.size () + i);
+            request.transaction = transactions.get (ledger.transactions.size () + i);
+            requests.add (request);
+        }
+
+        // all the echos are asked for at once, the replicas hold an echo slot per timestamp
+        List<Map<ServerInfo, Serialization.SignedEchoResponse>> echoResponses =
+                sendPipelined (requests, sourcePrivateKey, null, Serialization.SignedEchoResponse.class);
+        List<List<String>> signedEchos = new ArrayList<> ();
+        for (int i = 0; i < requests.size (); i++) {
+            if (!hasMajority (new ArrayList<> (echoResponses.get (i).keySet ()))) {
+                // a commit without echos is refused, and frees the echo slot the replica holds for it
+                sendPipelined (requests, sourcePrivateKey,
+                        Collections.nCopies (requests.size (), Collections.<String>emptyList ()),
+                        Serialization.Response.class);
+                throw new SendAmountException ("Failed to send amount with timestamp " +
+                        requests.get (i).ledger.timestamp + " - not enough success responses to signed echo!");
+            }
+            List<String> requestEchos = new ArrayList<> ();
+            for (Serialization.SignedEchoResponse response : echoResponses.get (i).values ()) {
+                requestEchos.add (response.echo);
+            }
+            signedEchos.add (requestEchos);
+        }
+
+        // so are the commits, the replicas apply them in timestamp order whatever order they arrive in. A commit
+        // refused by a replica frees its echo slot there, so none is left held when a transfer fails
+        List<Map<ServerInfo, Serialization.SendAmountResponse>> commitResponses =
+                sendPipelined (requests, sourcePrivateKey, signedEchos, Serialization.SendAmountResponse.class);
+        for (int i = 0; i < requests.size (); i++) {
+            if (!hasMajority (new ArrayList<> (commitResponses.get (i).keySet ()))) {
+                throw new SendAmountException ("Failed to send amount with timestamp " +
+                        requests.get (i).ledger.timestamp + " - not enough success responses!");
+            }
+        }
+        System.out.println ();
+        System.out.println ("--------------------------------");
+        System.out.println ("---" + requests.size () + " transactions were successful---");
+        System.out.println ("--Waiting for targets to accept--");
+        System.out.println ("--------------------------------");
+        System.out.println ();
+    }
+
     // write operation
     @Override public void receiveAmount (ECPublicKey sourcePublicKey, String targetPublicKey, int amount,
                                          ECPrivateKey sourcePrivateKey, String previousSignature,
@@ -168,8 +579,37 @@ public class Client implements IClient {
 
         // GET A LEDGER FIRST
         Serialization.AuditResponse auditResponse = audit (sourcePublicKey);
-        Serialization.Ledger ledger = auditResponse.ledger;
+        receiveAmount (auditResponse.ledger, sourcePublicKey, targetPublicKey, amount, sourcePrivateKey,
+                previousSignature, incomingSignature);
+    }
 
+    // write operation
+    @Override public void receiveAmount (ECPublicKey sourcePublicKey, Serialization.TransferReceipt receipt,
+                                         ECPrivateKey sourcePrivateKey)
+            throws ReceiveAmountException, KeyException, SignatureException, AuditException {
+        String b64SourcePublicKey = Serialization.publicKeyToBase64 (sourcePublicKey);
+        if (receipt == null || receipt.transaction == null || !receipt.transaction.isSend ||
+                !b64SourcePublicKey.equals (receipt.transaction.target)) {
+            throw new ReceiveAmountException ("The receipt isn't of a transfer to this account.");
+        }
+        if (!Utils.checkSignature (receipt.transaction.signature, receipt.transaction.getSignable (),
+                receipt.transaction.source)) {
+            throw new ReceiveAmountException ("The transfer of the receipt isn't signed by its sender.");
+        }
+        if (!receipt.isCertified (this.servers)) {
+            throw new ReceiveAmountException ("The receipt isn't signed by a quorum of replicas.");
+        }
+
+        // the ledger the write is sent with is the only read, it also gives the previous signature
+        Serialization.Ledger ledger = audit (sourcePublicKey).ledger;
+        receiveAmount (ledger, sourcePublicKey, receipt.transaction.source, receipt.transaction.amount,
+                sourcePrivateKey, ledger.getHeadSignature (), receipt.transaction.signature);
+    }
+
+    private void receiveAmount (Serialization.Ledger ledger, ECPublicKey sourcePublicKey, String targetPublicKey,
+                                int amount, ECPrivateKey sourcePrivateKey, String previousSignature,
+                                String incomingSignature)
+            throws ReceiveAmountException, KeyException, SignatureException {
         String b64SourcePublicKey = Serialization.publicKeyToBase64 (sourcePublicKey);
         String b64DestinationPublicKey = targetPublicKey;
 
@@ -188,25 +628,29 @@ public class Client implements IClient {
 
         this.ackList.clear ();
 
-        List<String> signedEchos = new ArrayList<>();
-        for (ServerInfo server : this.servers) {
-            try {
-                signedEchos.add(receiveAmountGetEcho(server, request, sourcePrivateKey));
-            } catch (Exception e) {
-                System.out.println ("Received a bad signed echo response from a replica...");
+        if (serverBroadcast) {
+            broadcastWrite ("/receiveAmount", request, sourcePrivateKey);
+        } else {
+            List<String> signedEchos = new ArrayList<>();
+            for (ServerInfo server : getReachableServers ()) {
+                try {
+                    signedEchos.add(receiveAmountGetEcho(server, "/receiveAmount", request, sourcePrivateKey));
+                } catch (Exception e) {
+                    System.out.println ("Received a bad signed echo response from a replica...");
+                }
             }
-        }
 
-        if (!receivedMajorityAcknowledge ()) {
-            throw new ReceiveAmountException("Failed to receive amount - not enough success responses to signed echo!");
-        }
+            if (!receivedMajorityAcknowledge ()) {
+                throw new ReceiveAmountException("Failed to receive amount - not enough success responses to signed echo!");
+            }
 
-        this.ackList.clear();
-        for (ServerInfo server : this.servers) {
-            try {
-                receiveAmount (server, request, sourcePrivateKey, signedEchos);
-            } catch (Exception e) {
-                System.out.println ("Received a bad response from a replica...");
+            this.ackList.clear();
+            for (ServerInfo server : getReachableServers ()) {
+                try {
+                    receiveAmount (server, "/receiveAmount", request, sourcePrivateKey, signedEchos);
+                } catch (Exception e) {
+                    System.out.println ("Received a bad response from a replica...");
+                }
             }
         }
 
@@ -223,80 +667,110 @@ public class Client implements IClient {
         }
     }
 
-    // read operation
-    @Override public Serialization.CheckAccountResponse checkAccount (ECPublicKey publicKey) throws CheckAccountException {
-        List<Serialization.CheckAccountResponse> checkAccountResults = new ArrayList<> ();
-        for (ServerInfo server : this.servers) {
-            try {
-                checkAccountResults.add (checkAccount (server, publicKey));
-            } catch (Exception e) {
-                System.out.println ("Received a bad response from a replica...");
-            }
-        }
+    // write operation
+    @Override public void receiveAmountBatch (ECPublicKey sourcePublicKey, List<Serialization.Transaction> pendingTransactions,
+                                              ECPrivateKey sourcePrivateKey, String previousSignature)
+            throws ReceiveAmountException, KeyException, SignatureException, AuditException {
 
-        if (receivedReadMajority (checkAccountResults)) {
-            System.out.println ("\n");
-            System.out.println ("----------------------------------");
-            System.out.println ("---Check account was successful---");
-            System.out.println ("----------------------------------");
-            //return checkAccountResults.get (0);  // choose anyone
-            return getValueWithMajorityTimestamp(checkAccountResults);
-        } else {
-            throw new CheckAccountException ("Failed to check account - not enough success responses!");
-        }
-    }
+        // GET A LEDGER FIRST
+        Serialization.AuditResponse auditResponse = audit (sourcePublicKey);
+        Serialization.Ledger ledger = auditResponse.ledger;
 
-    // read operation
-    @Override public Serialization.AuditResponse audit (ECPublicKey publicKey) throws AuditException {
-        List<Serialization.AuditResponse> auditResponses = new ArrayList<> ();
-        for (ServerInfo server : this.servers) {
-            try {
-                auditResponses.add (audit (server, publicKey));
-            } catch (Exception e) {
-                System.out.println ("Received a bad response from a replica...");
-            }
+        String b64SourcePublicKey = Serialization.publicKeyToBase64 (sourcePublicKey);
 
+        Serialization.ReceiveAmountBatchRequest request = new Serialization.ReceiveAmountBatchRequest ();
+        request.ledger = ledger;
+        request.ledger.timestamp++;
+        request.nonce = Utils.randomNonce ();
+        // one receiving transaction per pending transaction, chained as if they were received one by one
+        for (Serialization.Transaction pendingTransaction : pendingTransactions) {
+            Serialization.Transaction transaction = new Serialization.Transaction ();
+            transaction.source = b64SourcePublicKey;
+            transaction.target = pendingTransaction.source;
+            transaction.amount = pendingTransaction.amount;
+            transaction.nonce = Utils.randomNonce ();
+            transaction.previousSignature = previousSignature;
+            transaction.signature = Utils.generateSignature (transaction.getSignable (), sourcePrivateKey);
+            previousSignature = transaction.signature;
+            request.transactions.add (transaction);
+            request.pendingTransactionHashes.add (pendingTransaction.signature);
         }
 
-        if (receivedReadMajority (auditResponses)) {
-            // write-back
-            Serialization.AuditResponse majorityValue = getValueWithMajorityTimestamp(auditResponses);
-
-            Serialization.WriteBackRequest request = new Serialization.WriteBackRequest ();
-            request.ledger = majorityValue.ledger;
-            request.ledger.timestamp++;
-            request.nonce = Utils.randomNonce();
+        this.ackList.clear ();
 
+        if (serverBroadcast) {
+            broadcastWrite ("/receiveAmountBatch", request, sourcePrivateKey);
+        } else {
             List<String> signedEchos = new ArrayList<>();
-            this.ackList.clear();
-            for (ServerInfo server : this.servers) {
+            for (ServerInfo server : getReachableServers ()) {
                 try {
-                    signedEchos.add(writeBackGetEcho(server, request));
+                    signedEchos.add(receiveAmountGetEcho(server, "/receiveAmountBatch", request, sourcePrivateKey));
                 } catch (Exception e) {
-                    System.out.println ("Write-back echo signing request to a replica failed...");
+                    System.out.println ("Received a bad signed echo response from a replica...");
                 }
             }
 
             if (!receivedMajorityAcknowledge ()) {
-                throw new AuditException("Failed to audit account - not enough success responses to write-back signed echo!");
+                throw new ReceiveAmountException("Failed to receive amounts - not enough success responses to signed echo!");
             }
-            this.ackList.clear();
 
-            // we're using this list literally as a counter...
-            List<Object> wbResponses = new ArrayList<> ();
-            for (ServerInfo server : this.servers) {
+            this.ackList.clear();
+            for (ServerInfo server : getReachableServers ()) {
                 try {
-                    writeBack (server, request, signedEchos);
-                    wbResponses.add (new Object());
+                    receiveAmount (server, "/receiveAmountBatch", request, sourcePrivateKey, signedEchos);
                 } catch (Exception e) {
-                    System.out.println ("Write-back to a replica failed...");
+                    System.out.println ("Received a bad response from a replica...");
                 }
             }
+        }
+
+        if (receivedMajorityAcknowledge ()) {
+            this.ackList.clear ();
+            System.out.println ();
+            System.out.println ("---------------------------------------");
+            System.out.println ("---" + pendingTransactions.size () + " transactions accepted successfully---");
+            System.out.println ("---------------------------------------");
+            System.out.println ();
+        } else {
+            this.ackList.clear ();
+            throw new ReceiveAmountException ("Failed to receive amounts - not enough success responses!");
+        }
+    }
+
+    // read operation
+    @Override public Serialization.CheckAccountResponse checkAccount (ECPublicKey publicKey) throws CheckAccountException {
+        return checkAccount (publicKey, 0, -1);
+    }
+
+    // read operation
+    @Override public Serialization.CheckAccountResponse checkAccount (ECPublicKey publicKey, int offset, int limit)
+            throws CheckAccountException {
+        Serialization.CheckAccountResponse result =
+                quorumRead (server -> checkAccount (server, publicKey, offset, limit));
+
+        if (result != null) {
+            System.out.println ("\n");
+            System.out.println ("----------------------------------");
+            System.out.println ("---Check account was successful---");
+            System.out.println ("----------------------------------");
+            return result;
+        } else {
+            throw new CheckAccountException ("Failed to check account - not enough success responses!");
+        }
+    }
+
+    // read operation
+    @Override public Serialization.AuditResponse audit (ECPublicKey publicKey) throws AuditException {
+        Serialization.AuditResponse majorityValue = quorumRead (server -> audit (server, publicKey));
+
+        if (majorityValue != null) {
+            // write-back
+            boolean writeBackDone = writeBack (majorityValue);
 
             System.out.println ("\n");
             System.out.println ("----------------------------------");
             System.out.println ("-------Audit was successful-------");
-            if (!receivedReadMajority (wbResponses)) {
+            if (!writeBackDone) {
                 System.out.println ("-----But write-back failed...-----");
             }
             System.out.println ("----------------------------------");
@@ -306,6 +780,144 @@ public class Client implements IClient {
         }
     }
 
+    // read operation
+    @Override public Serialization.InclusionProofResponse verifyTransaction (ECPublicKey publicKey,
+                                                                           String transactionSignature)
+            throws AuditException {
+        Serialization.InclusionProofResponse proof =
+                quorumRead (server -> verifyTransaction (server, publicKey, transactionSignature));
+        if (proof == null) {
+            throw new AuditException ("Failed to verify the transaction - not enough replicas proved it!");
+        }
+        return proof;
+    }
+
+    @Override public Subscription subscribe (ECPublicKey publicKey, Consumer<Serialization.Transaction> listener)
+            throws KeyException {
+        // a transfer is only trusted once a quorum, with enough correct replicas in it, reported it
+        Subscription subscription = new Subscription (this, this.servers, Serialization.publicKeyToBase64 (publicKey),
+                (servers.size () + numberOfMaxFaults) / 2 + 1, listener);
+        subscription.start ();
+        return subscription;
+    }
+
+    // read operation
+    @Override public List<Serialization.CheckAccountResponse> checkAccounts (List<ECPublicKey> publicKeys)
+            throws CheckAccountException {
+        Serialization.BatchReadRequest request;
+        try {
+            request = newBatchReadRequest (publicKeys);
+        } catch (KeyException e) {
+            throw new CheckAccountException ("One of the public keys provided is not valid. " + e);
+        }
+        List<Serialization.CheckAccountsResponse> checkAccountsResults = new ArrayList<> ();
+        for (ServerInfo server : getReachableServers ()) {
+            try {
+                Serialization.CheckAccountsResponse response = sendBatchReadRequest (server, "/checkAccounts",
+                        request, Serialization.CheckAccountsResponse.class);
+                if (response.accounts.size () != publicKeys.size ()) {
+                    throw new InvalidServerResponseException ("The replica didn't return one entry per account.");
+                }
+                checkAccountsResults.add (response);
+            } catch (Exception e) {
+                System.out.println ("Received a bad response from a replica...");
+            }
+        }
+        if (!receivedReadMajority (checkAccountsResults)) {
+            throw new CheckAccountException ("Failed to check accounts - not enough success responses!");
+        }
+
+        // the quorum is chosen for each account, among the replicas that could read it
+        List<Serialization.CheckAccountResponse> results = new ArrayList<> ();
+        for (int i = 0; i < publicKeys.size (); i++) {
+            QuorumAccumulator<Serialization.CheckAccountResponse> accountResults =
+                    new QuorumAccumulator<> (checkAccountsResults.size (), getQuorumSize ());
+            Serialization.CheckAccountResponse failure = null;
+            for (Serialization.CheckAccountsResponse response : checkAccountsResults) {
+                Serialization.CheckAccountResponse account = response.accounts.get (i);
+                if (account.status == Serialization.StatusMessage.SUCCESS) {
+                    accountResults.add (account);
+                } else {
+                    failure = account;
+                    accountResults.fail ();
+                }
+            }
+            Serialization.CheckAccountResponse result = accountResults.getDecision ();
+            results.add (result != null ? result :
+                    failedAccountRead (new Serialization.CheckAccountResponse (), failure));
+        }
+        System.out.println ("\n");
+        System.out.println ("-----------------------------------");
+        System.out.println ("---Check accounts was successful---");
+        System.out.println ("-----------------------------------");
+        return results;
+    }
+
+    // read operation
+    @Override public List<Serialization.AuditResponse> audits (List<ECPublicKey> publicKeys) throws AuditException {
+        Serialization.BatchReadRequest request;
+        try {
+            request = newBatchReadRequest (publicKeys);
+        } catch (KeyException e) {
+            throw new AuditException ("One of the public keys provided is not valid. " + e);
+        }
+        List<Serialization.AuditsResponse> auditsResults = new ArrayList<> ();
+        for (ServerInfo server : getReachableServers ()) {
+            try {
+                Serialization.AuditsResponse response = sendBatchReadRequest (server, "/audits", request,
+                        Serialization.AuditsResponse.class);
+                if (response.accounts.size () != publicKeys.size ()) {
+                    throw new InvalidServerResponseException ("The replica didn't return one entry per account.");
+                }
+                for (int i = 0; i < publicKeys.size (); i++) {
+                    Serialization.AuditResponse account = response.accounts.get (i);
+                    if (account.status == Serialization.StatusMessage.SUCCESS) {
+                        checkTransactionChain (account.ledger, publicKeys.get (i));
+                    }
+                }
+                auditsResults.add (response);
+            } catch (Exception e) {
+                System.out.println ("Received a bad response from a replica...");
+            }
+        }
+        if (!receivedReadMajority (auditsResults)) {
+            throw new AuditException ("Failed to audit accounts - not enough success responses!");
+        }
+
+        List<Serialization.AuditResponse> results = new ArrayList<> ();
+        for (int i = 0; i < publicKeys.size (); i++) {
+            QuorumAccumulator<Serialization.AuditResponse> accountResults =
+                    new QuorumAccumulator<> (auditsResults.size (), getQuorumSize ());
+            Serialization.AuditResponse failure = null;
+            for (Serialization.AuditsResponse response : auditsResults) {
+                Serialization.AuditResponse account = response.accounts.get (i);
+                if (account.status == Serialization.StatusMessage.SUCCESS) {
+                    accountResults.add (account);
+                } else {
+                    failure = account;
+                    accountResults.fail ();
+                }
+            }
+            Serialization.AuditResponse majorityValue = accountResults.getDecision ();
+            if (majorityValue == null) {
+                results.add (failedAccountRead (new Serialization.AuditResponse (), failure));
+                continue;
+            }
+            // the write-back is only needed when the newest ledger isn't already on a quorum of replicas
+            if (accountResults.getDecisionVotes () < getQuorumSize ()) {
+                if (!writeBack (majorityValue)) {
+                    System.out.println ("Write-back of an audited account failed...");
+                }
+            }
+            results.add (majorityValue);
+        }
+        System.out.println ("\n");
+        System.out.println ("----------------------------------");
+        System.out.println ("------Audits were successful------");
+        System.out.println ("----------------------------------");
+        return results;
+    }
+
 
     ////////////////////////////////////////////////
     //// private methods
@@ -355,33 +967,89 @@ public class Client implements IClient {
     }
 
 
-    ////////////////////////////////////////////////
-    //// WRITE OPERATIONS
-    ////////////////////////////////////////////////
+    // one long-poll of a replica, used by Subscription
+    Serialization.NotificationResponse pollNotifications (ServerInfo server, String b64PublicKey, long since,
+                                                          int waitMillis)
+            throws IOException, KeyException, InvalidServerResponseException, SignatureException, ServerErrorException {
+        String requestPath = server.serverUrl.toString () + "/subscribe/" + URLEncoder.encode (b64PublicKey, "UTF-8") +
+                "?" + Serialization.SINCE_PARAMETER_NAME + "=" + since +
+                "&" + Serialization.WAIT_PARAMETER_NAME + "=" + waitMillis;
+        Serialization.NotificationResponse response =
+                sendGetRequest (Serialization.base64toPublicKey (server.publicKeyBase64), requestPath,
+                        Serialization.NotificationResponse.class, waitMillis + 10000);
+        if (response.statusCode != 200) {
+            throw new ServerErrorException ("The replica refused the subscription: " + response.status);
+        }
+        return response;
+    }
 
-    private void sendAmount (ServerInfo server, Serialization.SendAmountRequest request, ECPrivateKey sourcePrivateKey, List<String> signedEchos)
-            throws SendAmountException {
+    // returns the status of each account, in request order
+    private List<Serialization.StatusMessage> registerBatch (ServerInfo server, Serialization.RegisterBatchRequest request)
+            throws RegisterException {
         try {
-            // log
             System.out.println ();
             System.out.println ("---------------------");
             System.out.println ("---Sending Request---");
             System.out.println ("Sending to replica: " + server.serverUrl.toString ());
-            System.out.println ("Ledger timestamp: " + request.ledger.timestamp);
-            System.out.println ("Source public key: " + request.transaction.source);
-            System.out.println ("Target public key: " + request.transaction.target);
-            System.out.println ("Amount: " + request.transaction.amount);
-            System.out.println ("Nonce: " + request.transaction.nonce);
-            System.out.println ("Previous signature: " + request.transaction.previousSignature);
-            System.out.println ("Signature: " + request.transaction.signature);
-            System.out.println ("Get Signable: " + request.getSignable ());
-            System.out.println ("Private key: " + sourcePrivateKey);
+            System.out.println ("Number of accounts: " + request.initialTransactions.size ());
+            System.out.println ("Nonce: " + request.nonce);
             System.out.println ("---------------------");
             System.out.println ();
 
-            Serialization.Response response = sendPostRequest (Serialization.base64toPublicKey (server.publicKeyBase64),
-                    server.serverUrl.toString () + "/sendAmount", sourcePrivateKey, request,
-                    Serialization.Response.class, signedEchos);
+            // each initial transaction is signed by its own account, so the request itself isn't signed
+            Serialization.RegisterBatchResponse response = sendPostRequest (Serialization.base64toPublicKey (server.publicKeyBase64),
+                    server.serverUrl.toString () + "/registerBatch", null, request,
+                    Serialization.RegisterBatchResponse.class, null);
+
+            if (response.statusCode != 200) {
+                if (response.status == Serialization.StatusMessage.ERROR_SERVER_ERROR) {
+                    throw new ServerErrorException ("Error on the server side.");
+                }
+                throw new RegisterException ("The replica refused the register batch: " + response.status);
+            }
+            if (response.statuses.size () != request.initialTransactions.size ()) {
+                throw new InvalidServerResponseException ("The replica didn't return one status per account.");
+            }
+            this.ackList.add (server);
+            return response.statuses;
+        } catch (HttpRequest.HttpRequestException | IOException | KeyException | SignatureException | InvalidServerResponseException | InvalidClientSignatureException | ServerErrorException e) {
+            throw new RegisterException ("Failed to register the public keys provided. " + e, e);
+        }
+    }
+
+    ////////////////////////////////////////////////
+    //// WRITE OPERATIONS
+    ////////////////////////////////////////////////
+
+    private Serialization.SendAmountResponse sendAmount (ServerInfo server, Serialization.SendAmountRequest request, ECPrivateKey sourcePrivateKey, List<String> signedEchos)
+            throws SendAmountException {
+        // log
+        System.out.println ();
+        System.out.println ("---------------------");
+        System.out.println ("---Sending Request---");
+        System.out.println ("Sending to replica: " + server.serverUrl.toString ());
+        System.out.println ("Ledger timestamp: " + request.ledger.timestamp);
+        System.out.println ("Source public key: " + request.transaction.source);
+        System.out.println ("Target public key: " + request.transaction.target);
+        System.out.println ("Amount: " + request.transaction.amount);
+        System.out.println ("Nonce: " + request.transaction.nonce);
+        System.out.println ("Previous signature: " + request.transaction.previousSignature);
+        System.out.println ("Signature: " + request.transaction.signature);
+        System.out.println ("Get Signable: " + request.getSignable ());
+        System.out.println ("Private key: " + sourcePrivateKey);
+        System.out.println ("---------------------");
+        System.out.println ();
+        return sendAmount (server, "/sendAmount", request, sourcePrivateKey, signedEchos);
+    }
+
+    // commits a single or a batch send request, route is "/sendAmount" or "/sendAmountBatch"
+    private Serialization.SendAmountResponse sendAmount (ServerInfo server, String route, Object request,
+                                                         ECPrivateKey sourcePrivateKey, List<String> signedEchos)
+            throws SendAmountException {
+        try {
+            Serialization.SendAmountResponse response = sendPostRequest (
+                    Serialization.base64toPublicKey (server.publicKeyBase64), server.serverUrl.toString () + route,
+                    sourcePrivateKey, request, Serialization.SendAmountResponse.class, signedEchos);
 
             if (response.statusCode == 200) {
                 this.ackList.add (server);
@@ -396,16 +1064,17 @@ public class Client implements IClient {
                         throw new ServerErrorException ("Error on the server side.");
                 }
             }
+            return response;
         } catch (HttpRequest.HttpRequestException | IOException | KeyException | SignatureException | InvalidServerResponseException | InvalidClientSignatureException | ServerErrorException | InvalidLedgerException e) {
             throw new SendAmountException ("Failed to create a transaction. " + e);
         }
     }
 
-    private String sendAmountGetEcho(ServerInfo server, Serialization.SendAmountRequest request, ECPrivateKey sourcePrivateKey)
+    private String sendAmountGetEcho(ServerInfo server, String route, Object request, ECPrivateKey sourcePrivateKey)
             throws SendAmountException {
         try {
             Serialization.SignedEchoResponse response = sendPostRequest (Serialization.base64toPublicKey (server.publicKeyBase64),
-                    server.serverUrl.toString () + "/sendAmount", sourcePrivateKey, request,
+                    server.serverUrl.toString () + route, sourcePrivateKey, request,
                     Serialization.SignedEchoResponse.class, null);
 
             if (response.statusCode == 200) {
@@ -426,12 +1095,13 @@ public class Client implements IClient {
         }
     }
 
-    private void receiveAmount (ServerInfo server, Serialization.ReceiveAmountRequest request,
+    // commits a single or a batch receive request, route is "/receiveAmount" or "/receiveAmountBatch"
+    private void receiveAmount (ServerInfo server, String route, Object request,
                                 ECPrivateKey sourcePrivateKey, List<String> signedEchos) throws ReceiveAmountException {
         try {
 
             Serialization.Response response = sendPostRequest (Serialization.base64toPublicKey (server.publicKeyBase64),
-                    server.serverUrl.toString () + "/receiveAmount", sourcePrivateKey, request,
+                    server.serverUrl.toString () + route, sourcePrivateKey, request,
                     Serialization.Response.class, signedEchos);
 
             if (response.statusCode == 200) {
@@ -453,12 +1123,12 @@ public class Client implements IClient {
         }
     }
 
-    private String receiveAmountGetEcho(ServerInfo server, Serialization.ReceiveAmountRequest request,
+    private String receiveAmountGetEcho(ServerInfo server, String route, Object request,
                                 ECPrivateKey sourcePrivateKey) throws ReceiveAmountException {
         try {
 
             Serialization.SignedEchoResponse response = sendPostRequest (Serialization.base64toPublicKey (server.publicKeyBase64),
-                    server.serverUrl.toString () + "/receiveAmount", sourcePrivateKey, request,
+                    server.serverUrl.toString () + route, sourcePrivateKey, request,
                     Serialization.SignedEchoResponse.class, null);
 
             if (response.statusCode == 200) {
@@ -485,11 +1155,16 @@ public class Client implements IClient {
     //// READ OPERATIONS
     ////////////////////////////////////////////////
 
-    private Serialization.CheckAccountResponse checkAccount (ServerInfo server, ECPublicKey publicKey) throws CheckAccountException {
+    private Serialization.CheckAccountResponse checkAccount (ServerInfo server, ECPublicKey publicKey, int offset, int limit)
+            throws CheckAccountException {
         try {
             String b64PublicKey = Serialization.publicKeyToBase64 (publicKey);
             String requestPath =
                     server.serverUrl.toString () + "/checkAccount/" + URLEncoder.encode (b64PublicKey, "UTF-8");
+            if (limit >= 0) {
+                requestPath += "?" + Serialization.OFFSET_PARAMETER_NAME + "=" + offset +
+                        "&" + Serialization.LIMIT_PARAMETER_NAME + "=" + limit;
+            }
 
             Serialization.CheckAccountResponse response =
                     sendGetRequest (Serialization.base64toPublicKey (server.publicKeyBase64), requestPath,
@@ -533,24 +1208,7 @@ public class Client implements IClient {
             System.out.println ("response.status: " + response.status);
 
             if (response.statusCode == 200) {
-                // check transaction chain
-                // transactions come ordered from the oldest to the newest
-                String prevHash = null;
-                for (Serialization.Transaction tx : response.ledger.transactions) {
-                    System.out.println ("Checking signature: " + tx.signature);
-                    System.out.println ("Signable: " + tx.getSignable ());
-                    if (!Utils.checkSignature (tx.signature, tx.getSignable (), publicKey)) {
-                        System.out.println ("Error checking signature of transaction");
-                        throw new AuditException ("Error checking signature of transaction");
-                    }
-                    // now we know tx.signature is correct... but is it signing the right prevHash?
-                    if (prevHash != null && !prevHash.equals (tx.previousSignature)) {
-                        System.out.println ("Error transaction chain is broken");
-                        throw new AuditException ("Transaction chain is broken: the previous signature contained in " +
-                                "one transaction does not match the signature of the transaction that precedes it");
-                    }
-                    prevHash = tx.signature;
-                }
+                checkTransactionChain (response.ledger, publicKey);
                 return response;
             }
             System.out.println ("response error: " + response.status);
@@ -569,6 +1227,35 @@ public class Client implements IClient {
         }
     }
 
+    private Serialization.InclusionProofResponse verifyTransaction (ServerInfo server, ECPublicKey publicKey,
+                                                                   String transactionSignature) throws AuditException {
+        try {
+            String requestPath = server.serverUrl.toString () + "/proof/" +
+                    URLEncoder.encode (Serialization.publicKeyToBase64 (publicKey), "UTF-8") + "?" +
+                    Serialization.TRANSACTION_PARAMETER_NAME + "=" + URLEncoder.encode (transactionSignature, "UTF-8");
+            Serialization.InclusionProofResponse response =
+                    sendGetRequest (Serialization.base64toPublicKey (server.publicKeyBase64), requestPath,
+                            Serialization.InclusionProofResponse.class);
+            if (response.statusCode != 200) {
+                throw new AuditException ("The replica couldn't prove the transaction: " + response.status);
+            }
+            Serialization.Transaction tx = response.transaction;
+            // one signature and O(log n) hashes, instead of the signatures of the whole ledger
+            if (tx == null || !transactionSignature.equals (tx.signature) ||
+                    !Serialization.publicKeyToBase64 (publicKey).equals (tx.source) ||
+                    !Utils.checkSignature (tx.signature, tx.getSignable (), publicKey)) {
+                throw new AuditException ("The replica returned another transaction.");
+            }
+            if (!MerkleProof.verifyInclusion (tx.signature, response.index, response.treeSize, response.path,
+                    response.rootHash)) {
+                throw new AuditException ("The inclusion proof doesn't lead to the root signed by the replica.");
+            }
+            return response;
+        } catch (IOException | KeyException | InvalidServerResponseException | SignatureException e) {
+            throw new AuditException ("Failed to verify the transaction. " + e);
+        }
+    }
+
 
     ////////////////////////////////////////////////
     //// WRITE-BACK OPERATION (for (1,N) atomic register)
@@ -637,36 +1324,181 @@ public class Client implements IClient {
     }
 
 
+    // sends a write once to all the replicas at the same time, they only answer after exchanging the echoes
+    private void broadcastWrite (String route, Object request, ECPrivateKey sourcePrivateKey) {
+        broadcastWrite (route, request, sourcePrivateKey, Serialization.Response.class);
+    }
+
+    // returns the responses of the replicas that acknowledged the write
+    private <T extends Serialization.Response> Map<ServerInfo, T> broadcastWrite (String route, Object request,
+                                                                                 ECPrivateKey sourcePrivateKey,
+                                                                                 Class<T> responseValueType) {
+        Map<ServerInfo, T> acks = Collections.synchronizedMap (new LinkedHashMap<> ());
+        List<Thread> senders = new ArrayList<> ();
+        for (ServerInfo server : getReachableServers ()) {
+            Thread sender = new Thread (() -> {
+                try {
+                    T response = sendPostRequest (
+                            Serialization.base64toPublicKey (server.publicKeyBase64),
+                            server.serverUrl.toString () + route, sourcePrivateKey, request,
+                            responseValueType, null, true);
+                    if (response.statusCode == 200) {
+                        acks.put (server, response);
+                    }
+                } catch (Exception e) {
+                    System.out.println ("Received a bad response from a replica...");
+                }
+            });
+            sender.start ();
+            senders.add (sender);
+        }
+        try {
+            for (Thread sender : senders) {
+                sender.join ();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+        }
+        this.ackList.addAll (acks.keySet ());
+        return acks;
+    }
+
+    /**
+     * Sends every request of a pipeline to all the replicas at the same time, the echo requests when signedEchos is
+     * null and the commits otherwise.
+     *
+     * @return the responses of the replicas that acknowledged each request, in the order of the requests
+     */
+    private <T extends Serialization.Response> List<Map<ServerInfo, T>> sendPipelined (
+            List<?> requests, ECPrivateKey sourcePrivateKey, List<List<String>> signedEchos,
+            Class<T> responseValueType) {
+        List<Map<ServerInfo, T>> acks = new ArrayList<> ();
+        List<Thread> senders = new ArrayList<> ();
+        for (int i = 0; i < requests.size (); i++) {
+            Map<ServerInfo, T> requestAcks = Collections.synchronizedMap (new LinkedHashMap<> ());
+            acks.add (requestAcks);
+            Object request = requests.get (i);
+            List<String> requestEchos = signedEchos == null ? null : signedEchos.get (i);
+            for (ServerInfo server : getReachableServers ()) {
+                Thread sender = new Thread (() -> {
+                    try {
+                        T response = sendPostRequest (Serialization.base64toPublicKey (server.publicKeyBase64),
+                                server.serverUrl.toString () + "/sendAmount", sourcePrivateKey, request,
+                                responseValueType, requestEchos);
+                        if (response.statusCode == 200) {
+                            requestAcks.put (server, response);
+                        }
+                    } catch (Exception e) {
+                        System.out.println ("Received a bad response from a replica...");
+                    }
+                });
+                sender.start ();
+                senders.add (sender);
+            }
+        }
+        try {
+            for (Thread sender : senders) {
+                sender.join ();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+        }
+        return acks;
+    }
+
+    // a replica signature that doesn't check out is left out, so the receipt stays valid for the receiver
+    private void addReceiptSignature (Serialization.TransferReceipt receipt, ServerInfo server,
+                                      Serialization.SendAmountResponse response) {
+        if (response == null || response.statusCode != 200 || response.receiptSignature == null) {
+            return;
+        }
+        try {
+            if (Utils.checkSignature (response.receiptSignature, receipt.getSignable (), server.publicKeyBase64)) {
+                receipt.signatures.put (server.serverName, response.receiptSignature);
+            }
+        } catch (SignatureException | KeyException e) {
+            System.out.println ("Received a bad receipt signature from a replica...");
+        }
+    }
+
     private <T> T sendPostRequest (ECPublicKey serverPublicKey, String url, ECPrivateKey privateKey, Object payload,
                                    Class<T> responseValueType, List<String> signedEchos)
             throws HttpRequest.HttpRequestException, IOException, SignatureException, InvalidServerResponseException,
             InvalidClientSignatureException {
-        String payloadJson = Serialization.serialize (payload);
+        return sendPostRequest (serverPublicKey, url, privateKey, payload, responseValueType, signedEchos, false);
+    }
+
+    private <T> T sendPostRequest (ECPublicKey serverPublicKey, String url, ECPrivateKey privateKey, Object payload,
+                                   Class<T> responseValueType, List<String> signedEchos, boolean serverBroadcast)
+            throws HttpRequest.HttpRequestException, IOException, SignatureException, InvalidServerResponseException,
+            InvalidClientSignatureException {
+        SessionKey session = getSession (serverPublicKey, privateKey);
+        try {
+            long start = System.currentTimeMillis ();
+            T response = sendPostRequest (serverPublicKey, url, privateKey, payload, responseValueType, signedEchos,
+                    serverBroadcast, session);
+            replicaHealth.recordLatency (serverPublicKey, System.currentTimeMillis () - start);
+            return response;
+        } catch (InvalidClientSignatureException e) {
+            if (session == null || sessions.containsValue (session)) {
+                throw e;
+            }
+            // the replica dropped the session before checking the request, it is sent again on a new one
+            return sendPostRequest (serverPublicKey, url, privateKey, payload, responseValueType, signedEchos,
+                    serverBroadcast, getSession (serverPublicKey, privateKey));
+        }
+    }
+
+    // the request is authenticated with the key of the session, or signed with ECDSA without one
+    private <T> T sendPostRequest (ECPublicKey serverPublicKey, String url, ECPrivateKey privateKey, Object payload,
+                                   Class<T> responseValueType, List<String> signedEchos, boolean serverBroadcast,
+                                   SessionKey session)
+            throws HttpRequest.HttpRequestException, IOException, SignatureException, InvalidServerResponseException,
+            InvalidClientSignatureException {
+        byte[] payloadBytes = Serialization.serialize (payload, contentType);
         String nonce = ((NonceContainer) payload).getNonce ();
 
         HttpRequest request = HttpRequest.post (url);
         request.connectTimeout(5000);
         request.readTimeout(10000);
+        request.contentType (contentType);
+        request.accept (getAcceptHeader ());
+        request.header (Compression.ACCEPT_ENCODING_HEADER_NAME, ACCEPT_ENCODING);
+        if (payloadBytes.length >= compressionThreshold) {
+            payloadBytes = Compression.encode (payloadBytes, Compression.GZIP);
+            request.header (Compression.CONTENT_ENCODING_HEADER_NAME, Compression.GZIP);
+        }
         //.header(Serialization.NONCE_HEADER_NAME, nonce);
 
         if (payload instanceof Signable && privateKey != null) {
             String toSign = ((Signable) payload).getSignable ();
             // added the nonce to the signable message on the request
-            String s = Utils.generateSignature (toSign, privateKey);
+            String s = session != null ? session.mac (toSign) : Utils.generateSignature (toSign, privateKey);
             request = request.header (Serialization.SIGNATURE_HEADER_NAME, s);
             System.out.println ("REQUEST SIGNATURE: " + s);
         }
+        if (session != null) {
+            request = request.header (Serialization.SESSION_HEADER_NAME, session.getSessionId ());
+        }
 
         if (signedEchos != null) {
             request = request.header(Serialization.ECHO_SIGNATURES_HEADER_NAME, String.join("#", signedEchos));
+        } else if (serverBroadcast) {
+            request = request.header (Serialization.BROADCAST_HEADER_NAME, Boolean.TRUE.toString ());
         }
 
-        request.send (payloadJson);
-
-        int responseCode = request.code ();
+        int responseCode;
+        try {
+            request.send (payloadBytes);
+            responseCode = request.code ();
+        } catch (HttpRequest.HttpRequestException e) {
+            replicaHealth.recordFailure (serverPublicKey);
+            throw e;
+        }
+        replicaHealth.recordSuccess (serverPublicKey);
 
         String responseSignature = request.header (Serialization.SIGNATURE_HEADER_NAME);
-        T response = Serialization.parse (request.body (), responseValueType);
+        T response = Serialization.parse (readBody (request), request.contentType (), responseValueType);
 
         if (!(response instanceof Signable && response instanceof NonceContainer)) {
             throw new InvalidServerResponseException ("Response isn't signable or doesn't contain a nonce.\n " +
@@ -674,7 +1506,7 @@ public class Client implements IClient {
         }
 
         boolean result =
-                Utils.checkSignature (responseSignature, ((Signable) response).getSignable (), serverPublicKey);
+                checkResponseSignature (request, ((Signable) response).getSignable (), serverPublicKey, session);
         if (!result) {
             throw new InvalidServerResponseException ("Server signatures do not match.");
         }
@@ -700,16 +1532,37 @@ public class Client implements IClient {
 
     private <T> T sendGetRequest (ECPublicKey serverPublicKey, String url, Class<T> responsValueType)
             throws HttpRequest.HttpRequestException, IOException, InvalidServerResponseException, SignatureException {
+        // only timed here, the long polls are held by the replicas on purpose
+        long start = System.currentTimeMillis ();
+        T response = sendGetRequest (serverPublicKey, url, responsValueType, 10000);
+        replicaHealth.recordLatency (serverPublicKey, System.currentTimeMillis () - start);
+        return response;
+    }
+
+    private <T> T sendGetRequest (ECPublicKey serverPublicKey, String url, Class<T> responsValueType, int readTimeout)
+            throws HttpRequest.HttpRequestException, IOException, InvalidServerResponseException, SignatureException {
         String nonce = Utils.randomNonce ();
         HttpRequest request = HttpRequest.get (url);
         request.connectTimeout(5000);
-        request.readTimeout(10000);
+        request.readTimeout(readTimeout);
         request.header (Serialization.NONCE_HEADER_NAME, nonce);
+        request.accept (getAcceptHeader ());
+        request.header (Compression.ACCEPT_ENCODING_HEADER_NAME, ACCEPT_ENCODING);
+        SessionKey session = getSession (serverPublicKey, null);
+        if (session != null) {
+            request.header (Serialization.SESSION_HEADER_NAME, session.getSessionId ());
+        }
 
-        int responseCode = request.code ();
+        try {
+            request.code ();
+        } catch (HttpRequest.HttpRequestException e) {
+            replicaHealth.recordFailure (serverPublicKey);
+            throw e;
+        }
+        replicaHealth.recordSuccess (serverPublicKey);
 
         String responseSignature = request.header (Serialization.SIGNATURE_HEADER_NAME);
-        T response = Serialization.parse (request.body (), responsValueType);
+        T response = Serialization.parse (readBody (request), request.contentType (), responsValueType);
 
         if (!(response instanceof Signable && response instanceof NonceContainer)) {
             throw new InvalidServerResponseException ("Response isn't signable or doesn't contain a nonce.\n " +
@@ -717,7 +1570,7 @@ public class Client implements IClient {
         }
 
         boolean result =
-                Utils.checkSignature (responseSignature, ((Signable) response).getSignable (), serverPublicKey);
+                checkResponseSignature (request, ((Signable) response).getSignable (), serverPublicKey, session);
         if (!result) {
             throw new InvalidServerResponseException ("Server signatures do not match.");
         }
@@ -734,6 +1587,100 @@ public class Client implements IClient {
         return response;
     }
 
+    private static byte[] readBody (HttpRequest request) throws IOException {
+        return Compression.decode (request.bytes (), request.contentEncoding (), Compression.MAX_DECODED_LENGTH);
+    }
+
+    private String getAcceptHeader () {
+        if (contentType.equals (Serialization.JSON_CONTENT_TYPE)) {
+            return contentType;
+        }
+        // keep JSON as a fallback for replicas that can't speak the preferred format
+        return contentType + ", " + Serialization.JSON_CONTENT_TYPE + ";q=0.5";
+    }
+
+    // the read of one replica, an exception if its response is bad
+    private interface ReplicaRead<T> {
+        T read (ServerInfo server) throws Exception;
+    }
+
+    /**
+     * Reads from the fastest replicas that make a quorum, all at once, and only asks the other replicas too if one of
+     * them fails, they don't all agree on the timestamp or, on ReadMode.HEDGED, they take longer than the hedge delay.
+     * A quorum that agrees is enough: it has correct replicas in common with the quorum of any completed write. When it
+     * doesn't agree the other replicas are asked too, until their responses decide the read, see QuorumAccumulator.
+     * On ReadMode.ALL every replica is asked from the start.
+     *
+     * @return the value decided, null if there wasn't a quorum of good responses
+     */
+    private <T extends Readable> T quorumRead (ReplicaRead<T> read) {
+        List<ServerInfo> replicas = replicaHealth.sortByLatency (getReachableServers ());
+        int quorumSize = getQuorumSize ();
+        List<ServerInfo> firstReplicas =
+                readMode == ReadMode.ALL ? replicas : replicas.subList (0, Math.min (quorumSize, replicas.size ()));
+        List<ServerInfo> otherReplicas = replicas.subList (firstReplicas.size (), replicas.size ());
+        long hedgeAt = readMode == ReadMode.HEDGED ?
+                System.currentTimeMillis () + replicaHealth.getHedgeDelay (firstReplicas) : Long.MAX_VALUE;
+
+        BlockingQueue<Optional<T>> answers = new LinkedBlockingQueue<> ();
+        for (ServerInfo server : firstReplicas) {
+            startRead (server, read, answers);
+        }
+        int asked = firstReplicas.size ();
+        QuorumAccumulator<T> responses = new QuorumAccumulator<> (replicas.size (), quorumSize);
+        int pending = firstReplicas.size ();
+        boolean hedged = otherReplicas.isEmpty ();
+        boolean failed = false;
+        try {
+            while (responses.getOutcome () == QuorumAccumulator.Outcome.PENDING) {
+                if (!hedged && (failed || pending == 0 || System.currentTimeMillis () >= hedgeAt)) {
+                    replicaHealth.recordHedge ();
+                    for (ServerInfo server : otherReplicas) {
+                        startRead (server, read, answers);
+                    }
+                    asked += otherReplicas.size ();
+                    pending += otherReplicas.size ();
+                    hedged = true;
+                }
+                Optional<T> answer = hedged || hedgeAt == Long.MAX_VALUE ? answers.take () :
+                        answers.poll (hedgeAt - System.currentTimeMillis (), TimeUnit.MILLISECONDS);
+                if (answer == null) {
+                    continue;
+                }
+                pending--;
+                if (answer.isPresent ()) {
+                    responses.add (answer.get ());
+                } else {
+                    failed = true;
+                    responses.fail ();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread ().interrupt ();
+        }
+        replicaHealth.recordRead (asked);
+        return responses.getDecision ();
+    }
+
+    // the responses that come after the read is settled are dropped
+    private <T> void startRead (ServerInfo server, ReplicaRead<T> read, BlockingQueue<Optional<T>> answers) {
+        Thread reader = new Thread (() -> {
+            try {
+                answers.add (Optional.of (read.read (server)));
+            } catch (Exception e) {
+                System.out.println ("Received a bad response from a replica...");
+                answers.add (Optional.empty ());
+            }
+        });
+        reader.setDaemon (true);
+        reader.start ();
+    }
+
+    // all the replicas but the ones known to be down, as long as a quorum is left
+    private List<ServerInfo> getReachableServers () {
+        return replicaHealth.getReachableServers ();
+    }
+
     private boolean receivedMajorityAcknowledge () {
         return hasMajority (this.ackList);
     }
@@ -743,58 +1690,110 @@ public class Client implements IClient {
     }
 
     private <T> boolean hasMajority (List<T> list) {
-        return list.size () > (servers.size () + numberOfMaxFaults) / 2;
-    }
-
-    private <T> T getValueWithMajorityTimestamp(List<T> list) {
-        // get the occurrences of a timestamp in the list
-        HashMap<Integer, Integer> timestampsOccurrence = getTimestampsOccurrence (list);
-        // get the highest timestamp
-        int highestTimestamp = getHighestTimestampOccurrence (timestampsOccurrence);
-        // fetch the first value with the highest timestamp
-        return getValueWithHighestTimestampOccurrence (list, highestTimestamp);
-    }
-
-    private <T> HashMap<Integer, Integer> getTimestampsOccurrence (List<T> list) {
-        HashMap<Integer, Integer> timestampsOccurrence = new HashMap<> ();
-        for(T element : list) {
-            Readable readable = (Readable) element;
-            System.out.println ("Timestamp: " + readable.getTimestamp ());
-            if (timestampsOccurrence.containsKey (readable.getTimestamp ())) {
-                int occurrence = timestampsOccurrence.get (readable.getTimestamp ());
-                timestampsOccurrence.put (readable.getTimestamp (), occurrence+1);
-            } else {
-                timestampsOccurrence.put (readable.getTimestamp (), 1);
+        return list.size () >= getQuorumSize ();
+    }
+
+    // the Byzantine quorum, more than (N + f) / 2 replicas
+    private int getQuorumSize () {
+        return (servers.size () + numberOfMaxFaults) / 2 + 1;
+    }
+
+    // the result of an account of a batch read that a majority of the replicas couldn't read
+    private <T extends Serialization.Response> T failedAccountRead (T result, Serialization.Response failure) {
+        result.status = failure != null ? failure.status : Serialization.StatusMessage.ERROR_SERVER_ERROR;
+        return result;
+    }
+
+    /**
+     * Writes back the value chosen by an audit, so later reads can't return an older one.
+     *
+     * @return false if the write-back didn't reach a majority of the replicas
+     */
+    private boolean writeBack (Serialization.AuditResponse majorityValue) throws AuditException {
+        Serialization.WriteBackRequest request = new Serialization.WriteBackRequest ();
+        request.ledger = majorityValue.ledger;
+        request.ledger.timestamp++;
+        request.nonce = Utils.randomNonce();
+
+        List<String> signedEchos = new ArrayList<>();
+        this.ackList.clear();
+        for (ServerInfo server : getReachableServers ()) {
+            try {
+                signedEchos.add(writeBackGetEcho(server, request));
+            } catch (Exception e) {
+                System.out.println ("Write-back echo signing request to a replica failed...");
             }
         }
-        return timestampsOccurrence;
-    }
 
-    private int getHighestTimestampOccurrence (HashMap<Integer, Integer> occurrences) {
-        int highestTimestamp = 0;
-        int oldOccurence = 0;
-        Iterator it = occurrences.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry pair = (Map.Entry)it.next();
-            int value = (Integer) pair.getValue ();
-            if (value > oldOccurence) {
-                oldOccurence = value;
-                highestTimestamp = (Integer) pair.getKey ();
-                System.out.println ("New highest timestamp: " + highestTimestamp + "; occurred " + oldOccurence + " times.");
+        if (!receivedMajorityAcknowledge ()) {
+            throw new AuditException("Failed to audit account - not enough success responses to write-back signed echo!");
+        }
+        this.ackList.clear();
+
+        // we're using this list literally as a counter...
+        List<Object> wbResponses = new ArrayList<> ();
+        for (ServerInfo server : getReachableServers ()) {
+            try {
+                writeBack (server, request, signedEchos);
+                wbResponses.add (new Object());
+            } catch (Exception e) {
+                System.out.println ("Write-back to a replica failed...");
             }
-            System.out.println(pair.getKey() + " = " + pair.getValue());
         }
-        return highestTimestamp;
+        return receivedReadMajority (wbResponses);
     }
 
-    private <T> T getValueWithHighestTimestampOccurrence(List<T> list, int timestamp) {
-        for (T element : list) {
-            Readable readable = (Readable) element;
-            if (readable.getTimestamp () == timestamp) {
-                return element;
+    // transactions come ordered from the oldest to the newest, starting after the checkpoint if the ledger has one
+    private void checkTransactionChain (Serialization.Ledger ledger, ECPublicKey publicKey)
+            throws AuditException, SignatureException, KeyException {
+        String prevHash = null;
+        if (ledger.checkpoint != null) {
+            // the transactions it covers aren't sent anymore, the quorum that signed it vouches for them
+            if (!Serialization.publicKeyToBase64 (publicKey).equals (ledger.checkpoint.publicKey) ||
+                    !ledger.checkpoint.isCertified (servers)) {
+                throw new AuditException ("The checkpoint of the ledger isn't signed by a quorum of replicas");
+            }
+            prevHash = ledger.checkpoint.headSignature;
+        }
+        for (Serialization.Transaction tx : ledger.transactions) {
+            System.out.println ("Checking signature: " + tx.signature);
+            System.out.println ("Signable: " + tx.getSignable ());
+            if (!Utils.checkSignature (tx.signature, tx.getSignable (), publicKey)) {
+                System.out.println ("Error checking signature of transaction");
+                throw new AuditException ("Error checking signature of transaction");
+            }
+            // now we know tx.signature is correct... but is it signing the right prevHash?
+            if (prevHash != null && !prevHash.equals (tx.previousSignature)) {
+                System.out.println ("Error transaction chain is broken");
+                throw new AuditException ("Transaction chain is broken: the previous signature contained in " +
+                        "one transaction does not match the signature of the transaction that precedes it");
             }
+            prevHash = tx.signature;
         }
-        return null;
     }
 
+    private Serialization.BatchReadRequest newBatchReadRequest (List<ECPublicKey> publicKeys) throws KeyException {
+        Serialization.BatchReadRequest request = new Serialization.BatchReadRequest ();
+        for (ECPublicKey publicKey : publicKeys) {
+            request.publicKeys.add (Serialization.publicKeyToBase64 (publicKey));
+        }
+        request.nonce = Utils.randomNonce ();
+        return request;
+    }
+
+    // a read of many accounts, answered with a single signed response
+    private <T extends Serialization.Response> T sendBatchReadRequest (ServerInfo server, String route,
+                                                                       Serialization.BatchReadRequest request,
+                                                                       Class<T> responseValueType)
+            throws HttpRequest.HttpRequestException, IOException, KeyException, SignatureException,
+            InvalidServerResponseException, InvalidClientSignatureException, ServerErrorException {
+        T response = sendPostRequest (Serialization.base64toPublicKey (server.publicKeyBase64),
+                server.serverUrl.toString () + route, null, request, responseValueType, null);
+        System.out.println ("response.statusCode: " + response.statusCode);
+        System.out.println ("response.status: " + response.status);
+        if (response.statusCode != 200) {
+            throw new ServerErrorException ("Error on the server side.");
+        }
+        return response;
+    }
 }
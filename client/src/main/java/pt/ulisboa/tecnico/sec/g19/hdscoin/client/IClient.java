@@ -9,6 +9,7 @@ import java.security.KeyException;
 import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface IClient {
 
@@ -34,12 +35,57 @@ public interface IClient {
      * @param amount            Amount to transfer.
      * @param sourcePrivateKey  Private key of the client that is sending the transaction, used to sign the message.
      * @param previousSignature Signature of the last transaction.
+     * @return The receipt of the transfer, with the signatures of the replicas that committed it, for the receiver.
      * @throws SendAmountException If there are any problems while trying to create a transaction.
      */
-    void sendAmount(ECPublicKey sourcePublicKey, ECPublicKey targetPublicKey, int amount,
-                    ECPrivateKey sourcePrivateKey, String previousSignature)
+    Serialization.TransferReceipt sendAmount(ECPublicKey sourcePublicKey, ECPublicKey targetPublicKey, int amount,
+                                             ECPrivateKey sourcePrivateKey, String previousSignature)
             throws SendAmountException, CheckAccountException, AuditException, KeyException, SignatureException;
 
+    /**
+     * Send several transfers from the source account, each one as its own write, without waiting for one transfer
+     * to be committed before starting the next. The transfers get consecutive timestamps and the replicas apply them
+     * in that order.
+     *
+     * @param sourcePublicKey   Public key of the client that is sending the transactions.
+     * @param targetPublicKeys  Public keys of the clients that receive the transactions, in order.
+     * @param amounts           Amount to transfer to each target, in the same order.
+     * @param sourcePrivateKey  Private key of the client that is sending the transactions, used to sign the message.
+     * @param previousSignature Signature of the last transaction.
+     * @throws SendAmountException If one of the transfers isn't completed by a majority of the replicas.
+     */
+    void sendAmountPipelined(ECPublicKey sourcePublicKey, List<ECPublicKey> targetPublicKeys, List<Integer> amounts,
+                             ECPrivateKey sourcePrivateKey, String previousSignature)
+            throws SendAmountException, AuditException, KeyException, SignatureException;
+
+    /**
+     * Register many accounts at once. Each account signs its own initial transaction and the replicas create
+     * all the ledgers in a single request, so an account failing doesn't prevent the others from being registered.
+     *
+     * @param publicKeys  Public keys of the clients.
+     * @param privateKeys Private keys of the clients, in the same order, used to sign each initial transaction.
+     * @param amounts     Initial amount of each account, in the same order.
+     * @return For each account, whether a majority of the replicas registered it.
+     * @throws RegisterException If not enough replicas processed the request.
+     */
+    List<Boolean> registerBatch(List<ECPublicKey> publicKeys, List<ECPrivateKey> privateKeys, List<Integer> amounts)
+            throws RegisterException, KeyException, SignatureException;
+
+    /**
+     * Submit several transfers from the source account at once. They are checked out of the balance atomically,
+     * with a single round of messages to the replicas, and appended to the ledger as chained SENDING transactions.
+     *
+     * @param sourcePublicKey   Public key of the client that is sending the transactions.
+     * @param targetPublicKeys  Public keys of the clients that receive the transactions, in order.
+     * @param amounts           Amount to transfer to each target, in the same order.
+     * @param sourcePrivateKey  Private key of the client that is sending the transactions, used to sign the message.
+     * @param previousSignature Signature of the last transaction.
+     * @throws SendAmountException If there are any problems while trying to create the transactions.
+     */
+    void sendAmountBatch(ECPublicKey sourcePublicKey, List<ECPublicKey> targetPublicKeys, List<Integer> amounts,
+                         ECPrivateKey sourcePrivateKey, String previousSignature)
+            throws SendAmountException, AuditException, KeyException, SignatureException;
+
     /**
      * Obtain the balance of the account associated with key.
      *
@@ -48,6 +94,17 @@ public interface IClient {
      */
     Serialization.CheckAccountResponse checkAccount(ECPublicKey publicKey) throws CheckAccountException;
 
+    /**
+     * Obtain the balance of the account associated with key and a page of its pending transactions.
+     * The pendingCount of the result is always the size of the whole inbox, so a limit of 0 only counts them.
+     *
+     * @param publicKey Public key of the client
+     * @param offset    Number of pending transactions to skip, oldest first
+     * @param limit     Maximum number of pending transactions to return, a negative limit returns all of them
+     * @return CheckAccountResult containing the balance and a page of the pending transactions of the account
+     */
+    Serialization.CheckAccountResponse checkAccount(ECPublicKey publicKey, int offset, int limit) throws CheckAccountException;
+
     /**
      * Used by recipient of a transfer to accept in a non-repudiable way
      * a pending incoming transfer that was previously authorized by the
@@ -65,6 +122,44 @@ public interface IClient {
                        ECPrivateKey sourcePrivateKey, String previousSignature, String incomingSignature)
             throws ReceiveAmountException, KeyException, SignatureException, AuditException;
 
+    /**
+     * Accept a transfer from the receipt its sender got from sendAmount, instead of looking it up with checkAccount.
+     * The receipt is checked against the keys of the replicas before anything is sent: it must be a transfer to this
+     * account, signed by its sender, and signed by a quorum of replicas.
+     *
+     * @param sourcePublicKey  Public key of the client (who receives money).
+     * @param receipt          Receipt of the transfer, as returned to the sender by sendAmount
+     * @param sourcePrivateKey Private key of the client, used to sign the message.
+     * @throws ReceiveAmountException If the receipt isn't valid or there are any problems completing the transaction.
+     */
+    void receiveAmount(ECPublicKey sourcePublicKey, Serialization.TransferReceipt receipt, ECPrivateKey sourcePrivateKey)
+            throws ReceiveAmountException, KeyException, SignatureException, AuditException;
+
+    /**
+     * Accept several pending incoming transfers at once. They are credited atomically, with a single round of
+     * messages to the replicas, and appended to the ledger as chained RECEIVING transactions.
+     *
+     * @param sourcePublicKey     Public key of the client (who receives money).
+     * @param pendingTransactions Pending incoming transactions to accept, as provided in the checkAccount response
+     * @param sourcePrivateKey    Private key of the client, used to sign the message.
+     * @param previousSignature   Signature of the previous transaction of the client (who receives money)
+     * @throws ReceiveAmountException If there are any problems while trying to complete the transactions.
+     */
+    void receiveAmountBatch(ECPublicKey sourcePublicKey, List<Serialization.Transaction> pendingTransactions,
+                            ECPrivateKey sourcePrivateKey, String previousSignature)
+            throws ReceiveAmountException, KeyException, SignatureException, AuditException;
+
+    /**
+     * Listen for the transfers sent to an account, instead of polling checkAccount. Every replica is long-polled
+     * and each transfer is handed to the listener once a quorum of replicas has committed it. The listener is
+     * called from the polling threads.
+     *
+     * @param publicKey Public key of the account that receives the transfers.
+     * @param listener  Called with each pending incoming transaction.
+     * @return The subscription, to be closed when no longer needed.
+     */
+    Subscription subscribe(ECPublicKey publicKey, Consumer<Serialization.Transaction> listener) throws KeyException;
+
     /**
      * Obtain the full transaction history of the account associated with key.
      *
@@ -73,4 +168,37 @@ public interface IClient {
      */
     Serialization.AuditResponse audit(ECPublicKey publicKey) throws AuditException;
 
+    /**
+     * Check that one transaction is in the history of an account, without downloading the whole history.
+     * Each replica returns the transaction with a proof of inclusion in the Merkle accumulator of the ledger, under a
+     * root it signs, which is checked in O(log n) hashes. A quorum of replicas must prove it.
+     *
+     * @param publicKey            The public key of the account
+     * @param transactionSignature The signature of the transaction
+     * @return The transaction and its proof, from the replica with the newest ledger.
+     * @throws AuditException If not enough replicas proved the transaction is in the history of the account.
+     */
+    Serialization.InclusionProofResponse verifyTransaction(ECPublicKey publicKey, String transactionSignature)
+            throws AuditException;
+
+    /**
+     * Obtain the full transaction history of several accounts, with a single request to each replica.
+     * The transaction history of each account is chosen and validated as in audit.
+     *
+     * @param publicKeys The public keys of the accounts to be audited
+     * @return One result per account, in the same order. Accounts that couldn't be audited have an error status.
+     * @throws AuditException If not enough replicas answered the request.
+     */
+    List<Serialization.AuditResponse> audits(List<ECPublicKey> publicKeys) throws AuditException;
+
+    /**
+     * Obtain the balance and pending transactions of several accounts, with a single request to each replica.
+     *
+     * @param publicKeys The public keys of the accounts
+     * @return One result per account, in the same order. Accounts that couldn't be read have an error status.
+     * @throws CheckAccountException If not enough replicas answered the request.
+     */
+    List<Serialization.CheckAccountResponse> checkAccounts(List<ECPublicKey> publicKeys) throws CheckAccountException;
+
+
 }
\ No newline at end of file
@@ -0,0 +1,255 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.client;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.ServerInfo;
+
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Failure detector of the replicas, as seen by one client. A replica that can't be reached is suspected, and the
+ * requests of the client skip it, so a dead replica doesn't cost a connect timeout on every round of every operation.
+ * A suspected replica is probed in the background, with a backoff that doubles on each failure in a row, and the
+ * first probe or request that reaches it clears the suspicion. Skipping never leaves fewer replicas than a quorum:
+ * the suspected replicas that failed the fewest times in a row are still asked.
+ * It also keeps a moving average and the recent samples of the latency of each replica, so the reads can go to the
+ * fastest ones first, see getHedgeDelay.
+ */
+public class ReplicaHealth {
+    public static final long INITIAL_BACKOFF_MILLIS = 500;
+    public static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+    // any answer means the replica is reachable, this one is cheap and unsigned
+    private static final String PROBE_ROUTE = "/metrics";
+    private static final int PROBE_TIMEOUT_MILLIS = 1000;
+    private static final long PROBE_PERIOD_MILLIS = 100;
+    // weight of a new sample on the moving average of the latency
+    private static final double LATENCY_ALPHA = 0.2;
+    private static final int LATENCY_SAMPLES = 32;
+    // until there are enough samples to tell
+    public static final long DEFAULT_HEDGE_DELAY_MILLIS = 100;
+    public static final long MIN_HEDGE_DELAY_MILLIS = 5;
+
+    private static class State {
+        private int failures = 0;       // in a row, the replica is suspected while there is any
+        private long nextProbeMillis = 0;
+        private double latencyAverage = 0;
+        private final long[] latencies = new long[LATENCY_SAMPLES];
+        private int latencyCount = 0;   // of samples taken, the latest ones are kept
+
+        private long getLatencyPercentile (double percentile) {
+            long[] samples = Arrays.copyOf (latencies, Math.min (latencyCount, LATENCY_SAMPLES));
+            Arrays.sort (samples);
+            return samples[(int) Math.ceil (percentile * samples.length) - 1];
+        }
+    }
+
+    private final List<ServerInfo> servers;
+    private final int quorumSize;
+    // by the key of the replica
+    private final Map<String, State> states = new HashMap<> ();
+    private Thread prober = null;
+    private long failures = 0;
+    private long skipped = 0;
+    private long probes = 0;
+    private long recoveries = 0;
+    private long hedges = 0;
+    private long reads = 0;
+    private long readRequests = 0;
+
+    ReplicaHealth (List<ServerInfo> servers, int quorumSize) {
+        this.servers = servers;
+        this.quorumSize = quorumSize;
+        for (ServerInfo server : servers) {
+            states.put (server.publicKeyBase64, new State ());
+        }
+    }
+
+    // the replicas a request is sent to, in order, all of them but the suspected ones that are left out of a quorum
+    synchronized List<ServerInfo> getReachableServers () {
+        List<ServerInfo> suspected = new ArrayList<> ();
+        for (ServerInfo server : servers) {
+            if (states.get (server.publicKeyBase64).failures > 0) {
+                suspected.add (server);
+            }
+        }
+        if (suspected.isEmpty ()) {
+            return servers;
+        }
+        suspected.sort (Comparator.comparingInt (server -> states.get (server.publicKeyBase64).failures));
+        int skippable = Math.min (suspected.size (), Math.max (0, servers.size () - quorumSize));
+        List<ServerInfo> skip = suspected.subList (suspected.size () - skippable, suspected.size ());
+        skipped += skip.size ();
+        List<ServerInfo> reachable = new ArrayList<> ();
+        for (ServerInfo server : servers) {
+            if (!skip.contains (server)) {
+                reachable.add (server);
+            }
+        }
+        return reachable;
+    }
+
+    void recordSuccess (ECPublicKey serverPublicKey) {
+        recordSuccess (toBase64 (serverPublicKey));
+    }
+
+    // how long the replica took to give a verified answer
+    synchronized void recordLatency (ECPublicKey serverPublicKey, long latencyMillis) {
+        State state = states.get (toBase64 (serverPublicKey));
+        if (state == null) {
+            return;
+        }
+        state.latencyAverage = state.latencyCount == 0 ? latencyMillis :
+                LATENCY_ALPHA * latencyMillis + (1 - LATENCY_ALPHA) * state.latencyAverage;
+        state.latencies[state.latencyCount % LATENCY_SAMPLES] = latencyMillis;
+        state.latencyCount++;
+    }
+
+    // the replicas from the fastest on average, the ones not measured yet first so they get measured
+    synchronized List<ServerInfo> sortByLatency (List<ServerInfo> replicas) {
+        List<ServerInfo> sorted = new ArrayList<> (replicas);
+        sorted.sort (Comparator.comparingDouble (server -> states.get (server.publicKeyBase64).latencyAverage));
+        return sorted;
+    }
+
+    /**
+     * Gets how long to wait for the replicas asked first before asking the others too: the slowest p95 latency
+     * among them, so they are only hedged when they are slower than they usually are.
+     */
+    synchronized long getHedgeDelay (List<ServerInfo> replicas) {
+        long delay = MIN_HEDGE_DELAY_MILLIS;
+        for (ServerInfo server : replicas) {
+            State state = states.get (server.publicKeyBase64);
+            if (state.latencyCount < LATENCY_SAMPLES / 4) {
+                return Math.max (delay, DEFAULT_HEDGE_DELAY_MILLIS);
+            }
+            delay = Math.max (delay, state.getLatencyPercentile (0.95));
+        }
+        return delay;
+    }
+
+    synchronized void recordHedge () {
+        hedges++;
+    }
+
+    // a read of a single account, and how many replicas it asked
+    synchronized void recordRead (int replicasAsked) {
+        reads++;
+        readRequests += replicasAsked;
+    }
+
+    void recordFailure (ECPublicKey serverPublicKey) {
+        recordFailure (toBase64 (serverPublicKey));
+    }
+
+    private synchronized void recordSuccess (String b64ServerKey) {
+        State state = states.get (b64ServerKey);
+        if (state != null && state.failures > 0) {
+            state.failures = 0;
+            recoveries++;
+        }
+    }
+
+    private synchronized void recordFailure (String b64ServerKey) {
+        State state = states.get (b64ServerKey);
+        if (state == null) {
+            return;
+        }
+        failures++;
+        state.failures++;
+        long backoff = INITIAL_BACKOFF_MILLIS << Math.min (state.failures - 1, 16);
+        state.nextProbeMillis = System.currentTimeMillis () + Math.min (backoff, MAX_BACKOFF_MILLIS);
+        if (prober == null) {
+            prober = new Thread (this::probe, "replica-prober");
+            prober.setDaemon (true);
+            prober.start ();
+        }
+    }
+
+    // runs while any replica is suspected
+    private void probe () {
+        while (true) {
+            List<ServerInfo> due = new ArrayList<> ();
+            synchronized (this) {
+                boolean anySuspected = false;
+                long now = System.currentTimeMillis ();
+                for (ServerInfo server : servers) {
+                    State state = states.get (server.publicKeyBase64);
+                    if (state.failures > 0) {
+                        anySuspected = true;
+                        if (state.nextProbeMillis <= now) {
+                            due.add (server);
+                        }
+                    }
+                }
+                if (!anySuspected) {
+                    prober = null;
+                    return;
+                }
+            }
+            for (ServerInfo server : due) {
+                synchronized (this) {
+                    probes++;
+                }
+                try {
+                    HttpRequest request = HttpRequest.get (server.serverUrl.toString () + PROBE_ROUTE);
+                    request.connectTimeout (PROBE_TIMEOUT_MILLIS);
+                    request.readTimeout (PROBE_TIMEOUT_MILLIS);
+                    request.code ();
+                    recordSuccess (server.publicKeyBase64);
+                } catch (HttpRequest.HttpRequestException e) {
+                    recordFailure (server.publicKeyBase64);
+                }
+            }
+            try {
+                Thread.sleep (PROBE_PERIOD_MILLIS);
+            } catch (InterruptedException e) {
+                synchronized (this) {
+                    prober = null;
+                }
+                return;
+            }
+        }
+    }
+
+    private static String toBase64 (ECPublicKey key) {
+        return Base64.getEncoder ().encodeToString (key.getEncoded ());
+    }
+
+    public synchronized Map<String, Object> toMap () {
+        Map<String, Object> map = new LinkedHashMap<> ();
+        List<String> suspected = new ArrayList<> ();
+        for (ServerInfo server : servers) {
+            if (states.get (server.publicKeyBase64).failures > 0) {
+                suspected.add (server.serverName);
+            }
+        }
+        map.put ("suspected", suspected);
+        map.put ("failures", failures);
+        map.put ("skipped", skipped);
+        map.put ("probes", probes);
+        map.put ("recoveries", recoveries);
+        map.put ("hedges", hedges);
+        map.put ("reads", reads);
+        map.put ("readRequests", readRequests);
+        Map<String, Object> latencies = new LinkedHashMap<> ();
+        for (ServerInfo server : servers) {
+            State state = states.get (server.publicKeyBase64);
+            if (state.latencyCount > 0) {
+                Map<String, Object> latency = new LinkedHashMap<> ();
+                latency.put ("averageMillis", state.latencyAverage);
+                latency.put ("p95Millis", state.getLatencyPercentile (0.95));
+                latencies.put (server.serverName, latency);
+            }
+        }
+        map.put ("latencies", latencies);
+        return map;
+    }
+}
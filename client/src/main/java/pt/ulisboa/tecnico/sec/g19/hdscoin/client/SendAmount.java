@@ -15,7 +15,6 @@ import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
-import java.util.List;
 
 
 public class SendAmount {
@@ -95,12 +94,11 @@ public class SendAmount {
             // get the hash of our last transaction, so we can include it in the new transaction
             // client.audit verifies the transaction chain for us
             Serialization.AuditResponse auditResponse = client.audit (sourcePublicKey);
-            List<Serialization.Transaction> transactions = auditResponse.ledger.transactions;
-            // transactions.size() should always be > 0 because of the dummy transaction required to open an account
-            if(transactions.size() == 0) {
+            // there is always one, the dummy transaction required to open an account or the checkpoint that covers it
+            String previousSignature = auditResponse.ledger.getHeadSignature();
+            if(previousSignature == null) {
                 throw new SendAmountException("Ledger has too few transactions (account appears to not have been initialized on the server)");
             }
-            String previousSignature = transactions.get(transactions.size() - 1).signature;
             client.sendAmount(sourcePublicKey, targetPublicKey, amount, sourcePrivateKey, previousSignature);
 
         } catch (IOException e) {
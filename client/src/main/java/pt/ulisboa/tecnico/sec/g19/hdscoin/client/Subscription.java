@@ -0,0 +1,121 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.client;
+
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.ServerInfo;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Utils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+
+/**
+ * Listens for the transfers sent to an account by long-polling every replica, each one on its own thread.
+ * A transfer is delivered to the listener once, when a quorum of replicas has reported it as committed. The first
+ * poll also returns the recent transfers each replica still remembers, so nothing sent around the time of the
+ * subscription is missed, but a delivered transfer may already have been received.
+ */
+public class Subscription implements AutoCloseable {
+    // how long each replica holds a poll when there is nothing new
+    public static final int POLL_WAIT_MILLIS = 5000;
+    // pause after a failed poll, so an unreachable replica isn't hammered
+    private static final int RETRY_DELAY_MILLIS = 1000;
+    // transfers tracked at once, the least recently reported one is forgotten first
+    public static final int MAX_REPORTS = 4096;
+
+    private final Client client;
+    private final String publicKeyBase64;
+    private final Consumer<Serialization.Transaction> listener;
+    private final int quorumSize;
+    private final int replicas;
+    private final List<Thread> pollers = new ArrayList<> ();
+    private volatile boolean closed = false;
+
+    // transaction signature -> replicas that reported it, the entry is kept so it is only delivered once, until every
+    // replica reported it and none will again
+    private final Map<String, Set<String>> reports = new LinkedHashMap<String, Set<String>> (16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry (Map.Entry<String, Set<String>> eldest) {
+            return size () > MAX_REPORTS;
+        }
+    };
+
+    Subscription (Client client, List<ServerInfo> servers, String publicKeyBase64, int quorumSize,
+                  Consumer<Serialization.Transaction> listener) {
+        this.client = client;
+        this.publicKeyBase64 = publicKeyBase64;
+        this.quorumSize = quorumSize;
+        this.replicas = servers.size ();
+        this.listener = listener;
+        for (ServerInfo server : servers) {
+            Thread poller = new Thread (() -> poll (server), "subscription-" + server.serverUrl);
+            poller.setDaemon (true);
+            pollers.add (poller);
+        }
+    }
+
+    void start () {
+        for (Thread poller : pollers) {
+            poller.start ();
+        }
+    }
+
+    private void poll (ServerInfo server) {
+        long since = 0;
+        while (!closed) {
+            try {
+                Serialization.NotificationResponse response =
+                        client.pollNotifications (server, publicKeyBase64, since, POLL_WAIT_MILLIS);
+                since = response.sequence;
+                for (Serialization.Transaction transaction : response.transactions) {
+                    report (server, transaction);
+                }
+            } catch (Exception e) {
+                if (closed) {
+                    return;
+                }
+                System.out.println ("Failed to poll a replica for notifications... " + e);
+                try {
+                    Thread.sleep (RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void report (ServerInfo server, Serialization.Transaction transaction) {
+        // a replica can't make up a transfer, it has to be signed by the sender
+        try {
+            if (!publicKeyBase64.equals (transaction.target) || !transaction.isSend ||
+                    !Utils.checkSignature (transaction.signature, transaction.getSignable (), transaction.source)) {
+                System.out.println ("A replica notified an invalid transaction...");
+                return;
+            }
+        } catch (Exception e) {
+            System.out.println ("A replica notified an invalid transaction... " + e);
+            return;
+        }
+        boolean deliver;
+        synchronized (reports) {
+            Set<String> reporters = reports.computeIfAbsent (transaction.signature, s -> new HashSet<> ());
+            deliver = reporters.add (server.publicKeyBase64) && reporters.size () == quorumSize;
+            if (reporters.size () == replicas) {
+                reports.remove (transaction.signature);
+            }
+        }
+        if (deliver) {
+            listener.accept (transaction);
+        }
+    }
+
+    @Override public void close () {
+        closed = true;
+        for (Thread poller : pollers) {
+            poller.interrupt ();
+        }
+    }
+}
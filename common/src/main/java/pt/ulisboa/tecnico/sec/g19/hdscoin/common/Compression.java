@@ -0,0 +1,244 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Content-Encoding support for request and response bodies.
+ * Bodies are compressed only when they are at least as large as the configured threshold, small messages such as a
+ * checkAccount are not worth the cost.
+ */
+public class Compression {
+
+    public static final String CONTENT_ENCODING_HEADER_NAME = "Content-Encoding";
+    public static final String ACCEPT_ENCODING_HEADER_NAME = "Accept-Encoding";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    public static final String IDENTITY = "identity";
+    public static final int DEFAULT_THRESHOLD = 1024;   // bytes
+    // a few times the largest ledger a request or a response carries in practice
+    public static final int MAX_DECODED_LENGTH = 64 * 1024 * 1024;  // bytes
+    // of the zlib stream DEFLATE bodies are sent in, the same DeflaterOutputStream writes
+    private static final byte[] ZLIB_HEADER = {0x78, (byte) 0x9c};
+    private static final long ADLER_BASE = 65521;
+
+    /**
+     * Part of a DEFLATE body compressed on its own, so the same bytes can be spliced into many bodies without
+     * compressing them again, see deflate.
+     */
+    public static class Segment {
+        private final byte[] deflated;  // raw deflate blocks, none of them final, ending on a byte boundary
+        private final long adler;       // of the uncompressed bytes
+        private final int length;       // of the uncompressed bytes
+
+        private Segment (byte[] deflated, long adler, int length) {
+            this.deflated = deflated;
+            this.adler = adler;
+            this.length = length;
+        }
+
+        public int getLength () {
+            return length;
+        }
+    }
+
+    /**
+     * Compresses a body with the given encoding
+     *
+     * @param body     the bytes to compress
+     * @param encoding GZIP, DEFLATE or IDENTITY
+     *
+     * @return the encoded body
+     *
+     * @throws IOException if the encoding is not supported
+     */
+    public static byte[] encode (byte[] body, String encoding) throws IOException {
+        if (isIdentity (encoding)) {
+            return body;
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream (body.length / 2 + 16);
+        OutputStream out;
+        if (GZIP.equalsIgnoreCase (encoding.trim ())) {
+            out = new GZIPOutputStream (bos);
+        } else if (DEFLATE.equalsIgnoreCase (encoding.trim ())) {
+            out = new DeflaterOutputStream (bos);
+        } else {
+            throw new IOException ("Unsupported content encoding: " + encoding);
+        }
+        out.write (body);
+        out.close ();
+        return bos.toByteArray ();
+    }
+
+    /**
+     * Compresses bytes into a segment that can be spliced into DEFLATE bodies.
+     *
+     * @param data the bytes to compress
+     *
+     * @return the segment
+     */
+    public static Segment deflateSegment (byte[] data) {
+        Adler32 adler = new Adler32 ();
+        adler.update (data);
+        return new Segment (rawDeflate (data, false), adler.getValue (), data.length);
+    }
+
+    /**
+     * Builds a DEFLATE body, as encode would, out of a prefix and a suffix compressed here and a segment compressed
+     * beforehand between them. The segment doesn't refer back to the prefix, so the body may be a little larger than
+     * the one encode gives, but only the prefix and the suffix are compressed.
+     *
+     * @param prefix  the bytes before the segment
+     * @param segment the segment, from deflateSegment
+     * @param suffix  the bytes after the segment
+     *
+     * @return the encoded body
+     */
+    public static byte[] deflate (byte[] prefix, Segment segment, byte[] suffix) {
+        byte[] deflatedPrefix = rawDeflate (prefix, false);
+        byte[] deflatedSuffix = rawDeflate (suffix, true);
+        Adler32 adler = new Adler32 ();
+        adler.update (prefix);
+        long checksum = combineAdler (adler.getValue (), segment.adler, segment.length);
+        adler.reset ();
+        adler.update (suffix);
+        checksum = combineAdler (checksum, adler.getValue (), suffix.length);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream (ZLIB_HEADER.length + deflatedPrefix.length +
+                segment.deflated.length + deflatedSuffix.length + 4);
+        bos.write (ZLIB_HEADER, 0, ZLIB_HEADER.length);
+        bos.write (deflatedPrefix, 0, deflatedPrefix.length);
+        bos.write (segment.deflated, 0, segment.deflated.length);
+        bos.write (deflatedSuffix, 0, deflatedSuffix.length);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            bos.write ((int) (checksum >>> shift) & 0xff);
+        }
+        return bos.toByteArray ();
+    }
+
+    // raw deflate blocks, the last one final or else flushed to a byte boundary so more blocks can follow
+    private static byte[] rawDeflate (byte[] data, boolean last) {
+        Deflater deflater = new Deflater (Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput (data);
+        if (last) {
+            deflater.finish ();
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream (data.length / 2 + 16);
+        byte[] buffer = new byte[8192];
+        while (true) {
+            int written = deflater.deflate (buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            bos.write (buffer, 0, written);
+            if (last ? deflater.finished () : written < buffer.length) {
+                break;
+            }
+        }
+        deflater.end ();
+        return bos.toByteArray ();
+    }
+
+    // the Adler-32 of two byte sequences one after the other, from the checksum of each, as zlib's adler32_combine
+    private static long combineAdler (long first, long second, long secondLength) {
+        long remainder = secondLength % ADLER_BASE;
+        long sum1 = first & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (second & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((first >>> 16) & 0xffff) + ((second >>> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE << 1) {
+            sum2 -= ADLER_BASE << 1;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Decompresses a body that was sent with the given Content-Encoding.
+     * Bodies are decoded before their signature can be checked, so the decoded size is capped: a few bytes of deflate
+     * can expand to gigabytes.
+     *
+     * @param body      the bytes received
+     * @param encoding  the value of the Content-Encoding header, can be null
+     * @param maxLength the largest decoded body accepted, usually MAX_DECODED_LENGTH
+     *
+     * @return the decoded body
+     *
+     * @throws IOException if the body is corrupted, decodes to more than maxLength bytes or the encoding is not
+     *                     supported
+     */
+    public static byte[] decode (byte[] body, String encoding, int maxLength) throws IOException {
+        if (isIdentity (encoding)) {
+            return body;
+        }
+        InputStream in;
+        if (GZIP.equalsIgnoreCase (encoding.trim ())) {
+            in = new GZIPInputStream (new ByteArrayInputStream (body));
+        } else if (DEFLATE.equalsIgnoreCase (encoding.trim ())) {
+            in = new InflaterInputStream (new ByteArrayInputStream (body));
+        } else {
+            throw new IOException ("Unsupported content encoding: " + encoding);
+        }
+        ByteArrayOutputStream bos = new ByteArrayOutputStream ((int) Math.min (body.length * 4L, maxLength));
+        byte[] buffer = new byte[8192];
+        int read;
+        try {
+            while ((read = in.read (buffer)) != -1) {
+                if (read > maxLength - bos.size ()) {
+                    throw new IOException ("The decoded body is larger than " + maxLength + " bytes.");
+                }
+                bos.write (buffer, 0, read);
+            }
+        } finally {
+            in.close ();
+        }
+        return bos.toByteArray ();
+    }
+
+    /**
+     * Checks whether the peer listed an encoding in its Accept-Encoding header (with a non zero quality)
+     *
+     * @param acceptEncodingHeader the value of the Accept-Encoding header, can be null
+     * @param encoding             the encoding to look for
+     *
+     * @return true if the peer accepts bodies with that encoding
+     */
+    public static boolean accepts (String acceptEncodingHeader, String encoding) {
+        if (acceptEncodingHeader == null) {
+            return false;
+        }
+        for (String coding : acceptEncodingHeader.split (",")) {
+            String[] parts = coding.trim ().split (";");
+            if (!parts[0].trim ().equalsIgnoreCase (encoding)) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim ();
+                if (param.startsWith ("q=") && param.substring (2).matches ("0(\\.0*)?")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isIdentity (String encoding) {
+        return encoding == null || encoding.trim ().isEmpty () || IDENTITY.equalsIgnoreCase (encoding.trim ());
+    }
+}
@@ -0,0 +1,80 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.common;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+
+
+/**
+ * Hashes of the Merkle accumulator kept by the replicas over each ledger, as in RFC 6962 (Certificate Transparency).
+ * The leaves are the signatures of the transactions, in ledger order. A leaf is hashed as SHA-256(0x00 || leaf) and
+ * an inner node as SHA-256(0x01 || left || right), so a leaf can't be passed off as a node. All hashes in base 64.
+ */
+public class MerkleProof {
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    public static String leafHash (String transactionSignature) {
+        return hash (LEAF_PREFIX, transactionSignature.getBytes (StandardCharsets.UTF_8));
+    }
+
+    public static String nodeHash (String left, String right) {
+        byte[] leftBytes = Base64.getDecoder ().decode (left);
+        byte[] rightBytes = Base64.getDecoder ().decode (right);
+        byte[] children = new byte[leftBytes.length + rightBytes.length];
+        System.arraycopy (leftBytes, 0, children, 0, leftBytes.length);
+        System.arraycopy (rightBytes, 0, children, leftBytes.length, rightBytes.length);
+        return hash (NODE_PREFIX, children);
+    }
+
+    /**
+     * Checks that a transaction is in a ledger, in O(log n) hashes, following the verification of RFC 9162 2.1.3.2
+     *
+     * @param transactionSignature the signature of the transaction
+     * @param index                the position of the transaction in the ledger
+     * @param treeSize             the number of transactions of the ledger the root covers
+     * @param path                 the inclusion proof, from the leaf up
+     * @param rootHash             the root of the accumulator of the ledger
+     *
+     * @return true if the proof leads from the transaction to the root
+     */
+    public static boolean verifyInclusion (String transactionSignature, int index, int treeSize, List<String> path,
+                                           String rootHash) {
+        if (index < 0 || index >= treeSize || path == null || rootHash == null) {
+            return false;
+        }
+        long fn = index;
+        long sn = treeSize - 1;
+        String r = leafHash (transactionSignature);
+        for (String p : path) {
+            if (sn == 0) {
+                return false;
+            }
+            if ((fn & 1) == 1 || fn == sn) {
+                r = nodeHash (p, r);
+                while ((fn & 1) == 0 && fn != 0) {
+                    fn >>= 1;
+                    sn >>= 1;
+                }
+            } else {
+                r = nodeHash (r, p);
+            }
+            fn >>= 1;
+            sn >>= 1;
+        }
+        return sn == 0 && r.equals (rootHash);
+    }
+
+    private static String hash (byte prefix, byte[] content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance ("SHA-256");
+            digest.update (prefix);
+            return Base64.getEncoder ().encodeToString (digest.digest (content));
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+}
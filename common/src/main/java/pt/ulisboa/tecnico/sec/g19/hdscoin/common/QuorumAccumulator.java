@@ -0,0 +1,124 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.common;
+
+
+/**
+ * Decides the value of a read from the responses of the replicas, fed in as they arrive. The value is the one with the
+ * timestamp most replicas answered with, the newest one on a tie, and the read needs the responses of a quorum of
+ * replicas. The decision is taken as soon as no response still to come could change it, so a read doesn't have to wait
+ * for the slowest replicas, and the read is given up as soon as too many replicas failed for a quorum to answer.
+ */
+public class QuorumAccumulator<T extends Readable> {
+
+    public enum Outcome {
+        PENDING,
+        DECIDED,
+        NO_QUORUM
+    }
+
+    private final int replicas;
+    private final int quorumSize;
+    // the distinct timestamps answered so far, how many replicas answered each one and the first value with it
+    private final int[] timestamps;
+    private final int[] votes;
+    private final Object[] values;
+    private int distinct = 0;
+    private int responses = 0;
+    private int failures = 0;
+    // the index of the timestamp with the most votes so far
+    private int leader = -1;
+
+    /**
+     * @param replicas   the number of replicas that may answer
+     * @param quorumSize the number of responses a read needs
+     */
+    public QuorumAccumulator (int replicas, int quorumSize) {
+        this.replicas = replicas;
+        this.quorumSize = quorumSize;
+        this.timestamps = new int[replicas];
+        this.votes = new int[replicas];
+        this.values = new Object[replicas];
+    }
+
+    // a good response of a replica
+    public Outcome add (T response) {
+        checkRemaining ();
+        responses++;
+        int timestamp = response.getTimestamp ();
+        int index = 0;
+        while (index < distinct && timestamps[index] != timestamp) {
+            index++;
+        }
+        if (index == distinct) {
+            timestamps[index] = timestamp;
+            values[index] = response;
+            distinct++;
+        }
+        votes[index]++;
+        if (leader == -1 || beats (votes[index], timestamp, votes[leader], timestamps[leader])) {
+            leader = index;
+        }
+        return getOutcome ();
+    }
+
+    // a replica that failed, or whose response was bad
+    public Outcome fail () {
+        checkRemaining ();
+        failures++;
+        return getOutcome ();
+    }
+
+    public Outcome getOutcome () {
+        int remaining = replicas - responses - failures;
+        if (responses + remaining < quorumSize) {
+            return Outcome.NO_QUORUM;
+        }
+        if (responses >= quorumSize && isSettled (remaining)) {
+            return Outcome.DECIDED;
+        }
+        return Outcome.PENDING;
+    }
+
+    // the value decided, null unless the read is decided
+    @SuppressWarnings ("unchecked")
+    public T getDecision () {
+        return getOutcome () == Outcome.DECIDED ? (T) values[leader] : null;
+    }
+
+    // how many replicas answered with the timestamp of the value decided, 0 unless the read is decided
+    public int getDecisionVotes () {
+        return getOutcome () == Outcome.DECIDED ? votes[leader] : 0;
+    }
+
+    public int getResponses () {
+        return responses;
+    }
+
+    public int getFailures () {
+        return failures;
+    }
+
+    // true if no other timestamp can get ahead of the leader with the responses still to come
+    private boolean isSettled (int remaining) {
+        int leaderVotes = votes[leader];
+        // a timestamp no replica answered yet could get all the remaining responses, and be newer
+        if (leaderVotes <= remaining) {
+            return false;
+        }
+        for (int i = 0; i < distinct; i++) {
+            if (i != leader && !beats (leaderVotes, timestamps[leader], votes[i] + remaining, timestamps[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean beats (int votes, int timestamp, int otherVotes, int otherTimestamp) {
+        return votes > otherVotes || (votes == otherVotes && timestamp > otherTimestamp);
+    }
+
+    private void checkRemaining () {
+        if (responses + failures == replicas) {
+            throw new IllegalStateException ("All the " + replicas + " replicas already answered");
+        }
+    }
+}
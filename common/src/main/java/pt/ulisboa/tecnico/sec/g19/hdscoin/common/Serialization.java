@@ -1,11 +1,20 @@
 package pt.ulisboa.tecnico.sec.g19.hdscoin.common;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.annotation.JsonValue;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.exceptions.SignatureException;
 import spark.Request;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -17,7 +26,10 @@ import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 
 public class Serialization {
@@ -37,10 +49,28 @@ public class Serialization {
     public static final String SIGNATURE_HEADER_NAME = "SIGNATURE";
     public static final String ECHO_SIGNATURES_HEADER_NAME = "ECHOS";
     public static final String NONCE_HEADER_NAME = "NONCE";
+    // the client sends the write once and the replicas exchange the echoes among themselves
+    public static final String BROADCAST_HEADER_NAME = "BROADCAST";
+    // id of the session whose key authenticates the request, and the response, in place of their ECDSA signatures
+    public static final String SESSION_HEADER_NAME = "SESSION";
+    // pagination of the pending transactions on checkAccount
+    public static final String OFFSET_PARAMETER_NAME = "offset";
+    public static final String LIMIT_PARAMETER_NAME = "limit";
+    // long-polling of the notifications of an account
+    public static final String SINCE_PARAMETER_NAME = "since";
+    public static final String WAIT_PARAMETER_NAME = "wait";
+    // node of the Merkle tree of ledger heads asked for by the anti-entropy between replicas
+    public static final String PREFIX_PARAMETER_NAME = "prefix";
+    // signature of the transaction whose inclusion proof is asked for
+    public static final String TRANSACTION_PARAMETER_NAME = "tx";
+    // wire formats, JSON is the fallback whenever a peer doesn't ask for anything else
+    public static final String JSON_CONTENT_TYPE = "application/json";
+    public static final String CBOR_CONTENT_TYPE = "application/cbor";
     private static ObjectMapper mapper = new ObjectMapper ();
+    private static ObjectMapper cborMapper = new ObjectMapper (new CBORFactory ());
 
     /**
-     * Deserializes a request into the specified class
+     * Deserializes a request into the specified class, using the wire format declared in its Content-Type
      *
      * @param request   the request to deserialize
      * @param valueType the expected object class
@@ -50,7 +80,22 @@ public class Serialization {
      * @throws IOException
      */
     public static <T> T parse (Request request, Class<T> valueType) throws IOException {
-        return parse (request.body (), valueType);
+        return parse (request.bodyAsBytes (), request.contentType (), valueType);
+    }
+
+    /**
+     * Deserializes a body encoded in the given wire format into the specified class
+     *
+     * @param body        the raw bytes to deserialize
+     * @param contentType the content type of the body, JSON is assumed when unknown
+     * @param valueType   the expected object class
+     *
+     * @return the read object
+     *
+     * @throws IOException
+     */
+    public static <T> T parse (byte[] body, String contentType, Class<T> valueType) throws IOException {
+        return mapperFor (contentType).readValue (body, valueType);
     }
 
     /**
@@ -71,6 +116,101 @@ public class Serialization {
         return mapper.writeValueAsString (obj);
     }
 
+    public static byte[] serialize (Object obj, String contentType) throws JsonProcessingException {
+        return mapperFor (contentType).writeValueAsBytes (obj);
+    }
+
+    // an object encoded without one of its fields, split where the encoded value of the field goes
+    public static class Splice {
+        public final byte[] prefix;     // up to and including the name of the field
+        public final byte[] suffix;
+
+        private Splice (byte[] prefix, byte[] suffix) {
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+
+    /**
+     * Encodes an object that doesn't have a field, null fields must be left out, so that the field can be added by
+     * putting a value encoded beforehand in the same wire format between the prefix and the suffix.
+     *
+     * @param obj         the object, without the field
+     * @param contentType the wire format
+     * @param fieldName   the name of the field added
+     *
+     * @return the splice
+     *
+     * @throws IOException if the object isn't encoded as a map the field can be added to
+     */
+    public static Splice spliceField (Object obj, String contentType, String fieldName) throws IOException {
+        byte[] body = serialize (obj, contentType);
+        byte[] name = fieldName.getBytes (StandardCharsets.UTF_8);
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream (body.length + name.length + 8);
+        if (CBOR_CONTENT_TYPE.equals (contentType)) {
+            // Jackson writes objects as maps of indefinite length, closed by a break byte, so any pair can be added
+            if (body.length < 2 || body[0] != (byte) 0xbf || body[body.length - 1] != (byte) 0xff || name.length > 23) {
+                throw new IOException ("Can't add a field to the CBOR encoding of " + obj.getClass ().getSimpleName ());
+            }
+            prefix.write (body, 0, body.length - 1);
+            prefix.write (0x60 + name.length);   // a text string of that many bytes
+            prefix.write (name, 0, name.length);
+            return new Splice (prefix.toByteArray (), new byte[] {(byte) 0xff});
+        }
+        if (body.length < 2 || body[0] != '{' || body[body.length - 1] != '}') {
+            throw new IOException ("Can't add a field to the JSON encoding of " + obj.getClass ().getSimpleName ());
+        }
+        prefix.write (body, 0, body.length - 1);
+        byte[] field = ((body.length > 2 ? "," : "") + mapper.writeValueAsString (fieldName) + ":")
+                .getBytes (StandardCharsets.UTF_8);
+        prefix.write (field, 0, field.length);
+        return new Splice (prefix.toByteArray (), new byte[] {'}'});
+    }
+
+    /**
+     * Picks the wire format to answer with, given the Accept header sent by the peer.
+     * Signatures are always computed over the signable of the objects, so the choice only affects the bytes on the wire.
+     *
+     * @param acceptHeader the value of the Accept header, can be null
+     *
+     * @return CBOR_CONTENT_TYPE if the peer prefers it, JSON_CONTENT_TYPE otherwise
+     */
+    public static String negotiateContentType (String acceptHeader) {
+        if (acceptHeader == null) {
+            return JSON_CONTENT_TYPE;
+        }
+        String best = JSON_CONTENT_TYPE;
+        double bestQuality = 0;
+        for (String range : acceptHeader.split (",")) {
+            String[] parts = range.trim ().split (";");
+            String mediaType = parts[0].trim ().toLowerCase ();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim ();
+                if (param.startsWith ("q=")) {
+                    try {
+                        quality = Double.parseDouble (param.substring (2));
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            // ties are resolved in favour of the first listed type, q=0 means "not acceptable"
+            if ((mediaType.equals (CBOR_CONTENT_TYPE) || mediaType.equals (JSON_CONTENT_TYPE)) && quality > bestQuality) {
+                best = mediaType;
+                bestQuality = quality;
+            }
+        }
+        return best;
+    }
+
+    private static ObjectMapper mapperFor (String contentType) {
+        if (contentType != null && contentType.toLowerCase ().startsWith (CBOR_CONTENT_TYPE)) {
+            return cborMapper;
+        }
+        return mapper;
+    }
+
     /**
      * Takes a EC public key encoded in base 64 and decodes it
      *
@@ -141,6 +281,26 @@ public class Serialization {
     }
 
 
+    // initial transactions of many accounts, each one signed by the account it creates
+    public static class RegisterBatchRequest implements Signable, NonceContainer {
+
+        public List<Transaction> initialTransactions = new ArrayList<> ();
+        public String nonce;
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder ();
+            for (Transaction tx : initialTransactions) {
+                signable.append (tx.getSignable ());
+            }
+            return signable.append (nonce).toString ();
+        }
+
+        @Override public String getNonce () {
+            return nonce;
+        }
+    }
+
+
     ////////////////////////////////////////////////////////////////////////
     ////////////////////////////////////////////////////////////////////////
 
@@ -165,6 +325,26 @@ public class Serialization {
     }
 
 
+    public static class SendAmountBatchRequest implements Signable, NonceContainer {
+        // SENDING transactions, each one chained to the previous through its previousSignature
+        public List<Transaction> transactions = new ArrayList<> ();
+        public Ledger ledger;
+        public String nonce;
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder ();
+            for (Transaction transaction : transactions) {
+                signable.append (transaction.getSignable ());
+            }
+            return signable.append (ledger.getSignable ()).append (nonce).toString ();
+        }
+
+        @Override public String getNonce () {
+            return nonce;
+        }
+    }
+
+
     public static class ReceiveAmountRequest implements Signable, NonceContainer {
         //public
         public String pendingTransactionHash;
@@ -180,6 +360,27 @@ public class Serialization {
         }
     }
 
+    public static class ReceiveAmountBatchRequest implements Signable, NonceContainer {
+        // transactions.get(i) is the RECEIVING transaction that claims pendingTransactionHashes.get(i),
+        // each one chained to the previous through its previousSignature
+        public List<String> pendingTransactionHashes = new ArrayList<> ();
+        public List<Transaction> transactions = new ArrayList<> ();
+        public Ledger ledger;
+        public String nonce;
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder ();
+            for (int i = 0; i < transactions.size (); i++) {
+                signable.append (transactions.get (i).getSignable ()).append (pendingTransactionHashes.get (i));
+            }
+            return signable.append (ledger.getSignable ()).append (nonce).toString ();
+        }
+
+        @Override public String getNonce () {
+            return nonce;
+        }
+    }
+
     public static class WriteBackRequest implements Signable, NonceContainer {
         public Ledger ledger;
         public String nonce;
@@ -211,13 +412,43 @@ public class Serialization {
     }
 
 
+    // the accounts read by /checkAccounts and /audits, the nonce is returned in the single signed response
+    public static class BatchReadRequest implements Signable, NonceContainer {
+        public List<String> publicKeys = new ArrayList<> ();
+        public String nonce;
+
+        @Override @JsonIgnore public String getSignable () {
+            return String.join ("", publicKeys) + nonce;
+        }
+
+        @Override public String getNonce () {
+            return nonce;
+        }
+    }
+
+
+    public static class RegisterBatchResponse extends Response implements Signable {
+        public List<StatusMessage> statuses = new ArrayList<> (); // one per initial transaction, in request order
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder (super.getSignable ());
+            for (StatusMessage status : statuses) {
+                signable.append (status);
+            }
+            return signable.toString ();
+        }
+    }
+
+
     public static class CheckAccountResponse extends Response implements Signable, Readable {
         public int balance;
         public List<Transaction> pendingTransactions = new ArrayList<> ();
+        public int pendingCount;    // size of the whole inbox, pendingTransactions can be just a page of it
         public int timestamp;
 
         @Override @JsonIgnore public String getSignable () {
-            StringBuilder signable = new StringBuilder (super.getSignable ()).append (balance);
+            StringBuilder signable = new StringBuilder (super.getSignable ()).append (balance).append (timestamp)
+                    .append (pendingCount);
             for (Transaction tx : pendingTransactions) {
                 signable.append (tx.getSignable ());
             }
@@ -230,13 +461,27 @@ public class Serialization {
     }
 
 
+    // signed over the digest of the ledger, so a replica can cache the digest and only sign it with a new nonce
     public static class AuditResponse extends Response implements Signable, Readable {
-        public Ledger ledger;
+        // left out when null, so the replicas can splice in a ledger they encoded beforehand
+        @JsonInclude (JsonInclude.Include.NON_NULL) public Ledger ledger;
+        private String ledgerDigest;    // not on the wire, whoever reads the response computes it
+
+        // sets a ledger together with its digest, which must have been computed with getDigest
+        public void setLedger (Ledger ledger, String ledgerDigest) {
+            this.ledger = ledger;
+            this.ledgerDigest = ledgerDigest;
+        }
+
+        public static String getDigest (Ledger ledger) {
+            return Utils.generateHashBase64 (ledger.timestamp + ledger.getSignable ());
+        }
 
         @Override @JsonIgnore public String getSignable () {
             StringBuilder signable = new StringBuilder (super.getSignable ());
-            signable.append (ledger.timestamp)
-                    .append (ledger.getSignable ());
+            if (ledger != null) {   // no ledger on a failed entry of a batch audit
+                signable.append (ledgerDigest != null ? ledgerDigest : getDigest (ledger));
+            }
             return signable.toString ();
         }
 
@@ -245,6 +490,248 @@ public class Serialization {
         }
     }
 
+
+    // the transfers to an account committed after the sequence number the subscriber asked for
+    public static class NotificationResponse extends Response implements Signable {
+        public long sequence;       // of the newest notification, to ask for the next ones
+        public boolean resync;      // notifications were missed, transactions has all the ones the replica still has
+        public List<Transaction> transactions = new ArrayList<> ();
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder (super.getSignable ()).append (sequence).append (resync);
+            for (Transaction tx : transactions) {
+                signable.append (tx.getSignable ());
+            }
+            return signable.toString ();
+        }
+    }
+
+
+    // one entry per requested account, in request order, each with its own status
+    public static class CheckAccountsResponse extends Response implements Signable {
+        public List<CheckAccountResponse> accounts = new ArrayList<> ();
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder (super.getSignable ());
+            for (CheckAccountResponse account : accounts) {
+                signable.append (account.getSignable ());
+            }
+            return signable.toString ();
+        }
+    }
+
+
+    // one entry per requested account, in request order, each with its own status
+    public static class AuditsResponse extends Response implements Signable {
+        public List<AuditResponse> accounts = new ArrayList<> ();
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder (super.getSignable ());
+            for (AuditResponse account : accounts) {
+                signable.append (account.getSignable ());
+            }
+            return signable.toString ();
+        }
+    }
+
+    // a transaction with the proof that it is in the Merkle accumulator of its ledger, see MerkleProof
+    public static class InclusionProofResponse extends Response implements Signable, Readable {
+        public int timestamp;           // of the ledger
+        public Transaction transaction;
+        public int index;               // position of the transaction in the ledger
+        public int treeSize;            // number of transactions covered by the root
+        public String rootHash;
+        public List<String> path = new ArrayList<> ();
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder (super.getSignable ());
+            if (transaction != null) {  // no proof on an error
+                signable.append (timestamp)
+                        .append (transaction.getSignable ())
+                        .append (transaction.signature)
+                        .append (index)
+                        .append (treeSize)
+                        .append (rootHash);
+                for (String hash : path) {
+                    signable.append (hash);
+                }
+            }
+            return signable.toString ();
+        }
+
+        @Override public int getTimestamp () {
+            return timestamp;
+        }
+    }
+
+    // the head of a ledger, as summarized in the Merkle tree used by the anti-entropy between replicas
+    public static class SyncEntry implements Signable {
+        public String publicKey;
+        public int timestamp;
+        public String headHash;
+
+        @Override @JsonIgnore public String getSignable () {
+            return publicKey + timestamp + headHash;
+        }
+    }
+
+    // a node of the Merkle tree: the hashes of its children, or the ledger heads when it is a leaf
+    public static class SyncTreeResponse extends Response implements Signable {
+        public String prefix = "";
+        public boolean leaf;
+        public List<String> children = new ArrayList<> ();
+        public List<SyncEntry> entries = new ArrayList<> ();
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder (super.getSignable ()).append (prefix).append (leaf);
+            for (String child : children) {
+                signable.append (child);
+            }
+            for (SyncEntry entry : entries) {
+                signable.append (entry.getSignable ());
+            }
+            return signable.toString ();
+        }
+    }
+
+    // something the replicas sign, that stands on its own once a Byzantine quorum of them signed the signable
+    public abstract static class QuorumSigned implements Signable {
+        public Map<String, String> signatures = new TreeMap<> ();   // replica name -> signature of the signable
+
+        // how many of the replicas signed, each one counted once
+        public int countSignatures (List<ServerInfo> servers) {
+            int count = 0;
+            for (ServerInfo server : servers) {
+                String signature = signatures.get (server.serverName);
+                try {
+                    if (signature != null && Utils.checkSignature (signature, getSignable (), server.publicKeyBase64)) {
+                        count++;
+                    }
+                } catch (SignatureException | KeyException e) {
+                    // a malformed signature doesn't count
+                }
+            }
+            return count;
+        }
+
+        // the same Byzantine quorum the replicas ask for on the ECHOS header
+        public boolean isCertified (List<ServerInfo> servers) {
+            return countSignatures (servers) > (servers.size () + Utils.numberOfFaultsSupported (servers.size ())) / 2;
+        }
+    }
+
+    /**
+     * The head of a ledger agreed and signed by a Byzantine quorum of replicas. The transactions it covers are moved
+     * to the archive of the replicas, and the ledger is sent from the checkpoint on: the next transaction chains to
+     * headSignature, and the head hash of the ledger is computed from headHash instead of the archived transactions.
+     */
+    public static class Checkpoint extends QuorumSigned {
+        public String publicKey;
+        public int balance;
+        public int timestamp;
+        public int length;              // transactions covered, from the first one of the ledger
+        public String headSignature;    // of the last transaction covered
+        public String headHash;         // of the transactions covered, as computed by the replicas
+        public List<String> peaks = new ArrayList<> ();  // of the Merkle accumulator of the transactions covered
+
+        @Override @JsonIgnore public String getSignable () {
+            StringBuilder signable = new StringBuilder ().append (publicKey).append (balance).append (timestamp)
+                    .append (length).append (headSignature).append (headHash);
+            for (String peak : peaks) {
+                signable.append (peak);
+            }
+            return signable.toString ();
+        }
+    }
+
+    /**
+     * A transfer committed by a Byzantine quorum of replicas, each one signed it when acknowledging the commit.
+     * The sender hands it to the receiver, who checks it against the keys of the replicas, without reading its
+     * account, and then accepts the transfer.
+     */
+    public static class TransferReceipt extends QuorumSigned {
+        public Transaction transaction;
+
+        @Override @JsonIgnore public String getSignable () {
+            // the prefix keeps a receipt signature from being passed off as a signature on anything else
+            return "RECEIPT" + transaction.getSignable () + transaction.signature;
+        }
+    }
+
+    // opens a session of an account with a replica, see SessionKey
+    public static class SessionRequest implements Signable, NonceContainer {
+        public String publicKey;        // of the account, that signs the request
+        public String ephemeralKey;     // public ECDH key of the client for this session
+        public String nonce;
+
+        @Override @JsonIgnore public String getSignable () {
+            return publicKey + ephemeralKey + nonce;
+        }
+
+        @Override public String getNonce () {
+            return nonce;
+        }
+    }
+
+    public static class SessionResponse extends Response implements Signable {
+        public String sessionId;
+        public String ephemeralKey;     // public ECDH key of the replica for this session
+
+        @Override @JsonIgnore public String getSignable () {
+            return super.getSignable () + sessionId + ephemeralKey;
+        }
+    }
+
+    // a checkpoint proposed to, or installed on, a replica
+    public static class CheckpointRequest implements Signable, NonceContainer {
+        public Checkpoint checkpoint;
+        public String nonce;
+
+        @Override @JsonIgnore public String getSignable () {
+            return checkpoint.getSignable () + nonce;
+        }
+
+        @Override public String getNonce () {
+            return nonce;
+        }
+    }
+
+    // the signature of a checkpoint by a replica that has the same head
+    public static class CheckpointSignatureResponse extends Response implements Signable {
+        public String signature;
+
+        @Override @JsonIgnore public String getSignable () {
+            return super.getSignable () + signature;
+        }
+    }
+
+    // echo or ready of the reliable broadcast of a write between replicas, signed by the sender replica
+    public static class BroadcastMessage implements Signable {
+        public static final String ECHO = "ECHO";
+        public static final String READY = "READY";
+
+        public String type;
+        public String slot;         // the author of the write
+        public int timestamp;
+        public String digest;       // hash of the signable of the write
+        public String sender;       // name of the replica
+        public String echo = "";    // the signature of the write by the sender, only on echoes
+
+        @Override @JsonIgnore public String getSignable () {
+            return type + slot + timestamp + digest + sender + echo;
+        }
+    }
+
+    // the acknowledgement of a committed transfer, with the signature of the replica on its receipt
+    public static class SendAmountResponse extends Response implements Signable {
+        public String receiptSignature;
+
+        @Override @JsonIgnore public String getSignable () {
+            // without a receipt it is signed as a plain response, the errors and the batch writes answer with those
+            return receiptSignature == null ? super.getSignable () : super.getSignable () + receiptSignature;
+        }
+    }
+
     public static class SignedEchoResponse extends Response implements Signable {
         public String echo;
 
@@ -291,17 +778,131 @@ public class Serialization {
     }
 
 
+    /**
+     * On the wire a ledger is sent in a compact form: every distinct public key is written once in "keys" and the
+     * transactions in "entries" reference them by index. Readers get back the usual list of transactions, so the
+     * verification code never sees the compact form.
+     */
     public static class Ledger implements Signable {
         public int timestamp;
-        public List<Transaction> transactions = new ArrayList<> ();
+        public Checkpoint checkpoint;   // the transactions start after it, null while the ledger has none
+        @JsonIgnore public List<Transaction> transactions = new ArrayList<> ();
+
+        @JsonCreator public static Ledger fromKeyTable (@JsonProperty ("timestamp") int timestamp,
+                                                        @JsonProperty ("checkpoint") Checkpoint checkpoint,
+                                                        @JsonProperty ("keys") List<String> keys,
+                                                        @JsonProperty ("entries") List<CompactTransaction> entries) {
+            Ledger ledger = new Ledger ();
+            ledger.timestamp = timestamp;
+            ledger.checkpoint = checkpoint;
+            if (entries == null) {
+                return ledger;
+            }
+            for (CompactTransaction entry : entries) {
+                Transaction tx = new Transaction ();
+                tx.source = lookupKey (keys, entry.source);
+                tx.target = lookupKey (keys, entry.target);
+                tx.isSend = entry.isSend;
+                tx.amount = entry.amount;
+                tx.nonce = entry.nonce;
+                tx.previousSignature = entry.previousSignature;
+                tx.signature = entry.signature;
+                ledger.transactions.add (tx);
+            }
+            return ledger;
+        }
+
+        // the key table and the entries are built in one pass over the transactions
+        @JsonValue public CompactLedger toCompact () {
+            CompactLedger compact = new CompactLedger ();
+            compact.timestamp = timestamp;
+            compact.checkpoint = checkpoint;
+            compact.entries = new ArrayList<> (transactions.size ());
+            Map<String, Integer> indexes = new HashMap<> ();
+            for (Transaction tx : transactions) {
+                CompactTransaction entry = new CompactTransaction ();
+                entry.source = indexKey (tx.source, compact.keys, indexes);
+                entry.target = indexKey (tx.target, compact.keys, indexes);
+                entry.isSend = tx.isSend;
+                entry.amount = tx.amount;
+                entry.nonce = tx.nonce;
+                entry.previousSignature = tx.previousSignature;
+                entry.signature = tx.signature;
+                compact.entries.add (entry);
+            }
+            return compact;
+        }
 
         @Override @JsonIgnore public String getSignable () {
             StringBuilder signable = new StringBuilder ();
             signable.append (timestamp);
+            if (checkpoint != null) {
+                signable.append (checkpoint.getSignable ());
+            }
             for (Transaction tx : transactions) {
                 signable.append (tx.getSignable ());
             }
             return signable.toString ();
         }
+
+        // the public key of the account, null on an empty ledger
+        @JsonIgnore public String getOwner () {
+            if (checkpoint != null) {
+                return checkpoint.publicKey;
+            }
+            return transactions.isEmpty () ? null : transactions.get (0).source;
+        }
+
+        // the signature the next transaction of the ledger chains to
+        @JsonIgnore public String getHeadSignature () {
+            if (!transactions.isEmpty ()) {
+                return transactions.get (transactions.size () - 1).signature;
+            }
+            return checkpoint != null ? checkpoint.headSignature : null;
+        }
+
+        // keys are indexed in order of first appearance
+        private static int indexKey (String key, List<String> keys, Map<String, Integer> indexes) {
+            if (key == null) {
+                return -1;
+            }
+            Integer index = indexes.get (key);
+            if (index == null) {
+                index = keys.size ();
+                keys.add (key);
+                indexes.put (key, index);
+            }
+            return index;
+        }
+
+        private static String lookupKey (List<String> keys, int index) {
+            if (index == -1) {
+                return null;
+            }
+            if (keys == null || index < 0 || index >= keys.size ()) {
+                throw new IllegalArgumentException ("Ledger entry references a key that is not in the key table.");
+            }
+            return keys.get (index);
+        }
+    }
+
+    // the form a ledger is written in, read back by Ledger.fromKeyTable
+    @JsonPropertyOrder ({"timestamp", "checkpoint", "keys", "entries"})
+    public static class CompactLedger {
+        public int timestamp;
+        public Checkpoint checkpoint;
+        public List<String> keys = new ArrayList<> ();
+        public List<CompactTransaction> entries;
+    }
+
+    // a transaction whose source and target are indexes into the key table of the ledger that contains it
+    public static class CompactTransaction {
+        public int source;
+        public int target;
+        public boolean isSend;
+        public int amount;
+        public String nonce;
+        public String previousSignature;
+        public String signature;
     }
 }
@@ -0,0 +1,80 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.common;
+
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.exceptions.SignatureException;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+
+
+/**
+ * The key of a session between a client and a replica. It is agreed on with ephemeral ECDH keys, on a handshake that
+ * both sides sign with ECDSA, and from then on the requests and responses of the session are authenticated with an
+ * HMAC-SHA256 of their signable instead of an ECDSA signature. Transactions are still signed with ECDSA, so the
+ * ledgers can be checked by anyone.
+ */
+public class SessionKey {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String KEY_LABEL = "HDS-SESSION";
+
+    private final String sessionId;
+    private final SecretKeySpec key;
+
+    private SessionKey (String sessionId, byte[] key) {
+        this.sessionId = sessionId;
+        this.key = new SecretKeySpec (key, MAC_ALGORITHM);
+    }
+
+    /**
+     * Agrees on the key of a session, both sides get the same key from their own ephemeral key and the other's.
+     *
+     * @param sessionId        the id the replica gave the session, bound into the key
+     * @param ownEphemeralKey  the private ephemeral key of this side
+     * @param peerEphemeralKey the public ephemeral key of the other side
+     */
+    public static SessionKey agree (String sessionId, PrivateKey ownEphemeralKey, ECPublicKey peerEphemeralKey)
+            throws SignatureException {
+        try {
+            // the agreement of the provider only takes its own keys
+            PublicKey peerKey = KeyFactory.getInstance ("EC", "BC")
+                    .generatePublic (new X509EncodedKeySpec (peerEphemeralKey.getEncoded ()));
+            KeyAgreement agreement = KeyAgreement.getInstance ("ECDH", "BC");
+            agreement.init (ownEphemeralKey);
+            agreement.doPhase (peerKey, true);
+            // the shared secret isn't used as is, the key is derived from it for this session
+            Mac mac = Mac.getInstance (MAC_ALGORITHM);
+            mac.init (new SecretKeySpec (agreement.generateSecret (), MAC_ALGORITHM));
+            return new SessionKey (sessionId, mac.doFinal ((KEY_LABEL + sessionId).getBytes (StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidKeyException | InvalidKeySpecException e) {
+            throw new SignatureException ("Couldn't agree on a session key. " + e.getMessage ());
+        }
+    }
+
+    public String getSessionId () {
+        return sessionId;
+    }
+
+    // the authentication code of a signable, in base 64, in place of its signature
+    public String mac (String signable) {
+        try {
+            Mac mac = Mac.getInstance (MAC_ALGORITHM);
+            mac.init (key);
+            return Base64.getEncoder ().encodeToString (mac.doFinal (signable.getBytes (StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            return null;
+        }
+    }
+
+    public boolean checkMac (String mac, String signable) {
+        String expected = mac (signable);
+        return mac != null && expected != null &&
+                MessageDigest.isEqual (expected.getBytes (StandardCharsets.UTF_8), mac.getBytes (StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,188 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Compression;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Bounded, LRU evicted cache of the state of the most used accounts of this replica.
+ * Writers put the new state in the same critical section where they commit it to the database, and invalidate it
+ * when they roll back, so a cached state is never older than what is persisted.
+ * The ledgers of the most audited accounts are cached along, with their digest, and dropped on every change of the
+ * account.
+ */
+public class AccountCache {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_AUDIT_CAPACITY = 1000;
+
+    // the ledger of an account as it is sent on the audits, and the digest their responses are signed over
+    public static class Audit {
+        private final Serialization.Ledger ledger;
+        private final String digest;
+        // the ledger encoded in each wire format, and compressed, once for all the responses that ask for it
+        private final Map<String, byte[]> encoded = new HashMap<>();
+        private final Map<String, Compression.Segment> deflated = new HashMap<>();
+
+        public Audit(Serialization.Ledger ledger) {
+            this.ledger = ledger;
+            this.digest = Serialization.AuditResponse.getDigest(ledger);
+        }
+
+        public synchronized byte[] getEncodedLedger(String contentType) throws JsonProcessingException {
+            byte[] bytes = encoded.get(contentType);
+            if (bytes == null) {
+                bytes = Serialization.serialize(ledger, contentType);
+                encoded.put(contentType, bytes);
+            }
+            return bytes;
+        }
+
+        public synchronized Compression.Segment getDeflatedLedger(String contentType) throws JsonProcessingException {
+            Compression.Segment segment = deflated.get(contentType);
+            if (segment == null) {
+                segment = Compression.deflateSegment(getEncodedLedger(contentType));
+                deflated.put(contentType, segment);
+            }
+            return segment;
+        }
+
+        // shared by all the responses, must not be changed
+        public Serialization.Ledger getLedger() {
+            return ledger;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+    }
+
+    private final int capacity;
+    private final int auditCapacity;
+    private final LinkedHashMap<String, AccountState> entries;
+    private final LinkedHashMap<String, Audit> audits;
+    // bumped on every change, a state loaded from the database before a change must not be cached
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long auditHits = 0;
+    private long auditMisses = 0;
+
+    public AccountCache(int capacity) {
+        this(capacity, DEFAULT_AUDIT_CAPACITY);
+    }
+
+    public AccountCache(int capacity, int auditCapacity) {
+        this.capacity = capacity;
+        this.auditCapacity = auditCapacity;
+        this.audits = new LinkedHashMap<String, Audit>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Audit> eldest) {
+                return size() > AccountCache.this.auditCapacity;
+            }
+        };
+        this.entries = new LinkedHashMap<String, AccountState>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, AccountState> eldest) {
+                if (size() > AccountCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param publicKeyBase64 the key of the account
+     * @return the cached state, or null on a miss
+     */
+    public synchronized AccountState get(String publicKeyBase64) {
+        AccountState state = entries.get(publicKeyBase64);
+        if (state == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return state;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a state read from the database, unless the account changed since the read started.
+     *
+     * @param state      the state read
+     * @param generation the value of getGeneration() before the read
+     */
+    public synchronized void putIfUnchanged(AccountState state, long generation) {
+        if (this.generation == generation) {
+            entries.put(state.getPublicKeyBase64(), state);
+        }
+    }
+
+    /**
+     * @param publicKeyBase64 the key of the account
+     * @param timestamp       the timestamp of the current state of the account
+     * @return the cached ledger of the account at that timestamp, or null on a miss
+     */
+    public synchronized Audit getAudit(String publicKeyBase64, int timestamp) {
+        Audit audit = audits.get(publicKeyBase64);
+        if (audit == null || audit.ledger.timestamp != timestamp) {
+            auditMisses++;
+            return null;
+        }
+        auditHits++;
+        return audit;
+    }
+
+    /**
+     * Caches a ledger read from the database, unless the account changed since the read started.
+     *
+     * @param generation the value of getGeneration() before the read
+     */
+    public synchronized void putAuditIfUnchanged(String publicKeyBase64, Audit audit, long generation) {
+        if (this.generation == generation) {
+            audits.put(publicKeyBase64, audit);
+        }
+    }
+
+    // called by writers, with the new state they just committed
+    public synchronized void put(AccountState state) {
+        generation++;
+        entries.put(state.getPublicKeyBase64(), state);
+        audits.remove(state.getPublicKeyBase64());
+    }
+
+    public synchronized void invalidate(String publicKeyBase64) {
+        generation++;
+        entries.remove(publicKeyBase64);
+        audits.remove(publicKeyBase64);
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        audits.clear();
+    }
+
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", entries.size());
+        map.put("capacity", capacity);
+        map.put("hits", hits);
+        map.put("misses", misses);
+        map.put("evictions", evictions);
+        map.put("hitRate", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        map.put("audits", audits.size());
+        map.put("auditCapacity", auditCapacity);
+        map.put("auditHits", auditHits);
+        map.put("auditMisses", auditMisses);
+        return map;
+    }
+}
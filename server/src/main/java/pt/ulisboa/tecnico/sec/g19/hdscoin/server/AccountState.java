@@ -0,0 +1,60 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import java.security.interfaces.ECPublicKey;
+
+
+/**
+ * Immutable snapshot of the state of an account as persisted on this replica.
+ */
+public final class AccountState {
+    private final int id;
+    private final String publicKeyBase64;
+    private final ECPublicKey publicKey;
+    private final int balance;
+    private final int timestamp;
+    private final String headHash;              // hash of the whole transaction chain, as in VerifiableLedger
+    private final String latestTransactionHash; // signature of the newest transaction of the ledger
+
+    public AccountState(int id, String publicKeyBase64, ECPublicKey publicKey, int balance, int timestamp,
+                        String headHash, String latestTransactionHash) {
+        this.id = id;
+        this.publicKeyBase64 = publicKeyBase64;
+        this.publicKey = publicKey;
+        this.balance = balance;
+        this.timestamp = timestamp;
+        this.headHash = headHash;
+        this.latestTransactionHash = latestTransactionHash;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getPublicKeyBase64() {
+        return publicKeyBase64;
+    }
+
+    public ECPublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    public int getBalance() {
+        return balance;
+    }
+
+    public int getTimestamp() {
+        return timestamp;
+    }
+
+    public String getHeadHash() {
+        return headHash;
+    }
+
+    public String getLatestTransactionHash() {
+        return latestTransactionHash;
+    }
+
+    @Override public String toString() {
+        return "AccountState{" + "id=" + id + ", balance=" + balance + ", timestamp=" + timestamp + '}';
+    }
+}
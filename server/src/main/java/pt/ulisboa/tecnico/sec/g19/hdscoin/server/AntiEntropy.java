@@ -0,0 +1,318 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Compression;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.ServerInfo;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Utils;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Background sync of the ledgers between the replicas, so a replica that missed writes catches up on its own instead
+ * of waiting for a client to write back the accounts it is behind on.
+ * Every period the replica compares the Merkle tree of its ledger heads with the one of the next peer, going down
+ * only into the subtrees whose hashes differ, to find the accounts it doesn't have or has at an older timestamp.
+ * A single peer may be Byzantine, so the head of each of those accounts is then asked to the other peers, and the
+ * ledger is only pulled, from the first peer, once more than f peers reported the same head.
+ * The bytes received are capped by a token bucket.
+ */
+public class AntiEntropy {
+    public static final long DEFAULT_BYTES_PER_SECOND = 64 * 1024;
+    // ledgers pulled in each /audits request
+    private static final int PULL_CHUNK_SIZE = 32;
+    private static final int PEER_TIMEOUT_MILLIS = 2000;
+
+    public interface Replica {
+        // the tree of the ledger heads of this replica, as served on /syncTree
+        LedgerMerkleTree getSyncTree() throws Exception;
+
+        // catches up with the ledgers pulled from a peer, that must have the heads given, returns how many accounts
+        // changed
+        int repair(List<Serialization.Ledger> ledgers, Map<String, Serialization.SyncEntry> heads) throws Exception;
+    }
+
+    private final String serverName;
+    private final List<ServerInfo> peers = new ArrayList<>();
+    private final int faults;
+    private final Replica replica;
+    private final long periodMillis;
+    private final TokenBucket bandwidth;
+    private final Logger log;
+    private volatile boolean running = true;
+    private int nextPeer = 0;
+
+    private long rounds = 0;
+    private long treeRequests = 0;
+    private long accountsPulled = 0;
+    private long accountsRepaired = 0;
+    private long accountsUnconfirmed = 0;
+    private long bytesReceived = 0;
+    private long failedRounds = 0;
+
+    public AntiEntropy(String serverName, List<ServerInfo> servers, Replica replica, long periodMillis,
+                       long bytesPerSecond, Logger log) {
+        this.serverName = serverName;
+        for (ServerInfo server : servers) {
+            if (!server.serverName.equals(serverName)) {
+                peers.add(server);
+            }
+        }
+        this.faults = Utils.numberOfFaultsSupported(servers.size());
+        this.replica = replica;
+        this.periodMillis = periodMillis;
+        this.bandwidth = new TokenBucket(bytesPerSecond);
+        this.log = log;
+    }
+
+    public void start() {
+        Thread worker = new Thread(this::run, serverName + "-anti-entropy");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // the round in progress, if any, still finishes
+    public void stop() {
+        running = false;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!running || peers.isEmpty()) {
+                continue;
+            }
+            ServerInfo peer = peers.get(nextPeer);
+            nextPeer = (nextPeer + 1) % peers.size();
+            try {
+                syncWith(peer);
+                recordRound(false);
+            } catch (Exception e) {
+                // the peer may be down or Byzantine, the next round goes to another one
+                log.log(Level.WARNING, "Anti-entropy with " + peer.serverName + " failed. " + e);
+                recordRound(true);
+            }
+        }
+    }
+
+    /**
+     * Catches up with the ledgers of a peer.
+     *
+     * @param peer the peer
+     * @return how many accounts changed on this replica
+     */
+    public int syncWith(ServerInfo peer) throws Exception {
+        LedgerMerkleTree localTree = replica.getSyncTree();
+        // the heads of the peer that are ahead of the local ones, by account
+        Map<String, Serialization.SyncEntry> ahead = new LinkedHashMap<>();
+
+        // depth first over the nodes whose hashes differ, a request per level for each account that differs
+        Deque<String> nodes = new ArrayDeque<>();
+        nodes.push("");
+        while (!nodes.isEmpty()) {
+            String node = nodes.pop();
+            Serialization.SyncTreeResponse remote = fetchNode(peer, node);
+            if (remote.leaf) {
+                for (Serialization.SyncEntry entry : remote.entries) {
+                    if (isAhead(localTree, entry)) {
+                        ahead.put(entry.publicKey, entry);
+                    }
+                }
+                continue;
+            }
+            List<String> localChildren = localTree.getChildHashes(node);
+            if (node.length() >= LedgerMerkleTree.MAX_DEPTH || remote.children.size() != localChildren.size()) {
+                throw new IOException("Malformed tree node from " + peer.serverName);
+            }
+            for (int i = remote.children.size() - 1; i >= 0; i--) {
+                if (!remote.children.get(i).equals(localChildren.get(i))) {
+                    nodes.push(node + LedgerMerkleTree.DIGITS.charAt(i));
+                }
+            }
+        }
+        if (ahead.isEmpty()) {
+            return 0;
+        }
+
+        Map<String, Serialization.SyncEntry> heads = confirmHeads(peer, ahead);
+        recordUnconfirmed(ahead.size() - heads.size());
+        List<String> behind = new ArrayList<>(heads.keySet());
+        if (behind.isEmpty()) {
+            return 0;
+        }
+        List<Serialization.Ledger> ledgers = new ArrayList<>();
+        for (int from = 0; from < behind.size(); from += PULL_CHUNK_SIZE) {
+            ledgers.addAll(pullLedgers(peer, behind.subList(from, Math.min(behind.size(), from + PULL_CHUNK_SIZE))));
+        }
+        int repaired = replica.repair(ledgers, heads);
+        recordRepair(ledgers.size(), repaired);
+        log.log(Level.INFO, "Anti-entropy with " + peer.serverName + " pulled " + ledgers.size() +
+                " ledgers and repaired " + repaired + " accounts.");
+        return repaired;
+    }
+
+    // equal timestamps with different heads are a write not completed by a majority, the write-back of the next
+    // reader settles those
+    private static boolean isAhead(LedgerMerkleTree localTree, Serialization.SyncEntry entry) {
+        Serialization.SyncEntry local = localTree.getEntry(entry.publicKey);
+        return local == null || entry.timestamp > local.timestamp;
+    }
+
+    /**
+     * Asks the other peers for the heads of the accounts the first one is ahead on, each at the full path of the
+     * account so a single request per account and peer is enough, until more than f peers, the first one included,
+     * reported each of them. A peer that fails is skipped.
+     *
+     * @return the heads that more than f peers reported, by account
+     */
+    private Map<String, Serialization.SyncEntry> confirmHeads(ServerInfo first,
+                                                             Map<String, Serialization.SyncEntry> ahead) {
+        Map<String, Integer> votes = new HashMap<>();
+        for (String publicKey : ahead.keySet()) {
+            votes.put(publicKey, 1);
+        }
+        for (ServerInfo peer : peers) {
+            if (peer == first) {
+                continue;
+            }
+            List<String> unconfirmed = new ArrayList<>();
+            for (Map.Entry<String, Integer> vote : votes.entrySet()) {
+                if (vote.getValue() <= faults) {
+                    unconfirmed.add(vote.getKey());
+                }
+            }
+            if (unconfirmed.isEmpty()) {
+                break;
+            }
+            try {
+                for (String publicKey : unconfirmed) {
+                    Serialization.SyncEntry head = ahead.get(publicKey);
+                    for (Serialization.SyncEntry entry : fetchNode(peer, LedgerMerkleTree.getPath(publicKey)).entries) {
+                        if (entry.publicKey.equals(publicKey) && entry.timestamp == head.timestamp &&
+                                entry.headHash.equals(head.headHash)) {
+                            votes.merge(publicKey, 1, Integer::sum);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Failed to confirm heads with " + peer.serverName + ". " + e);
+            }
+        }
+        Map<String, Serialization.SyncEntry> confirmed = new LinkedHashMap<>();
+        for (Map.Entry<String, Serialization.SyncEntry> entry : ahead.entrySet()) {
+            if (votes.get(entry.getKey()) > faults) {
+                confirmed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return confirmed;
+    }
+
+    private Serialization.SyncTreeResponse fetchNode(ServerInfo peer, String node) throws Exception {
+        String nonce = Utils.randomNonce();
+        HttpRequest request = newRequest(HttpRequest.get(peer.serverUrl.toString() + "/syncTree", true,
+                Serialization.PREFIX_PARAMETER_NAME, node));
+        request.header(Serialization.NONCE_HEADER_NAME, nonce);
+        Serialization.SyncTreeResponse response = receive(peer, request, nonce, Serialization.SyncTreeResponse.class);
+        if (!node.equals(response.prefix)) {
+            throw new IOException("Tree node " + response.prefix + " received instead of " + node);
+        }
+        recordTreeRequest();
+        return response;
+    }
+
+    // only the ledgers that were read successfully, the accounts left behind are retried on a later round
+    private List<Serialization.Ledger> pullLedgers(ServerInfo peer, List<String> publicKeys) throws Exception {
+        Serialization.BatchReadRequest batchRead = new Serialization.BatchReadRequest();
+        batchRead.publicKeys = new ArrayList<>(publicKeys);
+        batchRead.nonce = Utils.randomNonce();
+        HttpRequest request = newRequest(HttpRequest.post(peer.serverUrl.toString() + "/audits"));
+        request.contentType(Serialization.JSON_CONTENT_TYPE);
+        request.send(Serialization.serialize(batchRead, Serialization.JSON_CONTENT_TYPE));
+        Serialization.AuditsResponse response = receive(peer, request, batchRead.nonce, Serialization.AuditsResponse.class);
+        if (response.accounts.size() != publicKeys.size()) {
+            throw new IOException("Wrong number of ledgers from " + peer.serverName);
+        }
+        List<Serialization.Ledger> ledgers = new ArrayList<>();
+        for (Serialization.AuditResponse account : response.accounts) {
+            if (account.status == Serialization.StatusMessage.SUCCESS && account.ledger != null &&
+                    account.ledger.getOwner() != null) {
+                ledgers.add(account.ledger);
+            }
+        }
+        return ledgers;
+    }
+
+    private static HttpRequest newRequest(HttpRequest request) {
+        request.connectTimeout(PEER_TIMEOUT_MILLIS);
+        request.readTimeout(PEER_TIMEOUT_MILLIS);
+        request.accept(Serialization.JSON_CONTENT_TYPE);
+        request.header(Compression.ACCEPT_ENCODING_HEADER_NAME, Compression.DEFLATE);
+        return request;
+    }
+
+    // reads a response signed by the peer, with the nonce that was sent, paying its bytes to the token bucket
+    private <T extends Serialization.Response> T receive(ServerInfo peer, HttpRequest request, String nonce,
+                                                         Class<T> valueType) throws Exception {
+        int code = request.code();
+        byte[] wireBody = request.bytes();
+        recordBytes(wireBody.length);
+        bandwidth.take(wireBody.length);
+        if (code != 200) {
+            throw new IOException(peer.serverName + " answered with " + code);
+        }
+        byte[] body = Compression.decode(wireBody, request.header(Compression.CONTENT_ENCODING_HEADER_NAME),
+                Compression.MAX_DECODED_LENGTH);
+        T response = Serialization.parse(body, request.contentType(), valueType);
+        String signature = request.header(Serialization.SIGNATURE_HEADER_NAME);
+        if (signature == null || !nonce.equals(response.nonce) ||
+                !Utils.checkSignature(signature, response.getSignable(), peer.publicKeyBase64)) {
+            throw new IOException("Response not signed by " + peer.serverName);
+        }
+        return response;
+    }
+
+    private synchronized void recordRound(boolean failed) {
+        rounds++;
+        if (failed) {
+            failedRounds++;
+        }
+    }
+
+    private synchronized void recordTreeRequest() {
+        treeRequests++;
+    }
+
+    private synchronized void recordBytes(long bytes) {
+        bytesReceived += bytes;
+    }
+
+    private synchronized void recordUnconfirmed(int unconfirmed) {
+        accountsUnconfirmed += unconfirmed;
+    }
+
+    private synchronized void recordRepair(int pulled, int repaired) {
+        accountsPulled += pulled;
+        accountsRepaired += repaired;
+    }
+
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("periodMillis", periodMillis);
+        map.put("rounds", rounds);
+        map.put("failedRounds", failedRounds);
+        map.put("treeRequests", treeRequests);
+        map.put("accountsPulled", accountsPulled);
+        map.put("accountsRepaired", accountsRepaired);
+        map.put("accountsUnconfirmed", accountsUnconfirmed);
+        map.put("bytesReceived", bytesReceived);
+        return map;
+    }
+}
@@ -0,0 +1,207 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import com.github.kevinsawicki.http.HttpRequest;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Compression;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.ServerInfo;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Utils;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Background agreement on checkpoints of the ledgers, so their history stops growing on the replicas.
+ * Every period the replica proposes a checkpoint of the head of each ledger it is responsible for that grew enough
+ * since its last checkpoint. A peer signs it only if its own copy of the ledger has the very same head, and once a
+ * Byzantine quorum signed it the checkpoint is installed on every replica, which archives the transactions it covers.
+ */
+public class Checkpointer {
+    private static final int PEER_TIMEOUT_MILLIS = 2000;
+
+    public interface Replica {
+        // the checkpoints this replica proposes, of the ledgers it is responsible for
+        List<Serialization.Checkpoint> getCandidates() throws Exception;
+
+        // the signature of this replica on the checkpoint, null if its copy of the ledger has another head
+        String sign(Serialization.Checkpoint checkpoint) throws Exception;
+
+        // installs a checkpoint signed by a quorum
+        void install(Serialization.Checkpoint checkpoint) throws Exception;
+    }
+
+    private final String serverName;
+    private final List<ServerInfo> servers;
+    private final List<ServerInfo> peers = new ArrayList<>();
+    private final Replica replica;
+    private final long periodMillis;
+    private final Logger log;
+    private volatile boolean running = true;
+
+    private long rounds = 0;
+    private long proposed = 0;
+    private long certified = 0;
+    private long failedRounds = 0;
+
+    public Checkpointer(String serverName, List<ServerInfo> servers, Replica replica, long periodMillis, Logger log) {
+        this.serverName = serverName;
+        this.servers = servers;
+        for (ServerInfo server : servers) {
+            if (!server.serverName.equals(serverName)) {
+                peers.add(server);
+            }
+        }
+        this.replica = replica;
+        this.periodMillis = periodMillis;
+        this.log = log;
+    }
+
+    public void start() {
+        Thread worker = new Thread(this::run, serverName + "-checkpointer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // the round in progress, if any, still finishes
+    public void stop() {
+        running = false;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(periodMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (!running) {
+                return;
+            }
+            try {
+                checkpoint();
+                recordRound(false);
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Checkpoint round failed. " + e);
+                recordRound(true);
+            }
+        }
+    }
+
+    /**
+     * Proposes the checkpoints of the ledgers this replica is responsible for.
+     *
+     * @return how many of them were signed by a quorum and installed
+     */
+    public int checkpoint() throws Exception {
+        int installed = 0;
+        for (Serialization.Checkpoint checkpoint : replica.getCandidates()) {
+            recordProposal(false);
+            if (propose(checkpoint)) {
+                recordProposal(true);
+                installed++;
+            }
+        }
+        if (installed > 0) {
+            log.log(Level.INFO, "Installed " + installed + " checkpoints.");
+        }
+        return installed;
+    }
+
+    private boolean propose(Serialization.Checkpoint checkpoint) throws Exception {
+        String signature = replica.sign(checkpoint);
+        if (signature == null) {
+            return false;
+        }
+        checkpoint.signatures.put(serverName, signature);
+        for (ServerInfo peer : peers) {
+            if (checkpoint.isCertified(servers)) {
+                break;
+            }
+            try {
+                checkpoint.signatures.put(peer.serverName, requestSignature(peer, checkpoint));
+            } catch (Exception e) {
+                // a peer that is down, behind or ahead doesn't sign, the others may still make a quorum
+                log.log(Level.INFO, "No checkpoint signature from " + peer.serverName + ". " + e);
+            }
+        }
+        if (!checkpoint.isCertified(servers)) {
+            return false;
+        }
+        for (ServerInfo peer : peers) {
+            try {
+                send(peer, "/checkpoint/install", checkpoint, Serialization.Response.class);
+            } catch (Exception e) {
+                // a peer that misses the install gets the checkpoint with the next ledger it is sent
+                log.log(Level.INFO, "Checkpoint not installed on " + peer.serverName + ". " + e);
+            }
+        }
+        replica.install(checkpoint);
+        return true;
+    }
+
+    private String requestSignature(ServerInfo peer, Serialization.Checkpoint checkpoint) throws Exception {
+        Serialization.CheckpointSignatureResponse response = send(peer, "/checkpoint/sign", checkpoint,
+                Serialization.CheckpointSignatureResponse.class);
+        if (response.signature == null ||
+                !Utils.checkSignature(response.signature, checkpoint.getSignable(), peer.publicKeyBase64)) {
+            throw new IOException("Bad checkpoint signature from " + peer.serverName);
+        }
+        return response.signature;
+    }
+
+    // sends the checkpoint and reads the response signed by the peer, with the nonce that was sent
+    private <T extends Serialization.Response> T send(ServerInfo peer, String route, Serialization.Checkpoint checkpoint,
+                                                      Class<T> valueType) throws Exception {
+        Serialization.CheckpointRequest checkpointRequest = new Serialization.CheckpointRequest();
+        checkpointRequest.checkpoint = checkpoint;
+        checkpointRequest.nonce = Utils.randomNonce();
+        HttpRequest request = HttpRequest.post(peer.serverUrl.toString() + route);
+        request.connectTimeout(PEER_TIMEOUT_MILLIS);
+        request.readTimeout(PEER_TIMEOUT_MILLIS);
+        request.accept(Serialization.JSON_CONTENT_TYPE);
+        request.header(Compression.ACCEPT_ENCODING_HEADER_NAME, Compression.DEFLATE);
+        request.contentType(Serialization.JSON_CONTENT_TYPE);
+        request.send(Serialization.serialize(checkpointRequest, Serialization.JSON_CONTENT_TYPE));
+
+        int code = request.code();
+        byte[] body = Compression.decode(request.bytes(), request.header(Compression.CONTENT_ENCODING_HEADER_NAME),
+                Compression.MAX_DECODED_LENGTH);
+        T response = Serialization.parse(body, request.contentType(), valueType);
+        String signature = request.header(Serialization.SIGNATURE_HEADER_NAME);
+        if (signature == null || !checkpointRequest.nonce.equals(response.nonce) ||
+                !Utils.checkSignature(signature, response.getSignable(), peer.publicKeyBase64)) {
+            throw new IOException("Response not signed by " + peer.serverName);
+        }
+        if (code != 200) {
+            throw new IOException(peer.serverName + " answered with " + response.status);
+        }
+        return response;
+    }
+
+    private synchronized void recordRound(boolean failed) {
+        rounds++;
+        if (failed) {
+            failedRounds++;
+        }
+    }
+
+    private synchronized void recordProposal(boolean wasCertified) {
+        if (wasCertified) {
+            certified++;
+        } else {
+            proposed++;
+        }
+    }
+
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("periodMillis", periodMillis);
+        map.put("rounds", rounds);
+        map.put("failedRounds", failedRounds);
+        map.put("proposed", proposed);
+        map.put("certified", certified);
+        return map;
+    }
+}
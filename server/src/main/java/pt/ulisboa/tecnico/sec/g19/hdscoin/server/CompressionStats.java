@@ -0,0 +1,79 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Per-route counters of how many bytes were sent and received on the wire versus how many they decode to.
+ */
+public class CompressionStats {
+
+    private final Map<String, RouteStats> routes = new ConcurrentHashMap<> ();
+
+    public void recordRequest (String route, long wireBytes, long decodedBytes) {
+        RouteStats stats = get (route);
+        stats.requests.incrementAndGet ();
+        stats.requestWireBytes.addAndGet (wireBytes);
+        stats.requestBytes.addAndGet (decodedBytes);
+        if (wireBytes != decodedBytes) {
+            stats.compressedRequests.incrementAndGet ();
+        }
+    }
+
+    public void recordResponse (String route, long bytes, long wireBytes) {
+        RouteStats stats = get (route);
+        stats.responses.incrementAndGet ();
+        stats.responseBytes.addAndGet (bytes);
+        stats.responseWireBytes.addAndGet (wireBytes);
+        if (wireBytes != bytes) {
+            stats.compressedResponses.incrementAndGet ();
+        }
+    }
+
+    public Map<String, Object> toMap () {
+        Map<String, Object> map = new TreeMap<> ();
+        for (Map.Entry<String, RouteStats> entry : routes.entrySet ()) {
+            map.put (entry.getKey (), entry.getValue ().toMap ());
+        }
+        return map;
+    }
+
+    private RouteStats get (String route) {
+        return routes.computeIfAbsent (route, r -> new RouteStats ());
+    }
+
+    private static class RouteStats {
+        final AtomicLong requests = new AtomicLong ();
+        final AtomicLong compressedRequests = new AtomicLong ();
+        final AtomicLong requestWireBytes = new AtomicLong ();
+        final AtomicLong requestBytes = new AtomicLong ();
+        final AtomicLong responses = new AtomicLong ();
+        final AtomicLong compressedResponses = new AtomicLong ();
+        final AtomicLong responseBytes = new AtomicLong ();
+        final AtomicLong responseWireBytes = new AtomicLong ();
+
+        Map<String, Object> toMap () {
+            Map<String, Object> map = new LinkedHashMap<> ();
+            map.put ("requests", requests.get ());
+            map.put ("compressedRequests", compressedRequests.get ());
+            map.put ("requestBytes", requestBytes.get ());
+            map.put ("requestWireBytes", requestWireBytes.get ());
+            map.put ("requestRatio", ratio (requestWireBytes.get (), requestBytes.get ()));
+            map.put ("responses", responses.get ());
+            map.put ("compressedResponses", compressedResponses.get ());
+            map.put ("responseBytes", responseBytes.get ());
+            map.put ("responseWireBytes", responseWireBytes.get ());
+            map.put ("responseRatio", ratio (responseWireBytes.get (), responseBytes.get ()));
+            return map;
+        }
+
+        // wire size over decoded size, 1.0 means nothing was saved
+        private static double ratio (long wire, long decoded) {
+            return decoded == 0 ? 1.0 : (double) wire / decoded;
+        }
+    }
+}
@@ -26,6 +26,10 @@ public class Database {
             Statement statement = conn.createStatement();
             statement.setQueryTimeout(30);  // set timeout to 30 sec.
 
+            statement.executeUpdate("drop table if exists checkpoint");
+            statement.executeUpdate("drop table if exists tx_archive");
+            statement.executeUpdate("drop table if exists merkle_node");
+            statement.executeUpdate("drop table if exists pending_inbox");
             statement.executeUpdate("drop table if exists tx");
             statement.executeUpdate("drop table if exists ledger");
 
@@ -35,6 +39,9 @@ public class Database {
                     "balance integer not null, " +
                     "timestamp integer not null)");
 
+            // looked up on every request by public key, and a key can only have one ledger
+            statement.executeUpdate("create unique index ledger_public_key on ledger(public_key)");
+
             statement.executeUpdate("create table tx (" + // "transaction" is a reserved SQLite keyword
                     "id integer primary key, " +
                     "ledger_id integer not null, " +
@@ -49,6 +56,48 @@ public class Database {
                     "foreign key (other_id) references ledger(id), " +
                     "foreign key (prev_hash) references tx(hash))"); // sqlite does not support booleans
 
+            statement.executeUpdate("create index tx_hash on tx(hash)");
+            statement.executeUpdate("create index tx_ledger_id on tx(ledger_id)");
+
+            // pending sending transactions, by the ledger that can receive them
+            statement.executeUpdate("create table pending_inbox (" +
+                    "tx_id integer primary key, " +
+                    "target_id integer not null, " +
+                    "foreign key (tx_id) references tx(id), " +
+                    "foreign key (target_id) references ledger(id))");
+            statement.executeUpdate("create index pending_inbox_target_id on pending_inbox(target_id)");
+
+            // the nodes of the complete subtrees of the Merkle accumulator of each ledger, see MerkleAccumulator
+            statement.executeUpdate("create table merkle_node (" +
+                    "ledger_id integer not null, " +
+                    "level integer not null, " +
+                    "idx integer not null, " +
+                    "hash text not null, " +
+                    "primary key (ledger_id, level, idx), " +
+                    "foreign key (ledger_id) references ledger(id))");
+            statement.executeUpdate("create index merkle_node_hash on merkle_node(ledger_id, hash)");
+
+            // the latest quorum-signed checkpoint of each ledger, see LedgerCheckpoint
+            statement.executeUpdate("create table checkpoint (" +
+                    "ledger_id integer primary key, " +
+                    "length integer not null, " +
+                    "head_signature text not null, " +
+                    "body text not null, " + // the checkpoint with its signatures, as sent to the clients
+                    "foreign key (ledger_id) references ledger(id))");
+
+            // the transactions covered by a checkpoint, out of the way of the reads and writes of the ledgers
+            statement.executeUpdate("create table tx_archive (" +
+                    "id integer primary key, " +
+                    "ledger_id integer not null, " +
+                    "other_id integer not null, " +
+                    "is_send integer not null, " +
+                    "amount integer not null, " +
+                    "nonce text not null, " +
+                    "hash text not null, " +
+                    "prev_hash text, " +
+                    "pending integer not null)");
+            statement.executeUpdate("create index tx_archive_hash on tx_archive(hash)");
+
             conn.commit();
         } catch (SQLException ex) {
             throw ex;
@@ -0,0 +1,153 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The writes authors got a signed echo for, and are expected to commit next. There is a slot per author and
+ * timestamp, so an author can have several writes in flight, but only one write for each timestamp.
+ * Entries expire after a time to live, so an author that never commits isn't locked out of writing forever, and the
+ * number of entries is capped. Expiry is done in time buckets: each entry is indexed by the bucket of its expiry time,
+ * and only the buckets that are already in the past are swept.
+ */
+public class EchoStore {
+    public static final int DEFAULT_CAPACITY = 100000;
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+    private static final long BUCKET_MILLIS = 1000;
+
+    public enum Result {ADDED, REPEATED, CONFLICT, FULL}
+
+    private static final class Entry {
+        private final String signable;
+        private final long expiresAt;
+
+        private Entry(String signable, long expiresAt) {
+            this.signable = signable;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int capacity;
+    private final long ttlMillis;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // expiry bucket -> slots whose entry expires in it, a slot can be left here after its entry is gone
+    private final ConcurrentSkipListMap<Long, Set<String>> buckets = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong added = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public EchoStore(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Records the write an author got a signed echo for.
+     *
+     * @return ADDED, REPEATED if the same write was already recorded, CONFLICT if the author has another write
+     * recorded with this timestamp, or FULL if there is no room for more entries
+     */
+    public Result add(String author, int timestamp, String signable) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Result[] result = new Result[1];
+        entries.compute(slot(author, timestamp), (slot, entry) -> {
+            if (entry != null && entry.expiresAt > now) {
+                result[0] = entry.signable.equals(signable) ? Result.REPEATED : Result.CONFLICT;
+                return entry;
+            }
+            if (entry != null) {
+                expired.incrementAndGet();  // replaced by the new write
+            } else if (entries.size() >= capacity) {
+                result[0] = Result.FULL;
+                return null;
+            }
+            result[0] = Result.ADDED;
+            Entry added = new Entry(signable, now + ttlMillis);
+            buckets.computeIfAbsent(added.expiresAt / BUCKET_MILLIS, b -> ConcurrentHashMap.newKeySet()).add(slot);
+            return added;
+        });
+        switch (result[0]) {
+            case ADDED:
+                added.incrementAndGet();
+                break;
+            case CONFLICT:
+                conflicts.incrementAndGet();
+                break;
+            case FULL:
+                rejected.incrementAndGet();
+                break;
+        }
+        return result[0];
+    }
+
+    /**
+     * Removes the recorded write of an author, when it is being committed.
+     *
+     * @return false if the author has no unexpired entry for this write
+     */
+    public boolean remove(String author, int timestamp, String signable) {
+        long now = System.currentTimeMillis();
+        boolean[] removed = new boolean[1];
+        entries.computeIfPresent(slot(author, timestamp), (slot, entry) -> {
+            if (entry.expiresAt <= now) {
+                expired.incrementAndGet();
+                return null;
+            }
+            if (!entry.signable.equals(signable)) {
+                return entry;
+            }
+            removed[0] = true;
+            return null;
+        });
+        if (removed[0]) {
+            committed.incrementAndGet();
+        }
+        return removed[0];
+    }
+
+    // sweeps the buckets that are entirely in the past
+    private void expire(long now) {
+        long currentBucket = now / BUCKET_MILLIS;
+        Map.Entry<Long, Set<String>> bucket;
+        while ((bucket = buckets.firstEntry()) != null && bucket.getKey() < currentBucket) {
+            if (!buckets.remove(bucket.getKey(), bucket.getValue())) {
+                continue;   // another thread swept it
+            }
+            for (String slot : bucket.getValue()) {
+                entries.computeIfPresent(slot, (key, entry) -> {
+                    if (entry.expiresAt <= now) {
+                        expired.incrementAndGet();
+                        return null;
+                    }
+                    return entry;
+                });
+            }
+        }
+    }
+
+    private static String slot(String author, int timestamp) {
+        return author + "@" + timestamp;
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("size", entries.size());
+        map.put("capacity", capacity);
+        map.put("ttlMillis", ttlMillis);
+        map.put("added", added.get());
+        map.put("committed", committed.get());
+        map.put("expired", expired.get());
+        map.put("conflicts", conflicts.get());
+        map.put("rejected", rejected.get());
+        return map;
+    }
+}
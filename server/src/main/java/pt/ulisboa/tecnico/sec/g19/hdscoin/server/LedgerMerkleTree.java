@@ -0,0 +1,130 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Utils;
+
+import java.util.*;
+
+
+/**
+ * Merkle tree over the heads of the ledgers of a replica, (account, timestamp, head hash), used by the anti-entropy
+ * to find the accounts two replicas disagree on without exchanging all of them.
+ * Each account has a path of MAX_DEPTH hex digits, from the hash of its key. A node is named by a prefix of the
+ * paths, the root is "", and it is a leaf while it holds at most LEAF_SIZE heads, otherwise it is split into its 16
+ * children. So the depth grows with the number of accounts and a leaf stays small. A leaf hashes the heads in it and
+ * an inner node the hashes of its children. The hash of a node only depends on the heads in it, so the replicas agree
+ * on it wherever they have the same heads, even when one of them split a node the other didn't.
+ */
+public class LedgerMerkleTree {
+    public static final int LEAF_SIZE = 16;
+    public static final int MAX_DEPTH = 8;
+    public static final String DIGITS = "0123456789abcdef";
+
+    // sorted by path, paths.get(i) is the path of heads.get(i)
+    private final List<String> paths = new ArrayList<>();
+    private final List<Serialization.SyncEntry> heads = new ArrayList<>();
+    // of the nodes of the tree as split here, the other nodes are hashed when asked for
+    private final Map<String, String> hashes = new HashMap<>();
+    private final Map<String, Serialization.SyncEntry> entries = new HashMap<>();
+
+    public LedgerMerkleTree(List<Serialization.SyncEntry> heads) {
+        List<Serialization.SyncEntry> sorted = new ArrayList<>(heads);
+        Map<String, String> pathsByKey = new HashMap<>();
+        for (Serialization.SyncEntry head : sorted) {
+            pathsByKey.put(head.publicKey, getPath(head.publicKey));
+            entries.put(head.publicKey, head);
+        }
+        sorted.sort(Comparator.comparing((Serialization.SyncEntry head) -> pathsByKey.get(head.publicKey))
+                .thenComparing(head -> head.publicKey));
+        for (Serialization.SyncEntry head : sorted) {
+            paths.add(pathsByKey.get(head.publicKey));
+            this.heads.add(head);
+        }
+        computeHash("", true);
+    }
+
+    // a node is a leaf when it is small enough, or can't be split anymore
+    public boolean isLeaf(String node) {
+        return node.length() >= MAX_DEPTH || upperBound(node) - lowerBound(node) <= LEAF_SIZE;
+    }
+
+    public static boolean isNode(String node) {
+        return node.length() <= MAX_DEPTH && node.chars().allMatch(digit -> DIGITS.indexOf(digit) >= 0);
+    }
+
+    // the path of an account, from the first hex digits of the hash of its key
+    public static String getPath(String publicKey) {
+        byte[] hash = Base64.getDecoder().decode(Utils.generateHashBase64(publicKey));
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; path.length() < MAX_DEPTH; i++) {
+            path.append(DIGITS.charAt((hash[i / 2] >> (i % 2 == 0 ? 4 : 0)) & 0xf));
+        }
+        return path.toString();
+    }
+
+    public String getHash(String node) {
+        String hash = hashes.get(node);
+        return hash != null ? hash : computeHash(node, false);
+    }
+
+    // the hashes of the 16 children of a node, by digit, also of a node that is a leaf here
+    public List<String> getChildHashes(String node) {
+        List<String> childHashes = new ArrayList<>();
+        for (char digit : DIGITS.toCharArray()) {
+            childHashes.add(getHash(node + digit));
+        }
+        return childHashes;
+    }
+
+    // the heads under a node, by binary search over the paths
+    public List<Serialization.SyncEntry> getEntries(String node) {
+        return Collections.unmodifiableList(heads.subList(lowerBound(node), upperBound(node)));
+    }
+
+    // the head of an account, or null if the replica doesn't have it
+    public Serialization.SyncEntry getEntry(String publicKey) {
+        return entries.get(publicKey);
+    }
+
+    private String computeHash(String node, boolean store) {
+        StringBuilder hashable = new StringBuilder();
+        if (isLeaf(node)) {
+            for (Serialization.SyncEntry head : getEntries(node)) {
+                hashable.append(head.getSignable());
+            }
+        } else {
+            for (char digit : DIGITS.toCharArray()) {
+                hashable.append(computeHash(node + digit, store));
+            }
+        }
+        String hash = Utils.generateHashBase64(hashable.toString());
+        if (store) {
+            hashes.put(node, hash);
+        }
+        return hash;
+    }
+
+    // the index of the first path that starts with the node, or comes after it
+    private int lowerBound(String node) {
+        return search(node);
+    }
+
+    // the index of the first path after the ones that start with the node, 'g' comes right after the hex digits
+    private int upperBound(String node) {
+        return search(node + "g");
+    }
+
+    private int search(String key) {
+        int low = 0;
+        int high = paths.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (paths.get(middle).compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -5,7 +5,12 @@ import pt.ulisboa.tecnico.sec.g19.hdscoin.server.exceptions.FailedToLoadKeysExce
 
 public class Main {
 
-    
+    // how often a replica syncs its ledgers with one of its peers
+    private static final int ANTI_ENTROPY_PERIOD_MILLIS = 30000;
+    // how often a replica proposes checkpoints, and how long a ledger gets before one
+    private static final int CHECKPOINT_PERIOD_MILLIS = 60000;
+    private static final int CHECKPOINT_MIN_TRANSACTIONS = 64;
+
     public static void main(String[] args) throws FailedToLoadKeysException {
         // fetch all relevant command line arguments
         String serverName = args[0];
@@ -13,6 +18,9 @@ public class Main {
         int numberOfServers = Integer.parseInt (args[2]);
         String password = args[3];
 
-        new Server("http://localhost:4570", serverName, port, numberOfServers, password).ignite();
+        Server server = new Server("http://localhost:4570", serverName, port, numberOfServers, password);
+        server.setAntiEntropy(ANTI_ENTROPY_PERIOD_MILLIS, AntiEntropy.DEFAULT_BYTES_PER_SECOND);
+        server.setCheckpointing(CHECKPOINT_PERIOD_MILLIS, CHECKPOINT_MIN_TRANSACTIONS);
+        server.ignite();
     }
 }
@@ -0,0 +1,80 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Wakes up the long-polling subscribers of an account when a transfer to it is committed.
+ * Each account keeps its recent notifications numbered in order, so a subscriber asks for the ones after the last
+ * sequence number it saw. The numbers are local to this replica and restart with it.
+ */
+public class NotificationHub {
+    public static final int DEFAULT_HISTORY = 1000;
+    public static final int MAX_WAIT_MILLIS = 30000;
+
+    private final int history;
+    private final Map<String, Topic> topics = new HashMap<>();
+
+    public NotificationHub(int history) {
+        this.history = history;
+    }
+
+    // the notifications of one account, subscribers wait on it
+    private static class Topic {
+        private long sequence = 0;  // sequence number of the newest notification
+        private final ArrayDeque<Serialization.Transaction> recent = new ArrayDeque<>();
+    }
+
+    private synchronized Topic getTopic(String target) {
+        return topics.computeIfAbsent(target, t -> new Topic());
+    }
+
+    // called by writers after committing a pending transaction
+    public void publish(Serialization.Transaction transaction) {
+        Topic topic = getTopic(transaction.target);
+        synchronized (topic) {
+            topic.sequence++;
+            topic.recent.addLast(transaction);
+            if (topic.recent.size() > history) {
+                topic.recent.removeFirst();
+            }
+            topic.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until there are notifications newer than since, or the wait runs out.
+     *
+     * @param target     the public key of the account, in the canonical encoding
+     * @param since      the sequence number of the last notification the subscriber saw
+     * @param waitMillis how long to wait for a notification, at most MAX_WAIT_MILLIS
+     * @return the newer notifications, or all the ones kept with resync set when some were already dropped
+     */
+    public Serialization.NotificationResponse await(String target, long since, long waitMillis) throws InterruptedException {
+        Topic topic = getTopic(target);
+        long deadline = System.currentTimeMillis() + Math.min(waitMillis, MAX_WAIT_MILLIS);
+        synchronized (topic) {
+            long remaining = deadline - System.currentTimeMillis();
+            while (topic.sequence == since && remaining > 0) {
+                topic.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            Serialization.NotificationResponse response = new Serialization.NotificationResponse();
+            response.sequence = topic.sequence;
+            long oldest = topic.sequence - topic.recent.size();   // sequence number before the oldest one kept
+            // a subscriber ahead of us saw a previous run of this replica
+            response.resync = since < oldest || since > topic.sequence;
+            long skip = response.resync ? 0 : since - oldest;
+            for (Serialization.Transaction transaction : topic.recent) {
+                if (skip-- <= 0) {
+                    response.transactions.add(transaction);
+                }
+            }
+            return response;
+        }
+    }
+}
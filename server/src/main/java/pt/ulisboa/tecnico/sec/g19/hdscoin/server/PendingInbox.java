@@ -0,0 +1,96 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * In-memory index of the pending incoming transactions of every account, kept in the order they were sent.
+ * The pending_inbox table is the persistent copy, writers change this index after they commit.
+ */
+public class PendingInbox {
+
+    // target public key -> (transaction hash -> pending sending transaction)
+    private final Map<String, LinkedHashMap<String, Serialization.Transaction>> inboxes = new HashMap<>();
+    // transaction hash -> target public key, so transactions can be removed by hash alone
+    private final Map<String, String> targets = new HashMap<>();
+
+    public synchronized void add(Serialization.Transaction transaction) {
+        inboxes.computeIfAbsent(transaction.target, t -> new LinkedHashMap<>()).put(transaction.signature, transaction);
+        targets.put(transaction.signature, transaction.target);
+    }
+
+    /**
+     * @param hash the signature of the pending transaction
+     * @return true if the transaction was pending
+     */
+    public synchronized boolean remove(String hash) {
+        String target = targets.remove(hash);
+        if (target == null) {
+            return false;
+        }
+        LinkedHashMap<String, Serialization.Transaction> inbox = inboxes.get(target);
+        inbox.remove(hash);
+        if (inbox.isEmpty()) {
+            inboxes.remove(target);
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(String target, String hash) {
+        return target.equals(targets.get(hash));
+    }
+
+    public synchronized int count(String target) {
+        LinkedHashMap<String, Serialization.Transaction> inbox = inboxes.get(target);
+        return inbox == null ? 0 : inbox.size();
+    }
+
+    /**
+     * @param target the public key of the account
+     * @param offset number of pending transactions to skip
+     * @param limit  maximum number of pending transactions to return
+     * @return a page of the pending transactions of the account, oldest first
+     */
+    public synchronized List<Serialization.Transaction> list(String target, int offset, int limit) {
+        List<Serialization.Transaction> page = new ArrayList<>();
+        LinkedHashMap<String, Serialization.Transaction> inbox = inboxes.get(target);
+        if (inbox == null) {
+            return page;
+        }
+        Iterator<Serialization.Transaction> it = inbox.values().iterator();
+        for (int i = 0; i < offset && it.hasNext(); i++) {
+            it.next();
+        }
+        while (page.size() < limit && it.hasNext()) {
+            page.add(it.next());
+        }
+        return page;
+    }
+
+    /**
+     * Replaces the whole index with the contents of the pending_inbox table.
+     *
+     * @return the pending transactions that weren't in the index before
+     */
+    public synchronized List<Serialization.Transaction> reload(List<Serialization.Transaction> pendingTransactions) {
+        List<Serialization.Transaction> added = new ArrayList<>();
+        for (Serialization.Transaction transaction : pendingTransactions) {
+            if (!targets.containsKey(transaction.signature)) {
+                added.add(transaction);
+            }
+        }
+        inboxes.clear();
+        targets.clear();
+        for (Serialization.Transaction transaction : pendingTransactions) {
+            add(transaction);
+        }
+        return added;
+    }
+}
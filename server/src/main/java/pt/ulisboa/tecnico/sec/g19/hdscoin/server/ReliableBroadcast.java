@@ -0,0 +1,249 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.kevinsawicki.http.HttpRequest;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.ServerInfo;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Utils;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.exceptions.SignatureException;
+
+import java.security.KeyException;
+import java.security.interfaces.ECPrivateKey;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import static pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization.BroadcastMessage.ECHO;
+import static pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization.BroadcastMessage.READY;
+
+
+/**
+ * Bracha style reliable broadcast of the echoes of a write between the replicas, so a client can send a write only
+ * once instead of relaying the signed echoes of the replicas itself.
+ * A replica that receives the write sends its signed echo to its peers. Once it sees a Byzantine quorum of echoes of
+ * the same write, or f + 1 readies, it sends a ready. With 2f + 1 readies and a quorum of echoes the write is
+ * delivered, and committed with the echoes gathered, as if the client had relayed them.
+ */
+public class ReliableBroadcast {
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+    // the broadcasts of writes never delivered are forgotten, only so many are remembered
+    private static final int CAPACITY = 10000;
+    private static final int PEER_TIMEOUT_MILLIS = 2000;
+
+    private final String serverName;
+    private final ECPrivateKey privateKey;
+    private final List<ServerInfo> servers;
+    private final int faults;
+    private final Logger log;
+    private final ThreadPoolExecutor peerSender;
+    // author and timestamp of the write -> state of its broadcast
+    private final Map<String, Instance> instances = new LinkedHashMap<String, Instance>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Instance> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    private static class Instance {
+        String signable;    // the write, once it is received from the client
+        // digest of the write -> replica -> its echo, or its ready
+        final Map<String, Map<String, String>> echoes = new HashMap<>();
+        final Map<String, Set<String>> readies = new HashMap<>();
+        boolean readySent = false;
+    }
+
+    public ReliableBroadcast(String serverName, ECPrivateKey privateKey, List<ServerInfo> servers, Logger log) {
+        this.serverName = serverName;
+        this.privateKey = privateKey;
+        this.servers = servers;
+        this.faults = Utils.numberOfFaultsSupported(servers.size());
+        this.log = log;
+        int threads = Math.max(1, servers.size() - 1);
+        this.peerSender = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, serverName + "-broadcast");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.peerSender.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Echoes a write received from the client to the other replicas and waits for it to be delivered.
+     *
+     * @param slot          the author of the write
+     * @param timestamp     the timestamp of the write
+     * @param signable      the signable of the write
+     * @param timeoutMillis how long to wait for the other replicas
+     *
+     * @return the echoes of the write, in the format of the ECHOS header, or null if it wasn't delivered in time
+     */
+    public String deliver(String slot, int timestamp, String signable, long timeoutMillis)
+            throws SignatureException, InterruptedException {
+        String digest = Utils.generateHashBase64(signable);
+        Serialization.BroadcastMessage echo =
+                newMessage(ECHO, slot, timestamp, digest, Utils.generateSignature(signable, privateKey));
+        Instance instance;
+        Serialization.BroadcastMessage ready;
+        synchronized (this) {
+            instance = getInstance(slot, timestamp);
+            instance.signable = signable;
+            // echoes that arrived before the write are only checked now
+            instance.echoes.computeIfAbsent(digest, d -> new HashMap<>()).entrySet()
+                    .removeIf(entry -> !isValidEcho(entry.getKey(), entry.getValue(), signable));
+            ready = record(instance, echo);
+        }
+        sendToPeers(echo);
+        if (ready != null) {
+            sendToPeers(ready);
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (this) {
+            while (!isDelivered(instance, digest)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                wait(remaining);
+            }
+            return instance.echoes.get(digest).entrySet().stream()
+                    .map(entry -> entry.getKey() + ";" + entry.getValue())
+                    .collect(Collectors.joining("#"));
+        }
+    }
+
+    /**
+     * Takes an echo or a ready sent by another replica.
+     *
+     * @param message   the message
+     * @param signature the signature of the message by the replica that sent it
+     *
+     * @return false if the message isn't signed by another replica
+     */
+    public boolean receive(Serialization.BroadcastMessage message, String signature)
+            throws SignatureException, KeyException {
+        if (message.type == null || message.slot == null || message.digest == null || message.sender == null ||
+                message.sender.equals(serverName)) {
+            return false;
+        }
+        String senderPublicKey = getPublicKey(message.sender);
+        if (senderPublicKey == null || signature == null ||
+                !Utils.checkSignature(signature, message.getSignable(), senderPublicKey)) {
+            return false;
+        }
+        Serialization.BroadcastMessage ready;
+        synchronized (this) {
+            Instance instance = getInstance(message.slot, message.timestamp);
+            if (message.type.equals(ECHO) && instance.signable != null &&
+                    message.digest.equals(Utils.generateHashBase64(instance.signable)) &&
+                    !isValidEcho(message.sender, message.echo, instance.signable)) {
+                log.log(Level.WARNING, "Invalid echo of a broadcast write from " + message.sender);
+                return false;
+            }
+            ready = record(instance, message);
+        }
+        if (ready != null) {
+            sendToPeers(ready);
+        }
+        return true;
+    }
+
+    // must hold the lock, returns the ready to send to the peers if this message completed a quorum
+    private Serialization.BroadcastMessage record(Instance instance, Serialization.BroadcastMessage message)
+            throws SignatureException {
+        if (message.type.equals(ECHO)) {
+            instance.echoes.computeIfAbsent(message.digest, d -> new HashMap<>()).put(message.sender, message.echo);
+        } else if (message.type.equals(READY)) {
+            instance.readies.computeIfAbsent(message.digest, d -> new HashSet<>()).add(message.sender);
+        }
+        Serialization.BroadcastMessage ready = null;
+        if (!instance.readySent && (hasEchoQuorum(instance, message.digest) ||
+                instance.readies.getOrDefault(message.digest, Collections.emptySet()).size() > faults)) {
+            instance.readySent = true;
+            ready = newMessage(READY, message.slot, message.timestamp, message.digest, "");
+            instance.readies.computeIfAbsent(message.digest, d -> new HashSet<>()).add(serverName);
+        }
+        notifyAll();
+        return ready;
+    }
+
+    private boolean isDelivered(Instance instance, String digest) {
+        return hasEchoQuorum(instance, digest) &&
+                instance.readies.getOrDefault(digest, Collections.emptySet()).size() > 2 * faults;
+    }
+
+    // the same Byzantine quorum the replicas ask for on the ECHOS header
+    private boolean hasEchoQuorum(Instance instance, String digest) {
+        return instance.echoes.getOrDefault(digest, Collections.emptyMap()).size() > (servers.size() + faults) / 2;
+    }
+
+    private Instance getInstance(String slot, int timestamp) {
+        return instances.computeIfAbsent(slot + "@" + timestamp, key -> new Instance());
+    }
+
+    private boolean isValidEcho(String replica, String echo, String signable) {
+        String publicKey = getPublicKey(replica);
+        try {
+            return publicKey != null && Utils.checkSignature(echo, signable, publicKey);
+        } catch (SignatureException | KeyException e) {
+            return false;
+        }
+    }
+
+    private String getPublicKey(String replica) {
+        for (ServerInfo info : servers) {
+            if (info.serverName.equals(replica)) {
+                return info.publicKeyBase64;
+            }
+        }
+        return null;
+    }
+
+    private Serialization.BroadcastMessage newMessage(String type, String slot, int timestamp, String digest,
+                                                      String echo) {
+        Serialization.BroadcastMessage message = new Serialization.BroadcastMessage();
+        message.type = type;
+        message.slot = slot;
+        message.timestamp = timestamp;
+        message.digest = digest;
+        message.sender = serverName;
+        message.echo = echo;
+        return message;
+    }
+
+    // the peers are told in the background, a replica that is down or slow is just left behind
+    private void sendToPeers(Serialization.BroadcastMessage message) throws SignatureException {
+        String signature = Utils.generateSignature(message.getSignable(), privateKey);
+        byte[] body;
+        try {
+            body = Serialization.serialize(message, Serialization.JSON_CONTENT_TYPE);
+        } catch (JsonProcessingException e) {
+            log.log(Level.SEVERE, "Failed to serialize a broadcast message. " + e);
+            return;
+        }
+        for (ServerInfo server : servers) {
+            if (server.serverName.equals(serverName)) {
+                continue;
+            }
+            peerSender.execute(() -> {
+                try {
+                    HttpRequest request = HttpRequest.post(server.serverUrl.toString() + "/broadcast");
+                    request.connectTimeout(PEER_TIMEOUT_MILLIS);
+                    request.readTimeout(PEER_TIMEOUT_MILLIS);
+                    request.contentType(Serialization.JSON_CONTENT_TYPE);
+                    request.header(Serialization.SIGNATURE_HEADER_NAME, signature);
+                    request.send(body);
+                    if (request.code() != 200) {
+                        log.log(Level.WARNING, server.serverName + " refused a broadcast message.");
+                    }
+                } catch (HttpRequest.HttpRequestException e) {
+                    log.log(Level.WARNING, "Failed to send a broadcast message to " + server.serverName + ". " + e);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Gathers the requests that arrive within a short window, up to a maximum batch size, and processes them together on
+ * a single thread. The window starts with the first request of the batch, so a lone request waits at most one window.
+ *
+ * @param <T> the requests
+ * @param <R> the result of each request
+ */
+public class RequestBatcher<T, R> {
+    // longest a request waits for its batch, a request that times out is dropped if its batch didn't start yet
+    public static final long SUBMIT_TIMEOUT_MILLIS = 30 * 1000;
+
+    public interface BatchProcessor<T, R> {
+        /**
+         * Processes a batch, and must complete the result of every request of it.
+         *
+         * @param requests the requests, in arrival order
+         * @param results  the result of each request, in the same order
+         */
+        void process(List<T> requests, List<CompletableFuture<R>> results);
+    }
+
+    private static class Entry<T, R> {
+        final T request;
+        final CompletableFuture<R> result = new CompletableFuture<>();
+
+        Entry(T request) {
+            this.request = request;
+        }
+    }
+
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final BatchProcessor<T, R> processor;
+    private final BlockingQueue<Entry<T, R>> queue = new LinkedBlockingQueue<>();
+    private long batches = 0;
+    private long requests = 0;
+    private int largestBatch = 0;
+
+    public RequestBatcher(String name, long windowMillis, int maxBatchSize, BatchProcessor<T, R> processor) {
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.processor = processor;
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Adds a request to the next batch and waits for its result.
+     *
+     * @return the result of the request
+     * @throws Exception the exception the request failed with, or a TimeoutException if it took longer than
+     *                   SUBMIT_TIMEOUT_MILLIS
+     */
+    public R submit(T request) throws Exception {
+        Entry<T, R> entry = new Entry<>(request);
+        queue.add(entry);
+        try {
+            return entry.result.get(SUBMIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            entry.result.completeExceptionally(e);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Entry<T, R>> batch = new ArrayList<>();
+            try {
+                batch.add(queue.take());
+                long deadline = System.currentTimeMillis() + windowMillis;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Entry<T, R> next = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                batch.addAll(queue);
+                for (Entry<T, R> entry : batch) {
+                    entry.result.completeExceptionally(e);
+                }
+                return;
+            }
+
+            List<T> batchRequests = new ArrayList<>();
+            List<CompletableFuture<R>> results = new ArrayList<>();
+            for (Entry<T, R> entry : batch) {
+                // its submitter timed out and gave up on it
+                if (entry.result.isDone()) {
+                    continue;
+                }
+                batchRequests.add(entry.request);
+                results.add(entry.result);
+            }
+            if (results.isEmpty()) {
+                continue;
+            }
+            // an error, or a processor that forgot a result, must not leave a submitter waiting for it
+            Throwable error = null;
+            try {
+                processor.process(batchRequests, results);
+            } catch (Throwable e) {
+                error = e;
+            } finally {
+                for (CompletableFuture<R> result : results) {
+                    if (!result.isDone()) {
+                        result.completeExceptionally(error != null ? error :
+                                new IllegalStateException("The batch processor didn't complete the request."));
+                    }
+                }
+            }
+            record(results.size());
+        }
+    }
+
+    private synchronized void record(int batchSize) {
+        batches++;
+        requests += batchSize;
+        largestBatch = Math.max(largestBatch, batchSize);
+    }
+
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("windowMillis", windowMillis);
+        map.put("maxBatchSize", maxBatchSize);
+        map.put("batches", batches);
+        map.put("requests", requests);
+        map.put("largestBatch", largestBatch);
+        map.put("averageBatchSize", batches == 0 ? 0.0 : (double) requests / batches);
+        return map;
+    }
+}
@@ -2,8 +2,10 @@ package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Compression;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.common.ServerInfo;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.SessionKey;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Signable;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Utils;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.common.exceptions.InvalidAmountException;
@@ -14,6 +16,8 @@ import pt.ulisboa.tecnico.sec.g19.hdscoin.server.exceptions.InvalidValueExceptio
 import pt.ulisboa.tecnico.sec.g19.hdscoin.server.exceptions.MissingLedgerException;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.server.exceptions.MissingTransactionException;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.server.structures.Ledger;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.structures.LedgerCheckpoint;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.structures.MerkleAccumulator;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.server.structures.Transaction;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.server.structures.VerifiableLedger;
 import spark.Request;
@@ -30,9 +34,12 @@ import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import static pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization.SERVER_PREFIX;
 import static pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization.StatusMessage.*;
@@ -58,6 +65,37 @@ public class Server {
 
     private List<ServerInfo> servers;
 
+    // bodies smaller than this are sent uncompressed
+    private int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    private CompressionStats compressionStats = new CompressionStats();
+
+    private AccountCache accountCache = new AccountCache(AccountCache.DEFAULT_CAPACITY);
+    private final SingleFlight<String, AccountState> accountStateLoads = new SingleFlight<>();
+    private final SingleFlight<String, AccountCache.Audit> auditLoads = new SingleFlight<>();
+    private PendingInbox pendingInbox = new PendingInbox();
+    private NotificationHub notificationHub = new NotificationHub(NotificationHub.DEFAULT_HISTORY);
+    private SessionStore sessionStore = new SessionStore(SessionStore.DEFAULT_CAPACITY, SessionStore.DEFAULT_IDLE_MILLIS);
+    private ReliableBroadcast reliableBroadcast;
+
+    // concurrent writes are echoed and committed in batches gathered over this window, 0 disables batching
+    private int batchWindowMillis = 0;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private RequestBatcher<String, String> echoBatcher;
+    private RequestBatcher<LedgerWrite, Void> commitBatcher;
+
+    // the replicas sync their ledgers with each other in the background every period, 0 disables it
+    private int antiEntropyPeriodMillis = 0;
+    private long antiEntropyBytesPerSecond = AntiEntropy.DEFAULT_BYTES_PER_SECOND;
+    private AntiEntropy antiEntropy;
+    private final Object syncTreeLock = new Object();
+    private LedgerMerkleTree syncTree;
+    private long syncTreeBuiltAt = 0;
+
+    // the replicas agree on checkpoints of the ledgers every period and archive what they cover, 0 disables it
+    private int checkpointPeriodMillis = 0;
+    private int checkpointMinTransactions = DEFAULT_CHECKPOINT_MIN_TRANSACTIONS;
+    private Checkpointer checkpointer;
+
     public Server(String baseURL, String serverName, int port, int numberOfServers, String password) {
         genericUrl = baseURL;
         this.serverName = serverName;
@@ -66,6 +104,71 @@ public class Server {
         this.password = password;
     }
 
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Sizes the store of the writes that were echoed and not committed yet. Must be called before ignite.
+     *
+     * @param capacity  the most writes echoed and not committed the replica keeps
+     * @param ttlMillis how long a write that is never committed holds its echo slot
+     */
+    public void setEchoStore(int capacity, long ttlMillis) {
+        this.echoStore = new EchoStore(capacity, ttlMillis);
+        this.writeSequencer = new WriteSequencer(ttlMillis);
+    }
+
+    /**
+     * Echoes and commits the writes that arrive close together in batches: one echo signature over the hashes of all
+     * the writes of a batch, and one database transaction for all of them. Must be called before ignite.
+     *
+     * @param batchWindowMillis how long a batch waits for more writes after the first one, 0 disables batching
+     * @param maxBatchSize      the largest number of writes in a batch
+     */
+    public void setRequestBatching(int batchWindowMillis, int maxBatchSize) {
+        this.batchWindowMillis = batchWindowMillis;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Syncs the ledgers of this replica with the ones of its peers in the background, one peer each period in turn.
+     * Must be called before ignite.
+     *
+     * @param periodMillis   the time between two syncs, 0 disables the anti-entropy
+     * @param bytesPerSecond the most bytes per second the syncs can receive from the peers
+     */
+    public void setAntiEntropy(int periodMillis, long bytesPerSecond) {
+        this.antiEntropyPeriodMillis = periodMillis;
+        this.antiEntropyBytesPerSecond = bytesPerSecond;
+    }
+
+    // stopping the Service of the replica doesn't stop the anti-entropy, which isn't part of it
+    public void stopAntiEntropy() {
+        if (antiEntropy != null) {
+            antiEntropy.stop();
+        }
+    }
+
+    /**
+     * Proposes, every period, a checkpoint of the ledgers this replica is responsible for, once they have enough
+     * transactions after their last checkpoint. Must be called before ignite.
+     *
+     * @param periodMillis    the time between two rounds of proposals, 0 disables the checkpoints
+     * @param minTransactions how many transactions a ledger must have after its last checkpoint
+     */
+    public void setCheckpointing(int periodMillis, int minTransactions) {
+        this.checkpointPeriodMillis = periodMillis;
+        this.checkpointMinTransactions = minTransactions;
+    }
+
+    // stopping the Service of the replica doesn't stop the checkpoints either
+    public void stopCheckpointing() {
+        if (checkpointer != null) {
+            checkpointer.stop();
+        }
+    }
+
     public Service ignite() throws FailedToLoadKeysException {
         Service http = Service.ignite();
         try {
@@ -95,6 +198,11 @@ public class Server {
 
             // set database name
             database = new Database(serverName);
+            if (batchWindowMillis > 0) {
+                echoBatcher = new RequestBatcher<>(serverName + "-echo-batcher", batchWindowMillis, maxBatchSize, this::signEchoBatch);
+                commitBatcher = new RequestBatcher<>(serverName + "-commit-batcher", batchWindowMillis, maxBatchSize, this::commitBatch);
+                log.log(Level.INFO, "Batching writes over " + batchWindowMillis + " ms, up to " + maxBatchSize + " writes.");
+            }
 
             Security.addProvider(new BouncyCastleProvider());
             log.log(Level.CONFIG, "Added bouncy castle security provider.");
@@ -104,6 +212,7 @@ public class Server {
             //Getting the replica servers information given by argument.
             servers = getServersInfoFromKeyStore(new URL(genericUrl), numberOfServers, keyStore);
             log.log(Level.INFO, "List of replicas: " + servers);
+            reliableBroadcast = new ReliableBroadcast(serverName, serverPrivateKey, servers, log);
 
             System.out.println ("Replica listening on port: " + port);
 
@@ -124,17 +233,54 @@ public class Server {
         }
 
 
-        http.post("/register", "application/json", (req, res) -> {
+        http.post("/session", (req, res) -> {
+            try {
+                Serialization.SessionRequest request = parseRequest(req, Serialization.SessionRequest.class);
+                Serialization.SessionResponse response = new Serialization.SessionResponse();
+                response.nonce = request.nonce;
+                try {
+                    // the handshake itself is signed with the key of the account, the session only ever speaks for it
+                    if (request.publicKey == null || request.ephemeralKey == null ||
+                            !Utils.checkSignature(req.headers(Serialization.SIGNATURE_HEADER_NAME),
+                                    request.getSignable(), request.publicKey)) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Session handshake not signed by the account.");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
+                    KeyPair ephemeralKeyPair = Utils.generateKeyPair();
+                    SessionKey key = SessionKey.agree(Utils.randomNonce(), ephemeralKeyPair.getPrivate(),
+                            Serialization.base64toPublicKey(request.ephemeralKey));
+                    sessionStore.add(request.publicKey, key);
+                    response.sessionId = key.getSessionId();
+                    response.ephemeralKey = Serialization.publicKeyToBase64((ECPublicKey) ephemeralKeyPair.getPublic());
+                    response.status = SUCCESS;
+                } catch (KeyException | SignatureException e) {
+                    log.log(Level.WARNING, "Invalid key on a session handshake. " + e);
+                    response.status = ERROR_INVALID_KEY;
+                }
+                // the response is still signed with ECDSA, the request carries no session yet
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.SessionResponse response = new Serialization.SessionResponse();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a session request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        http.post("/register", (req, res) -> {
 
             Serialization.RegisterRequest request = null;
             try {
-                request = Serialization.parse(req, Serialization.RegisterRequest.class);
+                request = parseRequest(req, Serialization.RegisterRequest.class);
                 Serialization.Response response = new Serialization.Response();
                 response.nonce = request.initialTransaction.nonce;
                 if (request.initialTransaction == null) {
                     response.status = ERROR_MISSING_PARAMETER;
                     log.log(Level.WARNING, "Missing initial transaction on register request.");
-                    return prepareResponse(serverPrivateKey, res, response);
+                    return prepareResponse(serverPrivateKey, req, res, response);
                 }
                 log.log(Level.INFO, "Request received at: /register \n" +
                         "data on the request: \n" +
@@ -146,8 +292,8 @@ public class Server {
                 boolean result = false; // false to defend
                 try {
                     //Recreate the hash with the data received
-                    result = Utils.checkSignature(
-                            req.headers(Serialization.SIGNATURE_HEADER_NAME),
+                    result = checkRequestSignature(
+                            req,
                             request.getSignable(),
                             request.initialTransaction.source);
 
@@ -161,7 +307,7 @@ public class Server {
                     res.status(401);
                     response.status = ERROR_NO_SIGNATURE_MATCH;
                     log.log(Level.WARNING, "Client signature not verified.");
-                    return prepareResponse(serverPrivateKey, res, response);
+                    return prepareResponse(serverPrivateKey, req, res, response);
                 }
 
                 ///////////////////////////////////////////////////
@@ -200,14 +346,103 @@ public class Server {
                     }
                 }
 
-                return prepareResponse(serverPrivateKey, res, response);
+                return prepareResponse(serverPrivateKey, req, res, response);
             } catch (Exception ex) {
                 res.status(500);
                 Serialization.Response response = new Serialization.Response();
                 response.nonce = (request != null && request.initialTransaction != null ? request.initialTransaction.nonce : "");
                 response.status = ERROR_SERVER_ERROR;
                 log.log(Level.SEVERE, "Error on processing a register request. " + ex);
-                return prepareResponse(serverPrivateKey, res, response);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        http.post("/registerBatch", (req, res) -> {
+
+            Serialization.RegisterBatchRequest request = null;
+            try {
+                request = parseRequest(req, Serialization.RegisterBatchRequest.class);
+                Serialization.RegisterBatchResponse response = new Serialization.RegisterBatchResponse();
+                response.nonce = request.nonce;
+                List<Serialization.Transaction> initialTransactions = request.initialTransactions;
+                if (initialTransactions == null || initialTransactions.isEmpty()) {
+                    response.status = ERROR_MISSING_PARAMETER;
+                    log.log(Level.WARNING, "Missing initial transactions on register batch request.");
+                    return prepareResponse(serverPrivateKey, req, res, response);
+                }
+                log.log(Level.INFO, "Request received at: /registerBatch \n" +
+                        "data on the request: \n" +
+                        "\tNONCE: " + request.nonce + "\n" +
+                        "\tNUMBER OF ACCOUNTS: " + initialTransactions.size());
+
+                // every account signed its own initial transaction, the signatures are checked in parallel
+                // and outside of the ledger lock, as that is most of the cost of a registration
+                Serialization.StatusMessage[] statuses = initialTransactions.parallelStream()
+                        .map(this::verifyInitialTransaction)
+                        .toArray(Serialization.StatusMessage[]::new);
+
+                Connection conn = null;
+                boolean committed = false;
+                try {
+                    conn = database.getConnection();
+                    synchronized (ledgerLock) {
+                        List<ECPublicKey> publicKeys = new ArrayList<>();
+                        List<Serialization.Transaction> accepted = new ArrayList<>();
+                        Set<String> seen = new HashSet<>();
+                        for (int i = 0; i < statuses.length; i++) {
+                            if (statuses[i] != SUCCESS) {
+                                continue;
+                            }
+                            Serialization.Transaction tx = initialTransactions.get(i);
+                            ECPublicKey publicKey = Serialization.base64toPublicKey(tx.source);
+                            // a key repeated in the batch, or already registered, can't get a new ledger
+                            if (!seen.add(Serialization.publicKeyToBase64(publicKey)) || Ledger.exists(conn, publicKey)) {
+                                statuses[i] = ERROR_INVALID_LEDGER;
+                                continue;
+                            }
+                            try {
+                                Transaction.getTransactionByHash(conn, tx.signature);
+                                statuses[i] = ERROR_INVALID_VALUE;   // repeated transaction
+                                continue;
+                            } catch (MissingTransactionException e) {
+                                // all good
+                            }
+                            publicKeys.add(publicKey);
+                            accepted.add(tx);
+                        }
+                        if (!accepted.isEmpty()) {
+                            Ledger.createAll(conn, publicKeys, accepted);
+                            conn.commit();
+                        }
+                        committed = true;
+                    }
+                    response.status = SUCCESS;
+                    response.statuses = Arrays.asList(statuses);
+                    log.log(Level.INFO, "Register batch processed, initialized " +
+                            Arrays.stream(statuses).filter(status -> status == SUCCESS).count() + " of " +
+                            statuses.length + " ledgers.");
+                } catch (SQLException e) {
+                    // servers fault
+                    log.log(Level.SEVERE, "Error related to the database. " + e);
+                    response.status = ERROR_SERVER_ERROR;
+                } finally {
+                    if (conn != null) {
+                        if (!committed) {
+                            conn.rollback();
+                            log.log(Level.SEVERE, "The ledgers of the register batch were not persisted.");
+                        }
+                        conn.close();
+                    }
+                }
+
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.nonce = (request != null && request.nonce != null ? request.nonce : "");
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a register batch request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
             }
         });
 
@@ -215,171 +450,117 @@ public class Server {
         //// WRITE OPERATIONS
         ////////////////////////////////////////////////
 
-        http.post("/sendAmount", "application/json", (req, res) -> {
+        http.post("/sendAmount", (req, res) -> {
             try {
-                Serialization.SendAmountRequest request = Serialization.parse(req,
+                Serialization.SendAmountRequest request = parseRequest(req,
                         Serialization.SendAmountRequest.class);
-                Serialization.Response response = new Serialization.Response();
+                Serialization.SendAmountResponse response = new Serialization.SendAmountResponse();
                 response.nonce = request.transaction.nonce;
 
-                if(!req.headers().contains(Serialization.ECHO_SIGNATURES_HEADER_NAME)) {
-                    return signEcho(serverPrivateKey, res, request, request.getNonce(), request.transaction.source);
-                } else if(!verifySignedEchos(req.headers(Serialization.ECHO_SIGNATURES_HEADER_NAME), request, request.transaction.source)) {
-                    res.status(401);
-                    log.log(Level.WARNING, "Mismatch in request signatures");
-                    response.status = ERROR_NO_SIGNATURE_MATCH;
-                    return prepareResponse(serverPrivateKey, res, response);
-                }
-                log.log(Level.INFO, "\n\n------------------------------------");
-                log.log(Level.INFO, "Request received at: /sendAmount");
-                log.log(Level.INFO,"data on the request:\n" +
-                        "SIGNATURE: " + req.headers(Serialization.SIGNATURE_HEADER_NAME) + "\n" +
-                        "NONCE: " + request.transaction.nonce + "\n" +
-                        "AMOUNT:" + request.transaction.amount + "\n" +
-                        "SOURCE CLIENT BASE 64 PUBLIC KEY: " + request.transaction.source + "\n" +
-                        "TARGET CLIENT BASE 64 PUBLIC KEY: " + request.transaction.target);
-                log.log(Level.INFO, "\n");
-
-                //Recreate the hash with the data received
-                boolean result = Utils.checkSignature(
-                        req.headers(Serialization.SIGNATURE_HEADER_NAME),
-                        request.getSignable(),
-                        request.transaction.source);
-
-                if (!result) {
-                    res.status(401);
-                    log.log(Level.WARNING, "Mismatch in request signatures");
-                    response.status = ERROR_NO_SIGNATURE_MATCH;
-                    return prepareResponse(serverPrivateKey, res, response);
+                String echoSignatures = req.headers(Serialization.ECHO_SIGNATURES_HEADER_NAME);
+                if(echoSignatures == null && req.headers().contains(Serialization.BROADCAST_HEADER_NAME)) {
+                    echoSignatures = broadcastEchos(request, request.getNonce(), request.transaction.source, request.ledger.timestamp);
                 }
-
-                ///////////////////////////////////////////////////
-                //We now know that the transaction was created by the owner of its respective private key.
-                ///////////////////////////////////////////////////
-
-                log.log(Level.INFO, "Transaction signature: " + request.transaction.getSignable());
-                // now check the transaction itself
-                result = Utils.checkSignature(
-                        request.transaction.signature,
-                        request.transaction.getSignable(),
-                        request.transaction.source);
-
-                if (!result) {
-                    res.status(401);
-                    log.log(Level.WARNING, "Mismatch in transaction signatures");
-                    response.status = ERROR_NO_SIGNATURE_MATCH;
-                    return prepareResponse(serverPrivateKey, res, response);
+                if(echoSignatures == null) {
+                    return signEcho(serverPrivateKey, req, res, request, request.getNonce(), request.transaction.source, request.ledger.timestamp);
                 }
 
-                Connection conn = null;
+                // the write is in flight on the sequencer from its echo on, its turn ends however its commit ends
+                AccountState sourceState = null;
                 try {
-                    conn = database.getConnection();
-                    Ledger sourceLedger = Ledger.load(conn, Serialization.base64toPublicKey(request.transaction.source));
-
-                    // check the timestamp of the request
-                    if (sourceLedger.getTimestamp () >= request.ledger.timestamp) {
+                    if(!verifySignedEchos(echoSignatures, request, request.transaction.source, request.ledger.timestamp)) {
                         res.status(401);
-                        log.log(Level.WARNING, "Older operation");
-                        response.status = ERROR_INVALID_LEDGER;
-                        return prepareResponse(serverPrivateKey, res, response);
+                        log.log(Level.WARNING, "Mismatch in request signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
                     }
+                    log.log(Level.INFO, "\n\n------------------------------------");
+                    log.log(Level.INFO, "Request received at: /sendAmount");
+                    log.log(Level.INFO,"data on the request:\n" +
+                            "SIGNATURE: " + req.headers(Serialization.SIGNATURE_HEADER_NAME) + "\n" +
+                            "NONCE: " + request.transaction.nonce + "\n" +
+                            "AMOUNT:" + request.transaction.amount + "\n" +
+                            "SOURCE CLIENT BASE 64 PUBLIC KEY: " + request.transaction.source + "\n" +
+                            "TARGET CLIENT BASE 64 PUBLIC KEY: " + request.transaction.target);
+                    log.log(Level.INFO, "\n");
 
+                    //Recreate the hash with the data received
+                    boolean result = checkRequestSignature(
+                            req,
+                            request.getSignable(),
+                            request.transaction.source);
 
-                    //////////////////
-                    // verify if the hash of the ledger received match the ledger currently persisted
-                    //////////////////
+                    if (!result) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Mismatch in request signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
 
-                    // hash the local ledger
-                    List<Transaction> localTransactions = sourceLedger.getAllTransactions (conn);
-                    List<Serialization.Transaction> localSerializableTransactions = serializeTransactions (localTransactions);
-                    VerifiableLedger localLedger = new VerifiableLedger (localSerializableTransactions);
-                    String localLedgerHash = Utils.generateHashBase64 (localLedger.getHashable ());
+                    ///////////////////////////////////////////////////
+                    //We now know that the transaction was created by the owner of its respective private key.
+                    ///////////////////////////////////////////////////
 
-                    // hash the ledger received
-                    VerifiableLedger receivedLedger = new VerifiableLedger (request.ledger.transactions);
-                    String receivedLedgerHash = Utils.generateHashBase64 (receivedLedger.getHashable ());
+                    log.log(Level.INFO, "Transaction signature: " + request.transaction.getSignable());
+                    // now check the transaction itself
+                    result = Utils.checkSignature(
+                            request.transaction.signature,
+                            request.transaction.getSignable(),
+                            request.transaction.source);
 
-                    if (localLedgerHash == null || receivedLedgerHash == null) {
+                    if (!result) {
                         res.status(401);
-                        log.log(Level.WARNING, "Couldn't hash the transactions.");
-                        response.status = ERROR_SERVER_ERROR;   // could be better
-                        return prepareResponse(serverPrivateKey, res, response);
+                        log.log(Level.WARNING, "Mismatch in transaction signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
                     }
 
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "Ledger received:");
-                    log.log(Level.INFO, "timestamp: " + request.ledger.timestamp);
-                    log.log(Level.INFO, "signable: " + receivedLedger.getHashable ());
-                    log.log(Level.INFO, "Sign: " + receivedLedgerHash);
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "\n");
-                    log.log(Level.INFO, "Local ledger: ");
-                    log.log(Level.INFO, "timestamp: " + sourceLedger.getTimestamp ());
-                    log.log(Level.INFO, "signable: " + localLedger.getHashable ());
-                    log.log(Level.INFO, "Sign: " + localLedgerHash);
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "\n");
-
+                    // the timestamp and the hash of the ledger are validated against the cached account state
+                    sourceState = awaitWriteTurn(request.transaction.source, request.ledger.timestamp);
 
-                    // if not equal the local replica is ahead or behind the current agreed ledger by the majority of replicas
-                    if (!localLedgerHash.equals (receivedLedgerHash)) {
-
-                        int endIndex = localSerializableTransactions.size () - 1;
-                        // remove the last transaction from the last before hashing
-                        VerifiableLedger subLocalLedger = new VerifiableLedger (localSerializableTransactions.subList (endIndex - 1, endIndex));
-                        String subLocalLedgerHash = Utils.generateHashBase64 (subLocalLedger.getHashable ());
-
-                        // check if the ledger contained one operation that wasn't completed by a majority
-                        if (subLocalLedgerHash.equals (receivedLedgerHash)) {
-                            // remove the last transaction from the database
-                            Transaction.removeTransaction (conn, localTransactions.get (localTransactions.size () - 1).getId ());
-                            conn.commit (); // commit this change
-                            // continue, to try to perform the operation now on a update ledger which is agreed by the majority
-                        } else {
-                            /*
-                            has the ledger on a replica can only have at most a operation at the top of the ledger
-                            that wasn't completed by a majority when this stage is reached it means that the replica
-                            is behind the current agreed state of a ledger.
-                            So the replica must find out how many transactions it is behind so it can persist the missing
-                            transactions on its end and then try to fulfil the operation required on the update state.
-                            At this stage as the client isn't byzantine then the received ledger is assumed that it wasn't
-                            modified and is the result of the majority of the replicas.
-                            */
-                            ArrayList<Serialization.Transaction> copyReceivedTransactions = new ArrayList<> (request.ledger.transactions);
-                            int end = copyReceivedTransactions.size () - 1;
-                            int numberOfTransactionsBehind = getNumberOfTransactionsBehind(copyReceivedTransactions, new ArrayList<> (localSerializableTransactions));
-                            int start = end - numberOfTransactionsBehind;
-                            log.log(Level.INFO,"This replica contained a ledger that was " + numberOfTransactionsBehind + " transactions behind.");
-                            persistMissingTransactions(conn, new ArrayList<> (request.ledger.transactions).subList (start, end), sourceLedger);
-                            // continue, to try to perform the operation now on a updated ledger which is agreed by the majority
+                    // check the timestamp of the request
+                    if (sourceState.getTimestamp () >= request.ledger.timestamp) {
+                        // a pipelined write already applied here, while catching up for a later one, is acknowledged again
+                        if (areCommitted(Collections.singletonList(request.transaction))) {
+                            response.status = SUCCESS;
+                            response.receiptSignature = signReceipt(request.transaction);
+                            return prepareResponse(serverPrivateKey, req, res, response);
                         }
-                    } else {
-                        log.log(Level.INFO,"Local ledger is already in sync with the ledger received");
+                        res.status(401);
+                        log.log(Level.WARNING, "Older operation");
+                        response.status = ERROR_INVALID_LEDGER;
+                        return prepareResponse(serverPrivateKey, req, res, response);
                     }
 
-                    Ledger targetLedger = Ledger.load(conn, Serialization.base64toPublicKey(request.transaction.target));
-                    log.log(Level.INFO, "Load local ledger");
-                    // mutual exclusion is necessary to ensure the new transaction ID obtained in "new Transaction"
-                    // is still correct/"fresh" when "transaction.persist" is called, and also that the latest
-                    // transaction is still the latest transaction
-                    synchronized (ledgerLock) {
-                        Transaction transaction = new Transaction(conn, sourceLedger, targetLedger, request.transaction.amount,
-                                request.transaction.nonce,
-                                request.transaction.signature,
-                                request.transaction.previousSignature, Transaction.TransactionTypes.SENDING);
-                        // checkout the amount from the source ledger
-                        sourceLedger.setAmount(sourceLedger.getAmount() - request.transaction.amount);
+                    // the transaction IDs obtained in "new Transaction" must still be "fresh" when "transaction.persist"
+                    // is called, and the latest transaction must still be the latest transaction, see commitWrite
+                    AccountState state = sourceState;
+                    commitWrite(conn -> {
+                        Ledger sourceLedger = Ledger.load(conn, state.getId());
+                        boolean synchronizedLedger = synchronizeLedger(conn, sourceLedger, state, request.ledger);
+                        Transaction transaction = createSendingTransaction(conn, sourceLedger, request.transaction);
                         sourceLedger.setTimestamp (request.ledger.timestamp);   //update the timestamp
-                        log.log(Level.INFO, "Load local ledger");
-                        transaction.persist(conn);
                         log.log(Level.INFO, "Transaction persisted");
                         sourceLedger.persist(conn);
                         log.log(Level.INFO, "ledger persisted");
 
-                        // todo: update the full ledger transactions (before persisting the transaction
-                    }
-                    conn.commit();
+                        // the cache is updated in the same critical section as the commit, so it follows their order
+                        return committed -> {
+                            if (synchronizedLedger) {
+                                reloadReplicaState(committed);
+                            } else {
+                                accountCache.put(new AccountState(state.getId(), state.getPublicKeyBase64(),
+                                        state.getPublicKey(), sourceLedger.getAmount(), request.ledger.timestamp,
+                                        getHeadHash(request.ledger, Collections.singletonList(request.transaction)),
+                                        transaction.getHash()));
+                                Serialization.Transaction pending = serializeTransactions(Collections.singletonList(transaction)).get(0);
+                                pendingInbox.add(pending);
+                                notificationHub.publish(pending);
+                            }
+                        };
+                    });
                     response.status = SUCCESS;
+                    response.receiptSignature = signReceipt(request.transaction);
                     log.log(Level.INFO, "Transaction created with success.");
                 } catch (SQLException e) {
                     // servers fault
@@ -395,333 +576,693 @@ public class Server {
                     e.printStackTrace ();
                     response.status = ERROR_NO_SIGNATURE_MATCH;
                 } finally {
-                    if ((response.status == null || !response.status.equals(SUCCESS)) && conn != null) {
-                        conn.rollback();
+                    if ((response.status == null || !response.status.equals(SUCCESS)) && sourceState != null) {
+                        accountCache.invalidate(sourceState.getPublicKeyBase64());
                         log.log(Level.SEVERE, "The transaction created was not persisted, due to an error.");
                     }
+                    writeSequencer.end(request.transaction.source, request.ledger.timestamp);
                 }
 
-                return prepareResponse(serverPrivateKey, res, response);
+                return prepareResponse(serverPrivateKey, req, res, response);
             } catch (Exception ex) {
                 res.status(500);
                 Serialization.Response response = new Serialization.Response();
                 response.status = ERROR_SERVER_ERROR;
                 log.log(Level.SEVERE, "Error on processing a send amount request. " + ex);
-                return prepareResponse(serverPrivateKey, res, response);
+                return prepareResponse(serverPrivateKey, req, res, response);
             }
         });
 
-        http.post("/receiveAmount", "application/json", (req, res) -> {
+        http.post("/sendAmountBatch", (req, res) -> {
             try {
-                Serialization.ReceiveAmountRequest request = Serialization.parse(req,
-                        Serialization.ReceiveAmountRequest.class);
+                Serialization.SendAmountBatchRequest request = parseRequest(req,
+                        Serialization.SendAmountBatchRequest.class);
 
                 Serialization.Response response = new Serialization.Response();
-                response.nonce = request.transaction.nonce;
+                response.nonce = request.nonce;
 
-                if(!req.headers().contains(Serialization.ECHO_SIGNATURES_HEADER_NAME)) {
-                    return signEcho(serverPrivateKey, res, request, request.getNonce(), request.transaction.source);
-                } else if(!verifySignedEchos(req.headers(Serialization.ECHO_SIGNATURES_HEADER_NAME), request, request.transaction.source)) {
-                    res.status(401);
-                    log.log(Level.WARNING, "Mismatch in request signatures");
-                    response.status = ERROR_NO_SIGNATURE_MATCH;
-                    return prepareResponse(serverPrivateKey, res, response);
+                if (request.transactions == null || request.transactions.isEmpty() || request.ledger == null) {
+                    res.status(400);
+                    log.log(Level.WARNING, "Missing transactions on batch send request.");
+                    response.status = ERROR_MISSING_PARAMETER;
+                    return prepareResponse(serverPrivateKey, req, res, response);
                 }
+                String author = request.transactions.get(0).source;
 
-                log.log(Level.INFO, "Request received at: /receiveAmount \n" +
-                        "data on the request:\n" +
-                        "SIGNATURE: " + req.headers(Serialization.SIGNATURE_HEADER_NAME) + "\n" +
-                        "NONCE: " + request.transaction.nonce + "\n" +
-                        "AMOUNT:" + request.transaction.amount + "\n" +
-                        "SOURCE PUBLIC KEY: " + request.transaction.source + "\n" +
-                        "TARGET PUBLIC KEY: " + request.transaction.target + "\n" +
-                        "PENDING TRANSACTION: " + request.pendingTransactionHash);
-
-                //Recreate the hash with the data received
-                boolean result = Utils.checkSignature(
-                        req.headers(Serialization.SIGNATURE_HEADER_NAME),
-                        request.getSignable(),
-                        request.transaction.source);
-
-                if (!result) {
-                    res.status(401);
-                    log.log(Level.WARNING, "Mismatch in request signatures");
-                    response.status = ERROR_NO_SIGNATURE_MATCH;
-                    return prepareResponse(serverPrivateKey, res, response);
+                String echoSignatures = req.headers(Serialization.ECHO_SIGNATURES_HEADER_NAME);
+                if(echoSignatures == null && req.headers().contains(Serialization.BROADCAST_HEADER_NAME)) {
+                    echoSignatures = broadcastEchos(request, request.getNonce(), author, request.ledger.timestamp);
                 }
-
-                ///////////////////////////////////////////////////
-                //We now know that *the whole request* was created by the owner of its respective private key.
-                ///////////////////////////////////////////////////
-
-                // now check the transaction itself
-                result = Utils.checkSignature(
-                        request.transaction.signature,
-                        request.transaction.getSignable(),
-                        request.transaction.source);
-
-                if (!result) {
-                    res.status(401);
-                    log.log(Level.WARNING, "Mismatch in transaction signatures");
-                    response.status = ERROR_NO_SIGNATURE_MATCH;
-                    return prepareResponse(serverPrivateKey, res, response);
+                if(echoSignatures == null) {
+                    return signEcho(serverPrivateKey, req, res, request, request.getNonce(), author, request.ledger.timestamp);
                 }
 
-                Connection conn = null;
+                // the write is in flight on the sequencer from its echo on, its turn ends however its commit ends
+                AccountState sourceState = null;
                 try {
-                    conn = database.getConnection();
-                    Ledger sourceLedger = Ledger.load(conn, Serialization.base64toPublicKey(request.transaction.source));
-
-                    // check the timestamp of the request
-                    if (sourceLedger.getTimestamp () >= request.ledger.timestamp) {
+                    if(!verifySignedEchos(echoSignatures, request, author, request.ledger.timestamp)) {
                         res.status(401);
-                        log.log(Level.WARNING, "Older operation");
-                        response.status = ERROR_INVALID_LEDGER;
-                        return prepareResponse(serverPrivateKey, res, response);
+                        log.log(Level.WARNING, "Mismatch in request signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
                     }
 
-                    //////////////////
-                    // verify if the hash of the ledger received match the ledger currently persisted
-                    //////////////////
+                    log.log(Level.INFO, "Request received at: /sendAmountBatch \n" +
+                            "data on the request:\n" +
+                            "SIGNATURE: " + req.headers(Serialization.SIGNATURE_HEADER_NAME) + "\n" +
+                            "NONCE: " + request.nonce + "\n" +
+                            "SOURCE PUBLIC KEY: " + author + "\n" +
+                            "NUMBER OF TRANSACTIONS: " + request.transactions.size());
 
-                    // hash the local ledger
-                    List<Transaction> localTransactions = sourceLedger.getAllTransactions (conn);
-                    List<Serialization.Transaction> localSerializableTransactions = serializeTransactions (localTransactions);
-                    VerifiableLedger localLedger = new VerifiableLedger (localSerializableTransactions);
-                    String localLedgerHash = Utils.generateHashBase64 (localLedger.getHashable ());
-
-                    // hash the ledger received
-                    VerifiableLedger receivedLedger = new VerifiableLedger (request.ledger.transactions);
-                    String receivedLedgerHash = Utils.generateHashBase64 (receivedLedger.getHashable ());
+                    //Recreate the hash with the data received
+                    boolean result = checkRequestSignature(
+                            req,
+                            request.getSignable(),
+                            author);
 
-                    if (localLedgerHash == null || receivedLedgerHash == null) {
+                    if (!result) {
                         res.status(401);
-                        log.log(Level.WARNING, "Couldn't hash the transactions.");
-                        response.status = ERROR_SERVER_ERROR;   // could be better
-                        return prepareResponse(serverPrivateKey, res, response);
+                        log.log(Level.WARNING, "Mismatch in request signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
                     }
 
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "Ledger received:");
-                    log.log(Level.INFO, "timestamp: " + request.ledger.timestamp);
-                    log.log(Level.INFO, "signable: " + receivedLedger.getHashable ());
-                    log.log(Level.INFO, "Sign: " + receivedLedgerHash);
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "\n");
-                    log.log(Level.INFO, "Local ledger: ");
-                    log.log(Level.INFO, "timestamp: " + sourceLedger.getTimestamp ());
-                    log.log(Level.INFO, "signable: " + localLedger.getHashable ());
-                    log.log(Level.INFO, "Sign: " + localLedgerHash);
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "\n");
-
-                    if (!localLedgerHash.equals (receivedLedgerHash)) {
-                        int endIndex = localSerializableTransactions.size () - 1;
-                        VerifiableLedger subLocalLedger = new VerifiableLedger (localSerializableTransactions.subList (endIndex - 1, endIndex));
-                        String subLocalLedgerHash = Utils.generateHashBase64 (subLocalLedger.getHashable ());
-
-                        if (subLocalLedgerHash.equals (receivedLedgerHash)) {
-                            Transaction.removeTransaction (conn, localTransactions.get (localTransactions.size () - 1).getId ());
-                            conn.commit (); // commit this change
-                        } else {
-                            ArrayList<Serialization.Transaction> copyReceivedTransactions = new ArrayList<> (request.ledger.transactions);
-                            int end = copyReceivedTransactions.size () - 1;
-                            int numberOfTransactionsBehind = getNumberOfTransactionsBehind(copyReceivedTransactions, new ArrayList<> (localSerializableTransactions));
-                            int start = end - numberOfTransactionsBehind;
-                            log.log(Level.INFO,"This replica contained a ledger that was " + numberOfTransactionsBehind + " transactions behind.");
-                            persistMissingTransactions(conn, new ArrayList<> (request.ledger.transactions).subList (start, end), sourceLedger);
+                    // every transaction of the batch must be a sending transaction of the author, signed by it
+                    for (Serialization.Transaction transaction : request.transactions) {
+                        if (!author.equals(transaction.source) || !transaction.isSend ||
+                                !Utils.checkSignature(transaction.signature, transaction.getSignable(), author)) {
+                            res.status(401);
+                            log.log(Level.WARNING, "Mismatch in transaction signatures");
+                            response.status = ERROR_NO_SIGNATURE_MATCH;
+                            return prepareResponse(serverPrivateKey, req, res, response);
                         }
-                    } else {
-                        log.log(Level.INFO,"Local ledger is already in sync with the ledger received");
                     }
 
-                    Ledger targetLedger = Ledger.load(conn, Serialization.base64toPublicKey(request.transaction.target));
+                    sourceState = awaitWriteTurn(author, request.ledger.timestamp);
 
-                    // mutual exclusion is necessary to ensure the new transaction ID obtained in "new Transaction"
-                    // is still correct/"fresh" when "transaction.persist" is called, and also that the latest
-                    // transaction is still the latest transaction
-                    synchronized (ledgerLock) {
-                        Transaction pendingTransaction = Transaction.getTransactionByHash(conn, request.pendingTransactionHash);
-
-                        if (!pendingTransaction.isPending()) {
-                            throw new MissingTransactionException("Transaction mentioned in the request is invalid or not pending");
-                        }
-
-                        Transaction transaction = new Transaction(conn, sourceLedger, targetLedger,
-                                request.transaction.amount,
-                                request.transaction.nonce,
-                                request.transaction.signature,
-                                request.transaction.previousSignature, Transaction.TransactionTypes.RECEIVING);
-
-                        // the Transaction constructor already did some validation, now validate the things that
-                        // are specific to RECEIVING transactions
-                        if (transaction.getSourceLedger().getId() != pendingTransaction.getTargetLedger().getId() ||
-                                transaction.getTargetLedger().getId() != pendingTransaction.getSourceLedger().getId()) {
-                            throw new MissingTransactionException("Transaction source/target do not match with pending transaction");
+                    // check the timestamp of the request
+                    if (sourceState.getTimestamp () >= request.ledger.timestamp) {
+                        // a pipelined write already applied here, while catching up for a later one, is acknowledged again
+                        if (areCommitted(request.transactions)) {
+                            response.status = SUCCESS;
+                            return prepareResponse(serverPrivateKey, req, res, response);
                         }
+                        res.status(401);
+                        log.log(Level.WARNING, "Older operation");
+                        response.status = ERROR_INVALID_LEDGER;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
 
-                        if (transaction.getAmount() != pendingTransaction.getAmount()) {
-                            throw new InvalidAmountException("Transaction amount does not match with pending transaction", transaction.getAmount());
+                    // the whole batch is a single operation of the ledger: all transfers are checked out of the
+                    // balance in one database transaction, or none is
+                    AccountState state = sourceState;
+                    commitWrite(conn -> {
+                        Ledger sourceLedger = Ledger.load(conn, state.getId());
+                        boolean synchronizedLedger = synchronizeLedger(conn, sourceLedger, state, request.ledger);
+                        List<Transaction> transactions = new ArrayList<>();
+                        for (Serialization.Transaction sending : request.transactions) {
+                            transactions.add(createSendingTransaction(conn, sourceLedger, sending));
                         }
-                        // add the amount to the source ledger
-                        sourceLedger.setAmount(sourceLedger.getAmount() + request.transaction.amount);
                         sourceLedger.setTimestamp (request.ledger.timestamp);
-
-                        // the sending transaction is not pending anymore
-                        pendingTransaction.setPending(false);
-                        pendingTransaction.persist(conn);
-                        transaction.persist(conn);
                         sourceLedger.persist(conn);
-                    }
-                    conn.commit();
+
+                        return committed -> {
+                            if (synchronizedLedger) {
+                                reloadReplicaState(committed);
+                            } else {
+                                accountCache.put(new AccountState(state.getId(), state.getPublicKeyBase64(),
+                                        state.getPublicKey(), sourceLedger.getAmount(), request.ledger.timestamp,
+                                        getHeadHash(request.ledger, request.transactions),
+                                        transactions.get(transactions.size() - 1).getHash()));
+                                for (Serialization.Transaction pending : serializeTransactions(transactions)) {
+                                    pendingInbox.add(pending);
+                                    notificationHub.publish(pending);
+                                }
+                            }
+                        };
+                    });
                     response.status = SUCCESS;
-                    log.log(Level.INFO, "Transaction created with success.");
+                    log.log(Level.INFO, request.transactions.size() + " transactions created with success.");
                 } catch (SQLException e) {
                     // servers fault
                     log.log(Level.SEVERE, "Error related to the database. " + e);
                     response.status = ERROR_SERVER_ERROR;
                 }
                 // these exceptions are the client's fault
-                catch (MissingLedgerException e) {
+                catch (MissingLedgerException | InvalidLedgerException e) {
                     response.status = ERROR_INVALID_LEDGER;
                 } catch (InvalidAmountException e) {
                     response.status = ERROR_INVALID_AMOUNT;
-                } catch (MissingTransactionException e) {
+                } catch (InvalidValueException e) {
                     response.status = ERROR_INVALID_VALUE;
                 } catch (InvalidKeyException e) {
                     response.status = ERROR_INVALID_KEY;
                 } catch (SignatureException e) {
                     response.status = ERROR_NO_SIGNATURE_MATCH;
                 } finally {
-                    if ((response.status == null || !response.status.equals(SUCCESS)) && conn != null) {
-                        conn.rollback();
-                        log.log(Level.SEVERE, "The transaction created was not persisted, due to an error.");
+                    if ((response.status == null || !response.status.equals(SUCCESS)) && sourceState != null) {
+                        accountCache.invalidate(sourceState.getPublicKeyBase64());
+                        log.log(Level.SEVERE, "The batch of transactions was not persisted, due to an error.");
                     }
+                    writeSequencer.end(author, request.ledger.timestamp);
                 }
 
-                return prepareResponse(serverPrivateKey, res, response);
+                return prepareResponse(serverPrivateKey, req, res, response);
             } catch (Exception ex) {
                 res.status(500);
                 Serialization.Response response = new Serialization.Response();
                 response.status = ERROR_SERVER_ERROR;
-                log.log(Level.SEVERE, "Error on processing a send amount request. " + ex);
-                return prepareResponse(serverPrivateKey, res, response);
+                log.log(Level.SEVERE, "Error on processing a batch send request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
             }
         });
 
-        ////////////////////////////////////////////////
-        //// READ OPERATIONS
-        ////////////////////////////////////////////////
-
-        http.get("/checkAccount/:key", "application/json", (req, res) -> {
+        http.post("/receiveAmount", (req, res) -> {
             try {
-                // init generic response to use when an error occur
-                Serialization.Response errorResponse = new Serialization.Response();
-                errorResponse.nonce = req.headers(Serialization.NONCE_HEADER_NAME);
-                String pubKeyBase64 = req.params(":key");
-                if (pubKeyBase64 == null) {
-                    errorResponse.status = ERROR_MISSING_PARAMETER;
-                    return prepareResponse(serverPrivateKey, res, errorResponse);
+                Serialization.ReceiveAmountRequest request = parseRequest(req,
+                        Serialization.ReceiveAmountRequest.class);
+
+                Serialization.Response response = new Serialization.Response();
+                response.nonce = request.transaction.nonce;
+
+                String echoSignatures = req.headers(Serialization.ECHO_SIGNATURES_HEADER_NAME);
+                if(echoSignatures == null && req.headers().contains(Serialization.BROADCAST_HEADER_NAME)) {
+                    echoSignatures = broadcastEchos(request, request.getNonce(), request.transaction.source, request.ledger.timestamp);
+                }
+                if(echoSignatures == null) {
+                    return signEcho(serverPrivateKey, req, res, request, request.getNonce(), request.transaction.source, request.ledger.timestamp);
                 }
-                log.log(Level.INFO, "Checking account with public key: " + pubKeyBase64);
 
-                Connection conn = null;
-                boolean committed = false;
+                // the write is in flight on the sequencer from its echo on, its turn ends however its commit ends
+                AccountState sourceState = null;
                 try {
-                    Serialization.CheckAccountResponse response = new Serialization.CheckAccountResponse();
-                    ECPublicKey clientPublicKey = Serialization.base64toPublicKey(pubKeyBase64);
-                    conn = database.getConnection();
-                    Ledger ledger = Ledger.load(conn, clientPublicKey);
-                    response.nonce = req.headers(Serialization.NONCE_HEADER_NAME);
-                    System.out.println("Pending" + ledger.getPendingTransactions(conn, clientPublicKey));
-                    response.balance = ledger.getAmount();
-                    response.pendingTransactions = serializeTransactions(ledger.getPendingTransactions(conn, clientPublicKey));
-                    System.out.println("Balance: " + response.balance);
+                    if(!verifySignedEchos(echoSignatures, request, request.transaction.source, request.ledger.timestamp)) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Mismatch in request signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
+
+                    log.log(Level.INFO, "Request received at: /receiveAmount \n" +
+                            "data on the request:\n" +
+                            "SIGNATURE: " + req.headers(Serialization.SIGNATURE_HEADER_NAME) + "\n" +
+                            "NONCE: " + request.transaction.nonce + "\n" +
+                            "AMOUNT:" + request.transaction.amount + "\n" +
+                            "SOURCE PUBLIC KEY: " + request.transaction.source + "\n" +
+                            "TARGET PUBLIC KEY: " + request.transaction.target + "\n" +
+                            "PENDING TRANSACTION: " + request.pendingTransactionHash);
+
+                    //Recreate the hash with the data received
+                    boolean result = checkRequestSignature(
+                            req,
+                            request.getSignable(),
+                            request.transaction.source);
+
+                    if (!result) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Mismatch in request signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
+
+                    ///////////////////////////////////////////////////
+                    //We now know that *the whole request* was created by the owner of its respective private key.
+                    ///////////////////////////////////////////////////
+
+                    // now check the transaction itself
+                    result = Utils.checkSignature(
+                            request.transaction.signature,
+                            request.transaction.getSignable(),
+                            request.transaction.source);
+
+                    if (!result) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Mismatch in transaction signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
+
+                    // the timestamp and the hash of the ledger are validated against the cached account state
+                    sourceState = awaitWriteTurn(request.transaction.source, request.ledger.timestamp);
+
+                    // check the timestamp of the request
+                    if (sourceState.getTimestamp () >= request.ledger.timestamp) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Older operation");
+                        response.status = ERROR_INVALID_LEDGER;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
+
+                    // the transaction IDs obtained in "new Transaction" must still be "fresh" when "transaction.persist"
+                    // is called, and the latest transaction must still be the latest transaction, see commitWrite
+                    AccountState state = sourceState;
+                    commitWrite(conn -> {
+                        Ledger sourceLedger = Ledger.load(conn, state.getId());
+                        boolean synchronizedLedger = synchronizeLedger(conn, sourceLedger, state, request.ledger);
+                        Transaction transaction = claimPendingTransaction(conn, state, sourceLedger,
+                                request.transaction, request.pendingTransactionHash);
+                        sourceLedger.setTimestamp (request.ledger.timestamp);
+                        sourceLedger.persist(conn);
 
+                        return committed -> {
+                            if (synchronizedLedger) {
+                                reloadReplicaState(committed);
+                            } else {
+                                accountCache.put(new AccountState(state.getId(), state.getPublicKeyBase64(),
+                                        state.getPublicKey(), sourceLedger.getAmount(), request.ledger.timestamp,
+                                        getHeadHash(request.ledger, Collections.singletonList(request.transaction)),
+                                        transaction.getHash()));
+                                pendingInbox.remove(request.pendingTransactionHash);
+                            }
+                        };
+                    });
                     response.status = SUCCESS;
-                    log.log(Level.INFO, "Successful check account operation of the ledger with " +
-                            "public key: " + pubKeyBase64);
-                    conn.commit();
-                    committed = true;
-                    return prepareResponse(serverPrivateKey, res, response);
+                    log.log(Level.INFO, "Transaction created with success.");
                 } catch (SQLException e) {
                     // servers fault
                     log.log(Level.SEVERE, "Error related to the database. " + e);
-                    errorResponse.status = ERROR_SERVER_ERROR;
+                    response.status = ERROR_SERVER_ERROR;
                 }
                 // these exceptions are the client's fault
                 catch (MissingLedgerException e) {
-                    errorResponse.status = ERROR_INVALID_LEDGER;
+                    response.status = ERROR_INVALID_LEDGER;
+                } catch (InvalidAmountException e) {
+                    response.status = ERROR_INVALID_AMOUNT;
+                } catch (MissingTransactionException e) {
+                    response.status = ERROR_INVALID_VALUE;
                 } catch (InvalidKeyException e) {
-                    errorResponse.status = ERROR_INVALID_KEY;
+                    response.status = ERROR_INVALID_KEY;
+                } catch (SignatureException e) {
+                    response.status = ERROR_NO_SIGNATURE_MATCH;
                 } finally {
-                    if (conn != null && !committed) {
-                        conn.rollback();
+                    if ((response.status == null || !response.status.equals(SUCCESS)) && sourceState != null) {
+                        accountCache.invalidate(sourceState.getPublicKeyBase64());
+                        log.log(Level.SEVERE, "The transaction created was not persisted, due to an error.");
                     }
+                    writeSequencer.end(request.transaction.source, request.ledger.timestamp);
                 }
-                return prepareResponse(serverPrivateKey, res, errorResponse);
+
+                return prepareResponse(serverPrivateKey, req, res, response);
             } catch (Exception ex) {
                 res.status(500);
                 Serialization.Response response = new Serialization.Response();
                 response.status = ERROR_SERVER_ERROR;
-                log.log(Level.SEVERE, "Error on processing a check account request. " + ex);
-                return prepareResponse(serverPrivateKey, res, response);
+                log.log(Level.SEVERE, "Error on processing a send amount request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
             }
         });
 
-        http.get("/audit/:key", "application/json", (req, res) -> {
+        http.post("/receiveAmountBatch", (req, res) -> {
             try {
-                Serialization.Response errorResponse = new Serialization.Response ();
-                errorResponse.nonce = req.headers (Serialization.NONCE_HEADER_NAME);
-                String pubKeyBase64 = req.params (":key");
-                if (pubKeyBase64 == null) {
-                    errorResponse.status = ERROR_MISSING_PARAMETER;
-                    return prepareResponse (serverPrivateKey, res, errorResponse);
+                Serialization.ReceiveAmountBatchRequest request = parseRequest(req,
+                        Serialization.ReceiveAmountBatchRequest.class);
+
+                Serialization.Response response = new Serialization.Response();
+                response.nonce = request.nonce;
+
+                if (request.transactions == null || request.transactions.isEmpty() || request.ledger == null ||
+                        request.pendingTransactionHashes == null ||
+                        request.pendingTransactionHashes.size() != request.transactions.size()) {
+                    res.status(400);
+                    log.log(Level.WARNING, "Missing transactions on batch receive request.");
+                    response.status = ERROR_MISSING_PARAMETER;
+                    return prepareResponse(serverPrivateKey, req, res, response);
                 }
-                log.log (Level.INFO, "Going to send audit data for public key: " + pubKeyBase64);
+                String author = request.transactions.get(0).source;
 
-                Connection conn = null;
+                String echoSignatures = req.headers(Serialization.ECHO_SIGNATURES_HEADER_NAME);
+                if(echoSignatures == null && req.headers().contains(Serialization.BROADCAST_HEADER_NAME)) {
+                    echoSignatures = broadcastEchos(request, request.getNonce(), author, request.ledger.timestamp);
+                }
+                if(echoSignatures == null) {
+                    return signEcho(serverPrivateKey, req, res, request, request.getNonce(), author, request.ledger.timestamp);
+                }
+
+                // the write is in flight on the sequencer from its echo on, its turn ends however its commit ends
+                AccountState sourceState = null;
                 try {
-                    Serialization.AuditResponse response = new Serialization.AuditResponse ();
-                    response.nonce = req.headers (Serialization.NONCE_HEADER_NAME);
-                    conn = database.getConnection ();
-                    ECPublicKey publicKey = Serialization.base64toPublicKey (req.params (":key"));
-                    Ledger ledger = Ledger.load (conn, publicKey);
-                    //response.transactions = serializeTransactions(ledger.getAllTransactions(conn));
-                    List<Transaction> transactions = ledger.getAllTransactions (conn);
-                    response.ledger = new Serialization.Ledger ();
-                    response.ledger.transactions = serializeTransactions (transactions);
-                    response.ledger.timestamp = ledger.getTimestamp ();
-                    conn.commit ();
-                    response.status = SUCCESS;
-                    log.log (Level.INFO, "Audit ledger timestamp: " + response.ledger.timestamp + "\n");
-                    log.log (Level.INFO, "Audit transactions response: " + response.ledger.transactions + "\n");
-                    return prepareResponse (serverPrivateKey, res, response);
-                } catch (MissingLedgerException e) {
-                    errorResponse.status = ERROR_INVALID_LEDGER;
-                } catch (InvalidKeyException e) {
-                    errorResponse.status = ERROR_INVALID_KEY;
-                } catch (SQLException e) {
-                    // servers fault
+                    if(!verifySignedEchos(echoSignatures, request, author, request.ledger.timestamp)) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Mismatch in request signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
+
+                    log.log(Level.INFO, "Request received at: /receiveAmountBatch \n" +
+                            "data on the request:\n" +
+                            "SIGNATURE: " + req.headers(Serialization.SIGNATURE_HEADER_NAME) + "\n" +
+                            "NONCE: " + request.nonce + "\n" +
+                            "SOURCE PUBLIC KEY: " + author + "\n" +
+                            "PENDING TRANSACTIONS: " + request.pendingTransactionHashes);
+
+                    //Recreate the hash with the data received
+                    boolean result = checkRequestSignature(
+                            req,
+                            request.getSignable(),
+                            author);
+
+                    if (!result) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Mismatch in request signatures");
+                        response.status = ERROR_NO_SIGNATURE_MATCH;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
+
+                    // every transaction of the batch must be a receiving transaction of the author, signed by it
+                    for (Serialization.Transaction transaction : request.transactions) {
+                        if (!author.equals(transaction.source) || transaction.isSend ||
+                                !Utils.checkSignature(transaction.signature, transaction.getSignable(), author)) {
+                            res.status(401);
+                            log.log(Level.WARNING, "Mismatch in transaction signatures");
+                            response.status = ERROR_NO_SIGNATURE_MATCH;
+                            return prepareResponse(serverPrivateKey, req, res, response);
+                        }
+                    }
+
+                    sourceState = awaitWriteTurn(author, request.ledger.timestamp);
+
+                    // check the timestamp of the request
+                    if (sourceState.getTimestamp () >= request.ledger.timestamp) {
+                        res.status(401);
+                        log.log(Level.WARNING, "Older operation");
+                        response.status = ERROR_INVALID_LEDGER;
+                        return prepareResponse(serverPrivateKey, req, res, response);
+                    }
+
+                    // the whole batch is a single operation of the ledger: all pending transactions are claimed
+                    // and credited in one database transaction, or none is
+                    AccountState state = sourceState;
+                    commitWrite(conn -> {
+                        Ledger sourceLedger = Ledger.load(conn, state.getId());
+                        boolean synchronizedLedger = synchronizeLedger(conn, sourceLedger, state, request.ledger);
+                        List<Transaction> transactions = new ArrayList<>();
+                        for (int i = 0; i < request.transactions.size(); i++) {
+                            transactions.add(claimPendingTransaction(conn, state, sourceLedger,
+                                    request.transactions.get(i), request.pendingTransactionHashes.get(i)));
+                        }
+                        sourceLedger.setTimestamp (request.ledger.timestamp);
+                        sourceLedger.persist(conn);
+
+                        return committed -> {
+                            if (synchronizedLedger) {
+                                reloadReplicaState(committed);
+                            } else {
+                                accountCache.put(new AccountState(state.getId(), state.getPublicKeyBase64(),
+                                        state.getPublicKey(), sourceLedger.getAmount(), request.ledger.timestamp,
+                                        getHeadHash(request.ledger, request.transactions),
+                                        transactions.get(transactions.size() - 1).getHash()));
+                                for (String pendingTransactionHash : request.pendingTransactionHashes) {
+                                    pendingInbox.remove(pendingTransactionHash);
+                                }
+                            }
+                        };
+                    });
+                    response.status = SUCCESS;
+                    log.log(Level.INFO, request.transactions.size() + " transactions received with success.");
+                } catch (SQLException e) {
+                    // servers fault
+                    log.log(Level.SEVERE, "Error related to the database. " + e);
+                    response.status = ERROR_SERVER_ERROR;
+                }
+                // these exceptions are the client's fault
+                catch (MissingLedgerException e) {
+                    response.status = ERROR_INVALID_LEDGER;
+                } catch (InvalidAmountException e) {
+                    response.status = ERROR_INVALID_AMOUNT;
+                } catch (MissingTransactionException | InvalidValueException e) {
+                    response.status = ERROR_INVALID_VALUE;
+                } catch (InvalidKeyException e) {
+                    response.status = ERROR_INVALID_KEY;
+                } catch (SignatureException e) {
+                    response.status = ERROR_NO_SIGNATURE_MATCH;
+                } finally {
+                    if ((response.status == null || !response.status.equals(SUCCESS)) && sourceState != null) {
+                        accountCache.invalidate(sourceState.getPublicKeyBase64());
+                        log.log(Level.SEVERE, "The batch of transactions was not persisted, due to an error.");
+                    }
+                    writeSequencer.end(author, request.ledger.timestamp);
+                }
+
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a batch receive request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        ////////////////////////////////////////////////
+        //// READ OPERATIONS
+        ////////////////////////////////////////////////
+
+        http.get("/checkAccount/:key", (req, res) -> {
+            try {
+                // init generic response to use when an error occur
+                Serialization.Response errorResponse = new Serialization.Response();
+                errorResponse.nonce = req.headers(Serialization.NONCE_HEADER_NAME);
+                String pubKeyBase64 = req.params(":key");
+                if (pubKeyBase64 == null) {
+                    errorResponse.status = ERROR_MISSING_PARAMETER;
+                    return prepareResponse(serverPrivateKey, req, res, errorResponse);
+                }
+                log.log(Level.INFO, "Checking account with public key: " + pubKeyBase64);
+
+                try {
+                    Serialization.CheckAccountResponse response = new Serialization.CheckAccountResponse();
+                    AccountState state = getAccountState(pubKeyBase64);
+                    response.nonce = req.headers(Serialization.NONCE_HEADER_NAME);
+                    response.balance = state.getBalance();
+                    response.timestamp = state.getTimestamp();
+                    // all pending transactions are listed unless the client asks for a page
+                    int offset = getIntQueryParam(req, Serialization.OFFSET_PARAMETER_NAME, 0);
+                    int limit = getIntQueryParam(req, Serialization.LIMIT_PARAMETER_NAME, Integer.MAX_VALUE);
+                    response.pendingCount = pendingInbox.count(state.getPublicKeyBase64());
+                    response.pendingTransactions = pendingInbox.list(state.getPublicKeyBase64(), offset, limit);
+                    System.out.println("Balance: " + response.balance);
+
+                    response.status = SUCCESS;
+                    log.log(Level.INFO, "Successful check account operation of the ledger with " +
+                            "public key: " + pubKeyBase64);
+                    return prepareResponse(serverPrivateKey, req, res, response);
+                } catch (SQLException e) {
+                    // servers fault
+                    log.log(Level.SEVERE, "Error related to the database. " + e);
+                    errorResponse.status = ERROR_SERVER_ERROR;
+                }
+                // these exceptions are the client's fault
+                catch (MissingLedgerException e) {
+                    errorResponse.status = ERROR_INVALID_LEDGER;
+                } catch (InvalidKeyException e) {
+                    errorResponse.status = ERROR_INVALID_KEY;
+                } catch (InvalidValueException e) {
+                    errorResponse.status = ERROR_INVALID_VALUE;
+                }
+                return prepareResponse(serverPrivateKey, req, res, errorResponse);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a check account request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        http.get("/audit/:key", (req, res) -> {
+            try {
+                Serialization.Response errorResponse = new Serialization.Response ();
+                errorResponse.nonce = req.headers (Serialization.NONCE_HEADER_NAME);
+                String pubKeyBase64 = req.params (":key");
+                if (pubKeyBase64 == null) {
+                    errorResponse.status = ERROR_MISSING_PARAMETER;
+                    return prepareResponse (serverPrivateKey, req, res, errorResponse);
+                }
+                log.log (Level.INFO, "Going to send audit data for public key: " + pubKeyBase64);
+
+                try {
+                    AccountCache.Audit audit = getAudit (pubKeyBase64);
+                    Serialization.AuditResponse response = new Serialization.AuditResponse ();
+                    response.nonce = req.headers (Serialization.NONCE_HEADER_NAME);
+                    response.setLedger (audit.getLedger (), audit.getDigest ());
+                    response.status = SUCCESS;
+                    log.log (Level.INFO, "Audit ledger timestamp: " + response.ledger.timestamp + "\n");
+                    return prepareAuditResponse (req, res, response, audit);
+                } catch (MissingLedgerException e) {
+                    errorResponse.status = ERROR_INVALID_LEDGER;
+                } catch (KeyException e) {
+                    errorResponse.status = ERROR_INVALID_KEY;
+                } catch (SQLException e) {
+                    // servers fault
                     log.log (Level.SEVERE, "Error related with the database. " + e);
                     errorResponse.status = ERROR_SERVER_ERROR;
+                }
+                return prepareResponse (serverPrivateKey, req, res, errorResponse);
+            }catch (Exception e) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a check account request. " + e);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        // a transaction of a ledger with its inclusion proof, checked by the client in O(log n) hashes
+        http.get("/proof/:key", (req, res) -> {
+            try {
+                Serialization.Response errorResponse = new Serialization.Response();
+                errorResponse.nonce = req.headers(Serialization.NONCE_HEADER_NAME);
+                String transactionHash = req.queryParams(Serialization.TRANSACTION_PARAMETER_NAME);
+                if (transactionHash == null || transactionHash.isEmpty()) {
+                    errorResponse.status = ERROR_MISSING_PARAMETER;
+                    return prepareResponse(serverPrivateKey, req, res, errorResponse);
+                }
+
+                Connection conn = null;
+                try {
+                    // a single read transaction, so the root and the proof are of the same ledger
+                    conn = database.getConnection();
+                    Ledger ledger = Ledger.load(conn, Serialization.base64toPublicKey(req.params(":key")));
+                    int index = MerkleAccumulator.indexOf(conn, ledger.getId(), transactionHash);
+                    if (index < 0) {
+                        errorResponse.status = ERROR_INVALID_VALUE;
+                        return prepareResponse(serverPrivateKey, req, res, errorResponse);
+                    }
+                    Serialization.InclusionProofResponse response = new Serialization.InclusionProofResponse();
+                    response.nonce = errorResponse.nonce;
+                    response.timestamp = ledger.getTimestamp();
+                    response.transaction = serializeTransactions(
+                            Collections.singletonList(Transaction.getTransactionByHash(conn, transactionHash))).get(0);
+                    response.index = index;
+                    response.treeSize = MerkleAccumulator.getSize(conn, ledger.getId());
+                    response.rootHash = MerkleAccumulator.getRoot(conn, ledger.getId(), response.treeSize);
+                    response.path = MerkleAccumulator.getInclusionProof(conn, ledger.getId(), index, response.treeSize);
+                    response.status = SUCCESS;
+                    return prepareResponse(serverPrivateKey, req, res, response);
+                } catch (MissingLedgerException e) {
+                    errorResponse.status = ERROR_INVALID_LEDGER;
+                } catch (MissingTransactionException e) {
+                    errorResponse.status = ERROR_INVALID_VALUE;
+                } catch (KeyException e) {
+                    errorResponse.status = ERROR_INVALID_KEY;
+                } catch (SQLException e) {
+                    // servers fault
+                    log.log(Level.SEVERE, "Error related with the database. " + e);
+                    errorResponse.status = ERROR_SERVER_ERROR;
                 } finally {
                     if (conn != null) {
-                        try {
-                            conn.rollback ();
-                        } catch (SQLException ex) {
-                            // if we can't even rollback, this is now a server error
-                            errorResponse.status = ERROR_SERVER_ERROR;
-                        }
+                        conn.rollback();
+                        conn.close();
                     }
                 }
-                return prepareResponse (serverPrivateKey, res, errorResponse);
-            }catch (Exception e) {
+                return prepareResponse(serverPrivateKey, req, res, errorResponse);
+            } catch (Exception ex) {
                 res.status(500);
                 Serialization.Response response = new Serialization.Response();
                 response.status = ERROR_SERVER_ERROR;
-                log.log(Level.SEVERE, "Error on processing a check account request. " + e);
-                return prepareResponse(serverPrivateKey, res, response);
+                log.log(Level.SEVERE, "Error on processing an inclusion proof request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        http.post("/checkAccounts", (req, res) -> {
+            Serialization.BatchReadRequest request = null;
+            try {
+                request = parseRequest(req, Serialization.BatchReadRequest.class);
+                Serialization.CheckAccountsResponse response = new Serialization.CheckAccountsResponse();
+                response.nonce = request.nonce;
+                if (request.publicKeys == null || request.publicKeys.isEmpty()) {
+                    response.status = ERROR_MISSING_PARAMETER;
+                    return prepareResponse(serverPrivateKey, req, res, response);
+                }
+                log.log(Level.INFO, "Checking " + request.publicKeys.size() + " accounts.");
+
+                try {
+                    int offset = getIntQueryParam(req, Serialization.OFFSET_PARAMETER_NAME, 0);
+                    int limit = getIntQueryParam(req, Serialization.LIMIT_PARAMETER_NAME, Integer.MAX_VALUE);
+                    for (String pubKeyBase64 : request.publicKeys) {
+                        response.accounts.add(getCheckAccountEntry(pubKeyBase64, offset, limit));
+                    }
+                    response.status = SUCCESS;
+                } catch (InvalidValueException e) {
+                    response.status = ERROR_INVALID_VALUE;
+                }
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.nonce = (request != null && request.nonce != null ? request.nonce : "");
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a check accounts request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        http.post("/audits", (req, res) -> {
+            Serialization.BatchReadRequest request = null;
+            try {
+                request = parseRequest(req, Serialization.BatchReadRequest.class);
+                Serialization.AuditsResponse response = new Serialization.AuditsResponse();
+                response.nonce = request.nonce;
+                if (request.publicKeys == null || request.publicKeys.isEmpty()) {
+                    response.status = ERROR_MISSING_PARAMETER;
+                    return prepareResponse(serverPrivateKey, req, res, response);
+                }
+                log.log(Level.INFO, "Going to send audit data for " + request.publicKeys.size() + " accounts.");
+
+                try {
+                    for (String pubKeyBase64 : request.publicKeys) {
+                        response.accounts.add(getAuditEntry(pubKeyBase64));
+                    }
+                    response.status = SUCCESS;
+                } catch (SQLException e) {
+                    // servers fault
+                    log.log(Level.SEVERE, "Error related with the database. " + e);
+                    response.status = ERROR_SERVER_ERROR;
+                    response.accounts.clear();
+                }
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.nonce = (request != null && request.nonce != null ? request.nonce : "");
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing an audits request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        // long-poll for the transfers to an account, answers as soon as there is one newer than the since parameter
+        http.get("/subscribe/:key", (req, res) -> {
+            try {
+                Serialization.Response errorResponse = new Serialization.Response();
+                errorResponse.nonce = req.headers(Serialization.NONCE_HEADER_NAME);
+                String pubKeyBase64 = req.params(":key");
+                if (pubKeyBase64 == null) {
+                    errorResponse.status = ERROR_MISSING_PARAMETER;
+                    return prepareResponse(serverPrivateKey, req, res, errorResponse);
+                }
+
+                try {
+                    int since = getIntQueryParam(req, Serialization.SINCE_PARAMETER_NAME, 0);
+                    int wait = getIntQueryParam(req, Serialization.WAIT_PARAMETER_NAME, NotificationHub.MAX_WAIT_MILLIS);
+                    String target = Serialization.publicKeyToBase64(Serialization.base64toPublicKey(pubKeyBase64));
+                    Serialization.NotificationResponse response = notificationHub.await(target, since, wait);
+                    response.nonce = req.headers(Serialization.NONCE_HEADER_NAME);
+                    response.status = SUCCESS;
+                    return prepareResponse(serverPrivateKey, req, res, response);
+                } catch (KeyException e) {
+                    errorResponse.status = ERROR_INVALID_KEY;
+                } catch (InvalidValueException e) {
+                    errorResponse.status = ERROR_INVALID_VALUE;
+                }
+                return prepareResponse(serverPrivateKey, req, res, errorResponse);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a subscribe request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
             }
         });
 
@@ -729,119 +1270,57 @@ public class Server {
         //// WRITE-BACK RECEIVERS (for (1,N) atomic register)
         ////////////////////////////////////////////////
 
-        http.post("/ledgerWriteback", "application/json", (req, res) -> {
+        http.post("/ledgerWriteback", (req, res) -> {
             try {
-                Serialization.WriteBackRequest request = Serialization.parse(req,
+                Serialization.WriteBackRequest request = parseRequest(req,
                         Serialization.WriteBackRequest.class);
 
                 Serialization.Response response = new Serialization.Response();
                 response.nonce = request.nonce;
 
-                if(request.ledger.transactions == null || request.ledger.transactions.size() == 0) {
+                // a ledger made only of its checkpoint is not empty
+                if(request.ledger.getOwner() == null) {
                     res.status(400);
                     log.log(Level.WARNING, "Empty ledger on writeback");
                     response.status = ERROR_INVALID_LEDGER;
-                    return prepareResponse(serverPrivateKey, res, response);
+                    return prepareResponse(serverPrivateKey, req, res, response);
                 }
 
                 if(!req.headers().contains(Serialization.ECHO_SIGNATURES_HEADER_NAME)) {
-                    return signEcho(serverPrivateKey, res, request, request.getNonce(), request.ledger.transactions.get(0).source);
-                } else if(!verifySignedEchos(req.headers(Serialization.ECHO_SIGNATURES_HEADER_NAME), request, request.ledger.transactions.get(0).source)) {
+                    return signEcho(serverPrivateKey, req, res, request, request.getNonce(), request.ledger.getOwner(), request.ledger.timestamp, WRITE_BACK_ECHO_SLOT);
+                } else if(!verifySignedEchos(req.headers(Serialization.ECHO_SIGNATURES_HEADER_NAME), request, WRITE_BACK_ECHO_SLOT + request.ledger.getOwner(), request.ledger.timestamp)) {
                     res.status(401);
                     log.log(Level.WARNING, "Mismatch in request signatures");
                     response.status = ERROR_NO_SIGNATURE_MATCH;
-                    return prepareResponse(serverPrivateKey, res, response);
+                    return prepareResponse(serverPrivateKey, req, res, response);
                 }
 
                 log.log(Level.INFO, "\n\n------------------------------------");
                 log.log(Level.INFO, "Request received at: /ledgerWriteback\n");
 
-                Connection conn = null;
+                AccountState sourceState = null;
                 try {
-                    conn = database.getConnection();
-                    Ledger sourceLedger = Ledger.load(conn, Serialization.base64toPublicKey(request.ledger.transactions.get(0).source));
+                    sourceState = getAccountState(request.ledger.getOwner());
 
                     // check the timestamp of the request
-                    if (sourceLedger.getTimestamp () >= request.ledger.timestamp) {
+                    if (sourceState.getTimestamp () >= request.ledger.timestamp) {
                         res.status(401);
                         log.log(Level.WARNING, "Older operation");
                         response.status = ERROR_INVALID_LEDGER;
-                        return prepareResponse(serverPrivateKey, res, response);
-                    }
-
-                    //////////////////
-                    // verify if the hash of the ledger received match the ledger currently persisted
-                    //////////////////
-
-                    // hash the local ledger
-                    List<Transaction> localTransactions = sourceLedger.getAllTransactions (conn);
-                    List<Serialization.Transaction> localSerializableTransactions = serializeTransactions (localTransactions);
-                    VerifiableLedger localLedger = new VerifiableLedger (localSerializableTransactions);
-                    String localLedgerHash = Utils.generateHashBase64 (localLedger.getHashable ());
-
-                    // hash the ledger received
-                    VerifiableLedger receivedLedger = new VerifiableLedger (request.ledger.transactions);
-                    String receivedLedgerHash = Utils.generateHashBase64 (receivedLedger.getHashable ());
-
-                    if (localLedgerHash == null || receivedLedgerHash == null) {
-                        res.status(401);
-                        log.log(Level.WARNING, "Couldn't hash the transactions.");
-                        response.status = ERROR_SERVER_ERROR;   // could be better
-                        return prepareResponse(serverPrivateKey, res, response);
-                    }
-
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "Ledger received:");
-                    log.log(Level.INFO, "timestamp: " + request.ledger.timestamp);
-                    log.log(Level.INFO, "signable: " + receivedLedger.getHashable ());
-                    log.log(Level.INFO, "Sign: " + receivedLedgerHash);
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "\n");
-                    log.log(Level.INFO, "Local ledger: ");
-                    log.log(Level.INFO, "timestamp: " + sourceLedger.getTimestamp ());
-                    log.log(Level.INFO, "signable: " + localLedger.getHashable ());
-                    log.log(Level.INFO, "Sign: " + localLedgerHash);
-                    log.log(Level.INFO, "---------------------------");
-                    log.log(Level.INFO, "\n");
-
-
-                    // if not equal the local replica is ahead or behind the current agreed ledger by the majority of replicas
-                    if (!localLedgerHash.equals (receivedLedgerHash)) {
-
-                        int endIndex = localSerializableTransactions.size () - 1;
-                        // remove the last transaction from the last before hashing
-                        // TODO should we do this on write-backs?
-                        VerifiableLedger subLocalLedger = new VerifiableLedger (localSerializableTransactions.subList (endIndex - 1, endIndex));
-                        String subLocalLedgerHash = Utils.generateHashBase64 (subLocalLedger.getHashable ());
-
-                        // check if the ledger contained one operation that wasn't completed by a majority
-                        if (subLocalLedgerHash.equals (receivedLedgerHash)) {
-                            // remove the last transaction from the database
-                            Transaction.removeTransaction (conn, localTransactions.get (localTransactions.size () - 1).getId ());
-                            conn.commit (); // commit this change
-                            // continue, to try to perform the operation now on a update ledger which is agreed by the majority
-                        } else {
-                            /*
-                            has the ledger on a replica can only have at most a operation at the top of the ledger
-                            that wasn't completed by a majority when this stage is reached it means that the replica
-                            is behind the current agreed state of a ledger.
-                            So the replica must find out how many transactions it is behind so it can persist the missing
-                            transactions on its end and then try to fulfil the operation required on the update state.
-                            At this stage as the client isn't byzantine then the received ledger is assumed that it wasn't
-                            modified and is the result of the majority of the replicas.
-                            */
-                            ArrayList<Serialization.Transaction> copyReceivedTransactions = new ArrayList<> (request.ledger.transactions);
-                            int end = copyReceivedTransactions.size () - 1;
-                            int numberOfTransactionsBehind = getNumberOfTransactionsBehind(copyReceivedTransactions, new ArrayList<> (localSerializableTransactions));
-                            int start = end - numberOfTransactionsBehind;
-                            log.log(Level.INFO,"This replica contained a ledger that was " + numberOfTransactionsBehind + " transactions behind.");
-                            persistMissingTransactions(conn, new ArrayList<> (request.ledger.transactions).subList (start, end), sourceLedger);
-                        }
-                    } else {
-                        log.log(Level.INFO,"Local ledger is already in sync with the ledger received");
+                        return prepareResponse(serverPrivateKey, req, res, response);
                     }
 
-                    conn.commit();
+                    // applied and committed like any other write, so it can't interleave with a batch of them
+                    AccountState state = sourceState;
+                    commitWrite(conn -> {
+                        Ledger sourceLedger = Ledger.load(conn, state.getId());
+                        boolean synchronizedLedger = synchronizeLedger(conn, sourceLedger, state, request.ledger);
+                        return committed -> {
+                            if (synchronizedLedger) {
+                                reloadReplicaState(committed);
+                            }
+                        };
+                    });
                     response.status = SUCCESS;
                     log.log(Level.INFO, "Write-back completed successfully.");
                 } catch (SQLException e) {
@@ -858,27 +1337,226 @@ public class Server {
                     e.printStackTrace ();
                     response.status = ERROR_NO_SIGNATURE_MATCH;
                 } finally {
-                    if ((response.status == null || !response.status.equals(SUCCESS)) && conn != null) {
-                        conn.rollback();
+                    if ((response.status == null || !response.status.equals(SUCCESS)) && sourceState != null) {
+                        accountCache.invalidate(sourceState.getPublicKeyBase64());
                         log.log(Level.SEVERE, "The write-back failed.");
                     }
                 }
 
-                return prepareResponse(serverPrivateKey, res, response);
+                return prepareResponse(serverPrivateKey, req, res, response);
             } catch (Exception ex) {
                 res.status(500);
                 Serialization.Response response = new Serialization.Response();
                 response.status = ERROR_SERVER_ERROR;
                 log.log(Level.SEVERE, "Error on processing a write-back request. " + ex);
-                return prepareResponse(serverPrivateKey, res, response);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        ////////////////////////////////////////////////
+        //// REPLICA TO REPLICA
+        ////////////////////////////////////////////////
+
+        http.post("/broadcast", (req, res) -> {
+            try {
+                Serialization.BroadcastMessage message = parseRequest(req, Serialization.BroadcastMessage.class);
+                Serialization.Response response = new Serialization.Response();
+                if (reliableBroadcast.receive(message, req.headers(Serialization.SIGNATURE_HEADER_NAME))) {
+                    response.status = SUCCESS;
+                } else {
+                    res.status(401);
+                    log.log(Level.WARNING, "Broadcast message not signed by another replica.");
+                    response.status = ERROR_NO_SIGNATURE_MATCH;
+                }
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a broadcast message. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        // a node of the Merkle tree of the ledger heads: the hashes of its children, or the heads under it on a leaf
+        http.get("/syncTree", (req, res) -> {
+            try {
+                Serialization.SyncTreeResponse response = new Serialization.SyncTreeResponse();
+                response.nonce = req.headers(Serialization.NONCE_HEADER_NAME);
+                String prefix = req.queryParams(Serialization.PREFIX_PARAMETER_NAME);
+                response.prefix = prefix == null ? "" : prefix;
+                if (!LedgerMerkleTree.isNode(response.prefix)) {
+                    response.status = ERROR_INVALID_VALUE;
+                    return prepareResponse(serverPrivateKey, req, res, response);
+                }
+                LedgerMerkleTree tree = getSyncTree();
+                response.leaf = tree.isLeaf(response.prefix);
+                if (response.leaf) {
+                    response.entries = tree.getEntries(response.prefix);
+                } else {
+                    response.children = tree.getChildHashes(response.prefix);
+                }
+                response.status = SUCCESS;
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a sync tree request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        // signs a checkpoint proposed by a peer, if the ledger has the same head here
+        http.post("/checkpoint/sign", (req, res) -> {
+            try {
+                Serialization.CheckpointRequest request = parseRequest(req, Serialization.CheckpointRequest.class);
+                Serialization.CheckpointSignatureResponse response = new Serialization.CheckpointSignatureResponse();
+                response.nonce = request.nonce;
+                response.signature = signCheckpoint(request.checkpoint);
+                response.status = response.signature != null ? SUCCESS : ERROR_INVALID_LEDGER;
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a checkpoint signing request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        http.post("/checkpoint/install", (req, res) -> {
+            try {
+                Serialization.CheckpointRequest request = parseRequest(req, Serialization.CheckpointRequest.class);
+                Serialization.Response response = new Serialization.Response();
+                response.nonce = request.nonce;
+                if (request.checkpoint == null || !request.checkpoint.isCertified(servers)) {
+                    response.status = ERROR_NO_SIGNATURE_MATCH;
+                    return prepareResponse(serverPrivateKey, req, res, response);
+                }
+                try {
+                    installCertifiedCheckpoint(request.checkpoint);
+                    response.status = SUCCESS;
+                } catch (MissingLedgerException | InvalidLedgerException e) {
+                    // left for the anti-entropy or the next write of the account
+                    log.log(Level.WARNING, "Checkpoint not installed. " + e);
+                    response.status = ERROR_INVALID_LEDGER;
+                }
+                return prepareResponse(serverPrivateKey, req, res, response);
+            } catch (Exception ex) {
+                res.status(500);
+                Serialization.Response response = new Serialization.Response();
+                response.status = ERROR_SERVER_ERROR;
+                log.log(Level.SEVERE, "Error on processing a checkpoint install request. " + ex);
+                return prepareResponse(serverPrivateKey, req, res, response);
+            }
+        });
+
+        ////////////////////////////////////////////////
+        //// METRICS
+        ////////////////////////////////////////////////
+
+        http.get("/metrics", (req, res) -> {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("compression", compressionStats.toMap());
+            metrics.put("accountCache", accountCache.toMap());
+            Map<String, Object> singleFlight = new LinkedHashMap<>();
+            singleFlight.put("accountState", accountStateLoads.toMap());
+            singleFlight.put("audit", auditLoads.toMap());
+            metrics.put("singleFlight", singleFlight);
+            metrics.put("echoStore", echoStore.toMap());
+            metrics.put("sessions", sessionStore.toMap());
+            if (commitBatcher != null) {
+                metrics.put("echoBatching", echoBatcher.toMap());
+                metrics.put("commitBatching", commitBatcher.toMap());
+            }
+            if (antiEntropy != null) {
+                metrics.put("antiEntropy", antiEntropy.toMap());
             }
+            if (checkpointer != null) {
+                metrics.put("checkpoints", checkpointer.toMap());
+            }
+            res.type(Serialization.JSON_CONTENT_TYPE);
+            return Serialization.serialize(metrics);
         });
 
+        if (antiEntropyPeriodMillis > 0 && servers != null) {
+            antiEntropy = new AntiEntropy(serverName, servers, new AntiEntropy.Replica() {
+                @Override public LedgerMerkleTree getSyncTree() throws Exception {
+                    return Server.this.getSyncTree();
+                }
+
+                @Override public int repair(List<Serialization.Ledger> ledgers,
+                                            Map<String, Serialization.SyncEntry> heads) throws Exception {
+                    return repairLedgers(ledgers, heads);
+                }
+            }, antiEntropyPeriodMillis, antiEntropyBytesPerSecond, log);
+            antiEntropy.start();
+            log.log(Level.INFO, "Anti-entropy every " + antiEntropyPeriodMillis + " ms, up to " +
+                    antiEntropyBytesPerSecond + " bytes per second.");
+        }
+
+        if (checkpointPeriodMillis > 0 && servers != null) {
+            checkpointer = new Checkpointer(serverName, servers, new Checkpointer.Replica() {
+                @Override public List<Serialization.Checkpoint> getCandidates() throws Exception {
+                    return getCheckpointCandidates();
+                }
+
+                @Override public String sign(Serialization.Checkpoint checkpoint) throws Exception {
+                    return signCheckpoint(checkpoint);
+                }
+
+                @Override public void install(Serialization.Checkpoint checkpoint) throws Exception {
+                    installCertifiedCheckpoint(checkpoint);
+                }
+            }, checkpointPeriodMillis, log);
+            checkpointer.start();
+            log.log(Level.INFO, "Checkpoints every " + checkpointPeriodMillis + " ms, of ledgers with at least " +
+                    checkpointMinTransactions + " transactions.");
+        }
+
         return http;
     }
 
-    private static String prepareResponse(ECPrivateKey privateKey, Response sparkResponse, Serialization.Response response) throws JsonProcessingException, SignatureException {
+    private byte[] prepareResponse(ECPrivateKey privateKey, Request sparkRequest, Response sparkResponse, Serialization.Response response) throws JsonProcessingException, SignatureException {
+        String contentType = signResponse(privateKey, sparkRequest, sparkResponse, response);
+        byte[] body = Serialization.serialize(response, contentType);
+        return compressResponse(sparkRequest, sparkResponse, body);
+    }
+
+    /**
+     * Prepares a successful audit response. The nonce differs on every response, so only the fields around the
+     * ledger are encoded here, and the ledger encoded, and compressed, once per audit is spliced in between them.
+     */
+    private byte[] prepareAuditResponse(Request sparkRequest, Response sparkResponse,
+                                        Serialization.AuditResponse response, AccountCache.Audit audit)
+            throws IOException, SignatureException {
+        String contentType = signResponse(serverPrivateKey, sparkRequest, sparkResponse, response);
+        Serialization.AuditResponse envelope = new Serialization.AuditResponse();
+        envelope.statusCode = response.statusCode;
+        envelope.status = response.status;
+        envelope.nonce = response.nonce;
+        Serialization.Splice splice = Serialization.spliceField(envelope, contentType, "ledger");
+        byte[] ledger = audit.getEncodedLedger(contentType);
+        int length = splice.prefix.length + ledger.length + splice.suffix.length;
+        if (length >= compressionThreshold &&
+                Compression.accepts(sparkRequest.headers(Compression.ACCEPT_ENCODING_HEADER_NAME), Compression.DEFLATE)) {
+            byte[] wireBody = Compression.deflate(splice.prefix, audit.getDeflatedLedger(contentType), splice.suffix);
+            sparkResponse.header(Compression.CONTENT_ENCODING_HEADER_NAME, Compression.DEFLATE);
+            compressionStats.recordResponse(getRoute(sparkRequest), length, wireBody.length);
+            return wireBody;
+        }
+        byte[] body = new byte[length];
+        System.arraycopy(splice.prefix, 0, body, 0, splice.prefix.length);
+        System.arraycopy(ledger, 0, body, splice.prefix.length, ledger.length);
+        System.arraycopy(splice.suffix, 0, body, splice.prefix.length + ledger.length, splice.suffix.length);
+        compressionStats.recordResponse(getRoute(sparkRequest), length, length);
+        return body;
+    }
 
+    // sets the status code, the signature and the content type of a response, returns the content type
+    private String signResponse(ECPrivateKey privateKey, Request sparkRequest, Response sparkResponse,
+                                Serialization.Response response) throws SignatureException {
         if (response.statusCode < 0) {
             // try to guess a status code from the status string
             switch (response.status) {
@@ -893,11 +1571,67 @@ public class Server {
                     response.statusCode = 400;
             }
         }
-        String signature = Utils.generateSignature(response.getSignable(), privateKey);
+        String signature;
+        SessionStore.Session session = sessionStore.get(sparkRequest.headers(Serialization.SESSION_HEADER_NAME));
+        if (session != null) {
+            // the client checks it with the key of its session, the header tells it the session is still open
+            signature = session.getKey().mac(response.getSignable());
+            sparkResponse.header(Serialization.SESSION_HEADER_NAME, session.getKey().getSessionId());
+        } else {
+            signature = Utils.generateSignature(response.getSignable(), privateKey);
+        }
         sparkResponse.status(response.statusCode);
         sparkResponse.header(Serialization.SIGNATURE_HEADER_NAME, signature);
-        sparkResponse.type("application/json");
-        return Serialization.serialize(response);
+        // the signature covers the signable, not the bytes, so it is the same whatever the wire format
+        String contentType = Serialization.negotiateContentType(sparkRequest.headers("Accept"));
+        sparkResponse.type(contentType);
+        return contentType;
+    }
+
+    // the request is signed by its author, or authenticated by the key of a session the author opened
+    private boolean checkRequestSignature(Request sparkRequest, String signable, String author)
+            throws SignatureException, KeyException {
+        String signature = sparkRequest.headers(Serialization.SIGNATURE_HEADER_NAME);
+        String sessionId = sparkRequest.headers(Serialization.SESSION_HEADER_NAME);
+        if (sessionId == null) {
+            return Utils.checkSignature(signature, signable, author);
+        }
+        SessionStore.Session session = sessionStore.get(sessionId);
+        return session != null && session.getPublicKeyBase64().equals(author) &&
+                session.getKey().checkMac(signature, signable);
+    }
+
+    private <T> T parseRequest(Request sparkRequest, Class<T> valueType) throws IOException {
+        byte[] wireBody = sparkRequest.bodyAsBytes();
+        byte[] body = Compression.decode(wireBody, sparkRequest.headers(Compression.CONTENT_ENCODING_HEADER_NAME),
+                Compression.MAX_DECODED_LENGTH);
+        compressionStats.recordRequest(getRoute(sparkRequest), wireBody.length, body.length);
+        return Serialization.parse(body, sparkRequest.contentType(), valueType);
+    }
+
+    private byte[] compressResponse(Request sparkRequest, Response sparkResponse, byte[] body) {
+        byte[] wireBody = body;
+        // only deflate is produced here: Spark wraps the output in its own gzip stream whenever the
+        // response says "Content-Encoding: gzip", which would compress the body a second time
+        if (body.length >= compressionThreshold &&
+                Compression.accepts(sparkRequest.headers(Compression.ACCEPT_ENCODING_HEADER_NAME), Compression.DEFLATE)) {
+            try {
+                wireBody = Compression.encode(body, Compression.DEFLATE);
+                sparkResponse.header(Compression.CONTENT_ENCODING_HEADER_NAME, Compression.DEFLATE);
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Failed to compress response, sending it uncompressed. " + e);
+                wireBody = body;
+            }
+        }
+        compressionStats.recordResponse(getRoute(sparkRequest), body.length, wireBody.length);
+        return wireBody;
+    }
+
+    // "/checkAccount/<key>" is accounted as "/checkAccount"
+    private static String getRoute(Request sparkRequest) {
+        String uri = sparkRequest.uri();
+        int end = uri.indexOf('/', 1);
+        return end < 0 ? uri : uri.substring(0, end);
     }
 
     private static List<ServerInfo> getServersInfoFromKeyStore (URL url, int numberOfServers, KeyStore keyStore) {
@@ -905,7 +1639,7 @@ public class Server {
         try {
             for (int i = 0; i < numberOfServers; i++) {
                 ServerInfo serverInfo = new ServerInfo ();
-                serverInfo.serverUrl = new URL (url.getProtocol () + "://" + url.getHost () + (url.getPort () + i));
+                serverInfo.serverUrl = new URL (url.getProtocol () + "://" + url.getHost () + ":" + (url.getPort () + i));
                 serverInfo.publicKeyBase64 =
                         Serialization.publicKeyToBase64 (Utils.loadPublicKeyFromKeyStore (keyStore, SERVER_PREFIX + (i + 1)));
                 serverInfo.serverName = SERVER_PREFIX + (i + 1);
@@ -934,17 +1668,867 @@ public class Server {
         return serializedTransactions;
     }
 
-    private static int getNumberOfTransactionsBehind(List<Serialization.Transaction> copyReceivedTransactions, List<Serialization.Transaction> localSerializableTransactions) {
-        String localLedgerHash = Utils.generateHashBase64 (new VerifiableLedger (localSerializableTransactions).getHashable ());
-        int maxLength = copyReceivedTransactions.size () - 1;
-        for (int i = copyReceivedTransactions.size() - 1; i >= 0; i--) {
-            VerifiableLedger receivedLedger = new VerifiableLedger (copyReceivedTransactions);
-            String receivedLedgerHash = Utils.generateHashBase64 (receivedLedger.getHashable ());
-            if(receivedLedgerHash.equals (localLedgerHash)) {
-                return maxLength - i;   // number of transactions behind
+    /**
+     * Gets the state of an account from the cache, loading it from the database on a miss
+     *
+     * @param publicKeyBase64 the public key of the account, in base 64
+     *
+     * @return the state of the account
+     */
+    private AccountState getAccountState(String publicKeyBase64) throws SQLException, KeyException, MissingLedgerException {
+        AccountState state = accountCache.get(publicKeyBase64);
+        if (state != null) {
+            return state;
+        }
+        long generation = accountCache.getGeneration();
+        try {
+            // the concurrent misses on the account share one load
+            state = accountStateLoads.execute(publicKeyBase64 + "@" + generation, () -> loadAccountState(publicKeyBase64));
+        } catch (SQLException | KeyException | MissingLedgerException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Failed to load the state of the account", e);
+        }
+        accountCache.putIfUnchanged(state, generation);
+        return state;
+    }
+
+    private AccountState loadAccountState(String publicKeyBase64) throws SQLException, KeyException, MissingLedgerException {
+        AccountState state;
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            Ledger ledger = Ledger.load(conn, Serialization.base64toPublicKey(publicKeyBase64));
+            List<Transaction> transactions = ledger.getAllTransactions(conn);
+            Serialization.Checkpoint checkpoint = LedgerCheckpoint.load(conn, ledger.getId());
+            String headHash = Utils.generateHashBase64(new VerifiableLedger(checkpoint, serializeTransactions(transactions)).getHashable());
+            String latestTransactionHash = !transactions.isEmpty() ? transactions.get(transactions.size() - 1).getHash() :
+                    checkpoint != null ? checkpoint.headSignature : null;
+            // the cache is keyed by the canonical encoding of the key, the one writers use
+            state = new AccountState(ledger.getId(), Serialization.publicKeyToBase64(ledger.getPublicKey()),
+                    ledger.getPublicKey(), ledger.getAmount(), ledger.getTimestamp(), headHash, latestTransactionHash);
+            conn.commit();
+        } finally {
+            if (conn != null) {
+                conn.close();
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Gets the ledger of an account as it is sent on the audits, from the cache while the account doesn't change, so
+     * auditing it again only costs the signature of the response
+     *
+     * @param publicKeyBase64 the public key of the account, in base 64
+     *
+     * @return the ledger of the account with its digest
+     */
+    private AccountCache.Audit getAudit(String publicKeyBase64) throws SQLException, KeyException, MissingLedgerException {
+        long generation = accountCache.getGeneration();
+        AccountState state = getAccountState(publicKeyBase64);
+        AccountCache.Audit audit = accountCache.getAudit(state.getPublicKeyBase64(), state.getTimestamp());
+        if (audit != null) {
+            return audit;
+        }
+        try {
+            // the concurrent misses on the account share one load and one digest
+            audit = auditLoads.execute(state.getPublicKeyBase64() + "@" + generation, () -> loadAudit(state.getId()));
+        } catch (SQLException | KeyException | MissingLedgerException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Failed to load the ledger of the account", e);
+        }
+        accountCache.putAuditIfUnchanged(state.getPublicKeyBase64(), audit, generation);
+        return audit;
+    }
+
+    private AccountCache.Audit loadAudit(int ledgerId) throws SQLException, KeyException, MissingLedgerException {
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            Ledger ledger = Ledger.load(conn, ledgerId);
+            Serialization.Ledger serializedLedger = new Serialization.Ledger();
+            serializedLedger.checkpoint = LedgerCheckpoint.load(conn, ledger.getId());
+            serializedLedger.transactions = serializeTransactions(ledger.getAllTransactions(conn));
+            serializedLedger.timestamp = ledger.getTimestamp();
+            conn.commit();
+            return new AccountCache.Audit(serializedLedger);
+        } finally {
+            if (conn != null) {
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the Merkle tree of the ledger heads, rebuilt from the account states when it is older than
+     * SYNC_TREE_MAX_AGE_MILLIS, so the peers walking it in a sync mostly see the same tree.
+     */
+    private LedgerMerkleTree getSyncTree() throws SQLException, KeyException, MissingLedgerException {
+        synchronized (syncTreeLock) {
+            if (syncTree != null && System.currentTimeMillis() - syncTreeBuiltAt < SYNC_TREE_MAX_AGE_MILLIS) {
+                return syncTree;
+            }
+        }
+        List<Ledger> ledgers;
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            ledgers = Ledger.loadAll(conn);
+            conn.commit();
+        } finally {
+            if (conn != null) {
+                conn.close();
+            }
+        }
+        List<Serialization.SyncEntry> heads = new ArrayList<>();
+        for (Ledger ledger : ledgers) {
+            AccountState state = getAccountState(Serialization.publicKeyToBase64(ledger.getPublicKey()));
+            Serialization.SyncEntry head = new Serialization.SyncEntry();
+            head.publicKey = state.getPublicKeyBase64();
+            head.timestamp = state.getTimestamp();
+            head.headHash = state.getHeadHash();
+            heads.add(head);
+        }
+        LedgerMerkleTree tree = new LedgerMerkleTree(heads);
+        synchronized (syncTreeLock) {
+            syncTree = tree;
+            syncTreeBuiltAt = System.currentTimeMillis();
+        }
+        return tree;
+    }
+
+    /**
+     * Catches up with the ledgers pulled from a peer by the anti-entropy. Neither the timestamp of a ledger nor the
+     * echoes of its writes are signed, so a ledger is only taken when its head, timestamp and head hash, is the one
+     * more than f replicas reported for the account: at least one correct replica has it, and a correct replica only
+     * has heads that went through a quorum of echoes. As in the catch-up of the write routes, transactions are only
+     * appended, when the local ledger is a prefix of the one pulled, and never removed.
+     *
+     * @param pulled the ledgers pulled
+     * @param heads  the head more than f replicas reported for each account pulled, by its key
+     * @return how many accounts changed
+     */
+    private int repairLedgers(List<Serialization.Ledger> pulled, Map<String, Serialization.SyncEntry> heads)
+            throws SQLException, KeyException {
+        List<Serialization.Ledger> ledgers = new ArrayList<>();
+        for (Serialization.Ledger ledger : pulled) {
+            if (hasHead(ledger, heads.get(ledger.getOwner()))) {
+                ledgers.add(ledger);
+            } else {
+                log.log(Level.WARNING, "Ledger pulled from a peer that doesn't match the head of the other replicas.");
+            }
+        }
+        Set<String> repaired = new HashSet<>();
+        // the missing ledgers are created first, the transactions of the others may point to them
+        Connection conn = database.getConnection();
+        try {
+            synchronized (ledgerLock) {
+                for (Serialization.Ledger ledger : ledgers) {
+                    if (ledger.checkpoint != null) {
+                        // the initial transaction is archived, the ledger starts from the checkpoint instead
+                        ECPublicKey publicKey = Serialization.base64toPublicKey(ledger.checkpoint.publicKey);
+                        if (!ledger.checkpoint.isCertified(servers)) {
+                            log.log(Level.WARNING, "Checkpoint pulled from a peer without a quorum of signatures.");
+                        } else if (!Ledger.exists(conn, publicKey)) {
+                            Ledger.createFromCheckpoint(conn, publicKey, ledger.checkpoint);
+                            repaired.add(ledger.checkpoint.publicKey);
+                        }
+                        continue;
+                    }
+                    Serialization.Transaction initialTransaction = ledger.transactions.get(0);
+                    Serialization.StatusMessage status = verifyInitialTransaction(initialTransaction);
+                    if (status != SUCCESS) {
+                        log.log(Level.WARNING, "Invalid initial transaction pulled from a peer: " + status);
+                        continue;
+                    }
+                    ECPublicKey publicKey = Serialization.base64toPublicKey(initialTransaction.source);
+                    if (!Ledger.exists(conn, publicKey)) {
+                        new Ledger(conn, publicKey, initialTransaction).persist(conn);
+                        repaired.add(initialTransaction.source);
+                    }
+                }
+                conn.commit();
+                if (!repaired.isEmpty()) {
+                    reloadReplicaState(conn);
+                }
+            }
+        } catch (SQLException | KeyException e) {
+            conn.rollback();
+            throw e;
+        } catch (Exception e) {
+            conn.rollback();
+            log.log(Level.WARNING, "Failed to create the ledgers pulled from a peer. " + e);
+            return 0;
+        } finally {
+            conn.close();
+        }
+
+        for (Serialization.Ledger ledger : ledgers) {
+            try {
+                if (repairLedger(ledger)) {
+                    repaired.add(ledger.getOwner());
+                }
+            } catch (Exception e) {
+                // left behind, a later sync or a write-back may still catch it up
+                log.log(Level.WARNING, "Failed to repair a ledger pulled from a peer. " + e);
+            }
+        }
+        synchronized (syncTreeLock) {
+            syncTree = null;
+        }
+        return repaired.size();
+    }
+
+    // true if the ledger has the timestamp and the head hash of the head
+    private static boolean hasHead(Serialization.Ledger ledger, Serialization.SyncEntry head) {
+        if (head == null || ledger.timestamp != head.timestamp) {
+            return false;
+        }
+        String headHash = Utils.generateHashBase64(
+                new VerifiableLedger(ledger.checkpoint, ledger.transactions).getHashable());
+        return head.headHash.equals(headHash);
+    }
+
+    // appends the transactions this replica misses of a ledger pulled from a peer, returns false if it had them all
+    private boolean repairLedger(Serialization.Ledger received) throws Exception {
+        String publicKeyBase64 = received.getOwner();
+        for (Serialization.Transaction tx : received.transactions) {
+            if (!publicKeyBase64.equals(tx.source) || tx.signature == null ||
+                    !Utils.checkSignature(tx.signature, tx.getSignable(), publicKeyBase64)) {
+                throw new SignatureException("A transaction pulled isn't signed by the owner of the ledger.");
+            }
+        }
+        AccountState state = getAccountState(publicKeyBase64);
+        if (state.getTimestamp() >= received.timestamp) {
+            return false;
+        }
+        commitWrite(conn -> {
+            Ledger localLedger = Ledger.load(conn, state.getId());
+            // a client write may have committed in the meantime
+            if (localLedger.getTimestamp() >= received.timestamp) {
+                return committed -> { };
+            }
+            List<Serialization.Transaction> receivedTransactions = alignWithCheckpoint(conn, localLedger, received);
+            List<Serialization.Transaction> localTransactions = serializeTransactions(localLedger.getAllTransactions(conn));
+            if (!isPrefix(localTransactions, receivedTransactions)) {
+                throw new InvalidLedgerException("The ledger pulled diverges from the local ledger.");
+            }
+            if (receivedTransactions.size() > localTransactions.size()) {
+                persistMissingTransactions(conn, receivedTransactions.subList(localTransactions.size(),
+                        receivedTransactions.size()), localLedger);
+            }
+            localLedger.setTimestamp(received.timestamp);
+            localLedger.persist(conn);
+            return committed -> reloadReplicaState(committed);
+        });
+        return true;
+    }
+
+    /**
+     * Gets the checkpoints this replica proposes: the heads of the ledgers it is responsible for that have at least
+     * checkpointMinTransactions transactions after their last checkpoint. Each ledger has a single proposer, picked
+     * by the hash of its key, so the replicas don't race each other on the same account.
+     */
+    private List<Serialization.Checkpoint> getCheckpointCandidates() throws SQLException, KeyException,
+            MissingLedgerException {
+        int self = 0;
+        while (self < servers.size() && !servers.get(self).serverName.equals(serverName)) {
+            self++;
+        }
+        List<Serialization.Checkpoint> candidates = new ArrayList<>();
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            for (Ledger ledger : Ledger.loadAll(conn)) {
+                String publicKeyBase64 = Serialization.publicKeyToBase64(ledger.getPublicKey());
+                if (Math.floorMod(publicKeyBase64.hashCode(), servers.size()) != self ||
+                        ledger.getTransactionCount(conn) < checkpointMinTransactions) {
+                    continue;
+                }
+                Serialization.Checkpoint checkpoint = buildCheckpoint(conn, ledger);
+                if (checkpoint != null) {
+                    candidates.add(checkpoint);
+                }
+            }
+        } finally {
+            if (conn != null) {
+                conn.rollback();
+                conn.close();
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Builds the checkpoint of the current head of a ledger. Transfers still pending are left out of checkpoints,
+     * the receiver must still be able to claim them from the ledger.
+     *
+     * @return the checkpoint, without signatures, or null if the ledger can't be checkpointed now
+     */
+    private Serialization.Checkpoint buildCheckpoint(Connection conn, Ledger ledger) throws SQLException, KeyException {
+        List<Transaction> transactions = ledger.getAllTransactions(conn);
+        if (transactions.isEmpty()) {
+            return null;
+        }
+        for (Transaction transaction : transactions) {
+            if (transaction.isPending()) {
+                return null;
+            }
+        }
+        Serialization.Checkpoint current = LedgerCheckpoint.load(conn, ledger.getId());
+        Serialization.Checkpoint checkpoint = new Serialization.Checkpoint();
+        checkpoint.publicKey = Serialization.publicKeyToBase64(ledger.getPublicKey());
+        checkpoint.balance = ledger.getAmount();
+        checkpoint.timestamp = ledger.getTimestamp();
+        checkpoint.length = getLength(current) + transactions.size();
+        checkpoint.headSignature = transactions.get(transactions.size() - 1).getHash();
+        checkpoint.headHash = Utils.generateHashBase64(
+                new VerifiableLedger(current, serializeTransactions(transactions)).getHashable());
+        checkpoint.peaks = MerkleAccumulator.getPeaks(conn, ledger.getId(), checkpoint.length);
+        return checkpoint;
+    }
+
+    // the signature of this replica on the receipt of a transfer it committed, see Serialization.TransferReceipt
+    private String signReceipt(Serialization.Transaction transaction) throws SignatureException {
+        Serialization.TransferReceipt receipt = new Serialization.TransferReceipt();
+        receipt.transaction = transaction;
+        return Utils.generateSignature(receipt.getSignable(), serverPrivateKey);
+    }
+
+    // the signature of this replica on a checkpoint, null unless its copy of the ledger has that very head
+    private String signCheckpoint(Serialization.Checkpoint checkpoint) throws SQLException, KeyException,
+            SignatureException {
+        if (checkpoint == null || checkpoint.publicKey == null) {
+            return null;
+        }
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            Ledger ledger = Ledger.load(conn, Serialization.base64toPublicKey(checkpoint.publicKey));
+            Serialization.Checkpoint local = buildCheckpoint(conn, ledger);
+            if (local == null || !local.getSignable().equals(checkpoint.getSignable())) {
+                return null;
+            }
+            return Utils.generateSignature(checkpoint.getSignable(), serverPrivateKey);
+        } catch (MissingLedgerException e) {
+            return null;
+        } finally {
+            if (conn != null) {
+                conn.rollback();
+                conn.close();
+            }
+        }
+    }
+
+    // installs a checkpoint whose quorum of signatures was already checked
+    private void installCertifiedCheckpoint(Serialization.Checkpoint checkpoint) throws Exception {
+        AccountState state = getAccountState(checkpoint.publicKey);
+        commitWrite(conn -> {
+            Ledger ledger = Ledger.load(conn, state.getId());
+            boolean installed = installCheckpoint(conn, ledger, checkpoint);
+            return committed -> {
+                if (installed) {
+                    reloadReplicaState(committed);
+                }
+            };
+        });
+    }
+
+    // the state of one account of a /checkAccounts request, the nonce is only on the enclosing response
+    private Serialization.CheckAccountResponse getCheckAccountEntry(String publicKeyBase64, int offset, int limit) {
+        Serialization.CheckAccountResponse entry = new Serialization.CheckAccountResponse();
+        try {
+            AccountState state = getAccountState(publicKeyBase64);
+            entry.balance = state.getBalance();
+            entry.timestamp = state.getTimestamp();
+            entry.pendingCount = pendingInbox.count(state.getPublicKeyBase64());
+            entry.pendingTransactions = pendingInbox.list(state.getPublicKeyBase64(), offset, limit);
+            entry.status = SUCCESS;
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "Error related to the database. " + e);
+            entry.status = ERROR_SERVER_ERROR;
+        } catch (MissingLedgerException e) {
+            entry.status = ERROR_INVALID_LEDGER;
+        } catch (KeyException e) {
+            entry.status = ERROR_INVALID_KEY;
+        }
+        return entry;
+    }
+
+    // the ledger of one account of an /audits request, the nonce is only on the enclosing response
+    private Serialization.AuditResponse getAuditEntry(String publicKeyBase64) throws SQLException {
+        Serialization.AuditResponse entry = new Serialization.AuditResponse();
+        try {
+            AccountCache.Audit audit = getAudit(publicKeyBase64);
+            entry.setLedger(audit.getLedger(), audit.getDigest());
+            entry.status = SUCCESS;
+        } catch (MissingLedgerException e) {
+            entry.status = ERROR_INVALID_LEDGER;
+        } catch (KeyException e) {
+            entry.status = ERROR_INVALID_KEY;
+        }
+        return entry;
+    }
+
+    /**
+     * Waits for the pipelined writes of the account that come before this one, see WriteSequencer.
+     *
+     * @return the state of the account once it is the turn of this write
+     */
+    private AccountState awaitWriteTurn(String author, int timestamp)
+            throws SQLException, KeyException, MissingLedgerException, InterruptedException {
+        if (!writeSequencer.awaitTurn(author, timestamp, WriteSequencer.DEFAULT_WAIT_MILLIS)) {
+            log.log(Level.WARNING, "Gave up waiting for the writes before timestamp " + timestamp +
+                    ", going ahead with the ledger received.");
+        }
+        return getAccountState(author);
+    }
+
+    // true if all the transactions are already persisted on this replica
+    private boolean areCommitted(List<Serialization.Transaction> transactions) throws SQLException {
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            for (Serialization.Transaction transaction : transactions) {
+                try {
+                    Transaction.getTransactionByHash(conn, transaction.signature);
+                } catch (MissingTransactionException e) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            if (conn != null) {
+                conn.rollback();
+                conn.close();
+            }
+        }
+    }
+
+    // the part of a write done in the database, nothing is committed here
+    private interface LedgerWrite {
+        // returns what to do once the write is committed
+        AfterCommit apply(Connection conn) throws Exception;
+    }
+
+    private interface AfterCommit {
+        void run(Connection conn) throws Exception;
+    }
+
+    /**
+     * Applies a write to the database and commits it, either alone or in a batch with other writes. Writes are applied
+     * holding ledgerLock, which keeps the IDs obtained from the database fresh until they are persisted, and what
+     * they do once committed runs in the same critical section, so it follows the order of the commits.
+     *
+     * @param write the write
+     * @throws Exception the exception the write failed with, in which case none of it was committed
+     */
+    private void commitWrite(LedgerWrite write) throws Exception {
+        if (commitBatcher != null) {
+            commitBatcher.submit(write);
+            return;
+        }
+        Connection conn = database.getConnection();
+        try {
+            synchronized (ledgerLock) {
+                AfterCommit afterCommit = write.apply(conn);
+                conn.commit();
+                afterCommit.run(conn);
+            }
+        } catch (Exception e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.close();
+        }
+    }
+
+    // each write of the batch is applied inside its own savepoint, a write that fails is undone alone
+    private void commitBatch(List<LedgerWrite> writes, List<CompletableFuture<Void>> results) {
+        Connection conn = null;
+        try {
+            conn = database.getConnection();
+            synchronized (ledgerLock) {
+                AfterCommit[] afterCommits = new AfterCommit[writes.size()];
+                for (int i = 0; i < writes.size(); i++) {
+                    Savepoint savepoint = conn.setSavepoint();
+                    try {
+                        afterCommits[i] = writes.get(i).apply(conn);
+                        conn.releaseSavepoint(savepoint);
+                    } catch (Exception e) {
+                        conn.rollback(savepoint);
+                        results.get(i).completeExceptionally(e);
+                    }
+                }
+                // a single commit, and a single sync of the database file, for the whole batch
+                conn.commit();
+                for (int i = 0; i < writes.size(); i++) {
+                    if (afterCommits[i] == null) {
+                        continue;
+                    }
+                    try {
+                        afterCommits[i].run(conn);
+                        results.get(i).complete(null);
+                    } catch (Exception e) {
+                        results.get(i).completeExceptionally(e);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.log(Level.SEVERE, "Failed to commit a batch of " + writes.size() + " writes. " + e);
+            if (conn != null) {
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackException) {
+                    log.log(Level.SEVERE, "Failed to roll back a batch of writes. " + rollbackException);
+                }
+            }
+            for (CompletableFuture<Void> result : results) {
+                result.completeExceptionally(e);
+            }
+        } finally {
+            if (conn != null) {
+                try {
+                    conn.close();
+                } catch (SQLException e) {
+                    log.log(Level.WARNING, "Failed to close a connection. " + e);
+                }
+            }
+        }
+    }
+
+    // the signature of an echo, alone or over the hashes of all the writes echoed in the same batch
+    private String signEchoOf(String signable) throws SignatureException {
+        if (echoBatcher == null) {
+            return Utils.generateSignature(signable, serverPrivateKey);
+        }
+        try {
+            return echoBatcher.submit(signable);
+        } catch (SignatureException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SignatureException("Couldn't sign the echo. " + e.getMessage());
+        }
+    }
+
+    // a batch of a single write is signed as if there was no batching
+    private void signEchoBatch(List<String> signables, List<CompletableFuture<String>> results) {
+        try {
+            if (signables.size() == 1) {
+                results.get(0).complete(Utils.generateSignature(signables.get(0), serverPrivateKey));
+                return;
+            }
+            String hashes = signables.stream().map(Utils::generateHashBase64).collect(Collectors.joining(","));
+            String signedEcho = Utils.generateSignature(hashes, serverPrivateKey) + ";" + hashes;
+            for (CompletableFuture<String> result : results) {
+                result.complete(signedEcho);
+            }
+        } catch (SignatureException e) {
+            for (CompletableFuture<String> result : results) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the in-memory state after a ledger catch-up, which may also have changed the pending transactions
+     * of other accounts. Catch-ups are rare, so everything is reloaded.
+     *
+     * @param conn a connection where the catch-up was already committed
+     */
+    private void reloadReplicaState(Connection conn) throws SQLException, KeyException {
+        accountCache.invalidateAll();
+        for (Serialization.Transaction pending : pendingInbox.reload(serializeTransactions(Transaction.getAllPendingTransactions(conn)))) {
+            notificationHub.publish(pending);
+        }
+    }
+
+    // reads a non negative integer from the query string
+    private static int getIntQueryParam(Request sparkRequest, String name, int defaultValue) throws InvalidValueException {
+        String value = sparkRequest.queryParams(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int result = Integer.parseInt(value);
+            if (result < 0) {
+                throw new InvalidValueException("The parameter " + name + " can't be negative.");
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new InvalidValueException("The parameter " + name + " is not a number.");
+        }
+    }
+
+    // the checks that don't need the database, done on each entry of a register batch
+    private Serialization.StatusMessage verifyInitialTransaction(Serialization.Transaction tx) {
+        if (tx == null || tx.source == null || tx.target == null) {
+            return ERROR_MISSING_PARAMETER;
+        }
+        if (!tx.source.equals(tx.target) || tx.isSend ||
+                (tx.previousSignature != null && !tx.previousSignature.isEmpty())) {
+            return ERROR_INVALID_LEDGER;
+        }
+        if (tx.amount < 1) {
+            return ERROR_INVALID_AMOUNT;
+        }
+        if (tx.nonce == null || tx.nonce.isEmpty() || tx.signature == null || tx.signature.isEmpty()) {
+            return ERROR_INVALID_VALUE;
+        }
+        ECPublicKey publicKey;
+        try {
+            publicKey = Serialization.base64toPublicKey(tx.source);
+        } catch (KeyException e) {
+            return ERROR_INVALID_KEY;
+        }
+        try {
+            if (!Utils.checkSignature(tx.signature, tx.getSignable(), publicKey)) {
+                return ERROR_NO_SIGNATURE_MATCH;
+            }
+        } catch (SignatureException e) {
+            log.log(Level.WARNING, "Failed to check the signature of an initial transaction. " + e);
+            return ERROR_NO_SIGNATURE_MATCH;
+        }
+        return SUCCESS;
+    }
+
+    // hash of the ledger after appending transactions, as it is computed by VerifiableLedger
+    private static String getHeadHash(Serialization.Ledger ledger, List<Serialization.Transaction> appended) {
+        return Utils.generateHashBase64(new VerifiableLedger(ledger.checkpoint, ledger.transactions).getHashable() +
+                new VerifiableLedger(appended).getHashable());
+    }
+
+    /**
+     * Creates a SENDING transaction and checks its amount out of the source ledger. Must be called while holding
+     * ledgerLock, nothing is committed here.
+     *
+     * @param conn         the connection of the operation
+     * @param sourceLedger the ledger that sends the money, its balance is updated but not persisted
+     * @param sending      the SENDING transaction sent by the client
+     *
+     * @return the SENDING transaction persisted, still pending
+     */
+    private Transaction createSendingTransaction(Connection conn, Ledger sourceLedger, Serialization.Transaction sending)
+            throws SQLException, KeyException, MissingLedgerException, InvalidAmountException, InvalidLedgerException,
+            InvalidValueException, SignatureException {
+        Ledger targetLedger = Ledger.load(conn, Serialization.base64toPublicKey(sending.target));
+        Transaction transaction = new Transaction(conn, sourceLedger, targetLedger, sending.amount,
+                sending.nonce,
+                sending.signature,
+                sending.previousSignature, Transaction.TransactionTypes.SENDING);
+        // checkout the amount from the source ledger
+        sourceLedger.setAmount(sourceLedger.getAmount() - sending.amount);
+        transaction.persist(conn);
+        return transaction;
+    }
+
+    /**
+     * Creates the RECEIVING transaction that claims a pending transaction, credits it to the ledger and marks the
+     * pending transaction as received. Must be called while holding ledgerLock, nothing is committed here.
+     *
+     * @param conn                   the connection of the operation
+     * @param sourceState            the cached state of the ledger that receives the money
+     * @param sourceLedger           the ledger that receives the money, its balance is updated but not persisted
+     * @param receiving              the RECEIVING transaction sent by the client
+     * @param pendingTransactionHash the signature of the pending transaction being claimed
+     *
+     * @return the RECEIVING transaction persisted
+     */
+    private Transaction claimPendingTransaction(Connection conn, AccountState sourceState, Ledger sourceLedger,
+                                                Serialization.Transaction receiving, String pendingTransactionHash)
+            throws SQLException, KeyException, MissingLedgerException, MissingTransactionException,
+            InvalidAmountException, InvalidLedgerException, InvalidValueException, SignatureException {
+        if (!pendingInbox.contains(sourceState.getPublicKeyBase64(), pendingTransactionHash)) {
+            throw new MissingTransactionException("Transaction mentioned in the request is not pending for this account");
+        }
+        Transaction pendingTransaction = Transaction.getTransactionByHash(conn, pendingTransactionHash);
+
+        if (!pendingTransaction.isPending()) {
+            throw new MissingTransactionException("Transaction mentioned in the request is invalid or not pending");
+        }
+
+        Ledger targetLedger = Ledger.load(conn, Serialization.base64toPublicKey(receiving.target));
+        Transaction transaction = new Transaction(conn, sourceLedger, targetLedger,
+                receiving.amount,
+                receiving.nonce,
+                receiving.signature,
+                receiving.previousSignature, Transaction.TransactionTypes.RECEIVING);
+
+        // the Transaction constructor already did some validation, now validate the things that
+        // are specific to RECEIVING transactions
+        if (transaction.getSourceLedger().getId() != pendingTransaction.getTargetLedger().getId() ||
+                transaction.getTargetLedger().getId() != pendingTransaction.getSourceLedger().getId()) {
+            throw new MissingTransactionException("Transaction source/target do not match with pending transaction");
+        }
+
+        if (transaction.getAmount() != pendingTransaction.getAmount()) {
+            throw new InvalidAmountException("Transaction amount does not match with pending transaction", transaction.getAmount());
+        }
+        // add the amount to the source ledger
+        sourceLedger.setAmount(sourceLedger.getAmount() + receiving.amount);
+
+        // the sending transaction is not pending anymore
+        pendingTransaction.setPending(false);
+        pendingTransaction.persist(conn);
+        transaction.persist(conn);
+        return transaction;
+    }
+
+    /**
+     * Brings the local copy of a ledger in line with the ledger sent by a client, which is the one agreed by the
+     * majority of the replicas. In the common case both are equal, which is answered from the cached head hash.
+     *
+     * @param conn        the connection of the operation, nothing is committed here
+     * @param localLedger the local ledger, its balance is updated
+     * @param localState  the cached state of the local ledger
+     * @param received    the ledger received
+     *
+     * @return true if transactions were added to or removed from the local ledger, or it moved to another checkpoint
+     */
+    private boolean synchronizeLedger(Connection conn, Ledger localLedger, AccountState localState,
+                                      Serialization.Ledger received)
+            throws SQLException, InvalidLedgerException, SignatureException, InvalidAmountException,
+            InvalidValueException, KeyException, MissingLedgerException {
+        String receivedLedgerHash = Utils.generateHashBase64(
+                new VerifiableLedger(received.checkpoint, received.transactions).getHashable());
+        log.log(Level.INFO, "Ledger received hash: " + receivedLedgerHash + ", local ledger hash: " + localState.getHeadHash());
+        if (localState.getHeadHash().equals(receivedLedgerHash)) {
+            log.log(Level.INFO,"Local ledger is already in sync with the ledger received");
+            return false;
+        }
+
+        // the same transactions have another head hash when they are cut at another checkpoint
+        Serialization.Checkpoint localCheckpoint = LedgerCheckpoint.load(conn, localLedger.getId());
+        boolean movedCheckpoint = getLength(localCheckpoint) != getLength(received.checkpoint);
+        List<Serialization.Transaction> receivedTransactions = alignWithCheckpoint(conn, localLedger, received);
+
+        // the local replica is ahead or behind the current agreed ledger by the majority of replicas
+        List<Transaction> localTransactions = localLedger.getAllTransactions(conn);
+        List<Serialization.Transaction> localSerializableTransactions = serializeTransactions(localTransactions);
+        int localSize = localSerializableTransactions.size();
+        int receivedSize = receivedTransactions.size();
+
+        if (localSize == receivedSize && isPrefix(receivedTransactions, localSerializableTransactions)) {
+            return movedCheckpoint;
+        }
+
+        // check if the ledger contained one operation that wasn't completed by a majority
+        if (localSize == receivedSize + 1 && isPrefix(receivedTransactions, localSerializableTransactions)) {
+            Transaction uncompleted = localTransactions.get(localSize - 1);
+            Transaction.removeTransaction(conn, uncompleted.getId());
+            // give back the amount moved by the removed transaction
+            localLedger.setAmount(uncompleted.getTransactionType() == Transaction.TransactionTypes.SENDING ?
+                    localLedger.getAmount() + uncompleted.getAmount() :
+                    localLedger.getAmount() - uncompleted.getAmount());
+            localLedger.persist(conn);
+            log.log(Level.INFO, "Removed a transaction that wasn't completed by a majority.");
+            return true;
+        }
+
+        /*
+        has the ledger on a replica can only have at most a operation at the top of the ledger
+        that wasn't completed by a majority when this stage is reached it means that the replica
+        is behind the current agreed state of a ledger.
+        So the replica persists the missing transactions on its end and then tries to fulfil the operation
+        required on the updated state.
+        At this stage as the client isn't byzantine then the received ledger is assumed that it wasn't
+        modified and is the result of the majority of the replicas.
+        */
+        if (receivedSize > localSize && isPrefix(localSerializableTransactions, receivedTransactions)) {
+            log.log(Level.INFO,"This replica contained a ledger that was " + (receivedSize - localSize) + " transactions behind.");
+            persistMissingTransactions(conn, receivedTransactions.subList(localSize, receivedSize), localLedger);
+            return true;
+        }
+
+        throw new InvalidLedgerException("The ledger received diverges from the local ledger.");
+    }
+
+    /**
+     * Lines up a ledger received with the local one when they start from different checkpoints. A newer checkpoint
+     * received is installed here first, once its quorum of signatures is checked, and the transactions received that
+     * the local checkpoint already covers are skipped.
+     *
+     * @return the transactions received that come after the local checkpoint
+     */
+    private List<Serialization.Transaction> alignWithCheckpoint(Connection conn, Ledger localLedger,
+                                                                Serialization.Ledger received)
+            throws SQLException, KeyException, InvalidLedgerException, InvalidAmountException {
+        Serialization.Checkpoint localCheckpoint = LedgerCheckpoint.load(conn, localLedger.getId());
+        int receivedLength = getLength(received.checkpoint);
+        if (receivedLength > getLength(localCheckpoint)) {
+            if (!Serialization.publicKeyToBase64(localLedger.getPublicKey()).equals(received.checkpoint.publicKey) ||
+                    !received.checkpoint.isCertified(servers)) {
+                throw new InvalidLedgerException("The checkpoint received isn't signed by a quorum of replicas.");
+            }
+            installCheckpoint(conn, localLedger, received.checkpoint);
+            return received.transactions;
+        }
+        int covered = getLength(localCheckpoint) - receivedLength;
+        if (covered == 0) {
+            return received.transactions;
+        }
+        if (covered > received.transactions.size() ||
+                !localCheckpoint.headSignature.equals(received.transactions.get(covered - 1).signature)) {
+            throw new InvalidLedgerException("The ledger received diverges from the local checkpoint.");
+        }
+        return received.transactions.subList(covered, received.transactions.size());
+    }
+
+    /**
+     * Installs a quorum-signed checkpoint on the local ledger and moves the transactions it covers to the archive.
+     * A replica that is behind the checkpoint takes its balance, timestamp and accumulator peaks instead.
+     * Must be called while holding ledgerLock, nothing is committed here.
+     *
+     * @return false if the ledger already has this checkpoint or a newer one
+     */
+    private boolean installCheckpoint(Connection conn, Ledger ledger, Serialization.Checkpoint checkpoint)
+            throws SQLException, KeyException, InvalidLedgerException, InvalidAmountException {
+        Serialization.Checkpoint current = LedgerCheckpoint.load(conn, ledger.getId());
+        if (checkpoint.length <= getLength(current)) {
+            return false;
+        }
+        List<Transaction> transactions = ledger.getAllTransactions(conn);
+        int covered = checkpoint.length - getLength(current);
+        if (covered <= transactions.size()) {
+            List<Serialization.Transaction> prefix = serializeTransactions(transactions.subList(0, covered));
+            String headHash = Utils.generateHashBase64(new VerifiableLedger(current, prefix).getHashable());
+            if (!checkpoint.headSignature.equals(prefix.get(covered - 1).signature) ||
+                    !checkpoint.headHash.equals(headHash)) {
+                throw new InvalidLedgerException("The checkpoint diverges from the local ledger.");
+            }
+            LedgerCheckpoint.archive(conn, ledger.getId(), transactions.get(covered - 1).getId());
+        } else {
+            // what this replica has is all in the history of the checkpoint, or wasn't completed by a majority
+            if (!transactions.isEmpty()) {
+                LedgerCheckpoint.archive(conn, ledger.getId(), transactions.get(transactions.size() - 1).getId());
+            }
+            MerkleAccumulator.install(conn, ledger.getId(), checkpoint.length, checkpoint.peaks);
+            ledger.setAmount(checkpoint.balance);
+            ledger.setTimestamp(Math.max(ledger.getTimestamp(), checkpoint.timestamp));
+            ledger.persist(conn);
+        }
+        LedgerCheckpoint.store(conn, ledger.getId(), checkpoint);
+        log.log(Level.INFO, "Installed a checkpoint of " + checkpoint.length + " transactions.");
+        return true;
+    }
+
+    // the transactions covered by a checkpoint, none without one
+    private static int getLength(Serialization.Checkpoint checkpoint) {
+        return checkpoint == null ? 0 : checkpoint.length;
+    }
+
+    private static boolean isPrefix(List<Serialization.Transaction> prefix, List<Serialization.Transaction> transactions) {
+        if (prefix.size() > transactions.size()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.size(); i++) {
+            if (!prefix.get(i).getSignable().equals(transactions.get(i).getSignable())) {
+                return false;
             }
         }
-        throw new RuntimeException ("Failed to detect the number of transactions behind...");
+        return true;
     }
 
     private void persistMissingTransactions(Connection conn, List<Serialization.Transaction> missingTransactions, Ledger sourceLedger)
@@ -969,32 +2553,104 @@ public class Server {
         }
     }
 
-    private Map<String, String> pendingOperations = new HashMap<>();
+    // write-backs are done by any reader, they must not take the echo slots of the writes of the owner
+    private static final String WRITE_BACK_ECHO_SLOT = "writeback:";
+    // how far ahead of the committed timestamp of an account an echo can be given
+    private static final int MAX_PIPELINED_WRITES = 16;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 32;
+    private static final long SYNC_TREE_MAX_AGE_MILLIS = 1000;
+    private static final int DEFAULT_CHECKPOINT_MIN_TRANSACTIONS = 64;
+    private EchoStore echoStore = new EchoStore(EchoStore.DEFAULT_CAPACITY, EchoStore.DEFAULT_TTL_MILLIS);
+    private WriteSequencer writeSequencer = new WriteSequencer(EchoStore.DEFAULT_TTL_MILLIS);
+
+    private byte[] signEcho(ECPrivateKey privateKey, Request sparkRequest, Response sparkResponse, Signable request, String nonce, String requestAuthor, int timestamp) throws JsonProcessingException, SignatureException, SQLException {
+        return signEcho(privateKey, sparkRequest, sparkResponse, request, nonce, requestAuthor, timestamp, "");
+    }
 
-    private String signEcho(ECPrivateKey privateKey, Response sparkResponse, Signable request, String nonce, String requestAuthor) throws JsonProcessingException, SignatureException {
-        if(pendingOperations.containsKey(requestAuthor)) {
-            Serialization.Response response = new Serialization.Response();
-            response.nonce = nonce;
-            response.status = ERROR_INVALID_VALUE;
-            return prepareResponse(privateKey, sparkResponse, response);
+    // slotPrefix keeps the echo slots of other kinds of requests apart from the ones of the writes of the author
+    private byte[] signEcho(ECPrivateKey privateKey, Request sparkRequest, Response sparkResponse, Signable request, String nonce, String requestAuthor, int timestamp, String slotPrefix) throws JsonProcessingException, SignatureException, SQLException {
+        Serialization.Response errorResponse = reserveEchoSlot(request, nonce, requestAuthor, timestamp, slotPrefix);
+        if (errorResponse != null) {
+            return prepareResponse(privateKey, sparkRequest, sparkResponse, errorResponse);
         }
-        String signedEcho = Utils.generateSignature(request.getSignable(), privateKey);
+        // a repeated echo request, from a client retrying, gets the same answer
+        String signedEcho = signEchoOf(request.getSignable());
 
         Serialization.SignedEchoResponse response = new Serialization.SignedEchoResponse();
         response.nonce = nonce;
         response.echo = serverName + ";" + signedEcho;
         response.status = SUCCESS;
 
-        pendingOperations.put(requestAuthor, request.getSignable());
+        return prepareResponse(privateKey, sparkRequest, sparkResponse, response);
+    }
+
+    /**
+     * Takes the echo slot of a write, the replica echoes at most one write per author and timestamp.
+     *
+     * @return null if the write can be echoed, otherwise the response to send back
+     */
+    private Serialization.Response reserveEchoSlot(Signable request, String nonce, String requestAuthor, int timestamp, String slotPrefix) throws SQLException {
+        Serialization.Response errorResponse = new Serialization.Response();
+        errorResponse.nonce = nonce;
+        // an author can pipeline a few writes, but not hold echo slots for timestamps far in the future
+        try {
+            if (timestamp > getAccountState(requestAuthor).getTimestamp() + MAX_PIPELINED_WRITES) {
+                log.log(Level.WARNING, "Too many writes in flight for the same account.");
+                errorResponse.status = ERROR_INVALID_VALUE;
+                return errorResponse;
+            }
+        } catch (MissingLedgerException e) {
+            errorResponse.status = ERROR_INVALID_LEDGER;
+            return errorResponse;
+        } catch (KeyException e) {
+            errorResponse.status = ERROR_INVALID_KEY;
+            return errorResponse;
+        }
+        EchoStore.Result result = echoStore.add(slotPrefix + requestAuthor, timestamp, request.getSignable());
+        if (result == EchoStore.Result.FULL) {
+            // too many writes between echo and commit, the client can try again later
+            log.log(Level.WARNING, "Echo store is full, refusing to echo a write.");
+            errorResponse.statusCode = 503;
+            errorResponse.status = ERROR_SERVER_ERROR;
+            return errorResponse;
+        } else if (result == EchoStore.Result.CONFLICT) {
+            // another write was already echoed with this timestamp
+            errorResponse.status = ERROR_INVALID_VALUE;
+            return errorResponse;
+        }
+        if (result == EchoStore.Result.ADDED && slotPrefix.isEmpty()) {
+            writeSequencer.begin(requestAuthor, timestamp);
+        }
+        return null;
+    }
 
-        return prepareResponse(privateKey, sparkResponse, response);
+    /**
+     * Gathers the echoes of a write that the client sent only once, through the reliable broadcast between replicas.
+     * A write that can't be echoed, or isn't delivered in time, gets an empty list of echoes, and so is refused like
+     * a write without a quorum of echoes.
+     *
+     * @return the echoes, in the format of the ECHOS header
+     */
+    private String broadcastEchos(Signable request, String nonce, String requestAuthor, int timestamp) throws SQLException, SignatureException, InterruptedException {
+        Serialization.Response errorResponse = reserveEchoSlot(request, nonce, requestAuthor, timestamp, "");
+        if (errorResponse != null) {
+            log.log(Level.WARNING, "Can't echo the broadcast write. " + errorResponse.status);
+            return "";
+        }
+        String echoSignatures = reliableBroadcast.deliver(requestAuthor, timestamp, request.getSignable(),
+                ReliableBroadcast.DEFAULT_TIMEOUT_MILLIS);
+        if (echoSignatures == null) {
+            log.log(Level.WARNING, "The broadcast write wasn't delivered in time.");
+            writeSequencer.end(requestAuthor, timestamp);
+            return "";
+        }
+        return echoSignatures;
     }
 
-    private boolean verifySignedEchos(String echoSignatures, Signable request, String requestAuthor) throws SignatureException, KeyException {
-        if(!request.getSignable().equals(pendingOperations.get(requestAuthor))) {
+    private boolean verifySignedEchos(String echoSignatures, Signable request, String requestAuthor, int timestamp) throws SignatureException, KeyException {
+        if(!echoStore.remove(requestAuthor, timestamp, request.getSignable())) {
             return false;
         }
-        pendingOperations.remove(requestAuthor);
 
         String[] arrSig = echoSignatures.split("#");
         if(arrSig.length <= (servers.size () + Utils.numberOfFaultsSupported (numberOfServers)) / 2) {
@@ -1004,8 +2660,9 @@ public class Server {
         }
         Set<String> seen = new HashSet<>();
         for(String sigLine : arrSig) {
+            // "server;signature", or "server;signature;hashes" when the echo was signed over a batch of writes
             String[] parts = sigLine.split(";");
-            if(parts.length != 2) {
+            if(parts.length != 2 && parts.length != 3) {
                 log.log(Level.WARNING, "SIGECHO FAIL: wrong format");
                 return false;
             }
@@ -1027,7 +2684,13 @@ public class Server {
                 log.log(Level.WARNING, "SIGECHO FAIL: pubkey null");
                 return false;
             }
-            if (!Utils.checkSignature(parts[1], request.getSignable(), otherServerPublicKey)) {
+            if (parts.length == 3 &&
+                    !Arrays.asList(parts[2].split(",")).contains(Utils.generateHashBase64(request.getSignable()))) {
+                log.log(Level.WARNING, "SIGECHO FAIL: request not in the batch echoed by " + parts[0]);
+                return false;
+            }
+            String signed = parts.length == 3 ? parts[2] : request.getSignable();
+            if (!Utils.checkSignature(parts[1], signed, otherServerPublicKey)) {
                 log.log(Level.WARNING, "SIGECHO FAIL: mismatch on signature from " + parts[0]);
                 return false;
             }
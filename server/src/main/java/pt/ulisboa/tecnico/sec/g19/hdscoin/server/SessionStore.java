@@ -0,0 +1,104 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.SessionKey;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * The sessions opened by the clients on /session, by session id. A session belongs to the account that signed its
+ * handshake and only authenticates the requests of that account. Sessions unused for a while expire, and past the
+ * capacity the least recently used one is dropped: a client whose session is gone opens a new one.
+ */
+public class SessionStore {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final long DEFAULT_IDLE_MILLIS = 10 * 60 * 1000;
+
+    public static class Session {
+        private final String publicKeyBase64;
+        private final SessionKey key;
+        private long lastUsedMillis;
+
+        private Session(String publicKeyBase64, SessionKey key, long lastUsedMillis) {
+            this.publicKeyBase64 = publicKeyBase64;
+            this.key = key;
+            this.lastUsedMillis = lastUsedMillis;
+        }
+
+        public String getPublicKeyBase64() {
+            return publicKeyBase64;
+        }
+
+        public SessionKey getKey() {
+            return key;
+        }
+    }
+
+    private final int capacity;
+    private final long idleMillis;
+    private final LinkedHashMap<String, Session> sessions;
+    private long opened = 0;
+    private long expired = 0;
+    private long evictions = 0;
+
+    public SessionStore(int capacity, long idleMillis) {
+        this.capacity = capacity;
+        this.idleMillis = idleMillis;
+        this.sessions = new LinkedHashMap<String, Session>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Session> eldest) {
+                if (size() > SessionStore.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public synchronized void add(String publicKeyBase64, SessionKey key) {
+        opened++;
+        sessions.put(key.getSessionId(), new Session(publicKeyBase64, key, System.currentTimeMillis()));
+    }
+
+    /**
+     * @param sessionId the id given to the session when it was opened
+     * @return the session, or null if it is unknown or expired
+     */
+    public synchronized Session get(String sessionId) {
+        if (sessionId == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        removeExpired(now);
+        Session session = sessions.get(sessionId);
+        if (session != null) {
+            session.lastUsedMillis = now;
+        }
+        return session;
+    }
+
+    // the sessions are in access order, so the expired ones are the first ones
+    private void removeExpired(long now) {
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().lastUsedMillis <= idleMillis) {
+                return;
+            }
+            iterator.remove();
+            expired++;
+        }
+    }
+
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("capacity", capacity);
+        map.put("idleMillis", idleMillis);
+        map.put("size", sessions.size());
+        map.put("opened", opened);
+        map.put("expired", expired);
+        map.put("evictions", evictions);
+        return map;
+    }
+}
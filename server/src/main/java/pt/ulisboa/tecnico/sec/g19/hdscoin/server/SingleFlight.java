@@ -0,0 +1,87 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller runs the load, and the callers that ask for the key
+ * while it runs wait for its result instead of running their own. Nothing is kept once the load is done, the caches
+ * are for that: callers put the generation of what they load in the key, so a load that started before a write is
+ * never shared with a caller that came after it.
+ */
+public class SingleFlight<K, V> {
+
+    private static class Flight<V> {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int fanIn = 1;
+        private V value;
+        private Throwable error;   // an Error too, the waiters must not take a missing value for a loaded one
+    }
+
+    private final Map<K, Flight<V>> flights = new HashMap<>();
+    private long loads = 0;
+    private long coalesced = 0;
+    private int maxFanIn = 0;
+
+    /**
+     * @param key  the key of what is loaded
+     * @param load loads it, run only if there is no load of the key in progress
+     * @return the value loaded, by this caller or by the one it waited for
+     * @throws Exception the exception of the load, also thrown to the callers that waited for it, as is an Error
+     */
+    public V execute(K key, Callable<V> load) throws Exception {
+        Flight<V> flight;
+        boolean leader = false;
+        synchronized (this) {
+            flight = flights.get(key);
+            if (flight != null) {
+                flight.fanIn++;
+                coalesced++;
+                maxFanIn = Math.max(maxFanIn, flight.fanIn);
+            } else {
+                flight = new Flight<>();
+                flights.put(key, flight);
+                loads++;
+                leader = true;
+            }
+        }
+        if (!leader) {
+            flight.done.await();
+            if (flight.error instanceof Exception) {
+                throw (Exception) flight.error;
+            } else if (flight.error instanceof Error) {
+                throw (Error) flight.error;
+            } else if (flight.error != null) {
+                throw new ExecutionException(flight.error);
+            }
+            return flight.value;
+        }
+        try {
+            flight.value = load.call();
+            return flight.value;
+        } catch (Throwable e) {
+            flight.error = e;
+            throw e;
+        } finally {
+            synchronized (this) {
+                flights.remove(key);
+            }
+            flight.done.countDown();
+        }
+    }
+
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("inFlight", flights.size());
+        map.put("loads", loads);
+        map.put("coalesced", coalesced);
+        map.put("maxFanIn", maxFanIn);
+        map.put("savedRate", loads + coalesced == 0 ? 0.0 : (double) coalesced / (loads + coalesced));
+        return map;
+    }
+}
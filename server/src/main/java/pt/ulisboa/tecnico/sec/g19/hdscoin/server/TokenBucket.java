@@ -0,0 +1,41 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+
+/**
+ * Caps the rate of something, bytes of a transfer for example. Tokens refill continuously up to the size of a
+ * second of rate; taking more than there is puts the bucket in debt and the taker sleeps until it is paid back.
+ */
+public class TokenBucket {
+    private final long ratePerSecond;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+        this.tokens = ratePerSecond;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes tokens, and waits while the bucket is in debt.
+     *
+     * @param amount how many tokens to take, known only after the transfer is done
+     */
+    public void take(long amount) throws InterruptedException {
+        long waitMillis;
+        synchronized (this) {
+            refill();
+            tokens -= amount;
+            waitMillis = tokens < 0 ? (long) Math.ceil(-tokens * 1000 / ratePerSecond) : 0;
+        }
+        if (waitMillis > 0) {
+            Thread.sleep(waitMillis);
+        }
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        tokens = Math.min(ratePerSecond, tokens + (now - lastRefill) * ratePerSecond / 1000.0);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,64 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Applies the pipelined writes of an account in timestamp order. A client can have several writes of the same account
+ * in flight, with consecutive timestamps, and their commits can reach this replica out of order. A commit waits while
+ * the write with the previous timestamp is echoed but not yet applied, for a while; after that it goes ahead and the
+ * ledger it carries is used to catch up.
+ */
+public class WriteSequencer {
+    public static final long DEFAULT_WAIT_MILLIS = 2000;
+    // writes that were echoed and never committed are forgotten after a while, and only so many are remembered
+    private static final int CAPACITY = 10000;
+
+    private final long ttlMillis;
+    // author and timestamp of the write -> when it was echoed
+    private final Map<String, Long> inFlight = new LinkedHashMap<String, Long>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > CAPACITY;
+        }
+    };
+
+    public WriteSequencer(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    // called when a write is echoed
+    public synchronized void begin(String author, int timestamp) {
+        inFlight.put(slot(author, timestamp), System.currentTimeMillis());
+    }
+
+    // called when the commit of a write is over, whether it was applied or not
+    public synchronized void end(String author, int timestamp) {
+        if (inFlight.remove(slot(author, timestamp)) != null) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the write before this one is no longer in flight, or the wait runs out.
+     *
+     * @return false if the wait ran out
+     */
+    public synchronized boolean awaitTurn(String author, int timestamp, long waitMillis) throws InterruptedException {
+        String previous = slot(author, timestamp - 1);
+        long deadline = System.currentTimeMillis() + waitMillis;
+        Long echoedAt;
+        while ((echoedAt = inFlight.get(previous)) != null && echoedAt + ttlMillis > System.currentTimeMillis()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private static String slot(String author, int timestamp) {
+        return author + "@" + timestamp;
+    }
+}
@@ -130,18 +130,20 @@ public final class Ledger {
         }
     }
 
-    // useful for the check account
-    // get pending transactions where this ledger can receive money
-    public List<Transaction> getPendingTransactions(Connection connection, ECPublicKey publicKey)
-            throws SQLException, KeyException {
-        String stmt = "SELECT * FROM tx AS t " +
-                "JOIN ledger AS l ON t.other_id = l.id " +
-                "WHERE l.public_key = ? " +
-                "AND t.pending = 1";
-        PreparedStatement prepStmt = connection.prepareStatement(stmt);
-        prepStmt.setString(1, Serialization.publicKeyToBase64(publicKey));
-
-        return Transaction.loadResults(connection, prepStmt);
+    // the transactions of the ledger after its checkpoint
+    public int getTransactionCount(Connection connection) throws SQLException {
+        String stmt = "SELECT count(*) FROM tx WHERE ledger_id = ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, id);
+            ResultSet rs = prepStmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
     }
 
     public Transaction getLatestTransaction(Connection connection) throws SQLException {
@@ -190,6 +192,72 @@ public final class Ledger {
         dbTx.persist(connection);
     }
 
+    /**
+     * Creates the ledgers of many accounts in the given database transaction, with batched inserts.
+     * The initial transactions must already be verified and none of the accounts may have a ledger yet.
+     *
+     * @param publicKeys          the keys of the new accounts
+     * @param initialTransactions the self-signed first transaction of each account, in the same order
+     * @return the new ledgers, in the same order
+     */
+    public static List<Ledger> createAll(Connection connection, List<ECPublicKey> publicKeys,
+                                         List<Serialization.Transaction> initialTransactions) throws SQLException, KeyException {
+        List<Ledger> ledgers = new ArrayList<>();
+        int nextId = getNextId(connection);
+        for (int i = 0; i < publicKeys.size(); i++) {
+            ledgers.add(new Ledger(nextId++, publicKeys.get(i), initialTransactions.get(i).amount, 0));
+        }
+
+        String stmt = "INSERT INTO ledger (id, public_key, balance, timestamp) VALUES (?, ?, ?, ?)";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            for (Ledger ledger : ledgers) {
+                prepStmt.setInt(1, ledger.getId());
+                prepStmt.setString(2, Serialization.publicKeyToBase64(ledger.getPublicKey()));
+                prepStmt.setInt(3, ledger.getAmount());
+                prepStmt.setInt(4, ledger.getTimestamp());
+                prepStmt.addBatch();
+            }
+            prepStmt.executeBatch();
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+        Transaction.persistFirstTransactions(connection, ledgers, initialTransactions);
+        return ledgers;
+    }
+
+    /**
+     * Creates the ledger of an account from its checkpoint, for a replica that never saw the transactions it covers.
+     * The checkpoint must already be verified and the account may not have a ledger yet.
+     *
+     * @return the new ledger, with the balance and timestamp of the checkpoint
+     */
+    public static Ledger createFromCheckpoint(Connection connection, ECPublicKey publicKey,
+                                              Serialization.Checkpoint checkpoint) throws SQLException, KeyException {
+        Ledger ledger = new Ledger(getNextId(connection), publicKey, checkpoint.balance, checkpoint.timestamp);
+        ledger.persist(connection);
+        MerkleAccumulator.install(connection, ledger.getId(), checkpoint.length, checkpoint.peaks);
+        LedgerCheckpoint.store(connection, ledger.getId(), checkpoint);
+        return ledger;
+    }
+
+    public static boolean exists(Connection connection, ECPublicKey pk) throws SQLException, KeyException {
+        String stmt = "SELECT 1 FROM ledger WHERE public_key = ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setString(1, Serialization.publicKeyToBase64(pk));
+            return prepStmt.executeQuery().next();
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
     public static Ledger load(Connection connection, int id) throws SQLException, KeyException, MissingLedgerException {
         String stmt = "SELECT * FROM ledger WHERE id = ?";
         PreparedStatement prepStmt = null;
@@ -263,7 +331,9 @@ public final class Ledger {
             ResultSet rs = prepStmt.executeQuery();
 
             while (rs.next()) {
-                return rs.getInt(1);
+                int latestId = rs.getInt(1);
+                // no transactions left after a checkpoint
+                return rs.wasNull() ? -1 : latestId;
             }
             return -1;
         } finally {
@@ -0,0 +1,108 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server.structures;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * The latest quorum-signed checkpoint of each ledger, kept in the checkpoint table, and the archive of the transactions
+ * it covers. Archived transactions leave tx for tx_archive: the reads and writes of the ledger only see the ones after
+ * the checkpoint, while the archive still answers for their hashes, so they can't be replayed and can still be proved.
+ */
+public final class LedgerCheckpoint {
+
+    private LedgerCheckpoint() {
+    }
+
+    // the checkpoint of the ledger, null if it has none
+    public static Serialization.Checkpoint load(Connection connection, int ledgerId) throws SQLException {
+        String stmt = "SELECT body FROM checkpoint WHERE ledger_id = ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, ledgerId);
+            ResultSet rs = prepStmt.executeQuery();
+            if (!rs.next()) {
+                return null;
+            }
+            return Serialization.parse(rs.getString(1), Serialization.Checkpoint.class);
+        } catch (IOException e) {
+            throw new SQLException("Corrupt checkpoint of ledger " + ledgerId, e);
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    // the signature the next transaction of a ledger without transactions chains to, null if it has no checkpoint
+    static String getHeadSignature(Connection connection, int ledgerId) throws SQLException {
+        String stmt = "SELECT head_signature FROM checkpoint WHERE ledger_id = ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, ledgerId);
+            ResultSet rs = prepStmt.executeQuery();
+            return rs.next() ? rs.getString(1) : null;
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    public static void store(Connection connection, int ledgerId, Serialization.Checkpoint checkpoint)
+            throws SQLException {
+        String stmt = "INSERT OR REPLACE INTO checkpoint (ledger_id, length, head_signature, body) VALUES (?, ?, ?, ?)";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, ledgerId);
+            prepStmt.setInt(2, checkpoint.length);
+            prepStmt.setString(3, checkpoint.headSignature);
+            prepStmt.setString(4, Serialization.serialize(checkpoint));
+            prepStmt.executeUpdate();
+        } catch (JsonProcessingException e) {
+            throw new SQLException("Failed to serialize the checkpoint of ledger " + ledgerId, e);
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    /**
+     * Moves the transactions of a ledger up to a given one to the archive. They are settled by the checkpoint, so
+     * they leave the pending inboxes and are archived as received.
+     *
+     * @param ledgerId          the ledger
+     * @param lastTransactionId the id of the last transaction to archive, transactions are in ledger order by id
+     */
+    public static void archive(Connection connection, int ledgerId, int lastTransactionId) throws SQLException {
+        String[] stmts = {
+                "INSERT OR REPLACE INTO tx_archive (id, ledger_id, other_id, is_send, amount, nonce, hash, prev_hash, " +
+                        "pending) SELECT id, ledger_id, other_id, is_send, amount, nonce, hash, prev_hash, 0 FROM tx " +
+                        "WHERE ledger_id = ? AND id <= ?",
+                "DELETE FROM pending_inbox WHERE tx_id IN (SELECT id FROM tx WHERE ledger_id = ? AND id <= ?)",
+                "DELETE FROM tx WHERE ledger_id = ? AND id <= ?"
+        };
+        for (String stmt : stmts) {
+            PreparedStatement prepStmt = null;
+            try {
+                prepStmt = connection.prepareStatement(stmt);
+                prepStmt.setInt(1, ledgerId);
+                prepStmt.setInt(2, lastTransactionId);
+                prepStmt.executeUpdate();
+            } finally {
+                if (prepStmt != null) {
+                    prepStmt.close();
+                }
+            }
+        }
+    }
+}
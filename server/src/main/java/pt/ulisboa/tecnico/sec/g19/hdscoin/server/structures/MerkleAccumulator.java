@@ -0,0 +1,219 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.server.structures;
+
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.MerkleProof;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only Merkle accumulator over the transactions of each ledger, kept in the merkle_node table next to tx.
+ * Only the nodes of complete subtrees are stored, the node at (level, idx) covers the leaves
+ * [idx * 2^level, (idx + 1) * 2^level). Appending a transaction stores its leaf and the O(log n) nodes it completes,
+ * and any root or inclusion proof is composed from those nodes as in RFC 6962.
+ */
+public final class MerkleAccumulator {
+
+    private MerkleAccumulator() {
+    }
+
+    // appends the transaction with this signature as the next leaf of the ledger
+    static void append(Connection connection, int ledgerId, String transactionHash) throws SQLException {
+        int index = getSize(connection, ledgerId);
+        String hash = MerkleProof.leafHash(transactionHash);
+        int level = 0;
+        insertNode(connection, ledgerId, level, index, hash);
+        // each right child completes the subtree of its parent
+        while ((index & 1) == 1) {
+            hash = MerkleProof.nodeHash(getNode(connection, ledgerId, level, index - 1), hash);
+            index >>= 1;
+            level++;
+            insertNode(connection, ledgerId, level, index, hash);
+        }
+    }
+
+    // the first leaf of ledgers that were just created, see Ledger.createAll
+    static void appendFirstLeaves(Connection connection, List<Ledger> ledgers, List<String> transactionHashes)
+            throws SQLException {
+        String stmt = "INSERT INTO merkle_node (ledger_id, level, idx, hash) VALUES (?, 0, 0, ?)";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            for (int i = 0; i < ledgers.size(); i++) {
+                prepStmt.setInt(1, ledgers.get(i).getId());
+                prepStmt.setString(2, MerkleProof.leafHash(transactionHashes.get(i)));
+                prepStmt.addBatch();
+            }
+            prepStmt.executeBatch();
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    // drops the leaves from this size on, and the nodes that covered them
+    static void truncate(Connection connection, int ledgerId, int size) throws SQLException {
+        String stmt = "DELETE FROM merkle_node WHERE ledger_id = ? AND ((idx + 1) << level) > ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, ledgerId);
+            prepStmt.setInt(2, size);
+            prepStmt.executeUpdate();
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    // the number of transactions in the accumulator of the ledger, a checkpoint may have left only its peaks
+    public static int getSize(Connection connection, int ledgerId) throws SQLException {
+        String stmt = "SELECT max((idx + 1) << level) FROM merkle_node WHERE ledger_id = ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, ledgerId);
+            ResultSet rs = prepStmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : 0;
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the peaks of the accumulator, the roots of the complete subtrees that the first size leaves split into,
+     * from the largest one. They are all it takes to keep appending, and to prove the leaves appended later.
+     */
+    public static List<String> getPeaks(Connection connection, int ledgerId, int size) throws SQLException {
+        List<String> peaks = new ArrayList<>();
+        int start = 0;
+        for (int level = 31; level >= 0; level--) {
+            if ((size & (1 << level)) != 0) {
+                peaks.add(getNode(connection, ledgerId, level, start >> level));
+                start += 1 << level;
+            }
+        }
+        return peaks;
+    }
+
+    // replaces the accumulator of the ledger with the peaks of one of the given size, see getPeaks
+    public static void install(Connection connection, int ledgerId, int size, List<String> peaks) throws SQLException {
+        if (peaks.size() != Integer.bitCount(size)) {
+            throw new SQLException("Wrong number of peaks for an accumulator of " + size + " leaves");
+        }
+        truncate(connection, ledgerId, 0);
+        int start = 0;
+        int peak = 0;
+        for (int level = 31; level >= 0; level--) {
+            if ((size & (1 << level)) != 0) {
+                insertNode(connection, ledgerId, level, start >> level, peaks.get(peak++));
+                start += 1 << level;
+            }
+        }
+    }
+
+    // the position of a transaction in the ledger, or -1 if it isn't there
+    public static int indexOf(Connection connection, int ledgerId, String transactionHash) throws SQLException {
+        String stmt = "SELECT idx FROM merkle_node WHERE ledger_id = ? AND level = 0 AND hash = ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, ledgerId);
+            prepStmt.setString(2, MerkleProof.leafHash(transactionHash));
+            ResultSet rs = prepStmt.executeQuery();
+            return rs.next() ? rs.getInt(1) : -1;
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    // the root of the first size transactions of the ledger
+    public static String getRoot(Connection connection, int ledgerId, int size) throws SQLException {
+        return getSubtreeHash(connection, ledgerId, 0, size);
+    }
+
+    /**
+     * Gets the inclusion proof of a transaction, PATH(index, D[0:size]) of RFC 6962
+     *
+     * @return the hashes of the siblings on the way from the leaf to the root, from the leaf up
+     */
+    public static List<String> getInclusionProof(Connection connection, int ledgerId, int index, int size)
+            throws SQLException {
+        List<String> path = new ArrayList<>();
+        addInclusionPath(connection, ledgerId, 0, size, index, path);
+        return path;
+    }
+
+    private static void addInclusionPath(Connection connection, int ledgerId, int start, int size, int index,
+                                         List<String> path) throws SQLException {
+        if (size <= 1) {
+            return;
+        }
+        int split = Integer.highestOneBit(size - 1);
+        if (index < split) {
+            addInclusionPath(connection, ledgerId, start, split, index, path);
+            path.add(getSubtreeHash(connection, ledgerId, start + split, size - split));
+        } else {
+            addInclusionPath(connection, ledgerId, start + split, size - split, index - split, path);
+            path.add(getSubtreeHash(connection, ledgerId, start, split));
+        }
+    }
+
+    // MTH(D[start:start + size]), a stored node when the subtree is complete
+    private static String getSubtreeHash(Connection connection, int ledgerId, int start, int size) throws SQLException {
+        if (Integer.bitCount(size) == 1) {
+            int level = Integer.numberOfTrailingZeros(size);
+            return getNode(connection, ledgerId, level, start >> level);
+        }
+        int split = Integer.highestOneBit(size - 1);
+        return MerkleProof.nodeHash(getSubtreeHash(connection, ledgerId, start, split),
+                getSubtreeHash(connection, ledgerId, start + split, size - split));
+    }
+
+    private static String getNode(Connection connection, int ledgerId, int level, int index) throws SQLException {
+        String stmt = "SELECT hash FROM merkle_node WHERE ledger_id = ? AND level = ? AND idx = ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, ledgerId);
+            prepStmt.setInt(2, level);
+            prepStmt.setInt(3, index);
+            ResultSet rs = prepStmt.executeQuery();
+            if (!rs.next()) {
+                throw new SQLException("Missing node " + level + "/" + index + " of the accumulator of ledger " + ledgerId);
+            }
+            return rs.getString(1);
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    private static void insertNode(Connection connection, int ledgerId, int level, int index, String hash)
+            throws SQLException {
+        String stmt = "INSERT OR REPLACE INTO merkle_node (ledger_id, level, idx, hash) VALUES (?, ?, ?, ?)";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, ledgerId);
+            prepStmt.setInt(2, level);
+            prepStmt.setInt(3, index);
+            prepStmt.setString(4, hash);
+            prepStmt.executeUpdate();
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+}
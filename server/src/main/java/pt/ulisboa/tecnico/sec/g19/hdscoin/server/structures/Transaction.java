@@ -33,6 +33,7 @@ public final class Transaction {
     private String previousHash;
     private boolean pending;
     private TransactionType type;
+    private boolean stored = false;  // already in the database, and so in the Merkle accumulator of its ledger
 
     /**
      * @param id
@@ -65,16 +66,13 @@ public final class Transaction {
                 throw new InvalidValueException("The previous hash can't be null.");
             }
 
-            // get latest transaction to check if previousSignature is correct
+            // get latest transaction to check if previousSignature is correct, the checkpoint of the ledger
+            // stands in for it when all the transactions were archived
             Transaction latestTransaction = source.getLatestTransaction(connection);
+            String latestHash = latestTransaction != null ? latestTransaction.getHash() :
+                    LedgerCheckpoint.getHeadSignature(connection, source.getId());
 
-            if (latestTransaction == null) {
-                throw new SignatureException("The previous signature does not match the correct one");
-            }
-
-            if (latestTransaction == null && !previousHash.isEmpty()) {
-                throw new SignatureException("The previous signature is not empty as it should");
-            } else if (latestTransaction != null && !previousHash.equals(latestTransaction.getHash())) {
+            if (latestHash == null || !previousHash.equals(latestHash)) {
                 throw new SignatureException("The previous signature does not match the correct one");
             }
         } else if (previousHash != null && !previousHash.isEmpty()) {
@@ -176,19 +174,97 @@ public final class Transaction {
                 prepStmt.close();
             }
         }
+        persistInboxEntry(connection);
+        // persisted again only to update the pending flag, it is already in the accumulator
+        if (!stored) {
+            MerkleAccumulator.append(connection, this.getSourceLedger().getId(), this.hash);
+            stored = true;
+        }
     }
 
+    // batched insert of the FIRST transactions of ledgers that were just created, see Ledger.createAll
+    static void persistFirstTransactions(Connection connection, List<Ledger> ledgers,
+                                         List<Serialization.Transaction> initialTransactions) throws SQLException {
+        String stmt = "INSERT INTO tx (id, ledger_id, other_id, is_send, amount, nonce, hash, " +
+                "prev_hash, pending) VALUES (?, ?, ?, 0, ?, ?, ?, NULL, 0)";
+        PreparedStatement prepStmt = null;
+        try {
+            int nextId = getNextId(connection);
+            prepStmt = connection.prepareStatement(stmt);
+            for (int i = 0; i < ledgers.size(); i++) {
+                Serialization.Transaction tx = initialTransactions.get(i);
+                prepStmt.setInt(1, nextId++);
+                prepStmt.setInt(2, ledgers.get(i).getId());
+                prepStmt.setInt(3, ledgers.get(i).getId());
+                prepStmt.setInt(4, tx.amount);
+                prepStmt.setString(5, tx.nonce);
+                prepStmt.setString(6, tx.signature);
+                prepStmt.addBatch();
+            }
+            prepStmt.executeBatch();
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+        List<String> hashes = new ArrayList<>();
+        for (Serialization.Transaction tx : initialTransactions) {
+            hashes.add(tx.signature);
+        }
+        MerkleAccumulator.appendFirstLeaves(connection, ledgers, hashes);
+    }
 
+    // keeps the pending inbox of the target ledger in line with the pending flag
+    private void persistInboxEntry(Connection connection) throws SQLException {
+        String stmt = this.pending ?
+                "INSERT OR REPLACE INTO pending_inbox (tx_id, target_id) VALUES (?, ?)" :
+                "DELETE FROM pending_inbox WHERE tx_id = ?";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+            prepStmt.setInt(1, this.id);
+            if (this.pending) {
+                prepStmt.setInt(2, this.getTargetLedger().getId());
+            }
+            prepStmt.executeUpdate();
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+    // all transactions in the pending inbox of every ledger, oldest first
+    public static List<Transaction> getAllPendingTransactions(Connection connection) throws SQLException {
+        String stmt = "SELECT t.* FROM pending_inbox AS p " +
+                "JOIN tx AS t ON p.tx_id = t.id " +
+                "ORDER BY t.id";
+        PreparedStatement prepStmt = null;
+        try {
+            prepStmt = connection.prepareStatement(stmt);
+
+            return loadResults(connection, prepStmt);
+        } finally {
+            if (prepStmt != null) {
+                prepStmt.close();
+            }
+        }
+    }
+
+
+    // ids aren't reused by the archive, archived transactions keep theirs
     private static int getNextId(Connection connection) throws SQLException {
         int next = 0;
         Statement statement = connection.createStatement();
-        ResultSet rs = statement.executeQuery("select max(id) from tx");
+        ResultSet rs = statement.executeQuery("select max(coalesce((select max(id) from tx), -1), " +
+                "coalesce((select max(id) from tx_archive), -1))");
         while (rs.next()) {
             next = rs.getInt(1) + 1;
         }
         return next;
     }
 
+    // archived transactions are found too, see LedgerCheckpoint
     public static Transaction getTransactionByHash(Connection connection, String hash) throws SQLException,
             MissingTransactionException {
         String stmt = "SELECT * FROM tx WHERE hash = ?";
@@ -199,6 +275,12 @@ public final class Transaction {
 
             List<Transaction> results = loadResults(connection, prepStmt);
             if (results.size() == 0) {
+                prepStmt.close();
+                prepStmt = connection.prepareStatement("SELECT * FROM tx_archive WHERE hash = ?");
+                prepStmt.setString(1, hash);
+                results = loadResults(connection, prepStmt);
+            }
+            if (results.size() == 0) {
 //                log.log(Level.WARNING, "A transaction with the specified hash was not found. Hash: " + hash);
                 throw new MissingTransactionException("A transaction with the specified hash was not found.");
             }
@@ -232,6 +314,7 @@ public final class Transaction {
             }
 
             Transaction tx = new Transaction(id, source, target, amount, nonce, hash, previousHash, type, pending);
+            tx.stored = true;
 
             ret.add(tx);
         }
@@ -271,9 +354,27 @@ public final class Transaction {
     }
 
     public static void removeTransaction(Connection connection, int id) throws SQLException {
-        String stmt = "DELETE FROM tx WHERE (id) VALUES (?)";
+        String stmt = "DELETE FROM tx WHERE id = ?";
         PreparedStatement prepStmt = null;
         try {
+            // only the latest transaction of a ledger is ever removed, its leaf is the last one of the accumulator
+            prepStmt = connection.prepareStatement("SELECT ledger_id, hash FROM tx WHERE id = ?");
+            prepStmt.setInt(1, id);
+            ResultSet rs = prepStmt.executeQuery();
+            if (rs.next()) {
+                int ledgerId = rs.getInt(1);
+                int index = MerkleAccumulator.indexOf(connection, ledgerId, rs.getString(2));
+                if (index >= 0) {
+                    MerkleAccumulator.truncate(connection, ledgerId, index);
+                }
+            }
+            prepStmt.close();
+
+            prepStmt = connection.prepareStatement("DELETE FROM pending_inbox WHERE tx_id = ?");
+            prepStmt.setInt(1, id);
+            prepStmt.executeUpdate();
+            prepStmt.close();
+
             prepStmt = connection.prepareStatement(stmt);
             prepStmt.setInt(1, id);
             prepStmt.executeUpdate();
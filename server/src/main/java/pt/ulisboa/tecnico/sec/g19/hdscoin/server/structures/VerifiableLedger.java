@@ -9,9 +9,16 @@ import java.util.List;
 
 
 public class VerifiableLedger implements Hashable {
+    private Serialization.Checkpoint checkpoint;
     private List<Serialization.Transaction> transactions;
 
     public VerifiableLedger(List<Serialization.Transaction> transactions) {
+        this(null, transactions);
+    }
+
+    // the transactions that come after a checkpoint, which stands in for the ones it covers
+    public VerifiableLedger(Serialization.Checkpoint checkpoint, List<Serialization.Transaction> transactions) {
+        this.checkpoint = checkpoint;
         this.transactions = transactions;
     }
 
@@ -21,6 +28,9 @@ public class VerifiableLedger implements Hashable {
 
     @Override public String getHashable () {
         StringBuilder hashable = new StringBuilder ();
+        if (checkpoint != null) {
+            hashable.append (checkpoint.headHash);
+        }
         for (Serialization.Transaction tx : transactions) {
             hashable.append (tx.getSignable ());    // get signable is used because it would retrieve the same information as a getHashable on a transaction
         }
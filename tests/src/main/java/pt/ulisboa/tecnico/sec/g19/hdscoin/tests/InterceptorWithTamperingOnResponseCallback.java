@@ -73,10 +73,10 @@ public class InterceptorWithTamperingOnResponseCallback implements ExpectationCa
                 String body = request.body();
                 Serialization.Response response = null;
                 try {
-                    response = Serialization.parse(body, Serialization.Response.class);
+                    response = Serialization.parse(body, Serialization.SendAmountResponse.class);
                     response.nonce = "banana4";
                 } catch (Exception ex) {
-                    // we might not be able to intercept this as a Serialization.Response because it might be a Serialization.SignedEchoResponse
+                    // we might not be able to intercept this as a Serialization.SendAmountResponse because it might be a Serialization.SignedEchoResponse
                 }
 
                 Log.getLog().warn("BODYTESTE: " + body);
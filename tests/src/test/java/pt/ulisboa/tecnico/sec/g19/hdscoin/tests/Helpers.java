@@ -27,8 +27,7 @@ public class Helpers {
     }
 
     static String getPreviousHash(Client client, ECPublicKey clientPublicKey) throws AuditException {
-        Serialization.AuditResponse transactionsClient1 = client.audit(clientPublicKey);
-        return transactionsClient1.ledger.transactions.get(transactionsClient1.ledger.transactions.size() - 1).signature;
+        return client.audit(clientPublicKey).ledger.getHeadSignature();
     }
 
     static ECPrivateKey getPrivateKey(String party) throws IOException, UnrecoverableKeyException, CertificateException, NoSuchAlgorithmException, KeyStoreException {
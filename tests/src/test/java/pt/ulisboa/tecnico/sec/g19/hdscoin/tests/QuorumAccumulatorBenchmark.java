@@ -0,0 +1,102 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.tests;
+
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.QuorumAccumulator;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Cost of deciding a read, with the QuorumAccumulator and with the list-then-count decision the client used before,
+ * for several numbers of replicas. Not part of the regular test run, start it with:
+ * mvn test -DskipTests=false -Dtest=QuorumAccumulatorBenchmark
+ */
+public class QuorumAccumulatorBenchmark {
+    private static final int[] REPLICAS = {4, 7, 10, 31};
+    private static final int READS = 1000000;
+    private static final int WARMUP_READS = 200000;
+
+    @Test
+    public void benchmark() {
+        System.out.println("replicas  accumulator(ns/read)  list-then-count(ns/read)  responses fed");
+        for (int replicas : REPLICAS) {
+            int faults = (replicas - 1) / 3;
+            int quorumSize = (replicas + faults) / 2 + 1;
+            // one in ten reads has a stale replica
+            Serialization.CheckAccountResponse[][] reads = new Serialization.CheckAccountResponse[1024][replicas];
+            Random random = new Random(replicas);
+            for (Serialization.CheckAccountResponse[] read : reads) {
+                for (int i = 0; i < replicas; i++) {
+                    read[i] = new Serialization.CheckAccountResponse();
+                    read[i].timestamp = random.nextInt(10) == 0 ? 1 : 2;
+                }
+            }
+            runAccumulator(reads, replicas, quorumSize, WARMUP_READS);
+            runListThenCount(reads, WARMUP_READS);
+
+            long start = System.nanoTime();
+            long fed = runAccumulator(reads, replicas, quorumSize, READS);
+            long accumulatorNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            runListThenCount(reads, READS);
+            long listNanos = System.nanoTime() - start;
+            System.out.println(String.format("%8d  %20.1f  %24.1f  %13.2f", replicas,
+                    (double) accumulatorNanos / READS, (double) listNanos / READS, (double) fed / READS));
+        }
+    }
+
+    // returns how many responses were fed before the reads were decided
+    private static long runAccumulator(Serialization.CheckAccountResponse[][] reads, int replicas, int quorumSize,
+                                       int count) {
+        long fed = 0;
+        long checksum = 0;
+        for (int n = 0; n < count; n++) {
+            Serialization.CheckAccountResponse[] read = reads[n % reads.length];
+            QuorumAccumulator<Serialization.CheckAccountResponse> accumulator =
+                    new QuorumAccumulator<>(replicas, quorumSize);
+            for (Serialization.CheckAccountResponse response : read) {
+                fed++;
+                if (accumulator.add(response) != QuorumAccumulator.Outcome.PENDING) {
+                    break;
+                }
+            }
+            checksum += accumulator.getDecision().timestamp;
+        }
+        assert (checksum > 0);
+        return fed;
+    }
+
+    // every response first, then the most frequent timestamp, as the client did
+    private static void runListThenCount(Serialization.CheckAccountResponse[][] reads, int count) {
+        long checksum = 0;
+        for (int n = 0; n < count; n++) {
+            List<Serialization.CheckAccountResponse> responses = new ArrayList<>();
+            for (Serialization.CheckAccountResponse response : reads[n % reads.length]) {
+                responses.add(response);
+            }
+            Map<Integer, Integer> occurrences = new HashMap<>();
+            for (Serialization.CheckAccountResponse response : responses) {
+                occurrences.merge(response.getTimestamp(), 1, Integer::sum);
+            }
+            int timestamp = 0;
+            int highest = 0;
+            for (Map.Entry<Integer, Integer> entry : occurrences.entrySet()) {
+                if (entry.getValue() > highest) {
+                    highest = entry.getValue();
+                    timestamp = entry.getKey();
+                }
+            }
+            for (Serialization.CheckAccountResponse response : responses) {
+                if (response.getTimestamp() == timestamp) {
+                    checksum += response.timestamp;
+                    break;
+                }
+            }
+        }
+        assert (checksum > 0);
+    }
+}
@@ -0,0 +1,83 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.tests;
+
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.EchoStore;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.EchoStore.Result;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestEchoStore {
+
+    private static long counter(EchoStore store, String name) {
+        return ((Number) store.toMap().get(name)).longValue();
+    }
+
+    @Test
+    public void sameWriteIsRepeatedAndAnotherConflicts() {
+        EchoStore store = new EchoStore(10, 30000);
+        assertEquals(Result.ADDED, store.add("author", 1, "write"));
+        // a client retrying gets the same slot, another write for the timestamp doesn't
+        assertEquals(Result.REPEATED, store.add("author", 1, "write"));
+        assertEquals(Result.CONFLICT, store.add("author", 1, "other write"));
+        // the next timestamp, or another author, is another slot
+        assertEquals(Result.ADDED, store.add("author", 2, "other write"));
+        assertEquals(Result.ADDED, store.add("other author", 1, "other write"));
+
+        assertFalse(store.remove("author", 1, "other write"));
+        assertTrue(store.remove("author", 1, "write"));
+        assertFalse(store.remove("author", 1, "write"));
+        assertEquals(1, counter(store, "conflicts"));
+        assertEquals(1, counter(store, "committed"));
+        assertEquals(2, counter(store, "size"));
+    }
+
+    @Test
+    public void fullAtCapacity() {
+        EchoStore store = new EchoStore(2, 30000);
+        assertEquals(Result.ADDED, store.add("author", 1, "write 1"));
+        assertEquals(Result.ADDED, store.add("author", 2, "write 2"));
+        assertEquals(Result.FULL, store.add("author", 3, "write 3"));
+        // a write already in the store is still answered when it is full
+        assertEquals(Result.REPEATED, store.add("author", 2, "write 2"));
+        assertEquals(1, counter(store, "rejected"));
+
+        // committing a write makes room for another
+        assertTrue(store.remove("author", 1, "write 1"));
+        assertEquals(Result.ADDED, store.add("author", 3, "write 3"));
+    }
+
+    @Test
+    public void slotOfACrashedClientIsFreedAfterTheTimeToLive() throws InterruptedException {
+        EchoStore store = new EchoStore(10, 50);
+        assertEquals(Result.ADDED, store.add("author", 1, "write"));
+        assertEquals(Result.CONFLICT, store.add("author", 1, "other write"));
+        Thread.sleep(100);
+        // the client never committed, the slot goes to the next write for the timestamp
+        assertEquals(Result.ADDED, store.add("author", 1, "other write"));
+        assertEquals(1, counter(store, "expired"));
+        // and the expired write can't be committed anymore
+        Thread.sleep(100);
+        assertFalse(store.remove("author", 1, "other write"));
+        assertEquals(2, counter(store, "expired"));
+        assertEquals(0, counter(store, "size"));
+    }
+
+    @Test
+    public void expiredEntriesAreSweptWithTheirBucket() throws InterruptedException {
+        EchoStore store = new EchoStore(10, 50);
+        for (int timestamp = 1; timestamp <= 3; timestamp++) {
+            assertEquals(Result.ADDED, store.add("author", timestamp, "write " + timestamp));
+        }
+        // a whole bucket later, adding any write sweeps the expired ones
+        Thread.sleep(1100);
+        assertEquals(Result.ADDED, store.add("other author", 1, "write"));
+        Map<String, Object> map = store.toMap();
+        assertEquals(1, ((Number) map.get("size")).intValue());
+        assertEquals(3, ((Number) map.get("expired")).intValue());
+        assertEquals(4, ((Number) map.get("added")).intValue());
+    }
+}
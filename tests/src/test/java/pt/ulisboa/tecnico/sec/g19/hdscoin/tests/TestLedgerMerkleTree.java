@@ -0,0 +1,102 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.tests;
+
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.LedgerMerkleTree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLedgerMerkleTree {
+
+    private static Serialization.SyncEntry head(int account, int timestamp) {
+        Serialization.SyncEntry head = new Serialization.SyncEntry();
+        head.publicKey = "account-" + account;
+        head.timestamp = timestamp;
+        head.headHash = "hash-" + account + "-" + timestamp;
+        return head;
+    }
+
+    private static List<Serialization.SyncEntry> heads(int accounts) {
+        List<Serialization.SyncEntry> heads = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            heads.add(head(i, 1));
+        }
+        return heads;
+    }
+
+    @Test
+    public void fewAccountsFitInTheRoot() {
+        LedgerMerkleTree tree = new LedgerMerkleTree(heads(LedgerMerkleTree.LEAF_SIZE));
+        assertTrue(tree.isLeaf(""));
+        assertEquals(LedgerMerkleTree.LEAF_SIZE, tree.getEntries("").size());
+    }
+
+    @Test
+    public void leavesStaySmallAsAccountsGrow() {
+        int accounts = 5000;
+        LedgerMerkleTree tree = new LedgerMerkleTree(heads(accounts));
+        assertFalse(tree.isLeaf(""));
+        int found = 0;
+        Deque<String> nodes = new ArrayDeque<>();
+        nodes.push("");
+        while (!nodes.isEmpty()) {
+            String node = nodes.pop();
+            if (tree.isLeaf(node)) {
+                assertTrue(tree.getEntries(node).size() <= LedgerMerkleTree.LEAF_SIZE);
+                found += tree.getEntries(node).size();
+                continue;
+            }
+            for (char digit : LedgerMerkleTree.DIGITS.toCharArray()) {
+                nodes.push(node + digit);
+            }
+        }
+        assertEquals(accounts, found);
+    }
+
+    @Test
+    public void onlyThePathOfAChangedHeadDiffers() {
+        List<Serialization.SyncEntry> heads = heads(1000);
+        LedgerMerkleTree tree = new LedgerMerkleTree(heads);
+        assertEquals(tree.getHash(""), new LedgerMerkleTree(heads(1000)).getHash(""));
+
+        heads.set(7, head(7, 2));
+        LedgerMerkleTree changed = new LedgerMerkleTree(heads);
+        assertNotEquals(tree.getHash(""), changed.getHash(""));
+        String path = LedgerMerkleTree.getPath("account-7");
+        List<String> children = tree.getChildHashes("");
+        List<String> changedChildren = changed.getChildHashes("");
+        for (int i = 0; i < children.size(); i++) {
+            boolean onPath = LedgerMerkleTree.DIGITS.charAt(i) == path.charAt(0);
+            assertEquals(onPath, !children.get(i).equals(changedChildren.get(i)));
+        }
+    }
+
+    @Test
+    public void nodeHashDoesNotDependOnTheSplit() {
+        // the root of the small tree is a leaf, the one of the large tree is split, yet the child of the small
+        // tree's only account hashes the same in both wherever they hold the same heads
+        List<Serialization.SyncEntry> small = heads(1);
+        String path = LedgerMerkleTree.getPath("account-0");
+        List<Serialization.SyncEntry> large = new ArrayList<>(small);
+        for (int i = 1; large.size() <= LedgerMerkleTree.LEAF_SIZE || i < 100; i++) {
+            if (LedgerMerkleTree.getPath("account-" + i).charAt(0) != path.charAt(0)) {
+                large.add(head(i, 1));
+            }
+        }
+        LedgerMerkleTree smallTree = new LedgerMerkleTree(small);
+        LedgerMerkleTree largeTree = new LedgerMerkleTree(large);
+        assertTrue(smallTree.isLeaf(""));
+        assertFalse(largeTree.isLeaf(""));
+        String child = path.substring(0, 1);
+        assertEquals(smallTree.getHash(child), largeTree.getHash(child));
+        assertEquals(1, largeTree.getEntries(path).size());
+    }
+}
@@ -0,0 +1,133 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.tests;
+
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Compression;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestLedgerSerialization {
+
+    private static Serialization.Transaction transaction(String source, String target, boolean isSend, int amount,
+                                                         String previousSignature, String signature) {
+        Serialization.Transaction tx = new Serialization.Transaction();
+        tx.source = source;
+        tx.target = target;
+        tx.isSend = isSend;
+        tx.amount = amount;
+        tx.nonce = "nonce-" + signature;
+        tx.previousSignature = previousSignature;
+        tx.signature = signature;
+        return tx;
+    }
+
+    private static Serialization.Ledger ledger() {
+        Serialization.Ledger ledger = new Serialization.Ledger();
+        ledger.timestamp = 3;
+        // the genesis transaction has no target, and the keys repeat across the others
+        ledger.transactions.add(transaction("keyA", null, false, 0, "", "sig0"));
+        ledger.transactions.add(transaction("keyA", "keyB", true, 10, "sig0", "sig1"));
+        ledger.transactions.add(transaction("keyC", "keyA", false, 5, "sig1", "sig2"));
+        return ledger;
+    }
+
+    private static void assertRoundTrip(String contentType) throws IOException {
+        Serialization.Ledger ledger = ledger();
+        byte[] body = Serialization.serialize(ledger, contentType);
+        Serialization.Ledger read = Serialization.parse(body, contentType, Serialization.Ledger.class);
+        assertEquals(ledger.getSignable(), read.getSignable());
+        assertEquals(ledger.transactions.size(), read.transactions.size());
+        assertEquals(ledger.getHeadSignature(), read.getHeadSignature());
+    }
+
+    @Test
+    public void jsonRoundTrip() throws IOException {
+        assertRoundTrip(Serialization.JSON_CONTENT_TYPE);
+    }
+
+    @Test
+    public void cborRoundTrip() throws IOException {
+        assertRoundTrip(Serialization.CBOR_CONTENT_TYPE);
+    }
+
+    @Test
+    public void keysAreWrittenOnce() throws IOException {
+        String json = Serialization.serialize(ledger());
+        assertEquals(json.indexOf("keyA"), json.lastIndexOf("keyA"));
+        assertFalse(json.contains("\"transactions\""));
+    }
+
+    private static void assertSplicedAudit(String contentType) throws IOException {
+        Serialization.Ledger ledger = ledger();
+        Serialization.AuditResponse envelope = new Serialization.AuditResponse();
+        envelope.status = Serialization.StatusMessage.SUCCESS;
+        envelope.nonce = "nonce";
+        Serialization.Splice splice = Serialization.spliceField(envelope, contentType, "ledger");
+        byte[] encodedLedger = Serialization.serialize(ledger, contentType);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(splice.prefix);
+        body.write(encodedLedger);
+        body.write(splice.suffix);
+
+        Serialization.AuditResponse read = Serialization.parse(body.toByteArray(), contentType,
+                Serialization.AuditResponse.class);
+        assertEquals("nonce", read.nonce);
+        assertEquals(Serialization.StatusMessage.SUCCESS, read.status);
+        assertEquals(ledger.getSignable(), read.ledger.getSignable());
+
+        // and the same body compressed around a segment compressed beforehand
+        byte[] deflated = Compression.deflate(splice.prefix, Compression.deflateSegment(encodedLedger), splice.suffix);
+        assertArrayEquals(body.toByteArray(),
+                Compression.decode(deflated, Compression.DEFLATE, Compression.MAX_DECODED_LENGTH));
+    }
+
+    @Test
+    public void jsonSplicedAudit() throws IOException {
+        assertSplicedAudit(Serialization.JSON_CONTENT_TYPE);
+    }
+
+    @Test
+    public void cborSplicedAudit() throws IOException {
+        assertSplicedAudit(Serialization.CBOR_CONTENT_TYPE);
+    }
+
+    @Test
+    public void largeSegmentIsSpliced() throws IOException {
+        // larger than the buffers of the deflater, and barely compressible
+        byte[] segment = new byte[100000];
+        new Random(19).nextBytes(segment);
+        byte[] prefix = "{\"nonce\":\"n\",\"ledger\":".getBytes(StandardCharsets.UTF_8);
+        byte[] suffix = "}".getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(prefix);
+        body.write(segment);
+        body.write(suffix);
+        byte[] deflated = Compression.deflate(prefix, Compression.deflateSegment(segment), suffix);
+        assertArrayEquals(body.toByteArray(),
+                Compression.decode(deflated, Compression.DEFLATE, Compression.MAX_DECODED_LENGTH));
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedDecodedBodyIsRejected() throws IOException {
+        // compresses to a few bytes, yet decodes past the cap
+        byte[] deflated = Compression.encode(new byte[64 * 1024], Compression.DEFLATE);
+        assertEquals(64 * 1024, Compression.decode(deflated, Compression.DEFLATE, 64 * 1024).length);
+        Compression.decode(deflated, Compression.DEFLATE, 64 * 1024 - 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void keyIndexOutOfRangeIsRejected() throws IOException {
+        String json = Serialization.serialize(ledger());
+        // the table has 3 keys, point an entry past its end
+        json = json.replaceFirst("\"target\":1", "\"target\":7");
+        Serialization.parse(json.getBytes(StandardCharsets.UTF_8), Serialization.JSON_CONTENT_TYPE,
+                Serialization.Ledger.class);
+    }
+}
@@ -0,0 +1,87 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.tests;
+
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.QuorumAccumulator;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.QuorumAccumulator.Outcome;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestQuorumAccumulator {
+
+    private static Serialization.CheckAccountResponse response(int timestamp) {
+        Serialization.CheckAccountResponse response = new Serialization.CheckAccountResponse();
+        response.timestamp = timestamp;
+        return response;
+    }
+
+    @Test
+    public void agreeingQuorumDecides() {
+        // 4 replicas, a quorum of 3
+        QuorumAccumulator<Serialization.CheckAccountResponse> accumulator = new QuorumAccumulator<>(4, 3);
+        Serialization.CheckAccountResponse first = response(5);
+        assertEquals(Outcome.PENDING, accumulator.add(first));
+        assertEquals(Outcome.PENDING, accumulator.add(response(5)));
+        assertNull(accumulator.getDecision());
+        // the last replica can't change the decision anymore
+        assertEquals(Outcome.DECIDED, accumulator.add(response(5)));
+        assertSame(first, accumulator.getDecision());
+        assertEquals(3, accumulator.getDecisionVotes());
+    }
+
+    @Test
+    public void disagreementWaitsForTheOtherReplicas() {
+        QuorumAccumulator<Serialization.CheckAccountResponse> accumulator = new QuorumAccumulator<>(4, 3);
+        accumulator.add(response(4));
+        accumulator.add(response(4));
+        // the last replica could still tie with a newer timestamp
+        assertEquals(Outcome.PENDING, accumulator.add(response(5)));
+        // and a tie goes to the newest timestamp
+        assertEquals(Outcome.DECIDED, accumulator.add(response(5)));
+        assertEquals(5, accumulator.getDecision().getTimestamp());
+        assertEquals(2, accumulator.getDecisionVotes());
+    }
+
+    @Test
+    public void staleReplicaCantChangeTheDecision() {
+        QuorumAccumulator<Serialization.CheckAccountResponse> accumulator = new QuorumAccumulator<>(4, 3);
+        accumulator.add(response(5));
+        accumulator.add(response(5));
+        // the last replica could at most tie with the older timestamp
+        assertEquals(Outcome.DECIDED, accumulator.add(response(4)));
+        assertEquals(5, accumulator.getDecision().getTimestamp());
+    }
+
+    @Test
+    public void failuresCanRuleOutAQuorum() {
+        QuorumAccumulator<Serialization.CheckAccountResponse> accumulator = new QuorumAccumulator<>(4, 3);
+        assertEquals(Outcome.PENDING, accumulator.fail());
+        assertEquals(Outcome.PENDING, accumulator.add(response(1)));
+        assertEquals(Outcome.NO_QUORUM, accumulator.fail());
+        assertNull(accumulator.getDecision());
+    }
+
+    @Test
+    public void unansweredReplicasCanStillOutvoteTheLeader() {
+        // 7 replicas, a quorum of 5
+        QuorumAccumulator<Serialization.CheckAccountResponse> accumulator = new QuorumAccumulator<>(7, 5);
+        for (int i = 0; i < 3; i++) {
+            accumulator.add(response(1));
+        }
+        accumulator.add(response(2));
+        // the 3 replicas left could all answer with a newer timestamp
+        assertEquals(Outcome.PENDING, accumulator.add(response(2)));
+        assertEquals(Outcome.DECIDED, accumulator.add(response(1)));
+        assertEquals(1, accumulator.getDecision().getTimestamp());
+        assertEquals(4, accumulator.getDecisionVotes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noMoreResponsesThanReplicas() {
+        QuorumAccumulator<Serialization.CheckAccountResponse> accumulator = new QuorumAccumulator<>(1, 1);
+        accumulator.add(response(1));
+        accumulator.add(response(1));
+    }
+}
@@ -1,18 +1,38 @@
 package pt.ulisboa.tecnico.sec.g19.hdscoin.tests;
 
+import com.github.kevinsawicki.http.HttpRequest;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.client.Client;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.client.Subscription;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.client.exceptions.AuditException;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.client.exceptions.ReceiveAmountException;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.client.exceptions.SendAmountException;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Serialization;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Utils;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.AntiEntropy;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.EchoStore;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.server.Server;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.SingleFlight;
 import pt.ulisboa.tecnico.sec.g19.hdscoin.server.exceptions.FailedToLoadKeysException;
 import spark.Service;
 
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URLEncoder;
+import java.security.KeyPair;
 import java.security.interfaces.ECPrivateKey;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TestWebServerTest {
     private List<Service> serverGroup = new ArrayList();
@@ -28,6 +48,8 @@ public class TestWebServerTest {
     @After
     public void stopServers() {
         for (Service service : serverGroup) {
+            // a replica stopped while it is still starting would keep running, and hold its port
+            service.awaitInitialization();
             service.stop();
         }
         serverGroup.clear();
@@ -56,4 +78,772 @@ public class TestWebServerTest {
         assert (result1.balance == 5);
         assert (result2.balance == 45);
     }
+
+    @Test
+    public void simpleSendAmountCborTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.setContentType(Serialization.CBOR_CONTENT_TYPE);
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        String prevHash = Helpers.getPreviousHash(client, client1pubKey);
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        client.sendAmount(client1pubKey, client2pubKey, 5, client1privKey, prevHash);
+        Serialization.CheckAccountResponse result0 = client.checkAccount(client2pubKey);
+        Serialization.Transaction transaction = result0.pendingTransactions.get(result0.pendingTransactions.size() - 1);
+        String prevHashClient2 = Helpers.getPreviousHash(client, client2pubKey);
+        client.receiveAmount(client2pubKey, transaction.source, transaction.amount, client2privKey, prevHashClient2, transaction.signature);
+
+        //Validate transfer result
+        Serialization.CheckAccountResponse result1 = client.checkAccount(client1pubKey);
+        Serialization.CheckAccountResponse result2 = client.checkAccount(client2pubKey);
+        assert (result1.balance == 5);
+        assert (result2.balance == 45);
+    }
+
+    @Test
+    public void compressedSendAmountTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.setCompressionThreshold(0); // compress every request
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        String prevHash = Helpers.getPreviousHash(client, client1pubKey);
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        client.sendAmount(client1pubKey, client2pubKey, 5, client1privKey, prevHash);
+        Serialization.CheckAccountResponse result1 = client.checkAccount(client1pubKey);
+        assert (result1.balance == 5);
+
+        String metrics = HttpRequest.get(Helpers.getBaseServerURL() + "/metrics").body();
+        Map<String, Map<String, Map<String, Object>>> parsed = Serialization.parse(metrics, Map.class);
+        Number compressedRequests = (Number) parsed.get("compression").get("/sendAmount").get("compressedRequests");
+        assert (compressedRequests.intValue() > 0);
+    }
+
+    @Test
+    public void pendingInboxPaginationTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        client.sendAmount(client1pubKey, client2pubKey, 2, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        client.sendAmount(client1pubKey, client2pubKey, 3, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        Serialization.CheckAccountResponse countOnly = client.checkAccount(client2pubKey, 0, 0);
+        assert (countOnly.pendingCount == 2);
+        assert (countOnly.pendingTransactions.isEmpty());
+
+        Serialization.CheckAccountResponse secondPage = client.checkAccount(client2pubKey, 1, 1);
+        assert (secondPage.pendingTransactions.size() == 1);
+        assert (secondPage.pendingTransactions.get(0).amount == 3);
+
+        Serialization.Transaction transaction = secondPage.pendingTransactions.get(0);
+        String prevHashClient2 = Helpers.getPreviousHash(client, client2pubKey);
+        client.receiveAmount(client2pubKey, transaction.source, transaction.amount, client2privKey, prevHashClient2, transaction.signature);
+
+        Serialization.CheckAccountResponse result = client.checkAccount(client2pubKey);
+        assert (result.balance == 43);
+        assert (result.pendingCount == 1);
+        assert (result.pendingTransactions.get(0).amount == 2);
+    }
+
+    @Test
+    public void serverBroadcastTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.setServerBroadcast(true); // the replicas exchange the echoes
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        client.sendAmount(client1pubKey, client2pubKey, 4, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        Serialization.CheckAccountResponse result0 = client.checkAccount(client2pubKey);
+        assert (result0.pendingCount == 1);
+        Serialization.Transaction transaction = result0.pendingTransactions.get(0);
+        String prevHashClient2 = Helpers.getPreviousHash(client, client2pubKey);
+        client.receiveAmount(client2pubKey, transaction.source, transaction.amount, client2privKey, prevHashClient2, transaction.signature);
+
+        assert (client.checkAccount(client1pubKey).balance == 6);
+        assert (client.checkAccount(client2pubKey).balance == 44);
+    }
+
+    @Test
+    public void transferReceiptTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        // the receipt travels from the sender to the receiver on its own
+        String receipt = Serialization.serialize(client.sendAmount(client1pubKey, client2pubKey, 3, client1privKey,
+                Helpers.getPreviousHash(client, client1pubKey)));
+
+        // a receipt changed on the way is refused before anything is sent to the replicas
+        Serialization.TransferReceipt tampered = Serialization.parse(receipt, Serialization.TransferReceipt.class);
+        tampered.transaction.amount = 30;
+        try {
+            client.receiveAmount(client2pubKey, tampered, client2privKey);
+            assert (false);
+        } catch (ReceiveAmountException e) {
+            // expected
+        }
+
+        client.receiveAmount(client2pubKey, Serialization.parse(receipt, Serialization.TransferReceipt.class),
+                client2privKey);
+        assert (client.checkAccount(client1pubKey).balance == 7);
+        Serialization.CheckAccountResponse result = client.checkAccount(client2pubKey);
+        assert (result.balance == 43);
+        assert (result.pendingCount == 0);
+    }
+
+    @Test
+    public void sessionTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        // the requests of both accounts, and the responses to them, are authenticated with the keys of their sessions
+        assert (client.openSessions(client1pubKey, client1privKey) == Helpers.getNumberOfServers());
+        assert (client.openSessions(client2pubKey, client2privKey) == Helpers.getNumberOfServers());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        client.sendAmount(client1pubKey, client2pubKey, 4, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        Serialization.Transaction transaction = client.checkAccount(client2pubKey).pendingTransactions.get(0);
+        client.receiveAmount(client2pubKey, transaction.source, transaction.amount, client2privKey,
+                Helpers.getPreviousHash(client, client2pubKey), transaction.signature);
+        assert (client.checkAccount(client1pubKey).balance == 6);
+        assert (client.checkAccount(client2pubKey).balance == 44);
+
+        String metrics = HttpRequest.get(Helpers.getBaseServerURL() + "/metrics").body();
+        Map<String, Map<String, Object>> parsed = Serialization.parse(metrics, Map.class);
+        assert (((Number) parsed.get("sessions").get("opened")).intValue() == 2);
+
+        // back to ECDSA signatures
+        client.closeSessions(client1privKey);
+        client.sendAmount(client1pubKey, client2pubKey, 1, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        assert (client.checkAccount(client1pubKey).balance == 5);
+    }
+
+    @Test
+    public void auditCacheTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        // audits of an account that didn't change are answered from the cache, each signed with its own nonce
+        String auditUrl = Helpers.getBaseServerURL() + "/audit/" +
+                URLEncoder.encode(Serialization.publicKeyToBase64(client1pubKey), "UTF-8");
+        String serverKey = Serialization.publicKeyToBase64(Helpers.getPublicKey("Server_1"));
+        // the ledger is encoded once per wire format and spliced into each response
+        for (String contentType : Arrays.asList(Serialization.JSON_CONTENT_TYPE, Serialization.CBOR_CONTENT_TYPE,
+                Serialization.JSON_CONTENT_TYPE)) {
+            String nonce = Utils.randomNonce();
+            HttpRequest request = HttpRequest.get(auditUrl).header(Serialization.NONCE_HEADER_NAME, nonce)
+                    .accept(contentType);
+            Serialization.AuditResponse response = Serialization.parse(request.bytes(), request.contentType(),
+                    Serialization.AuditResponse.class);
+            assert (nonce.equals(response.nonce));
+            assert (response.ledger.getOwner().equals(Serialization.publicKeyToBase64(client1pubKey)));
+            assert (Utils.checkSignature(request.header(Serialization.SIGNATURE_HEADER_NAME), response.getSignable(), serverKey));
+        }
+        String metrics = HttpRequest.get(Helpers.getBaseServerURL() + "/metrics").body();
+        Map<String, Map<String, Object>> parsed = Serialization.parse(metrics, Map.class);
+        assert (((Number) parsed.get("accountCache").get("auditHits")).intValue() >= 1);
+
+        // a write drops the cached ledger
+        int length = client.audit(client1pubKey).ledger.transactions.size();
+        client.sendAmount(client1pubKey, client2pubKey, 4, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        assert (client.audit(client1pubKey).ledger.transactions.size() == length + 1);
+    }
+
+    @Test
+    public void singleFlightTest() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        BlockingQueue<Integer> results = new LinkedBlockingQueue<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    results.add(singleFlight.execute("Client_1@0", () -> {
+                        release.await();
+                        return loads.incrementAndGet();
+                    }));
+                } catch (Exception e) {
+                    results.add(-1);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        // the load only finishes once all the callers are waiting for it
+        while (((Number) singleFlight.toMap().get("coalesced")).intValue() < 3) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert (loads.get() == 1);
+        assert (results.size() == 4);
+        for (int result : results) {
+            assert (result == 1);
+        }
+        assert (((Number) singleFlight.toMap().get("maxFanIn")).intValue() == 4);
+
+        // a key with another generation is loaded again
+        assert (singleFlight.execute("Client_1@1", loads::incrementAndGet) == 2);
+
+        // an Error of the load reaches the caller that waited for it too, instead of a missing value
+        CountDownLatch fail = new CountDownLatch(1);
+        BlockingQueue<Throwable> errors = new LinkedBlockingQueue<>();
+        Runnable caller = () -> {
+            try {
+                singleFlight.execute("Client_2@0", () -> {
+                    fail.await();
+                    throw new StackOverflowError();
+                });
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        };
+        Thread leader = new Thread(caller);
+        leader.start();
+        while (((Number) singleFlight.toMap().get("inFlight")).intValue() < 1) {
+            Thread.sleep(10);
+        }
+        Thread waiter = new Thread(caller);
+        waiter.start();
+        while (((Number) singleFlight.toMap().get("coalesced")).intValue() < 4) {
+            Thread.sleep(10);
+        }
+        fail.countDown();
+        leader.join();
+        waiter.join();
+        assert (errors.size() == 2);
+        for (Throwable error : errors) {
+            assert (error instanceof StackOverflowError);
+        }
+    }
+
+    @Test
+    public void replicaHealthTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        // one replica is down, the client stops asking it once it couldn't reach it
+        Service stopped = serverGroup.remove(3);
+        stopped.awaitInitialization();
+        stopped.stop();
+        awaitFreePorts(4573, 1);
+
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+        client.sendAmount(client1pubKey, client2pubKey, 4, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        assert (client.checkAccount(client1pubKey).balance == 6);
+        Map<String, Object> health = client.getReplicaHealth();
+        assert (((List<String>) health.get("suspected")).contains("Server_4"));
+        assert (((Number) health.get("skipped")).intValue() > 0);
+
+        // once it is back the probes clear the suspicion
+        serverGroup.add(new Server(Helpers.getBaseServerURL().toString(), "Server_4", 4573, 4, "ABCD4").ignite());
+        for (int i = 0; i < 100 && !((List<String>) client.getReplicaHealth().get("suspected")).isEmpty(); i++) {
+            Thread.sleep(100);
+        }
+        health = client.getReplicaHealth();
+        assert (((List<String>) health.get("suspected")).isEmpty());
+        assert (((Number) health.get("recoveries")).intValue() >= 1);
+    }
+
+    @Test
+    public void hedgedReadTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+        client.sendAmount(client1pubKey, client2pubKey, 4, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        // the reads go to the fastest quorum first and still see the latest write
+        for (int i = 0; i < 10; i++) {
+            assert (client.checkAccount(client1pubKey).balance == 6);
+            assert (client.checkAccount(client2pubKey).pendingCount == 1);
+        }
+        Map<String, Object> health = client.getReplicaHealth();
+        assert (((Map<String, Object>) health.get("latencies")).size() == Helpers.getNumberOfServers());
+        assert (((Number) health.get("hedges")).intValue() < 20);
+    }
+
+    @Test
+    public void quorumReadTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.setReadMode(Client.ReadMode.QUORUM);
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+        client.sendAmount(client1pubKey, client2pubKey, 4, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        // the replicas agree, so each read only asks a quorum of 3
+        long before = ((Number) client.getReplicaHealth().get("readRequests")).longValue();
+        for (int i = 0; i < 10; i++) {
+            assert (client.checkAccount(client1pubKey).balance == 6);
+        }
+        long after = ((Number) client.getReplicaHealth().get("readRequests")).longValue();
+        assert (after - before == 30);
+
+        client.setReadMode(Client.ReadMode.ALL);
+        assert (client.checkAccount(client2pubKey).pendingCount == 1);
+        assert (((Number) client.getReplicaHealth().get("readRequests")).longValue() - after == 4);
+    }
+
+    @Test
+    public void requestBatchingTest() throws Exception {
+        // relaunch the replicas with write batching, once the ones stopped in the background let go of their ports
+        stopServers();
+        awaitFreePorts(4570, Helpers.getNumberOfServers());
+        for (int i = 1; i <= Helpers.getNumberOfServers(); i++) {
+            Server server = new Server(Helpers.getBaseServerURL().toString(), "Server_" + i, 4569 + i, 4, "ABCD" + i);
+            server.setRequestBatching(20, 8);
+            serverGroup.add(server.ignite());
+        }
+
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+
+        List<KeyPair> senders = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            KeyPair keyPair = Utils.generateKeyPair();
+            client.register((ECPublicKey) keyPair.getPublic(), (ECPrivateKey) keyPair.getPrivate(), 10);
+            senders.add(keyPair);
+        }
+
+        // independent writes sent at the same time, each client on its own thread
+        List<Thread> threads = new ArrayList<>();
+        BlockingQueue<Exception> failures = new LinkedBlockingQueue<>();
+        for (KeyPair sender : senders) {
+            Thread thread = new Thread(() -> {
+                try {
+                    Client senderClient = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+                    ECPublicKey publicKey = (ECPublicKey) sender.getPublic();
+                    senderClient.sendAmount(publicKey, client1pubKey, 3, (ECPrivateKey) sender.getPrivate(),
+                            Helpers.getPreviousHash(senderClient, publicKey));
+                } catch (Exception e) {
+                    failures.add(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assert (failures.isEmpty());
+
+        Serialization.CheckAccountResponse result = client.checkAccount(client1pubKey);
+        assert (result.pendingCount == 3);
+        assert (client.checkAccount((ECPublicKey) senders.get(0).getPublic()).balance == 7);
+
+        String metrics = HttpRequest.get(Helpers.getBaseServerURL() + "/metrics").body();
+        Map<String, Map<String, Object>> parsed = Serialization.parse(metrics, Map.class);
+        // the 3 sends, and the write-backs of the reads, which are committed the same way
+        assert (((Number) parsed.get("commitBatching").get("requests")).intValue() >= 3);
+    }
+
+    @Test
+    public void antiEntropyTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+        client.sendAmount(client1pubKey, client2pubKey, 4, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        int timestamp = client.checkAccount(client1pubKey).timestamp;
+
+        // Server_4 comes back with an empty database and catches up from its peers on its own
+        serverGroup.get(3).stop();
+        awaitFreePorts(4573, 1);
+        Server server = new Server(Helpers.getBaseServerURL().toString(), "Server_4", 4573, 4, "ABCD4");
+        server.setAntiEntropy(200, AntiEntropy.DEFAULT_BYTES_PER_SECOND);
+        serverGroup.set(3, server.ignite());
+        try {
+            String checkAccountUrl = "http://localhost:4573/checkAccount/" +
+                    URLEncoder.encode(Serialization.publicKeyToBase64(client1pubKey), "UTF-8");
+            Serialization.CheckAccountResponse result = null;
+            for (int i = 0; i < 100; i++) {
+                Thread.sleep(200);
+                result = Serialization.parse(HttpRequest.get(checkAccountUrl).body(), Serialization.CheckAccountResponse.class);
+                if (result.status == Serialization.StatusMessage.SUCCESS && result.timestamp == timestamp) {
+                    break;
+                }
+            }
+            assert (result.status == Serialization.StatusMessage.SUCCESS);
+            assert (result.balance == 6);
+            assert (result.timestamp == timestamp);
+        } finally {
+            server.stopAntiEntropy();
+        }
+    }
+
+    @Test
+    public void inclusionProofTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+        client.sendAmount(client1pubKey, client2pubKey, 1, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        client.sendAmount(client1pubKey, client2pubKey, 2, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        // a ledger of 3 transactions, the proofs of a tree that isn't complete
+        List<Serialization.Transaction> transactions = client.audit(client1pubKey).ledger.transactions;
+        assert (transactions.size() == 3);
+        for (int i = 0; i < transactions.size(); i++) {
+            Serialization.InclusionProofResponse proof = client.verifyTransaction(client1pubKey, transactions.get(i).signature);
+            assert (proof.index == i);
+            assert (proof.treeSize == 3);
+        }
+
+        // a transaction of another ledger isn't in this one
+        String otherSignature = client.audit(client2pubKey).ledger.transactions.get(0).signature;
+        try {
+            client.verifyTransaction(client1pubKey, otherSignature);
+            assert (false);
+        } catch (AuditException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void checkpointTest() throws Exception {
+        // relaunch the replicas with checkpoints of any ledger with 2 transactions or more
+        stopServers();
+        awaitFreePorts(4570, Helpers.getNumberOfServers());
+        List<Server> servers = new ArrayList<>();
+        for (int i = 1; i <= Helpers.getNumberOfServers(); i++) {
+            Server server = new Server(Helpers.getBaseServerURL().toString(), "Server_" + i, 4569 + i, 4, "ABCD" + i);
+            server.setCheckpointing(200, 2);
+            serverGroup.add(server.ignite());
+            servers.add(server);
+        }
+        try {
+            ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+            ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+            ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+            ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+            Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+            client.register(client1pubKey, client1privKey, 10); //Register client1
+            client.register(client2pubKey, client2privKey, 40); //Register client2
+            String firstSignature = Helpers.getPreviousHash(client, client1pubKey);
+            client.sendAmount(client1pubKey, client2pubKey, 4, client1privKey, firstSignature);
+            Serialization.Transaction transaction = client.checkAccount(client2pubKey).pendingTransactions.get(0);
+            client.receiveAmount(client2pubKey, transaction.source, transaction.amount, client2privKey,
+                    Helpers.getPreviousHash(client, client2pubKey), transaction.signature);
+
+            // no transfer of either ledger is pending anymore, so the replicas checkpoint both of them
+            String auditUrl = "http://localhost:4570/audit/" +
+                    URLEncoder.encode(Serialization.publicKeyToBase64(client1pubKey), "UTF-8");
+            Serialization.AuditResponse result = null;
+            for (int i = 0; i < 100; i++) {
+                Thread.sleep(200);
+                result = Serialization.parse(HttpRequest.get(auditUrl).body(), Serialization.AuditResponse.class);
+                if (result.ledger.checkpoint != null) {
+                    break;
+                }
+            }
+            assert (result.ledger.checkpoint != null);
+            assert (result.ledger.checkpoint.length == 2);
+            assert (result.ledger.transactions.isEmpty());
+
+            // the writes chain to the checkpoint, and the archived transactions can still be proved
+            client.sendAmount(client1pubKey, client2pubKey, 1, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+            assert (client.checkAccount(client1pubKey).balance == 5);
+            Serialization.Ledger ledger = client.audit(client1pubKey).ledger;
+            assert (ledger.checkpoint.length == 2);
+            assert (ledger.transactions.size() == 1);
+            assert (client.verifyTransaction(client1pubKey, firstSignature).index == 0);
+
+            transaction = client.checkAccount(client2pubKey).pendingTransactions.get(0);
+            client.receiveAmount(client2pubKey, transaction.source, transaction.amount, client2privKey,
+                    Helpers.getPreviousHash(client, client2pubKey), transaction.signature);
+            assert (client.checkAccount(client2pubKey).balance == 45);
+        } finally {
+            for (Server server : servers) {
+                server.stopCheckpointing();
+            }
+        }
+    }
+
+    // the replicas stopped in the background let go of their ports some time later
+    private static void awaitFreePorts(int firstPort, int count) throws InterruptedException {
+        for (int port = firstPort; port < firstPort + count; port++) {
+            while (true) {
+                try (ServerSocket socket = new ServerSocket(port)) {
+                    break;
+                } catch (IOException e) {
+                    Thread.sleep(100);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void echoStoreExpiryTest() throws Exception {
+        // relaunch the replicas with a short time to live for the echoed writes
+        stopServers();
+        awaitFreePorts(4570, Helpers.getNumberOfServers());
+        for (int i = 1; i <= Helpers.getNumberOfServers(); i++) {
+            Server server = new Server(Helpers.getBaseServerURL().toString(), "Server_" + i, 4569 + i, 4, "ABCD" + i);
+            server.setEchoStore(EchoStore.DEFAULT_CAPACITY, 5000);
+            serverGroup.add(server.ignite());
+        }
+
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        // a client that crashes after getting the echoes of a write, and never commits it
+        Serialization.SendAmountRequest crashed = new Serialization.SendAmountRequest();
+        crashed.ledger = client.audit(client1pubKey).ledger;
+        crashed.ledger.timestamp++;
+        crashed.transaction.source = Serialization.publicKeyToBase64(client1pubKey);
+        crashed.transaction.target = Serialization.publicKeyToBase64(client2pubKey);
+        crashed.transaction.amount = 1;
+        crashed.transaction.nonce = Utils.randomNonce();
+        crashed.transaction.previousSignature = Helpers.getPreviousHash(client, client1pubKey);
+        crashed.transaction.signature = Utils.generateSignature(crashed.transaction.getSignable(), client1privKey);
+        for (int i = 0; i < Helpers.getNumberOfServers(); i++) {
+            HttpRequest echo = HttpRequest.post("http://localhost:" + (4570 + i) + "/sendAmount")
+                    .contentType(Serialization.JSON_CONTENT_TYPE)
+                    .send(Serialization.serialize(crashed, Serialization.JSON_CONTENT_TYPE));
+            assert (echo.code() == 200);
+        }
+
+        // another write with the same timestamp is refused while the slot is held
+        try {
+            client.sendAmount(client1pubKey, client2pubKey, 2, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+            assert (false);
+        } catch (SendAmountException e) {
+            // expected
+        }
+        Map<String, Number> echoStore = getEchoStoreMetrics();
+        assert (echoStore.get("size").intValue() == 1);
+        assert (echoStore.get("conflicts").intValue() == 1);
+        int committed = echoStore.get("committed").intValue();
+
+        // and goes through once the slot expired, past the bucket of its expiry
+        Thread.sleep(6100);
+        client.sendAmount(client1pubKey, client2pubKey, 2, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        assert (client.checkAccount(client1pubKey).balance == 8);
+
+        echoStore = getEchoStoreMetrics();
+        assert (echoStore.get("size").intValue() == 0);
+        assert (echoStore.get("expired").intValue() == 1);
+        assert (echoStore.get("committed").intValue() > committed);
+    }
+
+    private static Map<String, Number> getEchoStoreMetrics() throws IOException {
+        String metrics = HttpRequest.get(Helpers.getBaseServerURL() + "/metrics").body();
+        Map<String, Map<String, Number>> parsed = Serialization.parse(metrics, Map.class);
+        return parsed.get("echoStore");
+    }
+
+    @Test
+    public void receiveAmountBatchTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        client.sendAmount(client1pubKey, client2pubKey, 2, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        client.sendAmount(client1pubKey, client2pubKey, 3, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        Serialization.CheckAccountResponse result0 = client.checkAccount(client2pubKey);
+        String prevHashClient2 = Helpers.getPreviousHash(client, client2pubKey);
+        client.receiveAmountBatch(client2pubKey, result0.pendingTransactions, client2privKey, prevHashClient2);
+
+        Serialization.CheckAccountResponse result1 = client.checkAccount(client2pubKey);
+        assert (result1.balance == 45);
+        assert (result1.pendingCount == 0);
+        assert (client.audit(client2pubKey).ledger.transactions.size() == 3);
+    }
+
+    @Test
+    public void sendAmountBatchTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        client.sendAmountBatch(client1pubKey, Arrays.asList(client2pubKey, client2pubKey), Arrays.asList(2, 3),
+                client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        assert (client.checkAccount(client1pubKey).balance == 5);
+        assert (client.checkAccount(client2pubKey).pendingCount == 2);
+        assert (client.audit(client1pubKey).ledger.transactions.size() == 3);
+    }
+
+    @Test
+    public void registerBatchTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+
+        List<ECPublicKey> publicKeys = new ArrayList<>();
+        List<ECPrivateKey> privateKeys = new ArrayList<>();
+        List<Integer> amounts = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            KeyPair keyPair = Utils.generateKeyPair();
+            publicKeys.add((ECPublicKey) keyPair.getPublic());
+            privateKeys.add((ECPrivateKey) keyPair.getPrivate());
+            amounts.add(5);
+        }
+        publicKeys.add(client1pubKey);  // already registered
+        privateKeys.add(client1privKey);
+        amounts.add(5);
+
+        List<Boolean> registered = client.registerBatch(publicKeys, privateKeys, amounts);
+        assert (registered.equals(Arrays.asList(true, true, true, false)));
+        assert (client.checkAccount(publicKeys.get(1)).balance == 5);
+        assert (client.checkAccount(client1pubKey).balance == 10);
+    }
+
+    @Test
+    public void batchReadTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        ECPublicKey unregisteredPubKey = (ECPublicKey) Utils.generateKeyPair().getPublic();
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+        client.sendAmount(client1pubKey, client2pubKey, 2, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        List<ECPublicKey> publicKeys = Arrays.asList(client1pubKey, client2pubKey, unregisteredPubKey);
+        List<Serialization.CheckAccountResponse> accounts = client.checkAccounts(publicKeys);
+        assert (accounts.size() == 3);
+        assert (accounts.get(0).balance == 8);
+        assert (accounts.get(1).balance == 40 && accounts.get(1).pendingCount == 1);
+        assert (accounts.get(2).status == Serialization.StatusMessage.ERROR_INVALID_LEDGER);
+
+        List<Serialization.AuditResponse> audits = client.audits(publicKeys);
+        assert (audits.get(0).ledger.transactions.size() == 2);
+        assert (audits.get(1).ledger.transactions.size() == 1);
+        assert (audits.get(2).status == Serialization.StatusMessage.ERROR_INVALID_LEDGER);
+    }
+
+    @Test
+    public void subscribeTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        BlockingQueue<Serialization.Transaction> received = new LinkedBlockingQueue<>();
+        try (Subscription subscription = client.subscribe(client2pubKey, received::add)) {
+            client.sendAmount(client1pubKey, client2pubKey, 2, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+            Serialization.Transaction transaction = received.poll(20, TimeUnit.SECONDS);
+            assert (transaction != null);
+            assert (transaction.amount == 2);
+            assert (received.poll(1, TimeUnit.SECONDS) == null);    // delivered only once
+        }
+    }
+
+    @Test
+    public void sendAmountPipelinedTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        client.sendAmountPipelined(client1pubKey, Arrays.asList(client2pubKey, client2pubKey, client2pubKey),
+                Arrays.asList(1, 2, 3), client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        // the account can still be written as usual afterwards
+        client.sendAmount(client1pubKey, client2pubKey, 1, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        assert (client.checkAccount(client1pubKey).balance == 3);
+        assert (client.checkAccount(client2pubKey).pendingCount == 4);
+        assert (client.audit(client1pubKey).ledger.transactions.size() == 5);
+    }
+
+    @Test
+    public void sendAmountPipelinedFailureTest() throws Exception {
+        ECPublicKey client1pubKey = Helpers.getPublicKey("Client_1");
+        ECPrivateKey client1privKey = Helpers.getPrivateKey("Client_1");
+        ECPublicKey client2pubKey = Helpers.getPublicKey("Client_2");
+        ECPrivateKey client2privKey = Helpers.getPrivateKey("Client_2");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(client1pubKey, client1privKey, 10); //Register client1
+        client.register(client2pubKey, client2privKey, 40); //Register client2
+
+        // the second transfer overdraws the account, so it and the one after it are refused
+        try {
+            client.sendAmountPipelined(client1pubKey, Arrays.asList(client2pubKey, client2pubKey, client2pubKey),
+                    Arrays.asList(1, 100, 1), client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+            assert (false);
+        } catch (SendAmountException e) {
+            // expected
+        }
+
+        // the refused transfers didn't leave their echo slots held, the next two writes take their timestamps
+        client.sendAmount(client1pubKey, client2pubKey, 2, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+        client.sendAmount(client1pubKey, client2pubKey, 3, client1privKey, Helpers.getPreviousHash(client, client1pubKey));
+
+        assert (client.checkAccount(client1pubKey).balance == 4);
+        assert (client.audit(client1pubKey).ledger.transactions.size() == 4);
+    }
 }
@@ -0,0 +1,110 @@
+package pt.ulisboa.tecnico.sec.g19.hdscoin.tests;
+
+import org.junit.Test;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.client.Client;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.common.Utils;
+import pt.ulisboa.tecnico.sec.g19.hdscoin.server.Server;
+import spark.Service;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.security.KeyPair;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Throughput and latency of concurrent sends for several batch windows of the replicas.
+ * Not part of the regular test run, start it with:
+ * mvn test -DskipTests=false -Dtest=WriteBatchingBenchmark
+ */
+public class WriteBatchingBenchmark {
+    private static final int[] BATCH_WINDOWS_MILLIS = {0, 2, 5, 10, 20};
+    private static final int MAX_BATCH_SIZE = 32;
+    private static final int CLIENTS = 8;
+    private static final int SENDS_PER_CLIENT = 3;
+
+    @Test
+    public void benchmark() throws Exception {
+        System.out.println("window(ms)  sends/s  mean(ms)  p95(ms)");
+        for (int window : BATCH_WINDOWS_MILLIS) {
+            List<Service> replicas = launchServers(window);
+            try {
+                List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+                long elapsed = run(latencies);
+                List<Long> sorted = new ArrayList<>(latencies);
+                Collections.sort(sorted);
+                double mean = sorted.stream().mapToLong(Long::longValue).average().orElse(0);
+                long p95 = sorted.isEmpty() ? 0 : sorted.get((int) Math.ceil(sorted.size() * 0.95) - 1);
+                System.out.println(String.format("%10d  %7.2f  %8.1f  %7d",
+                        window, sorted.size() * 1000.0 / elapsed, mean, p95));
+            } finally {
+                for (Service replica : replicas) {
+                    replica.stop();
+                }
+            }
+        }
+    }
+
+    // each client sends from its own account on its own thread, returns the time it took for all the sends
+    private long run(List<Long> latencies) throws Exception {
+        ECPublicKey targetPublicKey = Helpers.getPublicKey("Client_1");
+        Client client = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+        client.register(targetPublicKey, Helpers.getPrivateKey("Client_1"), 10);
+
+        List<KeyPair> senders = new ArrayList<>();
+        for (int i = 0; i < CLIENTS; i++) {
+            KeyPair keyPair = Utils.generateKeyPair();
+            client.register((ECPublicKey) keyPair.getPublic(), (ECPrivateKey) keyPair.getPrivate(), SENDS_PER_CLIENT);
+            senders.add(keyPair);
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for (KeyPair sender : senders) {
+            Thread thread = new Thread(() -> {
+                Client senderClient = new Client(Helpers.getBaseServerURL(), Helpers.getNumberOfServers(), Helpers.getKeyStoreFilePath());
+                ECPublicKey publicKey = (ECPublicKey) sender.getPublic();
+                for (int i = 0; i < SENDS_PER_CLIENT; i++) {
+                    long sendStart = System.currentTimeMillis();
+                    try {
+                        senderClient.sendAmount(publicKey, targetPublicKey, 1, (ECPrivateKey) sender.getPrivate(),
+                                Helpers.getPreviousHash(senderClient, publicKey));
+                        latencies.add(System.currentTimeMillis() - sendStart);
+                    } catch (Exception e) {
+                        System.out.println("Send failed. " + e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static List<Service> launchServers(int batchWindowMillis) throws Exception {
+        // the replicas of the previous window stop in the background
+        for (int port = 4570; port < 4570 + Helpers.getNumberOfServers(); port++) {
+            while (true) {
+                try (ServerSocket socket = new ServerSocket(port)) {
+                    break;
+                } catch (IOException e) {
+                    Thread.sleep(100);
+                }
+            }
+        }
+        List<Service> replicas = new ArrayList<>();
+        for (int i = 1; i <= Helpers.getNumberOfServers(); i++) {
+            Server server = new Server(Helpers.getBaseServerURL().toString(), "Server_" + i, 4569 + i,
+                    Helpers.getNumberOfServers(), "ABCD" + i);
+            server.setRequestBatching(batchWindowMillis, MAX_BATCH_SIZE);
+            replicas.add(server.ignite());
+        }
+        return replicas;
+    }
+}